@@ -0,0 +1,207 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.room;
+
+import android.arch.persistence.db.SupportSQLiteDatabase;
+import android.arch.persistence.db.SupportSQLiteStatement;
+import android.arch.persistence.db.framework.FrameworkSQLiteOpenHelperFactory;
+import android.arch.persistence.room.testing.MigrationTestHelper;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records the query plans and timings of the artwork queries on the hot paths, on a database
+ * with 50,000 artwork rows, before and after {@link MuzeiDatabase#MIGRATION_8_9} adds its
+ * indices. Results are logged under the {@value #TAG} tag; run with
+ * <code>./gradlew :android-client-common:connectedDebugAndroidTest</code> and read them from
+ * logcat.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ArtworkQueryBenchmark {
+    private static final String TAG = "ArtworkQueryBench";
+    private static final String TEST_DB = "artwork-query-benchmark";
+
+    private static final int ARTWORK_COUNT = 50000;
+    private static final int SOURCE_COUNT = 20;
+    private static final int WARMUP_RUNS = 20;
+    private static final int MEASURED_RUNS = 200;
+
+    // The same SQL as the ArtworkDao methods of the same name
+    private static final String[][] QUERIES = {
+            {"getCurrentArtworkBlocking",
+                    "SELECT * FROM artwork ORDER BY date_added DESC LIMIT 1"},
+            {"getCurrentArtworkWithSourceBlocking",
+                    "SELECT artwork.*, sources.supports_next_artwork, sources.commands "
+                            + "FROM artwork, sources "
+                            + "WHERE artwork.sourceComponentName = sources.component_name "
+                            + "ORDER BY date_added DESC LIMIT 1"},
+            {"getCurrentArtworkWithFileBlocking",
+                    "SELECT * FROM artwork WHERE filePresent = 1 "
+                            + "ORDER BY date_added DESC LIMIT 1"},
+            {"findMatchingByImageUri",
+                    "SELECT * FROM artwork WHERE imageUri = ? AND _id NOT IN (?)"},
+            {"findMatchingByToken",
+                    "SELECT * FROM artwork WHERE token = ? AND _id NOT IN (?)"},
+    };
+
+    @Rule
+    public MigrationTestHelper mHelper = new MigrationTestHelper(
+            InstrumentationRegistry.getInstrumentation(),
+            MuzeiDatabase.class.getCanonicalName(),
+            new FrameworkSQLiteOpenHelperFactory());
+
+    @Test
+    public void migration8To9() throws IOException {
+        SupportSQLiteDatabase database = mHelper.createDatabase(TEST_DB, 8);
+        seed(database);
+        Log.i(TAG, "Version 8, " + ARTWORK_COUNT + " artwork rows");
+        measure(database);
+        database.close();
+
+        database = mHelper.runMigrationsAndValidate(TEST_DB, 9, true,
+                MuzeiDatabase.MIGRATION_8_9);
+        Log.i(TAG, "Version 9, " + ARTWORK_COUNT + " artwork rows");
+        measure(database);
+
+        // The lookups by image URI and token must no longer scan the whole history
+        assertTrue(explain(database, QUERIES[3][1]).contains("index_artwork_imageUri"));
+        assertTrue(explain(database, QUERIES[4][1]).contains("index_artwork_token"));
+        database.close();
+    }
+
+    /**
+     * Inserts the sources and artwork, with every artwork row from a different image and one
+     * in ten of them with its file present, like a long history of downloaded artwork.
+     */
+    private static void seed(SupportSQLiteDatabase database) {
+        database.beginTransaction();
+        try {
+            SupportSQLiteStatement source = database.compileStatement(
+                    "INSERT INTO sources (component_name, selected, description, network, "
+                            + "supports_next_artwork, commands) VALUES (?, 0, NULL, 1, 1, '[]')");
+            for (int i = 0; i < SOURCE_COUNT; i++) {
+                source.bindString(1, componentName(i));
+                source.executeInsert();
+            }
+            SupportSQLiteStatement artwork = database.compileStatement(
+                    "INSERT INTO artwork (sourceComponentName, imageUri, title, token, "
+                            + "metaFont, date_added, fileName, filePresent) "
+                            + "VALUES (?, ?, ?, ?, '', ?, ?, ?)");
+            for (int i = 0; i < ARTWORK_COUNT; i++) {
+                artwork.bindString(1, componentName(i % SOURCE_COUNT));
+                artwork.bindString(2, imageUri(i));
+                artwork.bindString(3, "Artwork " + i);
+                artwork.bindString(4, token(i));
+                artwork.bindLong(5, 1500000000000L + i * 60000L);
+                artwork.bindString(6, "file" + i);
+                artwork.bindLong(7, i % 10 == 0 ? 1 : 0);
+                artwork.executeInsert();
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    private static void measure(SupportSQLiteDatabase database) {
+        for (String[] query : QUERIES) {
+            Log.i(TAG, query[0] + " plan: " + explain(database, query[1]));
+            for (int i = 0; i < WARMUP_RUNS; i++) {
+                run(database, query[1], i);
+            }
+            long[] times = new long[MEASURED_RUNS];
+            for (int i = 0; i < MEASURED_RUNS; i++) {
+                long start = SystemClock.elapsedRealtimeNanos();
+                run(database, query[1], i);
+                times[i] = SystemClock.elapsedRealtimeNanos() - start;
+            }
+            Arrays.sort(times);
+            Log.i(TAG, query[0] + " median=" + (times[MEASURED_RUNS / 2] / 1000) + "us"
+                    + " p90=" + (times[MEASURED_RUNS * 9 / 10] / 1000) + "us");
+        }
+    }
+
+    /**
+     * Runs the query, binding an existing image URI or token to queries with arguments, and
+     * reads every row as Room would.
+     */
+    private static void run(SupportSQLiteDatabase database, String sql, int run) {
+        int row = (run * 7919) % ARTWORK_COUNT;
+        Object[] args = sql.contains("imageUri = ?") ? new Object[]{imageUri(row), -1}
+                : sql.contains("token = ?") ? new Object[]{token(row), -1}
+                : new Object[0];
+        Cursor cursor = database.query(sql, args);
+        try {
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    cursor.getString(i);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String explain(SupportSQLiteDatabase database, String sql) {
+        int parameterCount = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            if (sql.charAt(i) == '?') {
+                parameterCount++;
+            }
+        }
+        Object[] args = new Object[parameterCount];
+        Arrays.fill(args, "");
+        Cursor cursor = database.query("EXPLAIN QUERY PLAN " + sql, args);
+        StringBuilder plan = new StringBuilder();
+        try {
+            int detailColumn = cursor.getColumnIndex("detail");
+            while (cursor.moveToNext()) {
+                if (plan.length() > 0) {
+                    plan.append("; ");
+                }
+                plan.append(cursor.getString(detailColumn));
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan.toString();
+    }
+
+    private static String componentName(int i) {
+        return "com.example.source" + i + "/.ArtSource";
+    }
+
+    private static String imageUri(int i) {
+        return "https://example.com/artwork/" + i + ".jpg";
+    }
+
+    private static String token(int i) {
+        return "token-" + i;
+    }
+}
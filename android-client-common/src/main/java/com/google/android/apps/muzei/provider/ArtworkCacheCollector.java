@@ -0,0 +1,274 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.provider;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.apps.muzei.room.Artwork;
+import com.google.android.apps.muzei.room.ArtworkContent;
+import com.google.android.apps.muzei.room.ArtworkContentDao;
+import com.google.android.apps.muzei.room.ArtworkDao;
+import com.google.android.apps.muzei.room.MuzeiDatabase;
+
+import net.nurik.roman.muzei.androidclientcommon.BuildConfig;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the artwork files of previously shown artwork within {@link #MAX_CACHE_BYTES}, evicting
+ * the files that were displayed longest ago first. Artwork is displayed when it is added, so
+ * the last time a file was displayed is the newest date added of the artwork sharing it.
+ *
+ * <p>Collections run one at a time on a single background thread, and requests made while a
+ * collection is waiting to start are merged into it. The current artwork's file and files of
+ * artwork with a persisted permission are never evicted, since that would break other apps.
+ * Evicted artwork is deleted by id, so artwork added while a collection runs is never evicted
+ * along with it, and a file is only deleted once no artwork references it.
+ */
+class ArtworkCacheCollector {
+    private static final String TAG = "ArtworkCacheCollector";
+
+    /**
+     * Maximum number of bytes of artwork files, including the files generated from them, to
+     * keep for previously shown artwork.
+     */
+    private static final long MAX_CACHE_BYTES = 100 * 1024 * 1024;
+
+    // SQLite allows at most 999 arguments in a single statement
+    private static final int MAX_QUERY_ARGUMENTS = 500;
+
+    private static ExecutorService sExecutorService;
+    // Guarded by ArtworkCacheCollector.class
+    private static boolean sCollectionQueued = false;
+
+    private static final AtomicLong sTotalReclaimedBytes = new AtomicLong();
+
+    private static synchronized ExecutorService getExecutorService() {
+        if (sExecutorService == null) {
+            sExecutorService = Executors.newSingleThreadExecutor();
+        }
+        return sExecutorService;
+    }
+
+    /**
+     * Requests a collection in the background, unless one is already waiting to start.
+     */
+    static synchronized void requestCollection(Context context) {
+        if (sCollectionQueued) {
+            return;
+        }
+        sCollectionQueued = true;
+        final Context applicationContext = context.getApplicationContext();
+        getExecutorService().execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ArtworkCacheCollector.class) {
+                    sCollectionQueued = false;
+                }
+                collect(applicationContext);
+            }
+        });
+    }
+
+    private static void collect(Context context) {
+        long startTime = SystemClock.elapsedRealtime();
+        File directory = MuzeiProvider.getArtworkDirectory(context);
+        if (directory == null) {
+            return;
+        }
+        MuzeiProvider.resolveLegacyFileNames(context);
+        ArtworkDao artworkDao = MuzeiDatabase.getInstance(context).artworkDao();
+        Set<String> persistedFileNames = new HashSet<>(
+                artworkDao.getFileNamesForIds(getPersistedArtworkIds(context)));
+
+        // Group the artwork by file, from most to least recently displayed
+        Map<String, List<Artwork>> artworkByFileName = new LinkedHashMap<>();
+        for (Artwork artwork : artworkDao.getArtworkWithFileByLastDisplayedBlocking()) {
+            List<Artwork> fileArtwork = artworkByFileName.get(artwork.fileName);
+            if (fileArtwork == null) {
+                fileArtwork = new ArrayList<>();
+                artworkByFileName.put(artwork.fileName, fileArtwork);
+            }
+            fileArtwork.add(artwork);
+        }
+
+        // Walk the files from most to least recently displayed, keeping them until the budget
+        // is used up and evicting everything older
+        List<Artwork> evictedArtwork = new ArrayList<>();
+        Map<String, Long> evictedSizes = new HashMap<>();
+        long keptBytes = 0;
+        boolean isCurrentArtwork = true;
+        for (Map.Entry<String, List<Artwork>> entry : artworkByFileName.entrySet()) {
+            String fileName = entry.getKey();
+            if (isCurrentArtwork || persistedFileNames.contains(fileName)) {
+                isCurrentArtwork = false;
+                continue;
+            }
+            long size = getSize(new File(directory, fileName));
+            keptBytes += size;
+            if (keptBytes > MAX_CACHE_BYTES) {
+                evictedArtwork.addAll(entry.getValue());
+                evictedSizes.put(fileName, size);
+            }
+        }
+        if (evictedArtwork.isEmpty()) {
+            return;
+        }
+
+        List<String> deletedFileNames = evict(context, directory, evictedArtwork);
+        long reclaimedBytes = 0;
+        for (String fileName : deletedFileNames) {
+            reclaimedBytes += evictedSizes.get(fileName);
+        }
+        long totalReclaimedBytes = sTotalReclaimedBytes.addAndGet(reclaimedBytes);
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Evicted " + deletedFileNames.size() + " artwork files, reclaiming "
+                    + reclaimedBytes + " bytes (" + totalReclaimedBytes + " in total) in "
+                    + (SystemClock.elapsedRealtime() - startTime) + "ms");
+        }
+    }
+
+    /**
+     * Deletes the given artwork, exactly as it was when the files were ranked, and then the
+     * files that no artwork references anymore. This happens in a single transaction, so that
+     * artwork added since the files were ranked keeps its file, including new current artwork
+     * that turned out to be the same image as evicted artwork.
+     *
+     * @return the names of the files that were deleted
+     */
+    private static List<String> evict(Context context, File directory,
+            List<Artwork> artworkList) {
+        MuzeiDatabase database = MuzeiDatabase.getInstance(context);
+        ArtworkDao artworkDao = database.artworkDao();
+        ArtworkContentDao artworkContentDao = database.artworkContentDao();
+        List<String> deletedFileNames = new ArrayList<>();
+        database.beginTransaction();
+        try {
+            // The current artwork may have changed since the files were ranked
+            Artwork currentArtwork = artworkDao.getCurrentArtworkBlocking();
+            List<Long> ids = new ArrayList<>();
+            Map<String, String> contentIdsByFileName = new LinkedHashMap<>();
+            Map<String, Integer> releasedReferences = new HashMap<>();
+            for (Artwork artwork : artworkList) {
+                if (currentArtwork != null && (artwork.id == currentArtwork.id
+                        || artwork.fileName.equals(currentArtwork.fileName))) {
+                    continue;
+                }
+                ids.add(artwork.id);
+                contentIdsByFileName.put(artwork.fileName, artwork.contentId);
+                if (artwork.contentId != null) {
+                    Integer references = releasedReferences.get(artwork.contentId);
+                    releasedReferences.put(artwork.contentId,
+                            references == null ? 1 : references + 1);
+                }
+            }
+            for (List<Long> idBatch : partition(ids)) {
+                artworkDao.deleteByIds(idBatch);
+            }
+
+            // Stored content is only deleted once no artwork references it anymore
+            Set<String> retainedContentIds = new HashSet<>();
+            for (Map.Entry<String, Integer> entry : releasedReferences.entrySet()) {
+                String contentId = entry.getKey();
+                artworkContentDao.adjustRefCount(contentId, -entry.getValue());
+                ArtworkContent artworkContent = artworkContentDao.getContentBlocking(contentId);
+                if (artworkContent == null || artworkContent.refCount <= 0) {
+                    artworkContentDao.deleteContent(contentId);
+                } else {
+                    retainedContentIds.add(contentId);
+                }
+            }
+            Set<String> unreferencedFileNames = new LinkedHashSet<>();
+            for (Map.Entry<String, String> entry : contentIdsByFileName.entrySet()) {
+                if (entry.getValue() == null || !retainedContentIds.contains(entry.getValue())) {
+                    unreferencedFileNames.add(entry.getKey());
+                }
+            }
+            // Files that weren't stored by their content may be shared by artwork added since
+            for (List<String> fileNameBatch : partition(
+                    new ArrayList<>(unreferencedFileNames))) {
+                unreferencedFileNames.removeAll(
+                        artworkDao.getReferencedFileNames(fileNameBatch));
+            }
+
+            // Forget the artwork before deleting its files, so they are never referenced while
+            // missing
+            for (String fileName : unreferencedFileNames) {
+                MuzeiProvider.deleteArtworkFiles(new File(directory, fileName));
+                deletedFileNames.add(fileName);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        return deletedFileNames;
+    }
+
+    /**
+     * Splits the given list into lists small enough to pass as the arguments of a single query.
+     */
+    private static <T> List<List<T>> partition(List<T> list) {
+        List<List<T>> partitions = new ArrayList<>();
+        for (int i = 0; i < list.size(); i += MAX_QUERY_ARGUMENTS) {
+            partitions.add(list.subList(i, Math.min(list.size(), i + MAX_QUERY_ARGUMENTS)));
+        }
+        return partitions;
+    }
+
+    /**
+     * Returns the ids of artwork that other apps have a persisted permission to.
+     */
+    private static List<Long> getPersistedArtworkIds(Context context) {
+        List<Long> ids = new ArrayList<>();
+        for (Uri uri : MuzeiDocumentsProvider.getPersistedArtworkUris(context)) {
+            try {
+                ids.add(ContentUris.parseId(uri));
+            } catch (NumberFormatException | UnsupportedOperationException e) {
+                Log.w(TAG, "Unexpected persisted artwork URI " + uri);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the size of the given artwork file along with the files generated from it.
+     */
+    private static long getSize(File artworkFile) {
+        return artworkFile.length()
+                + MuzeiProvider.getCompressedTilesFile(artworkFile).length()
+                + MuzeiProvider.getTilePyramidFile(artworkFile).length()
+                + MuzeiProvider.getOriginalSizeFile(artworkFile).length();
+    }
+
+    private ArtworkCacheCollector() {
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.provider;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable copy of the current artwork row, as returned first by the default query of
+ * {@link com.google.android.apps.muzei.api.MuzeiContract.Artwork#CONTENT_URI}, which joins the
+ * artwork with its source. Queries for a subset of its columns are served from it too. Each
+ * snapshot is tagged with the version of the artwork and sources tables it was read at, so
+ * that a snapshot read before a change is never kept after it.
+ */
+class CurrentArtworkSnapshot {
+    final int mVersion;
+    private final String[] mColumnNames;
+    /**
+     * The values of the current artwork row, or null if there is no artwork
+     */
+    private final Object[] mRow;
+
+    private CurrentArtworkSnapshot(int version, String[] columnNames, Object[] row) {
+        mVersion = version;
+        mColumnNames = columnNames;
+        mRow = row;
+    }
+
+    /**
+     * Copies the first row of the given cursor, keeping the type of each value.
+     */
+    static CurrentArtworkSnapshot fromCursor(int version, Cursor cursor) {
+        String[] columnNames = cursor.getColumnNames();
+        if (!cursor.moveToFirst()) {
+            return new CurrentArtworkSnapshot(version, columnNames, null);
+        }
+        Object[] row = new Object[columnNames.length];
+        for (int i = 0; i < row.length; i++) {
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    row[i] = cursor.getLong(i);
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    row[i] = cursor.getDouble(i);
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    row[i] = cursor.getString(i);
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    row[i] = cursor.getBlob(i);
+                    break;
+                default:
+                    row[i] = null;
+                    break;
+            }
+        }
+        return new CurrentArtworkSnapshot(version, columnNames, row);
+    }
+
+    /**
+     * Returns a new cursor over the given columns of this snapshot, or all of its columns if
+     * <code>projection</code> is null. Cursors hold their own position, so each query gets its
+     * own.
+     *
+     * @return the cursor, or null if the snapshot doesn't have one of the requested columns
+     */
+    Cursor newCursor(String[] projection) {
+        String[] columnNames = projection != null && projection.length > 0
+                ? projection
+                : mColumnNames;
+        List<String> snapshotColumnNames = Arrays.asList(mColumnNames);
+        Object[] row = null;
+        if (mRow != null) {
+            row = new Object[columnNames.length];
+            for (int i = 0; i < columnNames.length; i++) {
+                int index = snapshotColumnNames.indexOf(columnNames[i]);
+                if (index < 0) {
+                    return null;
+                }
+                row[i] = mRow[index];
+            }
+        } else {
+            for (String columnName : columnNames) {
+                if (!snapshotColumnNames.contains(columnName)) {
+                    return null;
+                }
+            }
+        }
+        MatrixCursor cursor = new MatrixCursor(columnNames, row != null ? 1 : 0);
+        if (row != null) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+}
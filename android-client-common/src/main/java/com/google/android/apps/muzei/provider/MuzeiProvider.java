@@ -17,12 +17,13 @@
 package com.google.android.apps.muzei.provider;
 
 import android.arch.persistence.db.SupportSQLiteQueryBuilder;
-import android.content.ComponentName;
+import android.arch.persistence.room.InvalidationTracker;
 import android.content.ContentProvider;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -30,6 +31,7 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Handler;
 import android.os.ParcelFileDescriptor;
+import android.preference.PreferenceManager;
 import android.provider.BaseColumns;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -38,9 +40,16 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import com.google.android.apps.muzei.api.MuzeiContract;
+import com.google.android.apps.muzei.api.internal.ProtocolConstants;
 import com.google.android.apps.muzei.room.Artwork;
+import com.google.android.apps.muzei.room.ArtworkContent;
+import com.google.android.apps.muzei.room.ArtworkContentDao;
+import com.google.android.apps.muzei.room.ArtworkDao;
+import com.google.android.apps.muzei.room.ImageUriContent;
 import com.google.android.apps.muzei.room.MuzeiDatabase;
-import com.google.android.apps.muzei.room.Source;
+import com.google.android.apps.muzei.sync.ResumableDownload;
+
+import net.nurik.roman.muzei.androidclientcommon.BuildConfig;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -48,12 +57,14 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Provides access to a the most recent artwork
@@ -61,11 +72,40 @@ import java.util.Set;
 public class MuzeiProvider extends ContentProvider {
     private static final String TAG = "MuzeiProvider";
     /**
-     * Maximum number of previous artwork to keep per source, with the exception of artwork that
-     * has a persisted permission.
-     * @see #cleanupCachedFiles
+     * Set once every artwork row has a file name
+     * @see #resolveLegacyFileNames
+     */
+    private static final String PREF_LEGACY_FILE_NAMES_RESOLVED = "legacy_file_names_resolved";
+    /**
+     * The directory within the app's files directory that artwork files are stored in
+     */
+    private static final String ARTWORK_DIRECTORY = "artwork";
+    /**
+     * The directory within the artwork directory that content is stored in
+     * @see #getContentFile
+     */
+    private static final String CONTENT_DIRECTORY = "content";
+    /**
+     * Suffix added to an artwork file's name for the file holding its compressed tiles.
+     * @see #getCompressedTilesFile
+     */
+    private static final String COMPRESSED_TILES_SUFFIX = ".etc1";
+    /**
+     * Suffix added to an artwork file's name for the file holding its tile pyramid.
+     * @see #getTilePyramidFile
+     */
+    private static final String TILE_PYRAMID_SUFFIX = ".tiles";
+    /**
+     * Suffix added to an artwork file's name for the file its image is downloaded into.
+     * @see #getPartialDownloadFile
+     */
+    private static final String PARTIAL_DOWNLOAD_SUFFIX = ".partial";
+    /**
+     * Suffix added to an artwork file's name for the file recording the original size of an
+     * image that was downscaled when it was downloaded.
+     * @see #getOriginalSizeFile
      */
-    private static final int MAX_CACHE_SIZE = 10;
+    private static final String ORIGINAL_SIZE_SUFFIX = ".size";
     /**
      * The incoming URI matches the ARTWORK URI pattern
      */
@@ -86,6 +126,35 @@ public class MuzeiProvider extends ContentProvider {
      * A UriMatcher instance
      */
     private static final UriMatcher uriMatcher = MuzeiProvider.buildUriMatcher();
+    /**
+     * The file of the current artwork, if it has been looked up since new artwork was written
+     * @see #getCurrentArtworkFile
+     */
+    private static File sCurrentArtworkFile;
+    private static int sCurrentArtworkFileGeneration;
+    /**
+     * The current artwork row, valid while its version matches {@link #sArtworkVersion}
+     * @see #queryCurrentArtwork
+     */
+    private static CurrentArtworkSnapshot sCurrentArtworkSnapshot;
+    /**
+     * Incremented whenever artwork is inserted or the artwork or sources tables change
+     */
+    private static int sArtworkVersion;
+    private static boolean sObservingArtworkTables = false;
+    private static final AtomicInteger sSnapshotHitCount = new AtomicInteger();
+    private static final AtomicInteger sDatabaseQueryCount = new AtomicInteger();
+    /**
+     * Held while resolving legacy file names, so that only one thread does it at a time
+     */
+    private static final Object sLegacyFileNamesLock = new Object();
+    /**
+     * Guards the resolution state below and its preference. Never held during database work.
+     */
+    private static final Object sFileNameStateLock = new Object();
+    private static volatile boolean sLegacyFileNamesResolved;
+    private static int sFileNameResolutionRequests;
+    private static ExecutorService sExecutorService;
     /**
      * An identity all column projection mapping for Artwork
      */
@@ -98,6 +167,13 @@ public class MuzeiProvider extends ContentProvider {
             MuzeiProvider.buildAllSourcesColumnProjectionMap();
     private Handler openFileHandler;
 
+    private static synchronized ExecutorService getExecutorService() {
+        if (sExecutorService == null) {
+            sExecutorService = Executors.newSingleThreadExecutor();
+        }
+        return sExecutorService;
+    }
+
     /**
      * Creates and initializes a column project for all columns for Artwork
      *
@@ -224,6 +300,16 @@ public class MuzeiProvider extends ContentProvider {
     @Override
     public boolean onCreate() {
         openFileHandler = new Handler();
+        final Context context = getContext();
+        if (UserManagerCompat.isUserUnlocked(context)) {
+            // Artwork from before file names were tracked needs them resolved once
+            getExecutorService().execute(new Runnable() {
+                @Override
+                public void run() {
+                    resolveLegacyFileNames(context);
+                }
+            });
+        }
         // Schedule a job that will update the latest artwork in the Direct Boot cache directory
         // whenever the artwork changes
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
@@ -256,6 +342,25 @@ public class MuzeiProvider extends ContentProvider {
         if (context == null) {
             return null;
         }
+        if (MuzeiProvider.uriMatcher.match(uri) == ARTWORK
+                && selection == null && sortOrder == null
+                && "1".equals(uri.getQueryParameter(ProtocolConstants.QUERY_PARAMETER_LIMIT))) {
+            // A query for just the current artwork, with the default ordering
+            Cursor c = queryCurrentArtwork(context, uri, projection);
+            if (c != null) {
+                return c;
+            }
+        }
+        sDatabaseQueryCount.incrementAndGet();
+        final Cursor c = queryArtworkDatabase(context, uri, projection, selection, selectionArgs,
+                sortOrder);
+        c.setNotificationUri(context.getContentResolver(), uri);
+        return c;
+    }
+
+    private Cursor queryArtworkDatabase(@NonNull Context context, @NonNull final Uri uri,
+            final String[] projection, final String selection, final String[] selectionArgs,
+            final String sortOrder) {
         SupportSQLiteQueryBuilder qb = SupportSQLiteQueryBuilder.builder(
                 "artwork INNER JOIN sources ON " +
                 "artwork.sourceComponentName=sources.component_name");
@@ -275,11 +380,77 @@ public class MuzeiProvider extends ContentProvider {
             orderBy = sortOrder;
         }
         qb.orderBy(orderBy);
-        final Cursor c = MuzeiDatabase.getInstance(context).query(qb.create());
+        String limit = uri.getQueryParameter(ProtocolConstants.QUERY_PARAMETER_LIMIT);
+        if (!TextUtils.isEmpty(limit) && TextUtils.isDigitsOnly(limit)) {
+            qb.limit(limit);
+        }
+        return MuzeiDatabase.getInstance(context).query(qb.create());
+    }
+
+    /**
+     * Returns the current artwork from an in-memory snapshot, reading it from the database only
+     * if the artwork or sources have changed since the snapshot was taken.
+     *
+     * @return the cursor, or null if the projection has columns the snapshot doesn't have
+     */
+    @Nullable
+    private Cursor queryCurrentArtwork(@NonNull Context context, @NonNull Uri uri,
+            String[] projection) {
+        CurrentArtworkSnapshot snapshot;
+        int version;
+        synchronized (MuzeiProvider.class) {
+            if (!sObservingArtworkTables) {
+                // Catch changes that don't go through ArtworkDao.insert(), such as updates to
+                // the current source
+                MuzeiDatabase.getInstance(context).getInvalidationTracker().addObserver(
+                        new InvalidationTracker.Observer(MuzeiContract.Artwork.TABLE_NAME,
+                                MuzeiContract.Sources.TABLE_NAME) {
+                            @Override
+                            public void onInvalidated(@NonNull Set<String> tables) {
+                                invalidateCurrentArtworkSnapshot();
+                            }
+                        });
+                sObservingArtworkTables = true;
+            }
+            snapshot = sCurrentArtworkSnapshot;
+            version = sArtworkVersion;
+        }
+        if (snapshot != null && snapshot.mVersion == version) {
+            sSnapshotHitCount.incrementAndGet();
+        } else {
+            sDatabaseQueryCount.incrementAndGet();
+            try (Cursor data = queryArtworkDatabase(context, uri, null, null, null, null)) {
+                snapshot = CurrentArtworkSnapshot.fromCursor(version, data);
+            }
+            synchronized (MuzeiProvider.class) {
+                // Don't replace a snapshot taken after a newer change
+                if (sCurrentArtworkSnapshot == null
+                        || sCurrentArtworkSnapshot.mVersion < snapshot.mVersion) {
+                    sCurrentArtworkSnapshot = snapshot;
+                }
+            }
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "Read current artwork snapshot " + version + ", snapshot hits: "
+                        + sSnapshotHitCount.get() + ", database queries: "
+                        + sDatabaseQueryCount.get());
+            }
+        }
+        Cursor c = snapshot.newCursor(projection);
+        if (c == null) {
+            return null;
+        }
         c.setNotificationUri(context.getContentResolver(), uri);
         return c;
     }
 
+    /**
+     * Discards the snapshot of the current artwork. This should be called whenever artwork is
+     * inserted, so that the new artwork is returned right away.
+     */
+    public static synchronized void invalidateCurrentArtworkSnapshot() {
+        sArtworkVersion++;
+    }
+
     private Cursor querySource(@NonNull final Uri uri, final String[] projection, final String selection,
                                 final String[] selectionArgs, final String sortOrder) {
         Context context = getContext();
@@ -373,22 +544,14 @@ public class MuzeiProvider extends ContentProvider {
             // that does have a cached artwork file. This prevents race conditions where
             // an external app attempts to load the latest artwork while an art source is inserting a
             // new artwork
-            List<Artwork> artworkList = MuzeiDatabase.getInstance(context).artworkDao().getArtworkBlocking();
-            if (artworkList == null || artworkList.isEmpty()) {
+            file = getCurrentArtworkFile(context);
+            if (file == null && MuzeiDatabase.getInstance(context).artworkDao()
+                    .getCurrentArtworkBlocking() == null) {
                 if (!context.getPackageName().equals(getCallingPackage())) {
                     Log.w(TAG, "You must insert at least one row to read or write artwork");
                 }
                 return null;
             }
-            File foundFile = null;
-            for (Artwork artwork : artworkList) {
-                File possibleFile = getCacheFileForArtworkUri(context, artwork.id);
-                if (possibleFile != null && possibleFile.exists()) {
-                    foundFile = possibleFile;
-                    break;
-                }
-            }
-            file = foundFile;
         } else {
             file = getCacheFileForArtworkUri(context, ContentUris.parseId(uri));
         }
@@ -415,12 +578,19 @@ public class MuzeiProvider extends ContentProvider {
                                         }
                                     }
                                 } else {
-                                    // The file was successfully written, notify listeners of the new artwork
-                                    context.getContentResolver()
-                                            .notifyChange(MuzeiContract.Artwork.CONTENT_URI, null);
-                                    context.sendBroadcast(
-                                            new Intent(MuzeiContract.Artwork.ACTION_ARTWORK_CHANGED));
-                                    cleanupCachedFiles(context);
+                                    // The file was successfully written, notify listeners of the
+                                    // new artwork. This is called on the main thread, so the
+                                    // database work is done in the background
+                                    getExecutorService().execute(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            MuzeiDatabase.getInstance(context).artworkDao()
+                                                    .setFilePresent(
+                                                            getArtworkFileName(context, file),
+                                                            true);
+                                            onArtworkFileWritten(context);
+                                        }
+                                    });
                                 }
                             }
 
@@ -432,14 +602,257 @@ public class MuzeiProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Returns the file of the most recent artwork whose file is present, or null if there is
+     * none. The file is remembered until new artwork is written, so that repeated opens of the
+     * current artwork don't query the database.
+     */
+    @Nullable
+    private static File getCurrentArtworkFile(Context context) {
+        File file;
+        int generation;
+        synchronized (MuzeiProvider.class) {
+            file = sCurrentArtworkFile;
+            generation = sCurrentArtworkFileGeneration;
+        }
+        if (file != null && file.exists()) {
+            return file;
+        }
+        if (!sLegacyFileNamesResolved) {
+            // Only until the background pass started in onCreate has finished
+            resolveLegacyFileNames(context);
+        }
+        ArtworkDao artworkDao = MuzeiDatabase.getInstance(context).artworkDao();
+        Artwork artwork;
+        while ((artwork = artworkDao.getCurrentArtworkWithFileBlocking()) != null) {
+            file = getCacheFileForArtwork(context, artwork);
+            if (file == null) {
+                // Artwork files can't be resolved at all right now, such as when the artwork
+                // directory can't be created, so there's no point looking at older artwork
+                return null;
+            }
+            if (file.exists()) {
+                synchronized (MuzeiProvider.class) {
+                    // Don't remember the file if new artwork was written in the meantime
+                    if (generation == sCurrentArtworkFileGeneration) {
+                        sCurrentArtworkFile = file;
+                    }
+                }
+                return file;
+            }
+            // The file was deleted without its artwork, so stop treating it as present. Clearing
+            // this row by its id guarantees the loop moves on even if it has no file name
+            if (artwork.fileName != null) {
+                artworkDao.setFilePresent(artwork.fileName, false);
+            }
+            artworkDao.clearFilePresent(artwork.id);
+        }
+        return null;
+    }
+
+    /**
+     * Stores the file name and presence of artwork inserted before they were tracked. Finding
+     * that artwork scans the whole table, so once every row has a file name this is recorded
+     * in the preferences and later calls return immediately.
+     */
+    static void resolveLegacyFileNames(Context context) {
+        if (sLegacyFileNamesResolved) {
+            return;
+        }
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        synchronized (sLegacyFileNamesLock) {
+            int requestCount;
+            synchronized (sFileNameStateLock) {
+                if (sLegacyFileNamesResolved) {
+                    return;
+                }
+                if (preferences.getBoolean(PREF_LEGACY_FILE_NAMES_RESOLVED, false)) {
+                    sLegacyFileNamesResolved = true;
+                    return;
+                }
+                requestCount = sFileNameResolutionRequests;
+            }
+            ArtworkDao artworkDao = MuzeiDatabase.getInstance(context).artworkDao();
+            List<Artwork> artworkList = artworkDao.getArtworkWithoutFileNameBlocking();
+            boolean allResolved = true;
+            if (artworkList != null) {
+                for (Artwork artwork : artworkList) {
+                    File file = getCacheFileForArtwork(context, artwork);
+                    if (file != null) {
+                        artworkDao.setFile(artwork.id, getArtworkFileName(context, file),
+                                file.exists());
+                    } else {
+                        allResolved = false;
+                    }
+                }
+            }
+            synchronized (sFileNameStateLock) {
+                // Artwork inserted without a file name since the query may have been missed
+                if (allResolved && requestCount == sFileNameResolutionRequests) {
+                    preferences.edit().putBoolean(PREF_LEGACY_FILE_NAMES_RESOLVED, true).apply();
+                    sLegacyFileNamesResolved = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes the next {@link #resolveLegacyFileNames} look for artwork without a file name
+     * again. This should be called whenever artwork is inserted without one.
+     */
+    public static void requestFileNameResolution(Context context) {
+        synchronized (sFileNameStateLock) {
+            sFileNameResolutionRequests++;
+            sLegacyFileNamesResolved = false;
+            PreferenceManager.getDefaultSharedPreferences(context).edit()
+                    .remove(PREF_LEGACY_FILE_NAMES_RESOLVED).apply();
+        }
+    }
+
+    /**
+     * Forgets the remembered file of the current artwork. This should be called whenever
+     * the file of artwork newer than it is written.
+     */
+    public static synchronized void invalidateCurrentArtworkFile() {
+        sCurrentArtworkFile = null;
+        sCurrentArtworkFileGeneration++;
+    }
+
+    private static void onArtworkFileWritten(Context context) {
+        invalidateCurrentArtworkFile();
+        context.getContentResolver()
+                .notifyChange(MuzeiContract.Artwork.CONTENT_URI, null);
+        context.sendBroadcast(
+                new Intent(MuzeiContract.Artwork.ACTION_ARTWORK_CHANGED));
+        cleanupCachedFiles(context);
+    }
+
+    /**
+     * Stores a completely downloaded image as the given content, unless the same content is
+     * already stored, and makes it the image of all artwork with the given image URI. The image
+     * is moved into place with a single rename, so that readers never see it partially written.
+     *
+     * @param completeFile the downloaded image, under the same directory as the artwork files,
+     *                     such as the file returned by {@link #getPartialDownloadFile}. It is
+     *                     deleted if the content is already stored.
+     * @param notify       whether to notify listeners of the new artwork just like closing a
+     *                     file written through {@link #openFile} does
+     * @return whether the content's file now holds the image
+     */
+    public static boolean commitArtworkContent(Context context, Uri imageUri, File completeFile,
+            ArtworkContent artworkContent, boolean notify) {
+        File contentFile = getContentFile(context, artworkContent.contentId);
+        if (contentFile == null) {
+            return false;
+        }
+        if (contentFile.exists()) {
+            // The same image was already downloaded, possibly from another image URI
+            if (completeFile.exists() && !completeFile.delete()) {
+                Log.w(TAG, "Unable to delete " + completeFile);
+            }
+        } else if (!completeFile.renameTo(contentFile)) {
+            Log.w(TAG, "Unable to rename " + completeFile + " to " + contentFile);
+            return false;
+        }
+        MuzeiDatabase database = MuzeiDatabase.getInstance(context);
+        ArtworkContentDao artworkContentDao = database.artworkContentDao();
+        database.beginTransaction();
+        try {
+            artworkContentDao.insertContent(artworkContent);
+            artworkContentDao.insertImageUriContent(
+                    new ImageUriContent(imageUri, artworkContent.contentId));
+            int attachedCount = database.artworkDao()
+                    .attachContent(context, imageUri, artworkContent.contentId);
+            artworkContentDao.adjustRefCount(artworkContent.contentId, attachedCount);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        invalidateCurrentArtworkFile();
+        if (notify) {
+            onArtworkFileWritten(context);
+        }
+        return true;
+    }
+
     @Nullable
     public static File getCacheFileForArtworkUri(Context context, long artworkId) {
-        File directory = new File(context.getFilesDir(), "artwork");
+        Artwork artwork = MuzeiDatabase.getInstance(context).artworkDao().getArtworkById(artworkId);
+        if (artwork == null) {
+            return null;
+        }
+        return getCacheFileForArtwork(context, artwork);
+    }
+
+    /**
+     * Returns the file the image of the given artwork is cached in. Artwork with an image URI or
+     * token shares its file with any other artwork with the same one, so this can also be used
+     * for artwork that hasn't been inserted yet.
+     *
+     * <p>Images that were downloaded are stored by their content, so artwork with different
+     * image URIs that turned out to be the same image also share one file.
+     */
+    @Nullable
+    public static File getCacheFileForArtwork(Context context, Artwork artwork) {
+        if (artwork.fileName != null) {
+            // The file was resolved when the artwork was inserted
+            File directory = getArtworkDirectory(context);
+            return directory != null ? new File(directory, artwork.fileName) : null;
+        }
+        String contentId = artwork.contentId;
+        if (contentId == null && artwork.imageUri != null) {
+            contentId = MuzeiDatabase.getInstance(context).artworkContentDao()
+                    .getContentIdForImageUri(artwork.imageUri);
+        }
+        if (contentId != null) {
+            return getContentFile(context, contentId);
+        }
+        return getUriCacheFileForArtwork(context, artwork);
+    }
+
+    /**
+     * Returns the path of the given artwork file relative to the directory artwork files are
+     * stored in, as stored in {@link Artwork#fileName}.
+     */
+    public static String getArtworkFileName(Context context, File artworkFile) {
+        return new File(context.getFilesDir(), ARTWORK_DIRECTORY).toURI()
+                .relativize(artworkFile.toURI()).getPath();
+    }
+
+    @Nullable
+    static File getArtworkDirectory(Context context) {
+        File directory = new File(context.getFilesDir(), ARTWORK_DIRECTORY);
         if (!directory.exists() && !directory.mkdirs()) {
             return null;
         }
-        Artwork artwork = MuzeiDatabase.getInstance(context).artworkDao().getArtworkById(artworkId);
-        if (artwork == null) {
+        return directory;
+    }
+
+    /**
+     * Returns the file the given content is stored in.
+     *
+     * @see ArtworkContent
+     */
+    @Nullable
+    public static File getContentFile(Context context, String contentId) {
+        File directory = new File(context.getFilesDir(),
+                ARTWORK_DIRECTORY + File.separator + CONTENT_DIRECTORY);
+        if (!directory.exists() && !directory.mkdirs()) {
+            return null;
+        }
+        return new File(directory, contentId);
+    }
+
+    /**
+     * Returns the file named after the image URI or token of the given artwork, which holds
+     * the image of artwork that wasn't stored by its content, such as images written through
+     * {@link #openFile} and those downloaded before content was tracked. It is also where
+     * downloads are kept until their content is known.
+     */
+    @Nullable
+    public static File getUriCacheFileForArtwork(Context context, Artwork artwork) {
+        File directory = getArtworkDirectory(context);
+        if (directory == null) {
             return null;
         }
         if (artwork.imageUri == null && TextUtils.isEmpty(artwork.token)) {
@@ -480,70 +893,64 @@ public class MuzeiProvider extends ContentProvider {
     }
 
     /**
-     * Limit the number of cached files per art source to {@link #MAX_CACHE_SIZE}.
-     * @see #MAX_CACHE_SIZE
+     * Returns the file that compressed tiles generated from the given artwork file are stored
+     * in, alongside the artwork file itself.
      */
-    public static void cleanupCachedFiles(final Context context) {
-        new Thread() {
-            @Override
-            public void run() {
-                final MuzeiDatabase database = MuzeiDatabase.getInstance(context);
-                final List<Source> sources = database.sourceDao().getSourcesBlocking();
-                if (sources == null) {
-                    return;
-                }
-                // Access to certain artwork can be persisted through MuzeiDocumentsProvider
-                // We never want to delete these artwork as that would break other apps
-                final Set<Uri> persistedUris = MuzeiDocumentsProvider.getPersistedArtworkUris(context);
-                // Loop through each source, cleaning up old artwork
-                for (Source source : sources) {
-                    final ComponentName componentName = source.componentName;
-                    // Now use that ComponentName to look through the past artwork from that source
-                    final List<Artwork> artworkList = database.artworkDao()
-                            .getArtworkForSourceIdBlocking(source.id);
-                    if (artworkList == null || artworkList.isEmpty()) {
-                        continue;
-                    }
-                    List<Long> artworkIdsToKeep = new ArrayList<>();
-                    List<String> artworkToKeep = new ArrayList<>();
-                    // First find all of the persisted artwork from this source and mark them as artwork to keep
-                    for (Artwork artwork : artworkList) {
-                        Uri uri = artwork.getContentUri();
-                        String unique = artwork.imageUri != null ? artwork.imageUri.toString() : artwork.token;
-                        if (persistedUris.contains(uri)) {
-                            // Always keep artwork that is persisted
-                            artworkIdsToKeep.add(artwork.id);
-                            artworkToKeep.add(unique);
-                        }
-                    }
-                    // Now go through the artwork from this source and find the most recent artwork
-                    // and mark them as artwork to keep
-                    int count = 0;
-                    for (Artwork artwork : artworkList) {
-                        String unique = artwork.imageUri != null ? artwork.imageUri.toString() : artwork.token;
-                        if (artworkToKeep.contains(unique)) {
-                            // This ensures we are double counting the same artwork in our count
-                            artworkIdsToKeep.add(artwork.id);
-                            continue;
-                        }
-                        if (count++ < MAX_CACHE_SIZE) {
-                            // Keep artwork below the MAX_CACHE_SIZE
-                            artworkIdsToKeep.add(artwork.id);
-                            artworkToKeep.add(unique);
-                        }
-                    }
-                    // Now delete all artwork not in the keep list
-                    try {
-                        database.artworkDao().deleteNonMatching(context,
-                                componentName, artworkIdsToKeep);
-                    } catch (IllegalStateException e) {
-                        Log.e(TAG, "Unable to read all artwork for " + componentName +
-                                ", deleting all in an attempt to get back to a good state", e);
-                        database.artworkDao().deleteAll(context, componentName);
-                    }
-                }
+    public static File getCompressedTilesFile(File artworkFile) {
+        return new File(artworkFile.getPath() + COMPRESSED_TILES_SUFFIX);
+    }
+
+    /**
+     * Returns the file that the tile pyramid generated from the given artwork file is stored
+     * in, alongside the artwork file itself.
+     *
+     * @see com.google.android.apps.muzei.util.TilePyramidFile
+     */
+    public static File getTilePyramidFile(File artworkFile) {
+        return new File(artworkFile.getPath() + TILE_PYRAMID_SUFFIX);
+    }
+
+    /**
+     * Returns the file that records the original size of the image in the given artwork file
+     * if it was downscaled when it was downloaded, alongside the artwork file itself.
+     */
+    public static File getOriginalSizeFile(File artworkFile) {
+        return new File(artworkFile.getPath() + ORIGINAL_SIZE_SUFFIX);
+    }
+
+    /**
+     * Returns the file that the image of the given artwork file is downloaded into before it is
+     * complete, alongside the artwork file itself.
+     *
+     * @see #commitArtworkContent
+     */
+    public static File getPartialDownloadFile(File artworkFile) {
+        return new File(artworkFile.getPath() + PARTIAL_DOWNLOAD_SUFFIX);
+    }
+
+    /**
+     * Deletes the given artwork file along with any compressed tiles or tile pyramid generated
+     * from it, the record of its original size, and any unfinished download of it.
+     */
+    public static void deleteArtworkFiles(File artworkFile) {
+        for (File file : new File[] {artworkFile,
+                getCompressedTilesFile(artworkFile),
+                getTilePyramidFile(artworkFile),
+                getOriginalSizeFile(artworkFile)}) {
+            if (file.exists() && !file.delete()) {
+                Log.w(TAG, "Unable to delete " + file);
             }
-        }.start();
+        }
+        ResumableDownload.delete(getPartialDownloadFile(artworkFile));
+    }
+
+    /**
+     * Evicts the files of the least recently displayed artwork, in the background, if the
+     * artwork files have grown beyond their budget.
+     * @see ArtworkCacheCollector
+     */
+    public static void cleanupCachedFiles(final Context context) {
+        ArtworkCacheCollector.requestCollection(context);
     }
 
     @Override
@@ -41,7 +41,12 @@ import java.util.Date;
 /**
  * Artwork's representation in Room
  */
-@Entity(indices = @Index(value = "sourceComponentName"),
+@Entity(indices = {@Index(value = "sourceComponentName"),
+        @Index(value = "date_added"),
+        @Index(value = "imageUri"),
+        @Index(value = "token"),
+        @Index(value = "contentId"),
+        @Index(value = {"filePresent", "date_added"})},
         foreignKeys = @ForeignKey(
                 entity = Source.class,
                 parentColumns = "component_name",
@@ -78,6 +83,25 @@ public class Artwork {
     @TypeConverters(IntentTypeConverter.class)
     public Intent viewIntent;
 
+    /**
+     * The {@link ArtworkContent} holding this artwork's image, or null if its image is stored
+     * in a file named after its image URI or token
+     */
+    public String contentId;
+
+    /**
+     * The path of this artwork's file relative to the artwork directory, resolved when the
+     * artwork is inserted, or null for artwork inserted before it was stored
+     *
+     * @see com.google.android.apps.muzei.provider.MuzeiProvider#getCacheFileForArtwork
+     */
+    public String fileName;
+
+    /**
+     * Whether this artwork's file has been written
+     */
+    public boolean filePresent;
+
     @NonNull
     public Uri getContentUri() {
         return getContentUri(id);
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.room;
+
+import android.arch.persistence.room.Entity;
+import android.arch.persistence.room.Index;
+import android.arch.persistence.room.PrimaryKey;
+import android.support.annotation.NonNull;
+
+/**
+ * A downloaded artwork image stored by the SHA-256 hash of its bytes, which any number of
+ * image URIs and artwork can share.
+ *
+ * @see com.google.android.apps.muzei.provider.MuzeiProvider#getContentFile
+ */
+@Entity(tableName = "artwork_content",
+        indices = @Index(value = "prefixHash"))
+public class ArtworkContent {
+    /**
+     * The hex encoded SHA-256 hash of the downloaded image
+     */
+    @PrimaryKey
+    @NonNull
+    public String contentId;
+
+    /**
+     * The number of artwork rows that reference this content. The content is deleted once
+     * this drops to zero.
+     */
+    public int refCount;
+
+    /**
+     * The number of bytes that were downloaded
+     */
+    public long length;
+
+    /**
+     * The hash of the first {@link com.google.android.apps.muzei.sync.ContentHash#PREFIX_LENGTH}
+     * bytes that were downloaded, used to recognize duplicates early
+     */
+    public String prefixHash;
+
+    /**
+     * The ETag or Last-Modified header the image was downloaded with, if any
+     */
+    public String validator;
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.room;
+
+import android.arch.persistence.room.Dao;
+import android.arch.persistence.room.Insert;
+import android.arch.persistence.room.OnConflictStrategy;
+import android.arch.persistence.room.Query;
+import android.arch.persistence.room.TypeConverters;
+import android.net.Uri;
+
+import com.google.android.apps.muzei.room.converter.UriTypeConverter;
+
+/**
+ * Dao for ArtworkContent and ImageUriContent
+ */
+@Dao
+@TypeConverters(UriTypeConverter.class)
+public abstract class ArtworkContentDao {
+    /**
+     * Adds the given content with no references, unless it is already stored.
+     */
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    public abstract long insertContent(ArtworkContent artworkContent);
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    public abstract void insertImageUriContent(ImageUriContent imageUriContent);
+
+    @Query("SELECT * FROM artwork_content WHERE contentId = :contentId")
+    public abstract ArtworkContent getContentBlocking(String contentId);
+
+    @Query("SELECT contentId FROM image_uri_content WHERE imageUri = :imageUri")
+    public abstract String getContentIdForImageUri(Uri imageUri);
+
+    /**
+     * Returns the id of stored content that was downloaded with the same validator and length
+     * and starts with the same bytes, or null if there is none.
+     */
+    @Query("SELECT contentId FROM artwork_content WHERE prefixHash = :prefixHash "
+            + "AND validator = :validator AND length = :length LIMIT 1")
+    public abstract String findDuplicate(String prefixHash, String validator, long length);
+
+    @Query("UPDATE artwork_content SET refCount = refCount + :delta "
+            + "WHERE contentId = :contentId")
+    public abstract void adjustRefCount(String contentId, int delta);
+
+    @Query("DELETE FROM artwork_content WHERE contentId = :contentId")
+    abstract void deleteContentInternal(String contentId);
+
+    @Query("DELETE FROM image_uri_content WHERE contentId = :contentId")
+    abstract void deleteImageUrisForContent(String contentId);
+
+    /**
+     * Forgets the given content and every image URI that was downloaded as it. Its file must
+     * be deleted separately.
+     */
+    public void deleteContent(String contentId) {
+        deleteImageUrisForContent(contentId);
+        deleteContentInternal(contentId);
+    }
+
+    @Query("DELETE FROM image_uri_content WHERE imageUri = :imageUri")
+    public abstract void deleteImageUriContent(Uri imageUri);
+}
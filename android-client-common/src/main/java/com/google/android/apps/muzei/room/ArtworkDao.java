@@ -47,11 +47,41 @@ public abstract class ArtworkDao {
     abstract long insertInternal(Artwork artwork);
 
     public long insert(Context context, Artwork artwork) {
-        long id = insertInternal(artwork);
-        File artworkFile = MuzeiProvider.getCacheFileForArtworkUri(context, id);
-        if (artworkFile != null && artworkFile.exists()) {
+        MuzeiDatabase database = MuzeiDatabase.getInstance(context);
+        ArtworkContentDao artworkContentDao = database.artworkContentDao();
+        long id;
+        database.beginTransaction();
+        try {
+            if (artwork.imageUri != null) {
+                // Reference the stored content of an earlier download of the same image
+                artwork.contentId = artworkContentDao.getContentIdForImageUri(artwork.imageUri);
+            }
+            id = insertInternal(artwork);
+            if (artwork.contentId != null) {
+                artworkContentDao.adjustRefCount(artwork.contentId, 1);
+            }
+            // Resolve the artwork's file once, now that its id is known
+            artwork.id = id;
+            artwork.fileName = null;
+            File artworkFile = MuzeiProvider.getCacheFileForArtwork(context, artwork);
+            if (artworkFile != null) {
+                artwork.fileName = MuzeiProvider.getArtworkFileName(context, artworkFile);
+                artwork.filePresent = artworkFile.exists();
+                setFile(id, artwork.fileName, artwork.filePresent);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        MuzeiProvider.invalidateCurrentArtworkSnapshot();
+        if (artwork.fileName == null) {
+            // Have the file name resolved later, as for artwork from before they were stored
+            MuzeiProvider.requestFileNameResolution(context);
+        }
+        if (artwork.filePresent) {
             // The image already exists so we'll notify observers to say the new artwork is ready
             // Otherwise, this will be called when the file is written with MuzeiProvider.openFile()
+            MuzeiProvider.invalidateCurrentArtworkFile();
             context.getContentResolver()
                     .notifyChange(MuzeiContract.Artwork.CONTENT_URI, null);
             context.sendBroadcast(
@@ -72,15 +102,60 @@ public abstract class ArtworkDao {
             "ORDER BY date_added DESC")
     public abstract List<Artwork> getArtworkForSourceIdBlocking(long sourceId);
 
-    @Query("SELECT * FROM artwork ORDER BY date_added DESC")
+    @Query("SELECT * FROM artwork ORDER BY date_added DESC LIMIT 1")
     public abstract LiveData<Artwork> getCurrentArtwork();
 
-    @Query("SELECT * FROM artwork ORDER BY date_added DESC")
+    @Query("SELECT * FROM artwork ORDER BY date_added DESC LIMIT 1")
     public abstract Artwork getCurrentArtworkBlocking();
 
     @Query("SELECT * FROM artwork WHERE _id=:id")
     public abstract Artwork getArtworkById(long id);
 
+    /**
+     * Returns the most recent artwork whose file has been written.
+     */
+    @Query("SELECT * FROM artwork WHERE filePresent = 1 ORDER BY date_added DESC LIMIT 1")
+    public abstract Artwork getCurrentArtworkWithFileBlocking();
+
+    @Query("SELECT * FROM artwork WHERE fileName IS NULL")
+    public abstract List<Artwork> getArtworkWithoutFileNameBlocking();
+
+    @Query("UPDATE artwork SET fileName = :fileName, filePresent = :filePresent WHERE _id = :id")
+    public abstract void setFile(long id, String fileName, boolean filePresent);
+
+    /**
+     * Marks whether the given file, shared by all artwork with the same file name, is present.
+     */
+    @Query("UPDATE artwork SET filePresent = :filePresent WHERE fileName = :fileName")
+    public abstract void setFilePresent(String fileName, boolean filePresent);
+
+    @Query("UPDATE artwork SET filePresent = 0 WHERE _id = :id")
+    public abstract void clearFilePresent(long id);
+
+    /**
+     * Returns all artwork with a resolved file, most recently displayed first. Artwork is
+     * displayed when it is added, so a file was last displayed when the newest artwork
+     * sharing it was added.
+     */
+    @Query("SELECT * FROM artwork WHERE fileName IS NOT NULL ORDER BY date_added DESC")
+    public abstract List<Artwork> getArtworkWithFileByLastDisplayedBlocking();
+
+    @Query("SELECT DISTINCT fileName FROM artwork WHERE _id IN (:ids) AND fileName IS NOT NULL")
+    public abstract List<String> getFileNamesForIds(List<Long> ids);
+
+    /**
+     * Returns which of the given file names are still the file of some artwork.
+     */
+    @Query("SELECT DISTINCT fileName FROM artwork WHERE fileName IN (:fileNames)")
+    public abstract List<String> getReferencedFileNames(List<String> fileNames);
+
+    /**
+     * Deletes the given artwork without releasing the content it references or deleting its
+     * files, which the caller is responsible for.
+     */
+    @Query("DELETE FROM artwork WHERE _id IN (:ids)")
+    public abstract void deleteByIds(List<Long> ids);
+
     @Query("SELECT * FROM artwork WHERE title LIKE :query OR byline LIKE :query OR attribution LIKE :query")
     public abstract List<Artwork> searchArtworkBlocking(String query);
 
@@ -92,9 +167,43 @@ public abstract class ArtworkDao {
             "FROM artwork, sources " +
             "WHERE artwork.sourceComponentName = " +
             "sources.component_name " +
-            "ORDER BY date_added DESC")
+            "ORDER BY date_added DESC LIMIT 1")
     public abstract ArtworkSource getCurrentArtworkWithSourceBlocking();
 
+    @TypeConverters(UriTypeConverter.class)
+    @Query("SELECT COUNT(*) FROM artwork WHERE imageUri = :imageUri AND contentId IS NULL")
+    abstract int countWithoutContent(Uri imageUri);
+
+    @TypeConverters(UriTypeConverter.class)
+    @Query("UPDATE artwork SET contentId = :contentId "
+            + "WHERE imageUri = :imageUri AND contentId IS NULL")
+    abstract void attachContentInternal(Uri imageUri, String contentId);
+
+    @Query("UPDATE artwork SET fileName = :fileName, filePresent = 1 "
+            + "WHERE contentId = :contentId")
+    abstract void setContentFilePresent(String contentId, String fileName);
+
+    /**
+     * Makes the given content the image of all artwork with the given image URI that doesn't
+     * reference any content yet, and marks the content's file as present for all artwork that
+     * reference it. This should be called in a transaction that also adds the returned count
+     * to the content's reference count, once the content's file has been written.
+     *
+     * @return the number of artwork that now reference the content
+     */
+    public int attachContent(Context context, Uri imageUri, String contentId) {
+        int count = countWithoutContent(imageUri);
+        if (count > 0) {
+            attachContentInternal(imageUri, contentId);
+        }
+        File contentFile = MuzeiProvider.getContentFile(context, contentId);
+        if (contentFile != null) {
+            setContentFilePresent(contentId,
+                    MuzeiProvider.getArtworkFileName(context, contentFile));
+        }
+        return count;
+    }
+
     @Delete
     abstract void deleteInternal(Artwork artwork);
 
@@ -121,27 +230,6 @@ public abstract class ArtworkDao {
         }.start();
     }
 
-    @TypeConverters(ComponentNameTypeConverter.class)
-    @Query("DELETE FROM artwork WHERE sourceComponentName = :sourceComponentName " +
-            "AND _id NOT IN (:ids)")
-    abstract void deleteNonMatchingInternal(ComponentName sourceComponentName, List<Long> ids);
-
-    @TypeConverters(ComponentNameTypeConverter.class)
-    @Query("SELECT * FROM artwork WHERE sourceComponentName = :sourceComponentName " +
-            "AND _id NOT IN (:ids)")
-    abstract List<Artwork> getNonMatchingForSource(ComponentName sourceComponentName, List<Long> ids);
-
-    public void deleteNonMatching(final Context context, final ComponentName sourceComponentName,
-            final List<Long> ids) {
-        new Thread() {
-            @Override
-            public void run() {
-                deleteImages(context, getNonMatchingForSource(sourceComponentName, ids));
-                deleteNonMatchingInternal(sourceComponentName, ids);
-            }
-        }.start();
-    }
-
     @TypeConverters(UriTypeConverter.class)
     @Query("DELETE FROM artwork WHERE imageUri=:imageUri")
     public abstract void deleteByImageUriInternal(Uri imageUri);
@@ -173,13 +261,13 @@ public abstract class ArtworkDao {
         // Now we actually go through the list of rows to be deleted
         // and check if we can delete the artwork image file associated with each one
         for (Artwork artwork : artworkList) {
-            if (TextUtils.isEmpty(artwork.token) && artwork.imageUri == null) {
+            if (artwork.contentId != null) {
+                // Stored content keeps count of the artwork that reference it
+                releaseContent(context, artwork.contentId);
+            } else if (TextUtils.isEmpty(artwork.token) && artwork.imageUri == null) {
                 // An empty image URI and token means the artwork is unique to this specific row
                 // so we can always delete it when the associated row is deleted
-                File file = MuzeiProvider.getCacheFileForArtworkUri(context, artwork.id);
-                if (file != null && file.exists()) {
-                    file.delete();
-                }
+                deleteArtworkFile(context, artwork);
             } else if (artwork.imageUri == null) {
                 // Check if there are other rows using this same token that aren't
                 // in the list of ids to delete
@@ -190,10 +278,7 @@ public abstract class ArtworkDao {
                 if (otherArtwork.isEmpty()) {
                     // There's no non-deleted rows that reference this same artwork URI
                     // so we can delete the artwork
-                    File file = MuzeiProvider.getCacheFileForArtworkUri(context, artwork.id);
-                    if (file != null && file.exists()) {
-                        file.delete();
-                    }
+                    deleteArtworkFile(context, artwork);
                 }
             } else {
                 // Check if there are other rows using this same image URI that aren't
@@ -205,12 +290,42 @@ public abstract class ArtworkDao {
                 if (otherArtwork.isEmpty()) {
                     // There's no non-deleted rows that reference this same artwork URI
                     // so we can delete the artwork
-                    File file = MuzeiProvider.getCacheFileForArtworkUri(context, artwork.id);
-                    if (file != null && file.exists()) {
-                        file.delete();
-                    }
+                    deleteArtworkFile(context, artwork);
                 }
             }
         }
     }
+
+    /**
+     * Drops one reference to the given content, deleting it once nothing references it.
+     */
+    private void releaseContent(Context context, String contentId) {
+        MuzeiDatabase database = MuzeiDatabase.getInstance(context);
+        ArtworkContentDao artworkContentDao = database.artworkContentDao();
+        boolean unreferenced;
+        database.beginTransaction();
+        try {
+            artworkContentDao.adjustRefCount(contentId, -1);
+            ArtworkContent artworkContent = artworkContentDao.getContentBlocking(contentId);
+            unreferenced = artworkContent == null || artworkContent.refCount <= 0;
+            if (unreferenced) {
+                artworkContentDao.deleteContent(contentId);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        File contentFile = MuzeiProvider.getContentFile(context, contentId);
+        if (unreferenced && contentFile != null) {
+            MuzeiProvider.deleteArtworkFiles(contentFile);
+        }
+    }
+
+    private void deleteArtworkFile(Context context, Artwork artwork) {
+        File file = MuzeiProvider.getUriCacheFileForArtwork(context, artwork);
+        if (file == null) {
+            return;
+        }
+        MuzeiProvider.deleteArtworkFiles(file);
+    }
 }
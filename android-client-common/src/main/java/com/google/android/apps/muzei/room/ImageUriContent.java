@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.room;
+
+import android.arch.persistence.room.Entity;
+import android.arch.persistence.room.Ignore;
+import android.arch.persistence.room.Index;
+import android.arch.persistence.room.PrimaryKey;
+import android.arch.persistence.room.TypeConverters;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+
+import com.google.android.apps.muzei.room.converter.UriTypeConverter;
+
+/**
+ * Which {@link ArtworkContent} an image URI was downloaded as.
+ */
+@Entity(tableName = "image_uri_content",
+        indices = @Index(value = "contentId"))
+public class ImageUriContent {
+    @PrimaryKey
+    @TypeConverters(UriTypeConverter.class)
+    @NonNull
+    public Uri imageUri;
+
+    @NonNull
+    public String contentId;
+
+    public ImageUriContent() {
+    }
+
+    @Ignore
+    public ImageUriContent(@NonNull Uri imageUri, @NonNull String contentId) {
+        this.imageUri = imageUri;
+        this.contentId = contentId;
+    }
+}
@@ -25,13 +25,15 @@ import android.arch.persistence.room.migration.Migration;
 import android.content.Context;
 import android.content.Intent;
 import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 
 import com.google.android.apps.muzei.api.MuzeiContract;
 
 /**
  * Room Database for Muzei
  */
-@Database(entities = {Artwork.class, Source.class}, version = 4)
+@Database(entities = {Artwork.class, Source.class, UpcomingArtwork.class,
+        PendingDownload.class, ArtworkContent.class, ImageUriContent.class}, version = 9)
 public abstract class MuzeiDatabase extends RoomDatabase {
     private static MuzeiDatabase sInstance;
 
@@ -39,13 +41,20 @@ public abstract class MuzeiDatabase extends RoomDatabase {
 
     public abstract ArtworkDao artworkDao();
 
+    public abstract UpcomingArtworkDao upcomingArtworkDao();
+
+    public abstract PendingDownloadDao pendingDownloadDao();
+
+    public abstract ArtworkContentDao artworkContentDao();
+
     public static MuzeiDatabase getInstance(Context context) {
         final Context applicationContext = context.getApplicationContext();
         if (sInstance == null) {
             sInstance = Room.databaseBuilder(applicationContext,
                     MuzeiDatabase.class, "muzei.db")
                     .allowMainThreadQueries()
-                    .addMigrations(MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4)
+                    .addMigrations(MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4, MIGRATION_4_5,
+                            MIGRATION_5_6, MIGRATION_6_7, MIGRATION_7_8, MIGRATION_8_9)
                     .build();
             sInstance.sourceDao().getCurrentSource().observeForever(
                     new Observer<Source>() {
@@ -141,4 +150,91 @@ public abstract class MuzeiDatabase extends RoomDatabase {
             database.execSQL("ALTER TABLE artwork2 RENAME TO artwork");
         }
     };
+
+    private static Migration MIGRATION_4_5 = new Migration(4, 5) {
+        @Override
+        public void migrate(final SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE upcoming_artwork ("
+                    + "_id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL,"
+                    + "sourceComponentName TEXT,"
+                    + "position INTEGER NOT NULL,"
+                    + "imageUri TEXT,"
+                    + "title TEXT,"
+                    + "byline TEXT,"
+                    + "attribution TEXT,"
+                    + "token TEXT,"
+                    + "metaFont TEXT NOT NULL,"
+                    + "viewIntent TEXT,"
+                    + " CONSTRAINT fk_source_upcoming_artwork FOREIGN KEY "
+                    + "(sourceComponentName) REFERENCES "
+                    + "sources (component_name) ON DELETE CASCADE);");
+            database.execSQL("CREATE INDEX index_upcoming_artwork_sourceComponentName "
+                    + "ON upcoming_artwork (sourceComponentName)");
+        }
+    };
+
+    private static Migration MIGRATION_5_6 = new Migration(5, 6) {
+        @Override
+        public void migrate(final SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE download_queue ("
+                    + "_id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL,"
+                    + "imageUri TEXT NOT NULL,"
+                    + "host TEXT,"
+                    + "priority INTEGER NOT NULL,"
+                    + "attempts INTEGER NOT NULL);");
+            database.execSQL("CREATE UNIQUE INDEX index_download_queue_imageUri "
+                    + "ON download_queue (imageUri)");
+        }
+    };
+
+    private static Migration MIGRATION_6_7 = new Migration(6, 7) {
+        @Override
+        public void migrate(final SupportSQLiteDatabase database) {
+            // Existing artwork keeps using the files named after its image URI or token
+            database.execSQL("ALTER TABLE artwork ADD COLUMN contentId TEXT");
+            database.execSQL("CREATE TABLE artwork_content ("
+                    + "contentId TEXT PRIMARY KEY NOT NULL,"
+                    + "refCount INTEGER NOT NULL,"
+                    + "length INTEGER NOT NULL,"
+                    + "prefixHash TEXT,"
+                    + "validator TEXT);");
+            database.execSQL("CREATE INDEX index_artwork_content_prefixHash "
+                    + "ON artwork_content (prefixHash)");
+            database.execSQL("CREATE TABLE image_uri_content ("
+                    + "imageUri TEXT PRIMARY KEY NOT NULL,"
+                    + "contentId TEXT NOT NULL);");
+            database.execSQL("CREATE INDEX index_image_uri_content_contentId "
+                    + "ON image_uri_content (contentId)");
+        }
+    };
+
+    private static Migration MIGRATION_7_8 = new Migration(7, 8) {
+        @Override
+        public void migrate(final SupportSQLiteDatabase database) {
+            // Existing artwork has its file resolved the next time the current artwork is opened
+            database.execSQL("ALTER TABLE artwork ADD COLUMN fileName TEXT");
+            database.execSQL("ALTER TABLE artwork ADD COLUMN filePresent INTEGER NOT NULL "
+                    + "DEFAULT 0");
+            database.execSQL("CREATE INDEX index_artwork_filePresent_date_added "
+                    + "ON artwork (filePresent, date_added)");
+        }
+    };
+
+    @VisibleForTesting
+    static Migration MIGRATION_8_9 = new Migration(8, 9) {
+        @Override
+        public void migrate(final SupportSQLiteDatabase database) {
+            // Lets the current artwork be read from the end of the date_added index rather than
+            // sorting the whole history, and avoids scanning the history when looking for
+            // artwork that shares an image
+            database.execSQL("CREATE INDEX index_artwork_date_added "
+                    + "ON artwork (date_added)");
+            database.execSQL("CREATE INDEX index_artwork_imageUri "
+                    + "ON artwork (imageUri)");
+            database.execSQL("CREATE INDEX index_artwork_token "
+                    + "ON artwork (token)");
+            database.execSQL("CREATE INDEX index_artwork_contentId "
+                    + "ON artwork (contentId)");
+        }
+    };
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.room;
+
+import android.arch.persistence.room.ColumnInfo;
+import android.arch.persistence.room.Entity;
+import android.arch.persistence.room.Ignore;
+import android.arch.persistence.room.Index;
+import android.arch.persistence.room.PrimaryKey;
+import android.arch.persistence.room.TypeConverters;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.support.annotation.NonNull;
+
+import com.google.android.apps.muzei.room.converter.UriTypeConverter;
+
+/**
+ * An artwork image waiting to be downloaded into its cache file. There is at most one entry
+ * per image URI, as artwork with the same image URI share the same file.
+ */
+@Entity(tableName = "download_queue",
+        indices = @Index(value = "imageUri", unique = true))
+public class PendingDownload {
+    /**
+     * Priority of the image of the current artwork, which is needed right away.
+     */
+    public static final int PRIORITY_CURRENT_ARTWORK = 2;
+    /**
+     * Priority of the image of artwork that is expected to be shown soon.
+     */
+    public static final int PRIORITY_PREFETCH = 1;
+    /**
+     * Priority of the image of previously shown artwork that is missing its file.
+     */
+    public static final int PRIORITY_HISTORY = 0;
+
+    @PrimaryKey(autoGenerate = true)
+    @ColumnInfo(name = BaseColumns._ID)
+    public long id;
+
+    @TypeConverters(UriTypeConverter.class)
+    @NonNull
+    public Uri imageUri;
+
+    /**
+     * The host the image is downloaded from, or null if it isn't downloaded over the network
+     */
+    public String host;
+
+    public int priority;
+
+    public int attempts;
+
+    public PendingDownload() {
+    }
+
+    @Ignore
+    public PendingDownload(@NonNull Uri imageUri, int priority) {
+        this.imageUri = imageUri;
+        this.host = imageUri.getHost();
+        this.priority = priority;
+    }
+}
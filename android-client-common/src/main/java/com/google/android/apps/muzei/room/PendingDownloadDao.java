@@ -0,0 +1,72 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.room;
+
+import android.arch.persistence.room.Dao;
+import android.arch.persistence.room.Delete;
+import android.arch.persistence.room.Insert;
+import android.arch.persistence.room.OnConflictStrategy;
+import android.arch.persistence.room.Query;
+import android.arch.persistence.room.TypeConverters;
+import android.net.Uri;
+
+import com.google.android.apps.muzei.room.converter.UriTypeConverter;
+
+import java.util.List;
+
+/**
+ * Dao for PendingDownload
+ */
+@Dao
+@TypeConverters(UriTypeConverter.class)
+public abstract class PendingDownloadDao {
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    abstract long insertIgnoringDuplicates(PendingDownload pendingDownload);
+
+    @Query("UPDATE download_queue SET priority = :priority "
+            + "WHERE imageUri = :imageUri AND priority < :priority")
+    abstract void raisePriority(Uri imageUri, int priority);
+
+    /**
+     * Adds the given download to the queue. If the same image is already queued, it keeps
+     * its place but takes the higher of the two priorities.
+     */
+    public void enqueue(PendingDownload pendingDownload) {
+        if (insertIgnoringDuplicates(pendingDownload) == -1) {
+            raisePriority(pendingDownload.imageUri, pendingDownload.priority);
+        }
+    }
+
+    /**
+     * Returns the next downloads to attempt, highest priority first and then in the order
+     * they were queued.
+     */
+    @Query("SELECT * FROM download_queue ORDER BY priority DESC, _id LIMIT :limit")
+    public abstract List<PendingDownload> getNextPendingDownloadsBlocking(int limit);
+
+    @Query("SELECT MAX(priority) FROM download_queue")
+    public abstract Integer getHighestPriorityBlocking();
+
+    @Query("UPDATE download_queue SET attempts = attempts + 1 WHERE _id = :id")
+    public abstract void incrementAttempts(long id);
+
+    @Delete
+    public abstract void delete(PendingDownload pendingDownload);
+
+    @Query("DELETE FROM download_queue WHERE imageUri = :imageUri")
+    public abstract void deleteByImageUri(Uri imageUri);
+}
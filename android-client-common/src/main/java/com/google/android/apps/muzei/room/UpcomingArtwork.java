@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.room;
+
+import android.arch.persistence.room.ColumnInfo;
+import android.arch.persistence.room.Entity;
+import android.arch.persistence.room.ForeignKey;
+import android.arch.persistence.room.Index;
+import android.arch.persistence.room.PrimaryKey;
+import android.arch.persistence.room.TypeConverters;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.support.annotation.NonNull;
+
+import com.google.android.apps.muzei.api.MuzeiContract;
+import com.google.android.apps.muzei.room.converter.ComponentNameTypeConverter;
+import com.google.android.apps.muzei.room.converter.IntentTypeConverter;
+import com.google.android.apps.muzei.room.converter.UriTypeConverter;
+
+/**
+ * Artwork a source has queued up to be shown after its current artwork, in order of
+ * {@link #position}
+ */
+@Entity(tableName = "upcoming_artwork",
+        indices = @Index(value = "sourceComponentName"),
+        foreignKeys = @ForeignKey(
+                entity = Source.class,
+                parentColumns = "component_name",
+                childColumns = "sourceComponentName",
+                onDelete = ForeignKey.CASCADE))
+public class UpcomingArtwork {
+    @PrimaryKey(autoGenerate = true)
+    @ColumnInfo(name = BaseColumns._ID)
+    public long id;
+
+    @TypeConverters(ComponentNameTypeConverter.class)
+    public ComponentName sourceComponentName;
+
+    public int position;
+
+    @TypeConverters(UriTypeConverter.class)
+    public Uri imageUri;
+
+    public String title;
+
+    public String byline;
+
+    public String attribution;
+
+    public String token;
+
+    @MuzeiContract.Artwork.MetaFontType
+    @NonNull
+    public String metaFont = MuzeiContract.Artwork.META_FONT_TYPE_DEFAULT;
+
+    @TypeConverters(IntentTypeConverter.class)
+    public Intent viewIntent;
+
+    /**
+     * Creates the {@link Artwork} to insert when this becomes the current artwork.
+     */
+    @NonNull
+    public Artwork toArtwork() {
+        Artwork artwork = new Artwork();
+        artwork.sourceComponentName = sourceComponentName;
+        artwork.imageUri = imageUri;
+        artwork.title = title;
+        artwork.byline = byline;
+        artwork.attribution = attribution;
+        artwork.token = token;
+        artwork.metaFont = metaFont;
+        artwork.viewIntent = viewIntent;
+        return artwork;
+    }
+}
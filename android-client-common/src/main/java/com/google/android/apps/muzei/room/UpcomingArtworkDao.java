@@ -0,0 +1,48 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.room;
+
+import android.arch.persistence.room.Dao;
+import android.arch.persistence.room.Delete;
+import android.arch.persistence.room.Insert;
+import android.arch.persistence.room.Query;
+import android.arch.persistence.room.TypeConverters;
+import android.content.ComponentName;
+
+import com.google.android.apps.muzei.room.converter.ComponentNameTypeConverter;
+
+import java.util.List;
+
+/**
+ * Dao for UpcomingArtwork
+ */
+@Dao
+public interface UpcomingArtworkDao {
+    @Insert
+    void insert(List<UpcomingArtwork> upcomingArtwork);
+
+    @TypeConverters(ComponentNameTypeConverter.class)
+    @Query("SELECT * FROM upcoming_artwork WHERE sourceComponentName = :sourceComponentName "
+            + "ORDER BY position")
+    List<UpcomingArtwork> getUpcomingArtworkBlocking(ComponentName sourceComponentName);
+
+    @Delete
+    void delete(UpcomingArtwork upcomingArtwork);
+
+    @Delete
+    void delete(List<UpcomingArtwork> upcomingArtwork);
+}
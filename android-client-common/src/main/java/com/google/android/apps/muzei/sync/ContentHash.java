@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.sync;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Helpers for the SHA-256 hashes that identify downloaded artwork by its bytes.
+ */
+public class ContentHash {
+    /**
+     * How many bytes from the start of a download are hashed to recognize a duplicate of
+     * content that is already stored before the rest of it has been downloaded.
+     */
+    public static final int PREFIX_LENGTH = 64 * 1024;
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android device is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String toHex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            if ((0xff & b) < 0x10) {
+                hex.append("0");
+            }
+            hex.append(Integer.toHexString(0xff & b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Adds at most the given number of bytes from the start of the given file to the digest.
+     */
+    public static void update(MessageDigest digest, File file, long maxLength) throws IOException {
+        byte[] buffer = new byte[8192];
+        long remaining = maxLength;
+        try (InputStream in = new FileInputStream(file)) {
+            int bytesRead;
+            while (remaining > 0 && (bytesRead = in.read(buffer, 0,
+                    (int) Math.min(buffer.length, remaining))) > 0) {
+                digest.update(buffer, 0, bytesRead);
+                remaining -= bytesRead;
+            }
+        }
+    }
+
+    /**
+     * Returns the hash of the first {@link #PREFIX_LENGTH} bytes of the given file.
+     */
+    public static String hashPrefix(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        update(digest, file, PREFIX_LENGTH);
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Returns the hash of the given bytes.
+     */
+    public static String hash(byte[] bytes) {
+        MessageDigest digest = newDigest();
+        digest.update(bytes);
+        return toHex(digest.digest());
+    }
+
+    private ContentHash() {
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.sync;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Connection;
+import okhttp3.Interceptor;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Counts how well the {@linkplain OkHttpClientFactory#getSharedClient shared OkHttpClient}
+ * avoids network work: responses served from its disk cache, responses revalidated with a
+ * conditional request, the bytes those saved, and how often pooled connections are reused.
+ */
+public class HttpMetrics {
+    private static final HttpMetrics sInstance = new HttpMetrics();
+
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mCacheHitCount = new AtomicInteger();
+    private final AtomicInteger mConditionalHitCount = new AtomicInteger();
+    private final AtomicLong mBytesSaved = new AtomicLong();
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+    private final AtomicInteger mConnectionReuseCount = new AtomicInteger();
+
+    // Guarded by itself. Weak so that connections evicted from the pool can be collected
+    private final Map<Connection, Boolean> mSeenConnections = new WeakHashMap<>();
+
+    private final Interceptor mCacheInterceptor = new Interceptor() {
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Response response = chain.proceed(chain.request());
+            mRequestCount.incrementAndGet();
+            if (response.cacheResponse() == null) {
+                return response;
+            }
+            Response networkResponse = response.networkResponse();
+            if (networkResponse == null) {
+                mCacheHitCount.incrementAndGet();
+            } else if (networkResponse.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                mConditionalHitCount.incrementAndGet();
+            } else {
+                return response;
+            }
+            ResponseBody body = response.body();
+            long contentLength = body != null ? body.contentLength() : -1;
+            if (contentLength > 0) {
+                mBytesSaved.addAndGet(contentLength);
+            }
+            return response;
+        }
+    };
+
+    private final Interceptor mConnectionInterceptor = new Interceptor() {
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Connection connection = chain.connection();
+            if (connection != null) {
+                synchronized (mSeenConnections) {
+                    if (mSeenConnections.put(connection, Boolean.TRUE) == null) {
+                        mConnectionCount.incrementAndGet();
+                    } else {
+                        mConnectionReuseCount.incrementAndGet();
+                    }
+                }
+            }
+            return chain.proceed(chain.request());
+        }
+    };
+
+    public static HttpMetrics getInstance() {
+        return sInstance;
+    }
+
+    private HttpMetrics() {
+    }
+
+    Interceptor getCacheInterceptor() {
+        return mCacheInterceptor;
+    }
+
+    Interceptor getConnectionInterceptor() {
+        return mConnectionInterceptor;
+    }
+
+    /**
+     * Returns the number of requests made through the shared client.
+     */
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * Returns the number of responses served entirely from the disk cache.
+     */
+    public int getCacheHitCount() {
+        return mCacheHitCount.get();
+    }
+
+    /**
+     * Returns the number of cached responses the server confirmed were still current.
+     */
+    public int getConditionalHitCount() {
+        return mConditionalHitCount.get();
+    }
+
+    /**
+     * Returns the number of response body bytes that didn't need to be downloaded because they
+     * were cached.
+     */
+    public long getBytesSaved() {
+        return mBytesSaved.get();
+    }
+
+    /**
+     * Returns the number of new connections opened.
+     */
+    public int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    /**
+     * Returns the number of requests that reused a pooled connection.
+     */
+    public int getConnectionReuseCount() {
+        return mConnectionReuseCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "requests: " + getRequestCount()
+                + ", cache hits: " + getCacheHitCount()
+                + ", conditional hits: " + getConditionalHitCount()
+                + ", bytes saved: " + getBytesSaved()
+                + ", connections: " + getConnectionCount()
+                + ", reused: " + getConnectionReuseCount();
+    }
+}
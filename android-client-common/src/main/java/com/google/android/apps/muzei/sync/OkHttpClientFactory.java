@@ -16,9 +16,11 @@
 
 package com.google.android.apps.muzei.sync;
 
+import android.content.Context;
 import android.os.Build;
 import android.util.Log;
 
+import java.io.File;
 import java.security.KeyStore;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -29,6 +31,7 @@ import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
 
+import okhttp3.Cache;
 import okhttp3.ConnectionSpec;
 import okhttp3.OkHttpClient;
 import okhttp3.TlsVersion;
@@ -41,17 +44,47 @@ public class OkHttpClientFactory {
     private static final int DEFAULT_READ_TIMEOUT = 30; // in seconds
     private static final int DEFAULT_CONNECT_TIMEOUT = 15; // in seconds
 
+    private static final String HTTP_CACHE_DIRECTORY = "http";
+    private static final long HTTP_CACHE_SIZE_BYTES = 10 * 1024 * 1024;
+
+    private static OkHttpClient sSharedClient;
+
+    /**
+     * Returns the OkHttpClient shared by the whole process, detecting if TLS needs to be
+     * enabled. Sharing it means connections are pooled and reused across requests, and
+     * responses are kept in a bounded disk cache so that they can be revalidated with
+     * If-None-Match/If-Modified-Since rather than downloaded again. Requests and connection
+     * reuse are counted by {@link HttpMetrics}.
+     */
+    public static synchronized OkHttpClient getSharedClient(Context context) {
+        if (sSharedClient == null) {
+            File cacheDirectory = new File(context.getApplicationContext().getCacheDir(),
+                    HTTP_CACHE_DIRECTORY);
+            HttpMetrics metrics = HttpMetrics.getInstance();
+            sSharedClient = newBuilder(isTLSEnableNeeded())
+                    .cache(new Cache(cacheDirectory, HTTP_CACHE_SIZE_BYTES))
+                    .addInterceptor(metrics.getCacheInterceptor())
+                    .addNetworkInterceptor(metrics.getConnectionInterceptor())
+                    .build();
+        }
+        return sSharedClient;
+    }
+
     /**
      * Creates an OkHttpClient optionally enabling TLS
      */
     public static OkHttpClient getNewOkHttpClient(boolean enableTLS) {
+        return newBuilder(enableTLS).build();
+    }
+
+    private static OkHttpClient.Builder newBuilder(boolean enableTLS) {
         OkHttpClient.Builder client = new OkHttpClient.Builder()
                 .connectTimeout(DEFAULT_CONNECT_TIMEOUT, TimeUnit.SECONDS)
                 .readTimeout(DEFAULT_READ_TIMEOUT, TimeUnit.SECONDS);
         if (enableTLS) {
             client = enableTls12(client);
         }
-        return client.build();
+        return client;
     }
 
     /**
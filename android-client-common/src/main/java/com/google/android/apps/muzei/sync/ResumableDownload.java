@@ -0,0 +1,330 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.sync;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Properties;
+
+import okhttp3.CacheControl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * Downloads a URL into a partial file that is kept when the download fails, so that a retry
+ * can resume where the previous attempt stopped rather than starting again from the first byte.
+ *
+ * <p>The validators of the response (its ETag and Last-Modified headers) and its length are
+ * recorded in a metadata file beside the partial file. A retry asks for just the missing bytes
+ * with a Range request, guarded by an If-Range header so that the server sends the whole
+ * response instead if it has changed since. Servers that don't support ranges are handled the
+ * same way, by starting over.
+ *
+ * <p>The SHA-256 hash of the body is computed as it is written, including any bytes kept from
+ * an earlier attempt, so that the download can be stored under its content. A
+ * {@link DuplicateChecker} can also stop a new download as soon as its first bytes show it is
+ * content that is already stored.
+ *
+ * <p>This only depends on OkHttp, so it can be pointed at a local mock HTTP server.
+ */
+public class ResumableDownload {
+    private static final String METADATA_SUFFIX = ".meta";
+
+    private static final String KEY_URL = "url";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "last_modified";
+    private static final String KEY_CONTENT_LENGTH = "content_length";
+
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private final OkHttpClient mClient;
+    private final File mPartialFile;
+    private final File mMetadataFile;
+    private DuplicateChecker mDuplicateChecker;
+
+    private String mValidator;
+    private String mContentHash;
+    private String mDuplicateContentId;
+
+    public ResumableDownload(OkHttpClient client, File partialFile) {
+        mClient = client;
+        mPartialFile = partialFile;
+        mMetadataFile = new File(partialFile.getPath() + METADATA_SUFFIX);
+    }
+
+    /**
+     * Returns the file the download is written to.
+     */
+    public File getPartialFile() {
+        return mPartialFile;
+    }
+
+    /**
+     * Sets what is asked whether a new download is of content that is already stored.
+     */
+    public void setDuplicateChecker(DuplicateChecker duplicateChecker) {
+        mDuplicateChecker = duplicateChecker;
+    }
+
+    /**
+     * Returns the ETag or Last-Modified header of the completed download, or null if it had
+     * neither.
+     */
+    public String getValidator() {
+        return mValidator;
+    }
+
+    /**
+     * Returns the hex encoded SHA-256 hash of the completed download, or null if it was stopped
+     * as a duplicate.
+     */
+    public String getContentHash() {
+        return mContentHash;
+    }
+
+    /**
+     * Returns the id of the stored content the {@link DuplicateChecker} matched this download
+     * to, in which case the download was stopped and the partial file deleted, or null.
+     */
+    public String getDuplicateContentId() {
+        return mDuplicateContentId;
+    }
+
+    /**
+     * Downloads the given URL into the partial file, resuming an earlier download of the same
+     * URL if the server allows it. When this returns the partial file holds the complete
+     * response body, unless it was found to be a duplicate. If it throws, whatever was received
+     * so far is kept for the next attempt.
+     *
+     * @return the number of bytes that were kept from an earlier attempt
+     */
+    public long download(String url) throws IOException {
+        mValidator = null;
+        mContentHash = null;
+        mDuplicateContentId = null;
+        Properties metadata = readMetadata();
+        long existingLength = mPartialFile.exists() ? mPartialFile.length() : 0;
+        String validator = null;
+        if (existingLength > 0 && metadata != null && url.equals(metadata.getProperty(KEY_URL))) {
+            validator = getValidator(metadata);
+        }
+        if (validator == null) {
+            // There's nothing we can safely resume
+            delete();
+            existingLength = 0;
+        } else if (existingLength == getContentLength(metadata)) {
+            // An earlier attempt already received everything
+            MessageDigest digest = ContentHash.newDigest();
+            ContentHash.update(digest, mPartialFile, existingLength);
+            mValidator = validator;
+            mContentHash = ContentHash.toHex(digest.digest());
+            return existingLength;
+        }
+
+        // The download is stored in the partial file, so there's no need to cache it as well
+        Request.Builder request = new Request.Builder()
+                .url(url)
+                .cacheControl(new CacheControl.Builder().noStore().build());
+        if (validator != null) {
+            request.header("Range", "bytes=" + existingLength + "-")
+                    .header("If-Range", validator);
+        }
+        try (Response response = mClient.newCall(request.build()).execute()) {
+            int responseCode = response.code();
+            boolean append;
+            if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                if (validator == null
+                        || getRangeStart(response.header("Content-Range")) != existingLength) {
+                    delete();
+                    throw new IOException("Unexpected range "
+                            + response.header("Content-Range") + " for " + url);
+                }
+                append = true;
+            } else if (responseCode == HTTP_RANGE_NOT_SATISFIABLE) {
+                // The partial file doesn't match what the server has, so start over next time
+                delete();
+                throw new IOException("HTTP error response " + responseCode);
+            } else if (responseCode >= 200 && responseCode < 300) {
+                // Either this is a new download or the server sent the whole response again
+                append = false;
+                existingLength = 0;
+                metadata = new Properties();
+                metadata.setProperty(KEY_URL, url);
+                setProperty(metadata, KEY_ETAG, response.header("ETag"));
+                setProperty(metadata, KEY_LAST_MODIFIED, response.header("Last-Modified"));
+                metadata.setProperty(KEY_CONTENT_LENGTH,
+                        Long.toString(response.body().contentLength()));
+                writeMetadata(metadata);
+            } else {
+                throw new IOException("HTTP error response " + responseCode);
+            }
+
+            MessageDigest digest = ContentHash.newDigest();
+            if (append) {
+                // Include the bytes kept from the earlier attempt in the hash
+                ContentHash.update(digest, mPartialFile, existingLength);
+            }
+            BufferedSource source = response.body().source();
+            try (BufferedSink sink = Okio.buffer(Okio.sink(new DigestOutputStream(
+                    new FileOutputStream(mPartialFile, append), digest)))) {
+                if (!append && isDuplicate(source, getValidator(metadata),
+                        getContentLength(metadata))) {
+                    return 0;
+                }
+                sink.writeAll(source);
+            }
+            mValidator = getValidator(metadata);
+            mContentHash = ContentHash.toHex(digest.digest());
+        }
+
+        long contentLength = getContentLength(metadata);
+        if (contentLength >= 0 && mPartialFile.length() != contentLength) {
+            throw new IOException("Received " + mPartialFile.length() + " of "
+                    + contentLength + " bytes from " + url);
+        }
+        return existingLength;
+    }
+
+    /**
+     * Asks the {@link DuplicateChecker} whether the download with the given source is of
+     * content that is already stored, based on its first bytes, and if so deletes the partial
+     * file and its metadata.
+     */
+    private boolean isDuplicate(BufferedSource source, String validator, long contentLength)
+            throws IOException {
+        if (mDuplicateChecker == null || validator == null || contentLength < 0) {
+            return false;
+        }
+        // Buffer the first bytes without consuming them, so they are still written afterwards
+        source.request(ContentHash.PREFIX_LENGTH);
+        long prefixLength = Math.min(ContentHash.PREFIX_LENGTH, source.buffer().size());
+        String prefixHash = ContentHash.hash(
+                source.buffer().snapshot((int) prefixLength).toByteArray());
+        String duplicateContentId = mDuplicateChecker.findDuplicate(validator, contentLength,
+                prefixHash);
+        if (duplicateContentId == null) {
+            return false;
+        }
+        mDuplicateContentId = duplicateContentId;
+        delete();
+        return true;
+    }
+
+    /**
+     * Deletes the partial file and its metadata.
+     */
+    public void delete() {
+        delete(mPartialFile);
+    }
+
+    /**
+     * Deletes the given partial file and its metadata, if they exist.
+     */
+    public static void delete(File partialFile) {
+        File metadataFile = new File(partialFile.getPath() + METADATA_SUFFIX);
+        if (partialFile.exists()) {
+            partialFile.delete();
+        }
+        if (metadataFile.exists()) {
+            metadataFile.delete();
+        }
+    }
+
+    private static String getValidator(Properties metadata) {
+        String etag = metadata.getProperty(KEY_ETAG);
+        // Weak ETags can't be used to resume downloads, only to revalidate them
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return metadata.getProperty(KEY_LAST_MODIFIED);
+    }
+
+    private static long getContentLength(Properties metadata) {
+        try {
+            return Long.parseLong(metadata.getProperty(KEY_CONTENT_LENGTH, "-1"));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the first byte position of a Content-Range header such as
+     * {@code bytes 1000-1999/2000}, or -1 if it can't be parsed.
+     */
+    private static long getRangeStart(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        int dash = contentRange.indexOf('-');
+        if (dash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void setProperty(Properties properties, String key, String value) {
+        if (value != null) {
+            properties.setProperty(key, value);
+        }
+    }
+
+    private Properties readMetadata() {
+        if (!mMetadataFile.exists()) {
+            return null;
+        }
+        try (InputStream in = new FileInputStream(mMetadataFile)) {
+            Properties metadata = new Properties();
+            metadata.load(in);
+            return metadata;
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private void writeMetadata(Properties metadata) throws IOException {
+        try (OutputStream out = new FileOutputStream(mMetadataFile)) {
+            metadata.store(out, null);
+        }
+    }
+
+    /**
+     * Recognizes downloads of content that is already stored.
+     */
+    public interface DuplicateChecker {
+        /**
+         * Returns the id of the stored content with the given validator, length and hash of
+         * its first {@link ContentHash#PREFIX_LENGTH} bytes, or null if there is none. Called
+         * on the downloading thread.
+         */
+        String findDuplicate(String validator, long contentLength, String prefixHash);
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.util;
+
+import android.graphics.Bitmap;
+
+/**
+ * An implementation of the blur and desaturation done by {@link ImageBlurrer}. Each engine is
+ * created for a single source bitmap.
+ */
+public interface BlurEngine {
+    /**
+     * Returns a new bitmap with the source blurred by <code>radius</code> pixels and then
+     * desaturated by <code>desaturateAmount</code>, from 0 to 1.
+     */
+    Bitmap blurBitmap(float radius, float desaturateAmount);
+
+    /**
+     * Releases any resources held by this engine.
+     */
+    void destroy();
+}
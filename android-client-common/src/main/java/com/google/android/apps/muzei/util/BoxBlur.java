@@ -0,0 +1,243 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Pure Java blur and desaturation over ARGB pixel arrays. This has no Android dependencies so
+ * that it can be run and compared against the RenderScript output on a plain JVM.
+ *
+ * <p>The blur approximates a gaussian blur with three separable box blur passes, sized to match
+ * the gaussian that <code>ScriptIntrinsicBlur</code> uses for the same radius. Each pass is
+ * split into bands of rows (or columns) that are processed in parallel.
+ */
+public class BoxBlur {
+    /**
+     * The largest supported radius, matching {@link ImageBlurrer#MAX_SUPPORTED_BLUR_PIXELS}.
+     */
+    public static final int MAX_RADIUS = 25;
+
+    private static final int PASSES = 3;
+
+    /**
+     * Blurs the given pixels in place.
+     *
+     * @param radius   the blur radius, in the same units as <code>ScriptIntrinsicBlur</code>,
+     *                 constrained to {@link #MAX_RADIUS}
+     * @param executor the executor to process bands on, or null to blur on the calling thread
+     * @param bands    the number of bands to split each pass into
+     */
+    public static void blur(int[] pixels, int width, int height, float radius,
+            ExecutorService executor, int bands) throws InterruptedException {
+        radius = MathUtil.constrain(0, MAX_RADIUS, radius);
+        if (radius == 0 || width == 0 || height == 0) {
+            return;
+        }
+
+        int[] boxRadii = boxRadiiForGaussian(radius);
+        int[] temp = new int[pixels.length];
+        for (int boxRadius : boxRadii) {
+            runInBands(executor, bands, height, new HorizontalPass(
+                    pixels, temp, width, boxRadius));
+            runInBands(executor, bands, width, new VerticalPass(
+                    temp, pixels, width, height, boxRadius));
+        }
+    }
+
+    /**
+     * Desaturates the given pixels in place, using the same luminance matrix as
+     * {@link ImageBlurrer}.
+     *
+     * @param amount how much to desaturate, from 0 (unchanged) to 1 (fully grey)
+     */
+    public static void desaturate(int[] pixels, float amount) {
+        amount = MathUtil.constrain(0, 1, amount);
+        if (amount == 0) {
+            return;
+        }
+
+        float rr = MathUtil.interpolate(1, 0.299f, amount);
+        float rg = MathUtil.interpolate(0, 0.587f, amount);
+        float rb = MathUtil.interpolate(0, 0.114f, amount);
+        float gr = MathUtil.interpolate(0, 0.299f, amount);
+        float gg = MathUtil.interpolate(1, 0.587f, amount);
+        float gb = MathUtil.interpolate(0, 0.114f, amount);
+        float br = MathUtil.interpolate(0, 0.299f, amount);
+        float bg = MathUtil.interpolate(0, 0.587f, amount);
+        float bb = MathUtil.interpolate(1, 0.114f, amount);
+        for (int i = 0; i < pixels.length; i++) {
+            int color = pixels[i];
+            int r = (color >> 16) & 0xff;
+            int g = (color >> 8) & 0xff;
+            int b = color & 0xff;
+            pixels[i] = (color & 0xff000000)
+                    | (clampChannel(rr * r + rg * g + rb * b) << 16)
+                    | (clampChannel(gr * r + gg * g + gb * b) << 8)
+                    | clampChannel(br * r + bg * g + bb * b);
+        }
+    }
+
+    /**
+     * Computes the radii of the box blurs whose repeated application approximates the gaussian
+     * used by <code>ScriptIntrinsicBlur</code> at the given radius.
+     */
+    static int[] boxRadiiForGaussian(float radius) {
+        // ScriptIntrinsicBlur's sigma for a given radius
+        float sigma = 0.4f * radius + 0.6f;
+        // Ideal box width for the gaussian, rounded down to the nearest odd width
+        int lowerWidth = (int) Math.floor(Math.sqrt(12 * sigma * sigma / PASSES + 1));
+        if (lowerWidth % 2 == 0) {
+            lowerWidth--;
+        }
+        int upperWidth = lowerWidth + 2;
+        // Number of passes that should use the lower width to best match the variance
+        int lowerPasses = Math.round((12 * sigma * sigma - PASSES * lowerWidth * lowerWidth
+                - 4 * PASSES * lowerWidth - 3 * PASSES) / (-4 * lowerWidth - 4));
+        int[] boxRadii = new int[PASSES];
+        for (int i = 0; i < PASSES; i++) {
+            boxRadii[i] = ((i < lowerPasses ? lowerWidth : upperWidth) - 1) / 2;
+        }
+        return boxRadii;
+    }
+
+    private static void runInBands(ExecutorService executor, int bands, int lines,
+            final Pass pass) throws InterruptedException {
+        if (executor == null || bands <= 1) {
+            pass.run(0, lines);
+            return;
+        }
+
+        int linesPerBand = MathUtil.intDivideRoundUp(lines, bands);
+        List<Callable<Void>> tasks = new ArrayList<>(bands);
+        for (int start = 0; start < lines; start += linesPerBand) {
+            final int bandStart = start;
+            final int bandEnd = Math.min(lines, start + linesPerBand);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    pass.run(bandStart, bandEnd);
+                    return null;
+                }
+            });
+        }
+        for (Future<Void> future : executor.invokeAll(tasks)) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    private static int clampChannel(float value) {
+        return value <= 0 ? 0 : (value >= 255 ? 255 : (int) (value + 0.5f));
+    }
+
+    private interface Pass {
+        void run(int start, int end);
+    }
+
+    /**
+     * A box blur along each row in [start, end), clamping at the edges.
+     */
+    private static class HorizontalPass implements Pass {
+        private final int[] mSrc;
+        private final int[] mDst;
+        private final int mWidth;
+        private final int mRadius;
+
+        HorizontalPass(int[] src, int[] dst, int width, int radius) {
+            mSrc = src;
+            mDst = dst;
+            mWidth = width;
+            mRadius = radius;
+        }
+
+        @Override
+        public void run(int start, int end) {
+            for (int y = start; y < end; y++) {
+                blurLine(mSrc, mDst, y * mWidth, 1, mWidth, mRadius);
+            }
+        }
+    }
+
+    /**
+     * A box blur along each column in [start, end), clamping at the edges.
+     */
+    private static class VerticalPass implements Pass {
+        private final int[] mSrc;
+        private final int[] mDst;
+        private final int mWidth;
+        private final int mHeight;
+        private final int mRadius;
+
+        VerticalPass(int[] src, int[] dst, int width, int height, int radius) {
+            mSrc = src;
+            mDst = dst;
+            mWidth = width;
+            mHeight = height;
+            mRadius = radius;
+        }
+
+        @Override
+        public void run(int start, int end) {
+            for (int x = start; x < end; x++) {
+                blurLine(mSrc, mDst, x, mWidth, mHeight, mRadius);
+            }
+        }
+    }
+
+    /**
+     * Box blurs a single line of <code>length</code> pixels starting at <code>offset</code> and
+     * <code>stride</code> apart, using a running sum per channel.
+     */
+    private static void blurLine(int[] src, int[] dst, int offset, int stride, int length,
+            int radius) {
+        int divisor = 2 * radius + 1;
+        int half = divisor / 2;
+        int sumA = 0, sumR = 0, sumG = 0, sumB = 0;
+        for (int i = -radius; i <= radius; i++) {
+            int color = src[offset + Math.max(0, Math.min(length - 1, i)) * stride];
+            sumA += color >>> 24;
+            sumR += (color >> 16) & 0xff;
+            sumG += (color >> 8) & 0xff;
+            sumB += color & 0xff;
+        }
+        int last = length - 1;
+        for (int i = 0; i < length; i++) {
+            dst[offset + i * stride] = (((sumA + half) / divisor) << 24)
+                    | (((sumR + half) / divisor) << 16)
+                    | (((sumG + half) / divisor) << 8)
+                    | ((sumB + half) / divisor);
+            int removed = src[offset + Math.max(0, i - radius) * stride];
+            int added = src[offset + Math.min(last, i + radius + 1) * stride];
+            sumA += (added >>> 24) - (removed >>> 24);
+            sumR += ((added >> 16) & 0xff) - ((removed >> 16) & 0xff);
+            sumG += ((added >> 8) & 0xff) - ((removed >> 8) & 0xff);
+            sumB += (added & 0xff) - (removed & 0xff);
+        }
+    }
+
+    private BoxBlur() {
+    }
+}
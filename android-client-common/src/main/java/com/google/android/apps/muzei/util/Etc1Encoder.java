@@ -0,0 +1,265 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.util;
+
+/**
+ * Pure Java ETC1 texture compressor, producing data that can be uploaded with
+ * <code>glCompressedTexImage2D</code> using <code>GL_ETC1_RGB8_OES</code>. This has no Android
+ * dependencies so that it can be run and checked on a plain JVM.
+ *
+ * <p>Each 4x4 block is compressed to 8 bytes by trying both subblock orientations in both the
+ * individual and differential modes, and keeping whichever has the least error. Alpha is
+ * ignored, as ETC1 is an opaque format.
+ */
+public class Etc1Encoder {
+    public static final int ENCODED_BLOCK_SIZE = 8;
+
+    private static final int BLOCK_SIZE = 4;
+    private static final int PIXELS_PER_BLOCK = BLOCK_SIZE * BLOCK_SIZE;
+
+    private static final int[][] MODIFIER_TABLES = {
+            {2, 8},
+            {5, 17},
+            {9, 29},
+            {13, 42},
+            {18, 60},
+            {24, 80},
+            {33, 106},
+            {47, 183}
+    };
+
+    /**
+     * Returns the number of bytes needed to hold an encoded image of the given size.
+     */
+    public static int getEncodedDataSize(int width, int height) {
+        return MathUtil.intDivideRoundUp(width, BLOCK_SIZE)
+                * MathUtil.intDivideRoundUp(height, BLOCK_SIZE) * ENCODED_BLOCK_SIZE;
+    }
+
+    /**
+     * Encodes the given ARGB pixels. Blocks are written left to right, top to bottom, with
+     * edge pixels repeated to fill partial blocks.
+     */
+    public static byte[] encodeImage(int[] pixels, int width, int height) {
+        byte[] encoded = new byte[getEncodedDataSize(width, height)];
+        BlockEncoder blockEncoder = new BlockEncoder();
+        int[] block = new int[PIXELS_PER_BLOCK];
+        int offset = 0;
+        for (int by = 0; by < height; by += BLOCK_SIZE) {
+            for (int bx = 0; bx < width; bx += BLOCK_SIZE) {
+                for (int x = 0; x < BLOCK_SIZE; x++) {
+                    int sourceX = Math.min(bx + x, width - 1);
+                    for (int y = 0; y < BLOCK_SIZE; y++) {
+                        int sourceY = Math.min(by + y, height - 1);
+                        block[x * BLOCK_SIZE + y] = pixels[sourceY * width + sourceX];
+                    }
+                }
+                long encodedBlock = blockEncoder.encode(block);
+                for (int i = 0; i < ENCODED_BLOCK_SIZE; i++) {
+                    encoded[offset++] = (byte) (encodedBlock >>> (56 - 8 * i));
+                }
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * Encodes single blocks, reusing its working arrays between blocks. Pixels are given in
+     * column major order (<code>x * 4 + y</code>), which is the order ETC1 stores pixel
+     * indices in.
+     */
+    static class BlockEncoder {
+        private final float[] mAverage = new float[6];
+        private final int[] mBaseColors = new int[6];
+        private final int[] mTables = new int[2];
+        private final int[] mIndices = new int[PIXELS_PER_BLOCK];
+
+        long encode(int[] block) {
+            long bestBlock = 0;
+            long bestError = Long.MAX_VALUE;
+            for (int flip = 0; flip <= 1; flip++) {
+                averageSubblocks(block, flip == 1);
+
+                // Differential mode has more color precision, but can only be used if the two
+                // subblocks are close enough in color
+                boolean differentialValid = true;
+                for (int c = 0; c < 3; c++) {
+                    mBaseColors[c] = quantize(mAverage[c], 31);
+                    mBaseColors[c + 3] = quantize(mAverage[c + 3], 31);
+                    int delta = mBaseColors[c + 3] - mBaseColors[c];
+                    if (delta < -4 || delta > 3) {
+                        differentialValid = false;
+                    }
+                }
+                if (differentialValid) {
+                    long error = chooseModifiers(block, flip == 1, true);
+                    if (error < bestError) {
+                        bestError = error;
+                        bestBlock = pack(flip == 1, true);
+                    }
+                }
+
+                for (int c = 0; c < mBaseColors.length; c++) {
+                    mBaseColors[c] = quantize(mAverage[c], 15);
+                }
+                long error = chooseModifiers(block, flip == 1, false);
+                if (error < bestError) {
+                    bestError = error;
+                    bestBlock = pack(flip == 1, false);
+                }
+            }
+            return bestBlock;
+        }
+
+        private void averageSubblocks(int[] block, boolean flip) {
+            for (int c = 0; c < mAverage.length; c++) {
+                mAverage[c] = 0;
+            }
+            for (int i = 0; i < PIXELS_PER_BLOCK; i++) {
+                int offset = getSubblock(i, flip) * 3;
+                int color = block[i];
+                mAverage[offset] += (color >> 16) & 0xff;
+                mAverage[offset + 1] += (color >> 8) & 0xff;
+                mAverage[offset + 2] += color & 0xff;
+            }
+            for (int c = 0; c < mAverage.length; c++) {
+                mAverage[c] /= PIXELS_PER_BLOCK / 2;
+            }
+        }
+
+        /**
+         * Picks the modifier table for each subblock and the modifier for each pixel that best
+         * match the block, given the current base colors.
+         *
+         * @return the total squared error of the resulting block
+         */
+        private long chooseModifiers(int[] block, boolean flip, boolean differential) {
+            long totalError = 0;
+            for (int subblock = 0; subblock < 2; subblock++) {
+                int r = expand(mBaseColors[subblock * 3], differential);
+                int g = expand(mBaseColors[subblock * 3 + 1], differential);
+                int b = expand(mBaseColors[subblock * 3 + 2], differential);
+                long bestError = Long.MAX_VALUE;
+                for (int table = 0; table < MODIFIER_TABLES.length; table++) {
+                    long error = 0;
+                    for (int i = 0; i < PIXELS_PER_BLOCK && error < bestError; i++) {
+                        if (getSubblock(i, flip) == subblock) {
+                            error += chooseModifier(block[i], r, g, b, table, i, false);
+                        }
+                    }
+                    if (error < bestError) {
+                        bestError = error;
+                        mTables[subblock] = table;
+                    }
+                }
+                for (int i = 0; i < PIXELS_PER_BLOCK; i++) {
+                    if (getSubblock(i, flip) == subblock) {
+                        chooseModifier(block[i], r, g, b, mTables[subblock], i, true);
+                    }
+                }
+                totalError += bestError;
+            }
+            return totalError;
+        }
+
+        /**
+         * Finds the modifier from the given table that brings the base color closest to the
+         * pixel, optionally storing its index.
+         *
+         * @return the squared error using that modifier
+         */
+        private long chooseModifier(int color, int r, int g, int b, int table, int pixel,
+                boolean storeIndex) {
+            int pixelR = (color >> 16) & 0xff;
+            int pixelG = (color >> 8) & 0xff;
+            int pixelB = color & 0xff;
+            long bestError = Long.MAX_VALUE;
+            int bestIndex = 0;
+            for (int index = 0; index < 4; index++) {
+                int modifier = getModifier(table, index);
+                int dr = clamp(r + modifier) - pixelR;
+                int dg = clamp(g + modifier) - pixelG;
+                int db = clamp(b + modifier) - pixelB;
+                long error = dr * dr + dg * dg + db * db;
+                if (error < bestError) {
+                    bestError = error;
+                    bestIndex = index;
+                }
+            }
+            if (storeIndex) {
+                mIndices[pixel] = bestIndex;
+            }
+            return bestError;
+        }
+
+        private long pack(boolean flip, boolean differential) {
+            long packed = 0;
+            for (int c = 0; c < 3; c++) {
+                int shift = 56 - 8 * c;
+                if (differential) {
+                    int delta = mBaseColors[c + 3] - mBaseColors[c];
+                    packed |= (long) ((mBaseColors[c] << 3) | (delta & 0x7)) << shift;
+                } else {
+                    packed |= (long) ((mBaseColors[c] << 4) | mBaseColors[c + 3]) << shift;
+                }
+            }
+            packed |= (long) mTables[0] << 37;
+            packed |= (long) mTables[1] << 34;
+            packed |= (differential ? 1L : 0L) << 33;
+            packed |= (flip ? 1L : 0L) << 32;
+            for (int i = 0; i < PIXELS_PER_BLOCK; i++) {
+                packed |= (long) (mIndices[i] >> 1) << (16 + i);
+                packed |= (long) (mIndices[i] & 1) << i;
+            }
+            return packed;
+        }
+    }
+
+    /**
+     * Returns which subblock the pixel at the given column major index belongs to. Unflipped
+     * subblocks are the left and right halves; flipped subblocks are the top and bottom.
+     */
+    private static int getSubblock(int pixel, boolean flip) {
+        int x = pixel / BLOCK_SIZE;
+        int y = pixel % BLOCK_SIZE;
+        return (flip ? y : x) < 2 ? 0 : 1;
+    }
+
+    /**
+     * Returns the modifier for the given pixel index, where indices 0 and 1 are the small and
+     * large positive modifiers and 2 and 3 are their negatives.
+     */
+    private static int getModifier(int table, int index) {
+        int modifier = MODIFIER_TABLES[table][index & 1];
+        return index < 2 ? modifier : -modifier;
+    }
+
+    private static int quantize(float value, int max) {
+        return Math.round(MathUtil.constrain(0, max, value * max / 255f));
+    }
+
+    private static int expand(int value, boolean fiveBits) {
+        return fiveBits ? (value << 3) | (value >> 2) : (value << 4) | value;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    private Etc1Encoder() {
+    }
+}
@@ -18,88 +18,57 @@ package com.google.android.apps.muzei.util;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.renderscript.Allocation;
-import android.renderscript.Element;
-import android.renderscript.Matrix3f;
-import android.renderscript.RenderScript;
-import android.renderscript.ScriptIntrinsicBlur;
-import android.renderscript.ScriptIntrinsicColorMatrix;
+import android.support.annotation.IntDef;
 
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Blurs and desaturates a source bitmap using a pluggable {@link BlurEngine}.
+ */
 public class ImageBlurrer {
     public static final int MAX_SUPPORTED_BLUR_PIXELS = 25;
 
-    private final RenderScript mRS;
-    private final ScriptIntrinsicBlur mSIBlur;
-    private final ScriptIntrinsicColorMatrix mSIGrey;
-    private final Bitmap mSourceBitmap;
-    private final Allocation mAllocationSrc;
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({ENGINE_RENDERSCRIPT, ENGINE_JAVA})
+    public @interface Engine {}
+    /**
+     * Blur using RenderScript intrinsics.
+     */
+    public static final int ENGINE_RENDERSCRIPT = 0;
+    /**
+     * Blur using a multi-threaded pure Java approximation, avoiding the cost of creating a
+     * RenderScript context.
+     */
+    public static final int ENGINE_JAVA = 1;
 
-    public ImageBlurrer(Context context, Bitmap src) {
-        mRS = RenderScript.create(context);
-        mSIBlur = ScriptIntrinsicBlur.create(mRS, Element.U8_4(mRS));
-        mSIGrey = ScriptIntrinsicColorMatrix.create(mRS);
+    private final BlurEngine mEngine;
 
-        mSourceBitmap = src;
-        mAllocationSrc = src != null ? Allocation.createFromBitmap(mRS, src) : null;
+    public ImageBlurrer(Context context, Bitmap src) {
+        this(context, src, ENGINE_RENDERSCRIPT);
     }
 
-    public Bitmap blurBitmap(float radius, float desaturateAmount) {
-        if (mSourceBitmap == null) {
-            return null;
-        }
-
-        Bitmap dest = mSourceBitmap.copy(mSourceBitmap.getConfig(), true);
-        if (radius == 0f && desaturateAmount == 0f) {
-            return dest;
-        }
-
-        Allocation allocationDest = Allocation.createFromBitmap(mRS, dest);
-
-        if (radius > 0f && desaturateAmount > 0f) {
-            doBlur(radius, mAllocationSrc, allocationDest);
-            doDesaturate(MathUtil.constrain(0, 1, desaturateAmount), allocationDest, mAllocationSrc);
-            mAllocationSrc.copyTo(dest);
-        } else if (radius > 0f) {
-            doBlur(radius, mAllocationSrc, allocationDest);
-            allocationDest.copyTo(dest);
+    public ImageBlurrer(Context context, Bitmap src, @Engine int engine) {
+        if (src == null) {
+            mEngine = null;
+        } else if (engine == ENGINE_JAVA) {
+            mEngine = new JavaBlurEngine(src);
         } else {
-            doDesaturate(MathUtil.constrain(0, 1, desaturateAmount), mAllocationSrc, allocationDest);
-            allocationDest.copyTo(dest);
+            mEngine = new RenderScriptBlurEngine(context, src);
         }
-        allocationDest.destroy();
-        return dest;
-    }
-
-    private void doBlur(float amount, Allocation input, Allocation output) {
-        mSIBlur.setRadius(amount);
-        mSIBlur.setInput(input);
-        mSIBlur.forEach(output);
     }
 
-    private void doDesaturate(float normalizedAmount, Allocation input, Allocation output) {
-        Matrix3f m = new Matrix3f(new float[]{
-                MathUtil.interpolate(1, 0.299f, normalizedAmount),
-                MathUtil.interpolate(0, 0.299f, normalizedAmount),
-                MathUtil.interpolate(0, 0.299f, normalizedAmount),
-
-                MathUtil.interpolate(0, 0.587f, normalizedAmount),
-                MathUtil.interpolate(1, 0.587f, normalizedAmount),
-                MathUtil.interpolate(0, 0.587f, normalizedAmount),
+    public Bitmap blurBitmap(float radius, float desaturateAmount) {
+        if (mEngine == null) {
+            return null;
+        }
 
-                MathUtil.interpolate(0, 0.114f, normalizedAmount),
-                MathUtil.interpolate(0, 0.114f, normalizedAmount),
-                MathUtil.interpolate(1, 0.114f, normalizedAmount),
-        });
-        mSIGrey.setColorMatrix(m);
-        mSIGrey.forEach(input, output);
+        return mEngine.blurBitmap(radius, desaturateAmount);
     }
 
     public void destroy() {
-        mSIBlur.destroy();
-        mSIGrey.destroy();
-        if (mAllocationSrc != null) {
-            mAllocationSrc.destroy();
+        if (mEngine != null) {
+            mEngine.destroy();
         }
-        mRS.destroy();
     }
 }
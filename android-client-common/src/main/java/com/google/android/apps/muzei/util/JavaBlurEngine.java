@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.util;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * {@link BlurEngine} that runs {@link BoxBlur} on the CPU, splitting each pass across a shared
+ * pool of threads. Unlike {@link RenderScriptBlurEngine}, this has no per-instance setup cost.
+ */
+class JavaBlurEngine implements BlurEngine {
+    private static final String TAG = "JavaBlurEngine";
+
+    private static final int BANDS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static ExecutorService sExecutorService;
+
+    private final Bitmap mSourceBitmap;
+    private final int[] mSourcePixels;
+
+    private static synchronized ExecutorService getExecutorService() {
+        if (sExecutorService == null) {
+            sExecutorService = Executors.newFixedThreadPool(BANDS);
+        }
+        return sExecutorService;
+    }
+
+    JavaBlurEngine(Bitmap src) {
+        mSourceBitmap = src;
+        int width = src.getWidth();
+        int height = src.getHeight();
+        mSourcePixels = new int[width * height];
+        src.getPixels(mSourcePixels, 0, width, 0, 0, width, height);
+    }
+
+    @Override
+    public Bitmap blurBitmap(float radius, float desaturateAmount) {
+        Bitmap dest = mSourceBitmap.copy(mSourceBitmap.getConfig(), true);
+        if (radius == 0f && desaturateAmount == 0f) {
+            return dest;
+        }
+
+        int width = dest.getWidth();
+        int height = dest.getHeight();
+        int[] pixels = mSourcePixels.clone();
+        if (radius > 0f) {
+            try {
+                BoxBlur.blur(pixels, width, height, radius, getExecutorService(), BANDS);
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted while blurring", e);
+                Thread.currentThread().interrupt();
+                return dest;
+            }
+        }
+        if (desaturateAmount > 0f) {
+            BoxBlur.desaturate(pixels, desaturateAmount);
+        }
+        dest.setPixels(pixels, 0, width, 0, 0, width, height);
+        return dest;
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
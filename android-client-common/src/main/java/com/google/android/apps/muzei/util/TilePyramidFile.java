@@ -0,0 +1,287 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Container for a multi-resolution tile pyramid of an image, so that any level and region of
+ * the image can be read without decoding the whole of it. This only uses plain Java I/O so that
+ * files can be written, read back and benchmarked off-device.
+ *
+ * <p>Level 0 is the full image and each following level halves its width and height, down to
+ * the first level that fits within a single tile. Each level is split into fixed size tiles,
+ * top row first, left to right, with smaller tiles along the right and bottom edges. Tiles are
+ * stored as opaque encoded images, such as JPEGs.
+ *
+ * <p>The format is a header of big endian values (int magic, int version, int image width and
+ * height, int tile size, int level count, long index offset) followed by the tile data and
+ * then the index, which holds a long offset and int length for every tile of every level, in
+ * level and tile order. Tiles that were never written have a length of 0.
+ */
+public class TilePyramidFile implements Closeable {
+    private static final int MAGIC = 0x4d545031; // MTP1
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int INDEX_OFFSET_POSITION = 24;
+    private static final int INDEX_ENTRY_SIZE = 12;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mTileSize;
+    private final int mLevelCount;
+    private final long[][] mTileOffsets;
+    private final int[][] mTileLengths;
+    private final RandomAccessFile mFile;
+
+    /**
+     * Returns the number of levels a pyramid of an image of the given size has.
+     */
+    public static int getLevelCount(int width, int height, int tileSize) {
+        int levelCount = 1;
+        while (Math.max(width >> (levelCount - 1), height >> (levelCount - 1)) > tileSize) {
+            levelCount++;
+        }
+        return levelCount;
+    }
+
+    private TilePyramidFile(int width, int height, int tileSize, RandomAccessFile file) {
+        mWidth = width;
+        mHeight = height;
+        mTileSize = tileSize;
+        mLevelCount = getLevelCount(width, height, tileSize);
+        mTileOffsets = new long[mLevelCount][];
+        mTileLengths = new int[mLevelCount][];
+        for (int level = 0; level < mLevelCount; level++) {
+            int tileCount = getCols(level) * getRows(level);
+            mTileOffsets[level] = new long[tileCount];
+            mTileLengths[level] = new int[tileCount];
+        }
+        mFile = file;
+    }
+
+    /**
+     * Opens a pyramid file for reading. Tiles may then be read from any number of threads.
+     */
+    public static TilePyramidFile open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            if (randomAccessFile.readInt() != MAGIC || randomAccessFile.readInt() != VERSION) {
+                throw new IOException("Unknown tile pyramid format");
+            }
+            int width = randomAccessFile.readInt();
+            int height = randomAccessFile.readInt();
+            int tileSize = randomAccessFile.readInt();
+            int levelCount = randomAccessFile.readInt();
+            long indexOffset = randomAccessFile.readLong();
+            if (width <= 0 || height <= 0 || tileSize <= 0
+                    || levelCount != getLevelCount(width, height, tileSize)
+                    || indexOffset < HEADER_SIZE) {
+                throw new IOException("Invalid tile pyramid header");
+            }
+            // Check that the index exactly fills the rest of the file before allocating
+            // anything sized by the header
+            long indexEntries = 0;
+            for (int level = 0; level < levelCount; level++) {
+                long cols = ((long) Math.max(1, width >> level) + tileSize - 1) / tileSize;
+                long rows = ((long) Math.max(1, height >> level) + tileSize - 1) / tileSize;
+                indexEntries += cols * rows;
+                if (indexEntries > (randomAccessFile.length() - indexOffset) / INDEX_ENTRY_SIZE) {
+                    break;
+                }
+            }
+            long indexSize = indexEntries * INDEX_ENTRY_SIZE;
+            if (indexOffset + indexSize != randomAccessFile.length()) {
+                throw new IOException("Invalid tile pyramid index size");
+            }
+
+            TilePyramidFile pyramid = new TilePyramidFile(width, height, tileSize,
+                    randomAccessFile);
+            byte[] index = new byte[(int) indexSize];
+            randomAccessFile.seek(indexOffset);
+            randomAccessFile.readFully(index);
+            ByteBuffer indexBuffer = ByteBuffer.wrap(index);
+            for (int level = 0; level < levelCount; level++) {
+                for (int i = 0; i < pyramid.mTileOffsets[level].length; i++) {
+                    long offset = indexBuffer.getLong();
+                    int length = indexBuffer.getInt();
+                    if (length < 0 || offset < HEADER_SIZE || offset + length > indexOffset) {
+                        throw new IOException("Invalid index entry for tile " + i
+                                + " of level " + level);
+                    }
+                    pyramid.mTileOffsets[level][i] = offset;
+                    pyramid.mTileLengths[level][i] = length;
+                }
+            }
+            return pyramid;
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the width of the full image.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Returns the height of the full image.
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getTileSize() {
+        return mTileSize;
+    }
+
+    public int getLevelCount() {
+        return mLevelCount;
+    }
+
+    public int getWidth(int level) {
+        return Math.max(1, mWidth >> level);
+    }
+
+    public int getHeight(int level) {
+        return Math.max(1, mHeight >> level);
+    }
+
+    public int getCols(int level) {
+        return MathUtil.intDivideRoundUp(getWidth(level), mTileSize);
+    }
+
+    public int getRows(int level) {
+        return MathUtil.intDivideRoundUp(getHeight(level), mTileSize);
+    }
+
+    /**
+     * Returns the level to read from to produce the image at the given sample size: the
+     * coarsest level whose own sample size is no larger than it.
+     */
+    public int getLevelForSampleSize(int sampleSize) {
+        int level = 0;
+        while (level + 1 < mLevelCount && (1 << (level + 1)) <= sampleSize) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Reads the encoded data of a tile with a positioned read, returning null if the tile
+     * was never written.
+     */
+    public byte[] readTile(int level, int col, int row) throws IOException {
+        int index = row * getCols(level) + col;
+        int length = mTileLengths[level][index];
+        if (length == 0) {
+            return null;
+        }
+        byte[] data = new byte[length];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        FileChannel channel = mFile.getChannel();
+        long position = mTileOffsets[level][index];
+        while (buffer.hasRemaining()) {
+            int bytes = channel.read(buffer, position + buffer.position());
+            if (bytes < 0) {
+                throw new IOException("Unexpected end of tile pyramid");
+            }
+        }
+        return data;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    /**
+     * Writes a new pyramid file. Tiles may be written in any order, but each at most once, and
+     * the file is only valid once the writer has been closed.
+     */
+    public static class Writer implements Closeable {
+        private final TilePyramidFile mPyramid;
+        private final RandomAccessFile mFile;
+        private long mDataEnd = HEADER_SIZE;
+
+        public Writer(File file, int width, int height, int tileSize) throws IOException {
+            mFile = new RandomAccessFile(file, "rw");
+            mFile.setLength(0);
+            mPyramid = new TilePyramidFile(width, height, tileSize, mFile);
+            mFile.writeInt(MAGIC);
+            mFile.writeInt(VERSION);
+            mFile.writeInt(width);
+            mFile.writeInt(height);
+            mFile.writeInt(tileSize);
+            mFile.writeInt(mPyramid.mLevelCount);
+            mFile.writeLong(0); // index offset, written on close
+        }
+
+        public TilePyramidFile getPyramid() {
+            return mPyramid;
+        }
+
+        public void writeTile(int level, int col, int row, byte[] data) throws IOException {
+            int index = row * mPyramid.getCols(level) + col;
+            if (mPyramid.mTileLengths[level][index] != 0) {
+                throw new IOException("Tile " + index + " of level " + level
+                        + " was already written");
+            }
+            mFile.seek(mDataEnd);
+            mFile.write(data);
+            mPyramid.mTileOffsets[level][index] = mDataEnd;
+            mPyramid.mTileLengths[level][index] = data.length;
+            mDataEnd += data.length;
+        }
+
+        /**
+         * Writes the index and closes the file.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                ByteBuffer index = ByteBuffer.allocate(INDEX_ENTRY_SIZE * 1024);
+                mFile.seek(mDataEnd);
+                for (int level = 0; level < mPyramid.mLevelCount; level++) {
+                    for (int i = 0; i < mPyramid.mTileOffsets[level].length; i++) {
+                        if (!index.hasRemaining()) {
+                            mFile.write(index.array(), 0, index.position());
+                            index.clear();
+                        }
+                        // Unwritten tiles still need an offset within the file to be valid
+                        index.putLong(mPyramid.mTileLengths[level][i] != 0
+                                ? mPyramid.mTileOffsets[level][i] : HEADER_SIZE);
+                        index.putInt(mPyramid.mTileLengths[level][i]);
+                    }
+                }
+                mFile.write(index.array(), 0, index.position());
+                mFile.seek(INDEX_OFFSET_POSITION);
+                mFile.writeLong(mDataEnd);
+            } finally {
+                mFile.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.sync;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Okio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class ResumableDownloadTest {
+    private static final String ETAG = "\"v1\"";
+
+    private final byte[] mBody = randomBytes(3 * ContentHash.PREFIX_LENGTH, 1);
+
+    private MockWebServer mServer;
+    private String mUrl;
+    private File mPartialFile;
+    private ResumableDownload mDownload;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new MockWebServer();
+        mServer.start();
+        mUrl = mServer.url("/artwork.jpg").toString();
+        mPartialFile = File.createTempFile("download", ".partial");
+        ResumableDownload.delete(mPartialFile);
+        mDownload = new ResumableDownload(new OkHttpClient(), mPartialFile);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        ResumableDownload.delete(mPartialFile);
+        mServer.shutdown();
+    }
+
+    @Test
+    public void downloadsWholeResponse() throws Exception {
+        mServer.enqueue(fullResponse(mBody, ETAG));
+
+        assertEquals(0, mDownload.download(mUrl));
+
+        assertDownloaded(mBody, ETAG);
+        RecordedRequest request = mServer.takeRequest();
+        assertNull(request.getHeader("Range"));
+        assertNull(request.getHeader("If-Range"));
+    }
+
+    @Test
+    public void resumesWithRange() throws Exception {
+        downloadThenTruncate(1000);
+        mServer.enqueue(partialResponse(1000, mBody));
+
+        assertEquals(1000, mDownload.download(mUrl));
+
+        assertDownloaded(mBody, ETAG);
+        RecordedRequest request = takeLastRequest();
+        assertEquals("bytes=1000-", request.getHeader("Range"));
+        assertEquals(ETAG, request.getHeader("If-Range"));
+    }
+
+    @Test
+    public void wrongContentRangeStartDiscardsPartialFile() throws Exception {
+        downloadThenTruncate(1000);
+        mServer.enqueue(partialResponse(500, mBody));
+
+        try {
+            mDownload.download(mUrl);
+            fail("Appended a range that doesn't start at the end of the partial file");
+        } catch (IOException expected) {
+            // Expected
+        }
+        assertFalse(mPartialFile.exists());
+        assertFalse(new File(mPartialFile.getPath() + ".meta").exists());
+    }
+
+    @Test
+    public void fullResponseAfterIfRangeRestarts() throws Exception {
+        downloadThenTruncate(1000);
+        // The artwork changed, so the server ignores the Range and sends all of it
+        byte[] newBody = randomBytes(mBody.length / 2, 2);
+        mServer.enqueue(fullResponse(newBody, "\"v2\""));
+
+        assertEquals(0, mDownload.download(mUrl));
+
+        assertDownloaded(newBody, "\"v2\"");
+        assertEquals(ETAG, takeLastRequest().getHeader("If-Range"));
+    }
+
+    @Test
+    public void rangeNotSatisfiableDiscardsPartialFile() throws Exception {
+        downloadThenTruncate(1000);
+        mServer.enqueue(new MockResponse().setResponseCode(416));
+
+        try {
+            mDownload.download(mUrl);
+            fail("Ignored a 416 response");
+        } catch (IOException expected) {
+            // Expected
+        }
+        assertFalse(mPartialFile.exists());
+
+        // The next attempt starts over rather than asking for the same range again
+        mServer.enqueue(fullResponse(mBody, ETAG));
+        assertEquals(0, mDownload.download(mUrl));
+        assertDownloaded(mBody, ETAG);
+        assertNull(takeLastRequest().getHeader("Range"));
+    }
+
+    @Test
+    public void completePartialFileSkipsRequest() throws Exception {
+        mServer.enqueue(fullResponse(mBody, ETAG));
+        mDownload.download(mUrl);
+
+        assertEquals(mBody.length, mDownload.download(mUrl));
+
+        assertDownloaded(mBody, ETAG);
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void chunkedResponse() throws Exception {
+        mDownload.setDuplicateChecker(new ResumableDownload.DuplicateChecker() {
+            @Override
+            public String findDuplicate(String validator, long contentLength,
+                    String prefixHash) {
+                fail("Checked a response of unknown length for duplicates");
+                return null;
+            }
+        });
+        mServer.enqueue(new MockResponse()
+                .setHeader("ETag", ETAG)
+                .setChunkedBody(new Buffer().write(mBody), 4096));
+
+        assertEquals(0, mDownload.download(mUrl));
+
+        assertDownloaded(mBody, ETAG);
+
+        // With no known length, a later attempt can't tell the file is complete and resumes
+        mServer.enqueue(new MockResponse().setResponseCode(416));
+        try {
+            mDownload.download(mUrl);
+            fail("Ignored a 416 response");
+        } catch (IOException expected) {
+            // Expected
+        }
+        assertEquals("bytes=" + mBody.length + "-", takeLastRequest().getHeader("Range"));
+    }
+
+    @Test
+    public void duplicatePrefixStopsDownload() throws Exception {
+        final String expectedPrefixHash = ContentHash.hash(
+                Arrays.copyOf(mBody, ContentHash.PREFIX_LENGTH));
+        mDownload.setDuplicateChecker(new ResumableDownload.DuplicateChecker() {
+            @Override
+            public String findDuplicate(String validator, long contentLength,
+                    String prefixHash) {
+                assertEquals(ETAG, validator);
+                assertEquals(mBody.length, contentLength);
+                return expectedPrefixHash.equals(prefixHash) ? "stored" : null;
+            }
+        });
+        mServer.enqueue(fullResponse(mBody, ETAG));
+
+        assertEquals(0, mDownload.download(mUrl));
+
+        assertEquals("stored", mDownload.getDuplicateContentId());
+        assertNull(mDownload.getContentHash());
+        assertFalse(mPartialFile.exists());
+        assertFalse(new File(mPartialFile.getPath() + ".meta").exists());
+    }
+
+    @Test
+    public void differentPrefixContinuesDownload() throws Exception {
+        mDownload.setDuplicateChecker(new ResumableDownload.DuplicateChecker() {
+            @Override
+            public String findDuplicate(String validator, long contentLength,
+                    String prefixHash) {
+                return null;
+            }
+        });
+        mServer.enqueue(fullResponse(mBody, ETAG));
+
+        assertEquals(0, mDownload.download(mUrl));
+
+        assertNull(mDownload.getDuplicateContentId());
+        assertDownloaded(mBody, ETAG);
+    }
+
+    /**
+     * Leaves a partial file of the given length behind, as an interrupted download would.
+     */
+    private void downloadThenTruncate(int length) throws Exception {
+        mServer.enqueue(fullResponse(mBody, ETAG));
+        mDownload.download(mUrl);
+        RandomAccessFile file = new RandomAccessFile(mPartialFile, "rw");
+        try {
+            file.setLength(length);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Takes every request the server has received and returns the last of them.
+     */
+    private RecordedRequest takeLastRequest() throws InterruptedException {
+        RecordedRequest request = null;
+        for (int i = mServer.getRequestCount(); i > 0; i--) {
+            request = mServer.takeRequest();
+        }
+        return request;
+    }
+
+    private void assertDownloaded(byte[] body, String validator) throws IOException {
+        try (BufferedSource source = Okio.buffer(Okio.source(mPartialFile))) {
+            assertArrayEquals(body, source.readByteArray());
+        }
+        assertEquals(ContentHash.hash(body), mDownload.getContentHash());
+        assertEquals(validator, mDownload.getValidator());
+        assertNull(mDownload.getDuplicateContentId());
+    }
+
+    private static MockResponse fullResponse(byte[] body, String etag) {
+        return new MockResponse()
+                .setHeader("ETag", etag)
+                .setBody(new Buffer().write(body));
+    }
+
+    private static MockResponse partialResponse(int start, byte[] body) {
+        return new MockResponse()
+                .setResponseCode(206)
+                .setHeader("ETag", ETAG)
+                .setHeader("Content-Range", "bytes " + start + "-" + (body.length - 1)
+                        + "/" + body.length)
+                .setBody(new Buffer().write(body, start, body.length - start));
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares {@link BoxBlur} against a direct gaussian convolution with the kernel that
+ * <code>ScriptIntrinsicBlur</code> uses, followed by the same desaturation color matrix that
+ * {@link RenderScriptBlurEngine} applies.
+ */
+public class BoxBlurTest {
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+
+    /**
+     * The largest difference allowed in any channel of any pixel. Three box passes only
+     * approximate a gaussian, so this is looser than rounding error alone.
+     */
+    private static final int MAX_CHANNEL_ERROR = 12;
+
+    /**
+     * The largest mean absolute difference allowed per channel across the whole image.
+     */
+    private static final double MAX_MEAN_CHANNEL_ERROR = 1.5;
+
+    @Test
+    public void minRadius() throws InterruptedException {
+        assertMatchesGaussian(1, 0);
+    }
+
+    @Test
+    public void minRadiusDesaturated() throws InterruptedException {
+        assertMatchesGaussian(1, 0.5f);
+    }
+
+    @Test
+    public void midRadius() throws InterruptedException {
+        assertMatchesGaussian(12, 0);
+    }
+
+    @Test
+    public void midRadiusDesaturated() throws InterruptedException {
+        assertMatchesGaussian(12, 0.5f);
+    }
+
+    @Test
+    public void maxRadius() throws InterruptedException {
+        assertMatchesGaussian(ImageBlurrer.MAX_SUPPORTED_BLUR_PIXELS, 0);
+    }
+
+    @Test
+    public void maxRadiusDesaturated() throws InterruptedException {
+        assertMatchesGaussian(ImageBlurrer.MAX_SUPPORTED_BLUR_PIXELS, 1);
+    }
+
+    private static void assertMatchesGaussian(float radius, float desaturateAmount)
+            throws InterruptedException {
+        int[] source = createTestImage();
+
+        int[] actual = source.clone();
+        BoxBlur.blur(actual, WIDTH, HEIGHT, radius, null, 1);
+        BoxBlur.desaturate(actual, desaturateAmount);
+
+        int[] expected = gaussianBlur(source, radius);
+        desaturate(expected, desaturateAmount);
+
+        int maxError = 0;
+        long totalError = 0;
+        for (int i = 0; i < source.length; i++) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                int error = Math.abs(((actual[i] >>> shift) & 0xff)
+                        - ((expected[i] >>> shift) & 0xff));
+                maxError = Math.max(maxError, error);
+                totalError += error;
+            }
+        }
+        double meanError = (double) totalError / (source.length * 4);
+        String description = "radius=" + radius + " desaturate=" + desaturateAmount
+                + " maxError=" + maxError + " meanError=" + meanError;
+        assertTrue(description, maxError <= MAX_CHANNEL_ERROR);
+        assertTrue(description, meanError <= MAX_MEAN_CHANNEL_ERROR);
+    }
+
+    /**
+     * Creates an opaque image with smooth gradients, hard edges and some noise, similar in
+     * character to the artwork that gets blurred.
+     */
+    private static int[] createTestImage() {
+        Random random = new Random(0);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int r = x * 255 / (WIDTH - 1);
+                int g = y * 255 / (HEIGHT - 1);
+                int b = ((x / 20 + y / 20) % 2 == 0) ? 224 : 32;
+                r = clamp(r + random.nextInt(33) - 16);
+                g = clamp(g + random.nextInt(33) - 16);
+                pixels[y * WIDTH + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * A separable gaussian blur with clamped edges, using the same sigma and kernel size as
+     * <code>ScriptIntrinsicBlur</code>.
+     */
+    private static int[] gaussianBlur(int[] pixels, float radius) {
+        float sigma = 0.4f * radius + 0.6f;
+        int kernelRadius = (int) Math.ceil(radius);
+        double[] weights = new double[2 * kernelRadius + 1];
+        double total = 0;
+        for (int i = -kernelRadius; i <= kernelRadius; i++) {
+            weights[i + kernelRadius] = Math.exp(-(i * i) / (2.0 * sigma * sigma));
+            total += weights[i + kernelRadius];
+        }
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] /= total;
+        }
+
+        double[][] horizontal = new double[4][pixels.length];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                for (int k = -kernelRadius; k <= kernelRadius; k++) {
+                    int color = pixels[y * WIDTH + clampIndex(x + k, WIDTH)];
+                    for (int c = 0; c < 4; c++) {
+                        horizontal[c][y * WIDTH + x] += weights[k + kernelRadius]
+                                * ((color >>> (c * 8)) & 0xff);
+                    }
+                }
+            }
+        }
+
+        int[] result = new int[pixels.length];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int color = 0;
+                for (int c = 0; c < 4; c++) {
+                    double sum = 0;
+                    for (int k = -kernelRadius; k <= kernelRadius; k++) {
+                        sum += weights[k + kernelRadius]
+                                * horizontal[c][clampIndex(y + k, HEIGHT) * WIDTH + x];
+                    }
+                    color |= clamp((int) Math.round(sum)) << (c * 8);
+                }
+                result[y * WIDTH + x] = color;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Applies the luminance color matrix that {@link RenderScriptBlurEngine} uses.
+     */
+    private static void desaturate(int[] pixels, float amount) {
+        if (amount == 0) {
+            return;
+        }
+        double lr = 0.299 * amount;
+        double lg = 0.587 * amount;
+        double lb = 0.114 * amount;
+        for (int i = 0; i < pixels.length; i++) {
+            int color = pixels[i];
+            int r = (color >> 16) & 0xff;
+            int g = (color >> 8) & 0xff;
+            int b = color & 0xff;
+            double luminance = lr * r + lg * g + lb * b;
+            pixels[i] = (color & 0xff000000)
+                    | (clamp((int) Math.round((1 - amount) * r + luminance)) << 16)
+                    | (clamp((int) Math.round((1 - amount) * g + luminance)) << 8)
+                    | clamp((int) Math.round((1 - amount) * b + luminance));
+        }
+    }
+
+    private static int clampIndex(int index, int length) {
+        return Math.max(0, Math.min(length - 1, index));
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link Etc1Encoder} output against blocks worked out by hand from the
+ * <code>OES_compressed_ETC1_RGB8_texture</code> specification, and checks the quality of
+ * encoded images with an independent decoder written from the same specification.
+ */
+public class Etc1EncoderTest {
+    private static final int BLACK = 0xff000000;
+    private static final int WHITE = 0xffffffff;
+
+    private static final int[][] DECODE_MODIFIER_TABLES = {
+            {2, 8, -2, -8},
+            {5, 17, -5, -17},
+            {9, 29, -9, -29},
+            {13, 42, -13, -42},
+            {18, 60, -18, -60},
+            {24, 80, -24, -80},
+            {33, 106, -33, -106},
+            {47, 183, -47, -183}
+    };
+
+    @Test
+    public void encodedDataSize() {
+        assertEquals(8, Etc1Encoder.getEncodedDataSize(4, 4));
+        assertEquals(8, Etc1Encoder.getEncodedDataSize(1, 1));
+        assertEquals(32, Etc1Encoder.getEncodedDataSize(8, 8));
+        assertEquals(48, Etc1Encoder.getEncodedDataSize(9, 5));
+    }
+
+    @Test
+    public void solidBlack() {
+        // Differential mode, zero base and delta, table 0, every pixel using the -2 modifier
+        assertBlockEncodesTo(solidBlock(BLACK),
+                0x00, 0x00, 0x00, 0x02, 0xff, 0xff, 0x00, 0x00);
+    }
+
+    @Test
+    public void solidWhite() {
+        // Differential mode, base 31 (255) and zero delta, table 0, every pixel using +2
+        assertBlockEncodesTo(solidBlock(WHITE),
+                0xf8, 0xf8, 0xf8, 0x02, 0x00, 0x00, 0x00, 0x00);
+    }
+
+    @Test
+    public void solidGrey() {
+        // 134 is the 5 bit base 16 (132) plus the smallest modifier, so it is exact
+        assertBlockEncodesTo(solidBlock(0xff868686),
+                0x80, 0x80, 0x80, 0x02, 0x00, 0x00, 0x00, 0x00);
+    }
+
+    @Test
+    public void leftRightHalves() {
+        // Too far apart for differential mode: individual mode with bases 0 and 15, unflipped
+        int[] block = new int[16];
+        for (int i = 0; i < 16; i++) {
+            block[i] = (i / 4) < 2 ? BLACK : WHITE;
+        }
+        assertBlockEncodesTo(block,
+                0x0f, 0x0f, 0x0f, 0x00, 0x00, 0xff, 0x00, 0x00);
+    }
+
+    @Test
+    public void topBottomHalves() {
+        // Either a flipped block or table 7's +-183 modifiers around a mid grey base give an
+        // exact result, so only check that it decodes exactly
+        int[] pixels = new int[16];
+        for (int i = 0; i < 16; i++) {
+            pixels[i] = i < 8 ? BLACK : WHITE;
+        }
+        assertArrayEquals(pixels, decodeImage(Etc1Encoder.encodeImage(pixels, 4, 4), 4, 4));
+    }
+
+    @Test
+    public void handEncodedBlocksDecode() {
+        // Sanity check the reference decoder against the hand encoded blocks above
+        assertArrayEquals(solidBlock(BLACK),
+                decodeImage(bytes(0x00, 0x00, 0x00, 0x02, 0xff, 0xff, 0x00, 0x00), 4, 4));
+        assertArrayEquals(solidBlock(WHITE),
+                decodeImage(bytes(0xf8, 0xf8, 0xf8, 0x02, 0x00, 0x00, 0x00, 0x00), 4, 4));
+        assertArrayEquals(solidBlock(0xff868686),
+                decodeImage(bytes(0x80, 0x80, 0x80, 0x02, 0x00, 0x00, 0x00, 0x00), 4, 4));
+    }
+
+    @Test
+    public void smoothImageQuality() {
+        int width = 64;
+        int height = 48;
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pixels[y * width + x] = 0xff000000 | ((x * 4) << 16) | ((y * 5) << 8)
+                        | ((x + y) * 2);
+            }
+        }
+        assertQuality(pixels, width, height, 3, 16);
+    }
+
+    @Test
+    public void noisyImageQuality() {
+        int width = 37;
+        int height = 23;
+        Random random = new Random(0);
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xff000000 | random.nextInt(0x01000000);
+        }
+        // Random noise is the worst case for ETC1, so only check that the encoder does better
+        // than the mean absolute error of predicting the mid value, about 64 per channel
+        assertQuality(pixels, width, height, 50, 255);
+    }
+
+    @Test
+    public void partialBlocksRepeatEdges() {
+        // A 1x1 image encodes as a full block of that pixel
+        assertArrayEquals(Etc1Encoder.encodeImage(solidBlock(0xff868686), 4, 4),
+                Etc1Encoder.encodeImage(new int[]{0xff868686}, 1, 1));
+    }
+
+    private static void assertBlockEncodesTo(int[] columnMajorBlock, int... expected) {
+        int[] rowMajor = new int[16];
+        for (int x = 0; x < 4; x++) {
+            for (int y = 0; y < 4; y++) {
+                rowMajor[y * 4 + x] = columnMajorBlock[x * 4 + y];
+            }
+        }
+        assertArrayEquals(bytes(expected), Etc1Encoder.encodeImage(rowMajor, 4, 4));
+    }
+
+    private static void assertQuality(int[] pixels, int width, int height,
+            double maxMeanError, int maxError) {
+        int[] decoded = decodeImage(Etc1Encoder.encodeImage(pixels, width, height),
+                width, height);
+        long totalError = 0;
+        int worstError = 0;
+        for (int i = 0; i < pixels.length; i++) {
+            for (int shift = 0; shift < 24; shift += 8) {
+                int error = Math.abs(((pixels[i] >> shift) & 0xff)
+                        - ((decoded[i] >> shift) & 0xff));
+                totalError += error;
+                worstError = Math.max(worstError, error);
+            }
+        }
+        double meanError = (double) totalError / (pixels.length * 3);
+        String description = "meanError=" + meanError + " maxError=" + worstError;
+        assertTrue(description, meanError <= maxMeanError);
+        assertTrue(description, worstError <= maxError);
+    }
+
+    private static int[] solidBlock(int color) {
+        int[] block = new int[16];
+        for (int i = 0; i < block.length; i++) {
+            block[i] = color;
+        }
+        return block;
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    /**
+     * Decodes ETC1 data following section 3.9.3 of the extension specification, returning
+     * opaque ARGB pixels in row major order.
+     */
+    private static int[] decodeImage(byte[] data, int width, int height) {
+        int[] pixels = new int[width * height];
+        int blocksWide = (width + 3) / 4;
+        for (int by = 0; by < (height + 3) / 4; by++) {
+            for (int bx = 0; bx < blocksWide; bx++) {
+                int offset = (by * blocksWide + bx) * 8;
+                long block = 0;
+                for (int i = 0; i < 8; i++) {
+                    block = (block << 8) | (data[offset + i] & 0xff);
+                }
+                int[][] baseColors = new int[2][3];
+                boolean differential = ((block >> 33) & 1) != 0;
+                boolean flip = ((block >> 32) & 1) != 0;
+                for (int c = 0; c < 3; c++) {
+                    int bits = (int) (block >> (56 - 8 * c)) & 0xff;
+                    if (differential) {
+                        int base = bits >> 3;
+                        int delta = ((bits & 0x7) << 29) >> 29;
+                        int second = base + delta;
+                        baseColors[0][c] = (base << 3) | (base >> 2);
+                        baseColors[1][c] = (second << 3) | (second >> 2);
+                    } else {
+                        baseColors[0][c] = ((bits >> 4) << 4) | (bits >> 4);
+                        baseColors[1][c] = ((bits & 0xf) << 4) | (bits & 0xf);
+                    }
+                }
+                int[] tables = {(int) (block >> 37) & 0x7, (int) (block >> 34) & 0x7};
+                for (int x = 0; x < 4; x++) {
+                    for (int y = 0; y < 4; y++) {
+                        int px = bx * 4 + x;
+                        int py = by * 4 + y;
+                        if (px >= width || py >= height) {
+                            continue;
+                        }
+                        int i = x * 4 + y;
+                        int subblock = (flip ? y : x) < 2 ? 0 : 1;
+                        int index = (int) (((block >> (16 + i)) & 1) << 1 | ((block >> i) & 1));
+                        int modifier = DECODE_MODIFIER_TABLES[tables[subblock]][index];
+                        int color = 0xff000000;
+                        for (int c = 0; c < 3; c++) {
+                            int value = Math.max(0, Math.min(255,
+                                    baseColors[subblock][c] + modifier));
+                            color |= value << (16 - 8 * c);
+                        }
+                        pixels[py * width + px] = color;
+                    }
+                }
+            }
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.util;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures how long it takes to read single tiles back from a {@link TilePyramidFile} the size
+ * of a typical large artwork. This runs with the other JVM tests and prints its results; the
+ * timings aren't asserted, as they depend on the machine and its file cache.
+ */
+public class TilePyramidFileBenchmark {
+    private static final int WIDTH = 5000;
+    private static final int HEIGHT = 3000;
+    private static final int TILE_SIZE = 512;
+    // Roughly the size of a 512x512 JPEG tile of a photograph
+    private static final int TILE_BYTES = 64 * 1024;
+    private static final int RUNS = 5;
+
+    @Test
+    public void readTiles() throws IOException {
+        File file = File.createTempFile("pyramid-benchmark", ".tiles");
+        try {
+            int tileCount = writePyramid(file);
+            long[] nanosPerTile = new long[RUNS];
+            TilePyramidFile pyramid = TilePyramidFile.open(file);
+            try {
+                // The first pass warms up the JIT and the file cache
+                readAllTiles(pyramid);
+                for (int run = 0; run < RUNS; run++) {
+                    long start = System.nanoTime();
+                    int read = readAllTiles(pyramid);
+                    nanosPerTile[run] = (System.nanoTime() - start) / read;
+                    assertEquals(tileCount, read);
+                }
+            } finally {
+                pyramid.close();
+            }
+            Arrays.sort(nanosPerTile);
+            System.out.println("TilePyramidFile: " + WIDTH + "x" + HEIGHT + ", " + tileCount
+                    + " tiles of " + TILE_BYTES + " bytes, median "
+                    + (nanosPerTile[RUNS / 2] / 1000) + "us per tile read");
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    private static int writePyramid(File file) throws IOException {
+        Random random = new Random(0);
+        byte[] data = new byte[TILE_BYTES];
+        int tileCount = 0;
+        TilePyramidFile.Writer writer = new TilePyramidFile.Writer(file, WIDTH, HEIGHT,
+                TILE_SIZE);
+        try {
+            TilePyramidFile pyramid = writer.getPyramid();
+            for (int level = 0; level < pyramid.getLevelCount(); level++) {
+                for (int row = 0; row < pyramid.getRows(level); row++) {
+                    for (int col = 0; col < pyramid.getCols(level); col++) {
+                        random.nextBytes(data);
+                        writer.writeTile(level, col, row, data);
+                        tileCount++;
+                    }
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        return tileCount;
+    }
+
+    private static int readAllTiles(TilePyramidFile pyramid) throws IOException {
+        int read = 0;
+        for (int level = 0; level < pyramid.getLevelCount(); level++) {
+            for (int row = 0; row < pyramid.getRows(level); row++) {
+                for (int col = 0; col < pyramid.getCols(level); col++) {
+                    if (pyramid.readTile(level, col, row) != null) {
+                        read++;
+                    }
+                }
+            }
+        }
+        return read;
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class TilePyramidFileTest {
+    private static final int WIDTH = 1000;
+    private static final int HEIGHT = 600;
+    private static final int TILE_SIZE = 256;
+
+    private static final int LEVEL_COUNT_POSITION = 20;
+    private static final int INDEX_OFFSET_POSITION = 24;
+
+    private File mFile;
+
+    @Before
+    public void createFile() throws IOException {
+        mFile = File.createTempFile("pyramid", ".tiles");
+    }
+
+    @After
+    public void deleteFile() {
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    @Test
+    public void levelCount() {
+        assertEquals(1, TilePyramidFile.getLevelCount(256, 256, 256));
+        assertEquals(2, TilePyramidFile.getLevelCount(257, 10, 256));
+        assertEquals(3, TilePyramidFile.getLevelCount(WIDTH, HEIGHT, TILE_SIZE));
+        assertEquals(5, TilePyramidFile.getLevelCount(5000, 3000, 512));
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        writePyramid(false);
+        TilePyramidFile pyramid = TilePyramidFile.open(mFile);
+        try {
+            assertEquals(WIDTH, pyramid.getWidth());
+            assertEquals(HEIGHT, pyramid.getHeight());
+            assertEquals(TILE_SIZE, pyramid.getTileSize());
+            assertEquals(3, pyramid.getLevelCount());
+
+            int[][] expectedSizes = {{1000, 600, 4, 3}, {500, 300, 2, 2}, {250, 150, 1, 1}};
+            for (int level = 0; level < pyramid.getLevelCount(); level++) {
+                assertEquals(expectedSizes[level][0], pyramid.getWidth(level));
+                assertEquals(expectedSizes[level][1], pyramid.getHeight(level));
+                assertEquals(expectedSizes[level][2], pyramid.getCols(level));
+                assertEquals(expectedSizes[level][3], pyramid.getRows(level));
+                for (int row = 0; row < pyramid.getRows(level); row++) {
+                    for (int col = 0; col < pyramid.getCols(level); col++) {
+                        assertArrayEquals(tileData(level, col, row),
+                                pyramid.readTile(level, col, row));
+                    }
+                }
+            }
+        } finally {
+            pyramid.close();
+        }
+    }
+
+    @Test
+    public void unwrittenTilesAreNull() throws IOException {
+        writePyramid(true);
+        TilePyramidFile pyramid = TilePyramidFile.open(mFile);
+        try {
+            assertNull(pyramid.readTile(0, 1, 0));
+            assertArrayEquals(tileData(0, 0, 0), pyramid.readTile(0, 0, 0));
+            assertArrayEquals(tileData(0, 2, 0), pyramid.readTile(0, 2, 0));
+        } finally {
+            pyramid.close();
+        }
+    }
+
+    @Test
+    public void levelForSampleSize() throws IOException {
+        writePyramid(false);
+        TilePyramidFile pyramid = TilePyramidFile.open(mFile);
+        try {
+            assertEquals(0, pyramid.getLevelForSampleSize(1));
+            assertEquals(1, pyramid.getLevelForSampleSize(2));
+            assertEquals(1, pyramid.getLevelForSampleSize(3));
+            assertEquals(2, pyramid.getLevelForSampleSize(4));
+            // Never coarser than the last level
+            assertEquals(2, pyramid.getLevelForSampleSize(64));
+        } finally {
+            pyramid.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void writerRejectsDuplicateTiles() throws IOException {
+        TilePyramidFile.Writer writer = new TilePyramidFile.Writer(mFile, WIDTH, HEIGHT,
+                TILE_SIZE);
+        try {
+            writer.writeTile(1, 1, 1, tileData(1, 1, 1));
+            writer.writeTile(1, 1, 1, tileData(1, 1, 1));
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void rejectsBadMagic() throws IOException {
+        writePyramid(false);
+        assertRejectedWithIntAt(0, 0x4d545030);
+    }
+
+    @Test
+    public void rejectsBadVersion() throws IOException {
+        writePyramid(false);
+        assertRejectedWithIntAt(4, 2);
+    }
+
+    @Test
+    public void rejectsBadSize() throws IOException {
+        writePyramid(false);
+        assertRejectedWithIntAt(8, 0);
+        writePyramid(false);
+        assertRejectedWithIntAt(12, -600);
+        writePyramid(false);
+        assertRejectedWithIntAt(16, 0);
+    }
+
+    @Test
+    public void rejectsHugeImage() throws IOException {
+        // The header alone must not be able to make open() allocate an enormous index
+        writePyramid(false);
+        assertRejectedWithIntAt(8, Integer.MAX_VALUE);
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.seek(12);
+            file.writeInt(Integer.MAX_VALUE);
+            file.writeInt(1);
+            file.writeInt(TilePyramidFile.getLevelCount(Integer.MAX_VALUE, Integer.MAX_VALUE, 1));
+        } finally {
+            file.close();
+        }
+        assertRejected();
+    }
+
+    @Test
+    public void rejectsBadLevelCount() throws IOException {
+        writePyramid(false);
+        assertRejectedWithIntAt(LEVEL_COUNT_POSITION, 4);
+    }
+
+    @Test
+    public void rejectsIndexOffsetInHeader() throws IOException {
+        writePyramid(false);
+        assertRejectedWithLongAt(INDEX_OFFSET_POSITION, 16);
+    }
+
+    @Test
+    public void rejectsIndexOffsetPastEnd() throws IOException {
+        writePyramid(false);
+        assertRejectedWithLongAt(INDEX_OFFSET_POSITION, mFile.length());
+    }
+
+    @Test
+    public void rejectsUnwrittenPyramid() throws IOException {
+        // A writer that was never closed leaves an index offset of 0
+        TilePyramidFile.Writer writer = new TilePyramidFile.Writer(mFile, WIDTH, HEIGHT,
+                TILE_SIZE);
+        writer.writeTile(0, 0, 0, tileData(0, 0, 0));
+        assertRejected();
+        writer.close();
+    }
+
+    @Test
+    public void rejectsTileOffsetInHeader() throws IOException {
+        writePyramid(false);
+        assertRejectedWithLongAt(readIndexOffset(), 8);
+    }
+
+    @Test
+    public void rejectsTileOverlappingIndex() throws IOException {
+        writePyramid(false);
+        long indexOffset = readIndexOffset();
+        // Second entry's length
+        assertRejectedWithIntAt(indexOffset + 12 + 8, (int) indexOffset);
+    }
+
+    @Test
+    public void rejectsNegativeTileLength() throws IOException {
+        writePyramid(false);
+        assertRejectedWithIntAt(readIndexOffset() + 8, -1);
+    }
+
+    @Test
+    public void rejectsTruncatedIndex() throws IOException {
+        writePyramid(false);
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(file.length() - 1);
+        } finally {
+            file.close();
+        }
+        assertRejected();
+    }
+
+    /**
+     * Writes the test pyramid in reverse order, optionally leaving out every other tile of
+     * the first row of level 0.
+     */
+    private void writePyramid(boolean skipTiles) throws IOException {
+        TilePyramidFile.Writer writer = new TilePyramidFile.Writer(mFile, WIDTH, HEIGHT,
+                TILE_SIZE);
+        try {
+            TilePyramidFile pyramid = writer.getPyramid();
+            for (int level = pyramid.getLevelCount() - 1; level >= 0; level--) {
+                for (int row = pyramid.getRows(level) - 1; row >= 0; row--) {
+                    for (int col = pyramid.getCols(level) - 1; col >= 0; col--) {
+                        if (skipTiles && level == 0 && row == 0 && col % 2 == 1) {
+                            continue;
+                        }
+                        writer.writeTile(level, col, row, tileData(level, col, row));
+                    }
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Returns distinct contents of a distinct length for each tile.
+     */
+    private static byte[] tileData(int level, int col, int row) {
+        byte[] data = new byte[100 + level * 37 + row * 11 + col * 3];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31 + level * 7 + row * 5 + col);
+        }
+        return data;
+    }
+
+    private long readIndexOffset() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            file.seek(INDEX_OFFSET_POSITION);
+            return file.readLong();
+        } finally {
+            file.close();
+        }
+    }
+
+    private void assertRejectedWithIntAt(long position, int value) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.seek(position);
+            file.writeInt(value);
+        } finally {
+            file.close();
+        }
+        assertRejected();
+    }
+
+    private void assertRejectedWithLongAt(long position, long value) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.seek(position);
+            file.writeLong(value);
+        } finally {
+            file.close();
+        }
+        assertRejected();
+    }
+
+    private void assertRejected() {
+        try {
+            TilePyramidFile.open(mFile).close();
+            fail("Opened an invalid tile pyramid");
+        } catch (IOException expected) {
+            // Expected
+        }
+    }
+}
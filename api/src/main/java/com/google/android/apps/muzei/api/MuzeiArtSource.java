@@ -188,7 +188,16 @@ import static com.google.android.apps.muzei.api.internal.ProtocolConstants.EXTRA
  * <h3>Additional notes</h3>
  *
  * <p> To schedule an update for a future time, call {@link #scheduleUpdate(long)}. Cancel any
- * scheduled updates using {@link #unscheduleUpdate()}.
+ * scheduled updates using {@link #unscheduleUpdate()}. Shortly before a scheduled update,
+ * subscribers may ask for the artwork it will publish by calling
+ * {@link #onPrefetchNextArtwork()}; sources that know it can pass it to
+ * {@link #setNextArtwork(Artwork)} so that it's downloaded ahead of time.
+ *
+ * <p> Sources that know several artworks in advance can queue them up with
+ * {@link #addUpcomingArtwork(List)}. Subscribers download queued artwork ahead of time and
+ * advance through it themselves when the user asks for the next artwork, so that
+ * {@link #onUpdate(int)} isn't called for {@link #UPDATE_REASON_USER_NEXT} until the queue is
+ * empty. {@link #onUpcomingArtworkLow()} is called when the queue is running low.
  *
  * <p> Sources can also expose additional user-facing commands (such as 'Next artwork' or 'Share
  * artwork') using the {@link #setUserCommands(UserCommand...)} method, and clear available actions
@@ -231,6 +240,21 @@ public abstract class MuzeiArtSource extends Service {
      */
     public static final int BUILTIN_COMMAND_ID_NEXT_ARTWORK = FIRST_BUILTIN_COMMAND_ID + 1;
 
+    /**
+     * The command ID sent by subscribers shortly before a {@linkplain #scheduleUpdate(long)
+     * scheduled update}, asking for the artwork that update will publish so that it can be
+     * downloaded ahead of time. This results in a call to {@link #onPrefetchNextArtwork()}
+     * rather than being shown to the user.
+     */
+    public static final int BUILTIN_COMMAND_ID_PREFETCH_NEXT_ARTWORK = FIRST_BUILTIN_COMMAND_ID + 2;
+
+    /**
+     * The command ID sent by subscribers when they have advanced through most of the artwork
+     * queued with {@link #addUpcomingArtwork(List)}. This results in a call to
+     * {@link #onUpcomingArtworkLow()} rather than being shown to the user.
+     */
+    public static final int BUILTIN_COMMAND_ID_UPCOMING_ARTWORK_LOW = FIRST_BUILTIN_COMMAND_ID + 3;
+
     /**
      * The largest command ID that can be used for custom commands.
      *
@@ -286,12 +310,16 @@ public abstract class MuzeiArtSource extends Service {
 
     private Map<ComponentName, String> mSubscriptions;
     private SourceState mCurrentState;
+    // Whether the latest batch of upcoming artwork has been sent to subscribers, so that
+    // further additions need to start a new batch
+    private boolean mUpcomingArtworkBatchPublished = true;
 
     private final Runnable mPublishStateRunnable = new Runnable() {
         @Override
         public void run() {
             publishCurrentState();
             saveState();
+            mUpcomingArtworkBatchPublished = true;
         }
     };
 
@@ -473,6 +501,25 @@ public abstract class MuzeiArtSource extends Service {
     protected void onNetworkAvailable() {
     }
 
+    /**
+     * Callback method indicating that a subscriber would like to download the artwork the next
+     * {@linkplain #scheduleUpdate(long) scheduled update} will publish ahead of time. Sources that
+     * can decide on their next artwork early should do so here and call
+     * {@link #setNextArtwork(Artwork)}, then publish that same artwork when the scheduled update
+     * occurs. The default implementation does nothing.
+     */
+    protected void onPrefetchNextArtwork() {
+    }
+
+    /**
+     * Callback method indicating that a subscriber has advanced through most of the artwork
+     * queued with {@link #addUpcomingArtwork(List)}. Sources should queue more artwork here if
+     * they can. The default implementation does nothing, in which case the subscriber falls
+     * back to asking for the next artwork with {@link #onUpdate(int)} once the queue is empty.
+     */
+    protected void onUpcomingArtworkLow() {
+    }
+
     /**
      * Publishes the provided {@link Artwork} object. This will be sent to all current subscribers
      * and to all future subscribers, until a new artwork is published.
@@ -482,10 +529,90 @@ public abstract class MuzeiArtSource extends Service {
     protected final void publishArtwork(@NonNull Artwork artwork) {
         artwork.setComponentName(new ComponentName(this, getClass()));
         mCurrentState.setCurrentArtwork(artwork);
+        Artwork nextArtwork = mCurrentState.getNextArtwork();
+        if (nextArtwork != null && isSameImage(artwork, nextArtwork)) {
+            // The next artwork is now the current one
+            mCurrentState.setNextArtwork(null);
+        }
         mServiceHandler.removeCallbacks(mPublishStateRunnable);
         mServiceHandler.post(mPublishStateRunnable);
     }
 
+    /**
+     * Sets the artwork that will be published by the next {@linkplain #scheduleUpdate(long)
+     * scheduled update}, so that subscribers can download it ahead of time. This is cleared once
+     * an artwork with the same image is {@linkplain #publishArtwork(Artwork) published}.
+     *
+     * @param artwork the artwork that will be published next, or null if it isn't known.
+     * @see #onPrefetchNextArtwork()
+     */
+    protected final void setNextArtwork(@Nullable Artwork artwork) {
+        if (artwork != null) {
+            artwork.setComponentName(new ComponentName(this, getClass()));
+        }
+        mCurrentState.setNextArtwork(artwork);
+        mServiceHandler.removeCallbacks(mPublishStateRunnable);
+        mServiceHandler.post(mPublishStateRunnable);
+    }
+
+    /**
+     * Returns the artwork most recently passed to {@link #setNextArtwork(Artwork)}, if it
+     * hasn't been published yet.
+     */
+    @Nullable
+    protected final Artwork getNextArtwork() {
+        return mCurrentState != null ? mCurrentState.getNextArtwork() : null;
+    }
+
+    /**
+     * Adds artwork to the end of the queue of artwork subscribers show, in order, each time the
+     * user asks for the next artwork. Artwork that is already queued is skipped. All of the
+     * given artwork is sent to subscribers in a single update.
+     *
+     * @param artwork the artwork to queue, in the order it should be shown.
+     * @see #clearUpcomingArtwork()
+     * @see #onUpcomingArtworkLow()
+     */
+    protected final void addUpcomingArtwork(@NonNull List<Artwork> artwork) {
+        ComponentName componentName = new ComponentName(this, getClass());
+        for (Artwork upcomingArtwork : artwork) {
+            upcomingArtwork.setComponentName(componentName);
+        }
+        if (mUpcomingArtworkBatchPublished) {
+            mCurrentState.startUpcomingArtworkBatch(nextUpcomingArtworkBatchId(), false);
+            mUpcomingArtworkBatchPublished = false;
+        }
+        mCurrentState.addUpcomingArtwork(artwork);
+        mServiceHandler.removeCallbacks(mPublishStateRunnable);
+        mServiceHandler.post(mPublishStateRunnable);
+    }
+
+    /**
+     * Clears the queue of upcoming artwork, such as when the source's settings change. Any
+     * artwork added after this in the same update is still queued.
+     *
+     * @see #addUpcomingArtwork(List)
+     */
+    protected final void clearUpcomingArtwork() {
+        mCurrentState.startUpcomingArtworkBatch(nextUpcomingArtworkBatchId(), true);
+        mUpcomingArtworkBatchPublished = false;
+        mServiceHandler.removeCallbacks(mPublishStateRunnable);
+        mServiceHandler.post(mPublishStateRunnable);
+    }
+
+    private long nextUpcomingArtworkBatchId() {
+        // Batch ids only need to differ from the previous one, but basing them on the time
+        // keeps them unique if the source's state is ever lost
+        return Math.max(mCurrentState.getUpcomingArtworkBatchId() + 1, System.currentTimeMillis());
+    }
+
+    private static boolean isSameImage(Artwork artwork, Artwork otherArtwork) {
+        Uri imageUri = artwork.getImageUri();
+        return (imageUri != null ? imageUri.equals(otherArtwork.getImageUri())
+                : otherArtwork.getImageUri() == null)
+                && TextUtils.equals(artwork.getToken(), otherArtwork.getToken());
+    }
+
     /**
      * Sets the current source description of the current configuration. For example, 'Popular photos
      * tagged "landscape"'). If no description is provided, the <code>android:description</code>
@@ -604,6 +731,10 @@ public abstract class MuzeiArtSource extends Service {
         getSharedPreferences().edit()
                 .putLong(PREF_SCHEDULED_UPDATE_TIME_MILLIS, scheduledUpdateTimeMillis).apply();
         setUpdateAlarm(scheduledUpdateTimeMillis);
+        // Let subscribers know when to prefetch the next artwork
+        mCurrentState.setScheduledUpdateTimeMillis(scheduledUpdateTimeMillis);
+        mServiceHandler.removeCallbacks(mPublishStateRunnable);
+        mServiceHandler.post(mPublishStateRunnable);
     }
 
     /**
@@ -612,6 +743,9 @@ public abstract class MuzeiArtSource extends Service {
     protected final void unscheduleUpdate() {
         getSharedPreferences().edit().remove(PREF_SCHEDULED_UPDATE_TIME_MILLIS).apply();
         clearUpdateAlarm();
+        mCurrentState.setScheduledUpdateTimeMillis(0);
+        mServiceHandler.removeCallbacks(mPublishStateRunnable);
+        mServiceHandler.post(mPublishStateRunnable);
     }
 
     /**
@@ -782,6 +916,10 @@ public abstract class MuzeiArtSource extends Service {
                 unscheduleUpdate();
             }
             onUpdate(reason);
+        } else if (commandId == BUILTIN_COMMAND_ID_PREFETCH_NEXT_ARTWORK) {
+            onPrefetchNextArtwork();
+        } else if (commandId == BUILTIN_COMMAND_ID_UPCOMING_ARTWORK_LOW) {
+            onUpcomingArtworkLow();
         } else {
             onCustomCommand(commandId);
         }
@@ -31,6 +31,8 @@ import android.support.annotation.StringDef;
 import android.support.annotation.WorkerThread;
 import android.util.Log;
 
+import com.google.android.apps.muzei.api.internal.ProtocolConstants;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 
@@ -239,7 +241,12 @@ public class MuzeiContract {
          */
         public static com.google.android.apps.muzei.api.Artwork getCurrentArtwork(Context context) {
             ContentResolver contentResolver = context.getContentResolver();
-            Cursor cursor = contentResolver.query(CONTENT_URI, null, null, null, null);
+            // Only the first row is needed. Versions of Muzei that don't support the limit
+            // ignore it and return every row.
+            Uri currentArtworkUri = CONTENT_URI.buildUpon()
+                    .appendQueryParameter(ProtocolConstants.QUERY_PARAMETER_LIMIT, "1")
+                    .build();
+            Cursor cursor = contentResolver.query(currentArtworkUri, null, null, null, null);
             try {
                 if (cursor == null || !cursor.moveToFirst()) {
                     return null;
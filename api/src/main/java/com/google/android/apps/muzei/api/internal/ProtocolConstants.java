@@ -35,6 +35,9 @@ public class ProtocolConstants {
     public static final String ACTION_PUBLISH_STATE = "com.google.android.apps.muzei.api.action.PUBLISH_UPDATE";
     public static final String EXTRA_STATE = "com.google.android.apps.muzei.api.extra.STATE";
 
+    // Content provider query parameters
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
     private ProtocolConstants() {
     }
 }
@@ -37,11 +37,24 @@ public class SourceState {
     private String mDescription;
     private boolean mWantsNetworkAvailable;
     private final ArrayList<UserCommand> mUserCommands = new ArrayList<>();
+    private Artwork mNextArtwork;
+    private long mScheduledUpdateTimeMillis;
+    private final ArrayList<Artwork> mUpcomingArtwork = new ArrayList<>();
+    private long mUpcomingArtworkBatchId;
+    private boolean mClearsUpcomingArtwork;
 
     public Artwork getCurrentArtwork() {
         return mCurrentArtwork;
     }
 
+    public Artwork getNextArtwork() {
+        return mNextArtwork;
+    }
+
+    public long getScheduledUpdateTimeMillis() {
+        return mScheduledUpdateTimeMillis;
+    }
+
     public String getDescription() {
         return mDescription;
     }
@@ -58,10 +71,54 @@ public class SourceState {
         return mUserCommands.get(index);
     }
 
+    /**
+     * Returns the id of the latest batch of upcoming artwork, which changes each time a new
+     * batch is started so that subscribers only apply each batch once.
+     */
+    public long getUpcomingArtworkBatchId() {
+        return mUpcomingArtworkBatchId;
+    }
+
+    /**
+     * Returns whether subscribers should clear any upcoming artwork they already have before
+     * adding the latest batch.
+     */
+    public boolean getClearsUpcomingArtwork() {
+        return mClearsUpcomingArtwork;
+    }
+
+    public int getNumUpcomingArtwork() {
+        return mUpcomingArtwork.size();
+    }
+
+    public Artwork getUpcomingArtworkAt(int index) {
+        return mUpcomingArtwork.get(index);
+    }
+
     public void setCurrentArtwork(Artwork artwork) {
         mCurrentArtwork = artwork;
     }
 
+    public void setNextArtwork(Artwork nextArtwork) {
+        mNextArtwork = nextArtwork;
+    }
+
+    public void setScheduledUpdateTimeMillis(long scheduledUpdateTimeMillis) {
+        mScheduledUpdateTimeMillis = scheduledUpdateTimeMillis;
+    }
+
+    public synchronized void startUpcomingArtworkBatch(long batchId, boolean clearsUpcomingArtwork) {
+        mUpcomingArtwork.clear();
+        mUpcomingArtworkBatchId = batchId;
+        mClearsUpcomingArtwork = clearsUpcomingArtwork;
+    }
+
+    public synchronized void addUpcomingArtwork(List<Artwork> upcomingArtwork) {
+        if (upcomingArtwork != null) {
+            mUpcomingArtwork.addAll(upcomingArtwork);
+        }
+    }
+
     public void setDescription(String description) {
         mDescription = description;
     }
@@ -107,6 +164,17 @@ public class SourceState {
             commandsSerialized[i] = mUserCommands.get(i).serialize();
         }
         bundle.putStringArray("userCommands", commandsSerialized);
+        if (mNextArtwork != null) {
+            bundle.putBundle("nextArtwork", mNextArtwork.toBundle());
+        }
+        bundle.putLong("scheduledUpdateTimeMillis", mScheduledUpdateTimeMillis);
+        ArrayList<Bundle> upcomingArtworkBundles = new ArrayList<>(mUpcomingArtwork.size());
+        for (Artwork artwork : mUpcomingArtwork) {
+            upcomingArtworkBundles.add(artwork.toBundle());
+        }
+        bundle.putParcelableArrayList("upcomingArtwork", upcomingArtworkBundles);
+        bundle.putLong("upcomingArtworkBatchId", mUpcomingArtworkBatchId);
+        bundle.putBoolean("clearsUpcomingArtwork", mClearsUpcomingArtwork);
         return bundle;
     }
 
@@ -125,6 +193,21 @@ public class SourceState {
                 state.mUserCommands.add(UserCommand.deserialize(s));
             }
         }
+        Bundle nextArtworkBundle = bundle.getBundle("nextArtwork");
+        if (nextArtworkBundle != null) {
+            state.mNextArtwork = Artwork.fromBundle(nextArtworkBundle);
+        }
+        state.mScheduledUpdateTimeMillis = bundle.getLong("scheduledUpdateTimeMillis");
+        ArrayList<Bundle> upcomingArtworkBundles =
+                bundle.getParcelableArrayList("upcomingArtwork");
+        if (upcomingArtworkBundles != null) {
+            state.mUpcomingArtwork.ensureCapacity(upcomingArtworkBundles.size());
+            for (Bundle upcomingArtworkBundle : upcomingArtworkBundles) {
+                state.mUpcomingArtwork.add(Artwork.fromBundle(upcomingArtworkBundle));
+            }
+        }
+        state.mUpcomingArtworkBatchId = bundle.getLong("upcomingArtworkBatchId");
+        state.mClearsUpcomingArtwork = bundle.getBoolean("clearsUpcomingArtwork");
         return state;
     }
 
@@ -140,6 +223,17 @@ public class SourceState {
             commandsSerialized.put(command.serialize());
         }
         jsonObject.put("userCommands", commandsSerialized);
+        if (mNextArtwork != null) {
+            jsonObject.put("nextArtwork", mNextArtwork.toJson());
+        }
+        jsonObject.put("scheduledUpdateTimeMillis", mScheduledUpdateTimeMillis);
+        JSONArray upcomingArtworkSerialized = new JSONArray();
+        for (Artwork artwork : mUpcomingArtwork) {
+            upcomingArtworkSerialized.put(artwork.toJson());
+        }
+        jsonObject.put("upcomingArtwork", upcomingArtworkSerialized);
+        jsonObject.put("upcomingArtworkBatchId", mUpcomingArtworkBatchId);
+        jsonObject.put("clearsUpcomingArtwork", mClearsUpcomingArtwork);
         return jsonObject;
     }
 
@@ -159,6 +253,25 @@ public class SourceState {
                 mUserCommands.add(UserCommand.deserialize(commandsSerialized.optString(i)));
             }
         }
+        JSONObject nextArtworkJsonObject = jsonObject.optJSONObject("nextArtwork");
+        mNextArtwork = nextArtworkJsonObject != null
+                ? Artwork.fromJson(nextArtworkJsonObject)
+                : null;
+        mScheduledUpdateTimeMillis = jsonObject.optLong("scheduledUpdateTimeMillis");
+        JSONArray upcomingArtworkSerialized = jsonObject.optJSONArray("upcomingArtwork");
+        mUpcomingArtwork.clear();
+        if (upcomingArtworkSerialized != null && upcomingArtworkSerialized.length() > 0) {
+            int length = upcomingArtworkSerialized.length();
+            mUpcomingArtwork.ensureCapacity(length);
+            for (int i = 0; i < length; i++) {
+                JSONObject upcomingArtworkJsonObject = upcomingArtworkSerialized.optJSONObject(i);
+                if (upcomingArtworkJsonObject != null) {
+                    mUpcomingArtwork.add(Artwork.fromJson(upcomingArtworkJsonObject));
+                }
+            }
+        }
+        mUpcomingArtworkBatchId = jsonObject.optLong("upcomingArtworkBatchId");
+        mClearsUpcomingArtwork = jsonObject.optBoolean("clearsUpcomingArtwork");
     }
 
     public static SourceState fromJson(JSONObject jsonObject) throws JSONException{
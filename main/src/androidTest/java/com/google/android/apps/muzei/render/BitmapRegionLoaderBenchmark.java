@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Shader;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Measures the time to decode a large JPEG into a {@link TileSet} as a function of the number of
+ * region decoders in the {@link BitmapRegionLoader}. Results are logged under the
+ * {@value #TAG} tag; run with
+ * <code>./gradlew :main:connectedDebugAndroidTest</code> and read them from logcat.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BitmapRegionLoaderBenchmark {
+    private static final String TAG = "BitmapRegionLoaderBench";
+
+    private static final int IMAGE_WIDTH = 4000;
+    private static final int IMAGE_HEIGHT = 3000;
+    private static final int MAX_HEIGHT = 2048;
+    private static final int TILE_SIZE = 512;
+    private static final int WARMUP_RUNS = 2;
+    private static final int MEASURED_RUNS = 7;
+
+    private static File sImageFile;
+
+    @BeforeClass
+    public static void createImage() throws IOException {
+        Context context = InstrumentationRegistry.getTargetContext();
+        sImageFile = new File(context.getCacheDir(), "bitmap_region_loader_bench.jpg");
+        Bitmap bitmap = Bitmap.createBitmap(IMAGE_WIDTH, IMAGE_HEIGHT, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        Paint paint = new Paint();
+        paint.setShader(new LinearGradient(0, 0, IMAGE_WIDTH, IMAGE_HEIGHT,
+                new int[]{0xff204080, 0xffe0a040, 0xff40c080, 0xff8020a0}, null,
+                Shader.TileMode.MIRROR));
+        canvas.drawRect(0, 0, IMAGE_WIDTH, IMAGE_HEIGHT, paint);
+        // Add high frequency detail so the JPEG isn't trivially cheap to decode
+        paint.setShader(null);
+        Random random = new Random(0);
+        for (int y = 0; y < IMAGE_HEIGHT; y += 8) {
+            for (int x = 0; x < IMAGE_WIDTH; x += 8) {
+                paint.setColor(0x40000000 | random.nextInt(0x01000000));
+                canvas.drawRect(x, y, x + 4, y + 4, paint);
+            }
+        }
+        OutputStream out = new FileOutputStream(sImageFile);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+        } finally {
+            out.close();
+        }
+        bitmap.recycle();
+    }
+
+    @AfterClass
+    public static void deleteImage() {
+        if (sImageFile != null) {
+            //noinspection ResultOfMethodCallIgnored
+            sImageFile.delete();
+        }
+    }
+
+    @Test
+    public void loadTimeByDecoderCount() throws IOException {
+        Log.i(TAG, "Image " + IMAGE_WIDTH + "x" + IMAGE_HEIGHT + ", "
+                + sImageFile.length() + " bytes, "
+                + Runtime.getRuntime().availableProcessors() + " cores");
+        for (int decoderCount = 1; decoderCount <= 4; decoderCount++) {
+            for (int i = 0; i < WARMUP_RUNS; i++) {
+                timeLoad(decoderCount);
+            }
+            long[] times = new long[MEASURED_RUNS];
+            for (int i = 0; i < MEASURED_RUNS; i++) {
+                times[i] = timeLoad(decoderCount);
+            }
+            Arrays.sort(times);
+            Log.i(TAG, "decoders=" + decoderCount
+                    + " median=" + times[MEASURED_RUNS / 2] + "ms"
+                    + " min=" + times[0] + "ms"
+                    + " max=" + times[MEASURED_RUNS - 1] + "ms");
+        }
+    }
+
+    /**
+     * Returns the time in milliseconds to open the image and decode all of its tiles, the same
+     * work PictureSetDecoder does for a new artwork.
+     */
+    private static long timeLoad(int decoderCount) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        InputStream in = new FileInputStream(sImageFile);
+        BitmapRegionLoader loader;
+        try {
+            loader = BitmapRegionLoader.newInstance(in, 0, decoderCount);
+        } finally {
+            in.close();
+        }
+        assertNotNull(loader);
+        TileSet tileSet = TileSet.decode(loader, MAX_HEIGHT, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        assertNotNull(tileSet);
+        tileSet.recycle();
+        loader.destroy();
+        return elapsed;
+    }
+}
@@ -50,7 +50,7 @@ import com.google.android.apps.muzei.room.Artwork;
 import com.google.android.apps.muzei.room.MuzeiDatabase;
 import com.google.android.apps.muzei.room.Source;
 import com.google.android.apps.muzei.settings.SettingsActivity;
-import com.google.android.apps.muzei.sync.TaskQueueService;
+import com.google.android.apps.muzei.sync.DownloadQueue;
 import com.google.android.apps.muzei.util.AnimatedMuzeiLoadingSpinnerView;
 import com.google.android.apps.muzei.util.CheatSheet;
 import com.google.android.apps.muzei.util.DrawInsetsFrameLayout;
@@ -342,7 +342,7 @@ public class ArtDetailFragment extends Fragment
             @Override
             public void onClick(View view) {
                 showNextFakeLoading();
-                getContext().startService(TaskQueueService.getDownloadCurrentArtworkIntent(getContext()));
+                DownloadQueue.enqueueCurrentArtwork(getContext());
             }
         });
     }
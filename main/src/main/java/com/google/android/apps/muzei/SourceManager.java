@@ -32,10 +32,11 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
+import com.google.android.apps.muzei.api.MuzeiArtSource;
 import com.google.android.apps.muzei.featuredart.FeaturedArtSource;
 import com.google.android.apps.muzei.room.MuzeiDatabase;
 import com.google.android.apps.muzei.room.Source;
-import com.google.android.apps.muzei.sync.TaskQueueService;
+import com.google.android.apps.muzei.sync.DownloadQueue;
 import com.google.firebase.analytics.FirebaseAnalytics;
 
 import net.nurik.roman.muzei.BuildConfig;
@@ -154,7 +155,7 @@ public class SourceManager implements LifecycleObserver {
                 subscribe(context, newSource);
 
                 // Ensure the artwork from the newly selected source is downloaded
-                context.startService(TaskQueueService.getDownloadCurrentArtworkIntent(context));
+                DownloadQueue.enqueueCurrentArtwork(context);
                 return null;
             }
 
@@ -191,22 +192,38 @@ public class SourceManager implements LifecycleObserver {
             @Override
             public void onChanged(@Nullable final Source source) {
                 sourceLiveData.removeObserver(this);
-                if (source != null) {
-                    ComponentName selectedSource = source.componentName;
-                    try {
-                        context.startService(new Intent(ACTION_HANDLE_COMMAND)
-                                .setComponent(selectedSource)
-                                .putExtra(EXTRA_COMMAND_ID, id));
-                    } catch (IllegalStateException e) {
-                        Log.i(TAG, "Sending action + " + id + " to " + selectedSource
-                                + " failed; switching to default.", e);
-                        selectSource(context, new ComponentName(context, FeaturedArtSource.class));
-                    }
+                if (source == null) {
+                    return;
+                }
+                if (id == MuzeiArtSource.BUILTIN_COMMAND_ID_NEXT_ARTWORK) {
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            // Show the artwork the source has queued up without waking it
+                            if (!UpcomingArtworkQueue.advance(context, source.componentName)) {
+                                sendCommand(context, source.componentName, id);
+                            }
+                        }
+                    }.start();
+                } else {
+                    sendCommand(context, source.componentName, id);
                 }
             }
         });
     }
 
+    static void sendCommand(Context context, ComponentName selectedSource, int id) {
+        try {
+            context.startService(new Intent(ACTION_HANDLE_COMMAND)
+                    .setComponent(selectedSource)
+                    .putExtra(EXTRA_COMMAND_ID, id));
+        } catch (IllegalStateException e) {
+            Log.i(TAG, "Sending action + " + id + " to " + selectedSource
+                    + " failed; switching to default.", e);
+            selectSource(context, new ComponentName(context, FeaturedArtSource.class));
+        }
+    }
+
     static void subscribe(Context context, @NonNull Source source) {
         // Migrate any legacy data to the ContentProvider
         ComponentName selectedSource = source.componentName;
@@ -18,8 +18,10 @@ package com.google.android.apps.muzei;
 
 import android.app.IntentService;
 import android.app.PendingIntent;
+import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
+import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -29,7 +31,10 @@ import com.google.android.apps.muzei.api.internal.SourceState;
 import com.google.android.apps.muzei.room.Artwork;
 import com.google.android.apps.muzei.room.MuzeiDatabase;
 import com.google.android.apps.muzei.room.Source;
-import com.google.android.apps.muzei.sync.TaskQueueService;
+import com.google.android.apps.muzei.sync.ArtworkPrefetcher;
+import com.google.android.apps.muzei.sync.DownloadQueue;
+
+import org.json.JSONException;
 
 import java.util.ArrayList;
 
@@ -40,6 +45,8 @@ import static com.google.android.apps.muzei.api.internal.ProtocolConstants.EXTRA
 public class SourceSubscriberService extends IntentService {
     private static final String TAG = "SourceSubscriberService";
 
+    private static final String PREF_LAST_PUBLISHED_ARTWORK_PREFIX = "last_published_artwork_";
+
     public SourceSubscriberService() {
         super("SourceSubscriberService");
     }
@@ -91,7 +98,13 @@ public class SourceSubscriberService extends IntentService {
         }
 
         com.google.android.apps.muzei.api.Artwork currentArtwork = state.getCurrentArtwork();
-        if (currentArtwork != null) {
+        if (currentArtwork != null && isAlreadyPublished(source, currentArtwork)) {
+            // Sources republish their state for changes that don't affect the artwork, such
+            // as scheduling their next update, so don't add the same artwork again. This also
+            // keeps artwork advanced to from the upcoming artwork queue from being replaced by
+            // the source's older current artwork
+            MuzeiDatabase.getInstance(this).sourceDao().update(source);
+        } else if (currentArtwork != null) {
             MuzeiDatabase database = MuzeiDatabase.getInstance(this);
             database.beginTransaction();
             database.sourceDao().update(source);
@@ -105,27 +118,86 @@ public class SourceSubscriberService extends IntentService {
             if (currentArtwork.getMetaFont() != null) {
                 artwork.metaFont = currentArtwork.getMetaFont();
             }
-            artwork.viewIntent = currentArtwork.getViewIntent();
-
-            try {
-                // Make sure we can construct a PendingIntent for the Intent
-                PendingIntent.getActivity(this, 0, artwork.viewIntent,
-                        PendingIntent.FLAG_UPDATE_CURRENT);
-            } catch (RuntimeException e) {
-                // This is actually meant to catch a FileUriExposedException, but you can't
-                // have catch statements for exceptions that don't exist at your minSdkVersion
-                Log.w(TAG, "Removing invalid View Intent that contains a file:// URI: " +
-                        artwork.viewIntent, e);
-                artwork.viewIntent = null;
-            }
+            artwork.viewIntent = getValidViewIntent(this, currentArtwork.getViewIntent());
 
             database.artworkDao().insert(this, artwork);
 
-            // Download the artwork contained from the newly published SourceState
-            startService(TaskQueueService.getDownloadCurrentArtworkIntent(this));
-
             database.setTransactionSuccessful();
             database.endTransaction();
+
+            // Download the artwork contained from the newly published SourceState
+            DownloadQueue.enqueueCurrentArtwork(this);
+        }
+        if (currentArtwork != null) {
+            setLastPublishedArtwork(source, currentArtwork);
+        }
+
+        UpcomingArtworkQueue.onSourceStateChanged(this, source.componentName, state);
+        ArtworkPrefetcher.onSourceStateChanged(this, source.componentName,
+                state.getNextArtwork(), state.getScheduledUpdateTimeMillis());
+    }
+
+    /**
+     * Returns the given view intent, or null if it can't be used to construct a PendingIntent.
+     */
+    static Intent getValidViewIntent(Context context, Intent viewIntent) {
+        try {
+            // Make sure we can construct a PendingIntent for the Intent
+            PendingIntent.getActivity(context, 0, viewIntent,
+                    PendingIntent.FLAG_UPDATE_CURRENT);
+            return viewIntent;
+        } catch (RuntimeException e) {
+            // This is actually meant to catch a FileUriExposedException, but you can't
+            // have catch statements for exceptions that don't exist at your minSdkVersion
+            Log.w(TAG, "Removing invalid View Intent that contains a file:// URI: " +
+                    viewIntent, e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns whether the given artwork from the given source is already the current artwork
+     * or was the last artwork the source published, as long as the current artwork is from the
+     * same source.
+     */
+    private boolean isAlreadyPublished(Source source,
+            com.google.android.apps.muzei.api.Artwork artwork) {
+        Artwork currentArtwork = MuzeiDatabase.getInstance(this).artworkDao()
+                .getCurrentArtworkBlocking();
+        if (currentArtwork == null
+                || !source.componentName.equals(currentArtwork.sourceComponentName)) {
+            return false;
+        }
+        if ((currentArtwork.imageUri != null
+                        ? currentArtwork.imageUri.equals(artwork.getImageUri())
+                        : artwork.getImageUri() == null)
+                && TextUtils.equals(currentArtwork.token, artwork.getToken())
+                && TextUtils.equals(currentArtwork.title, artwork.getTitle())
+                && TextUtils.equals(currentArtwork.byline, artwork.getByline())
+                && TextUtils.equals(currentArtwork.attribution, artwork.getAttribution())) {
+            return true;
+        }
+        String lastPublishedArtwork = PreferenceManager.getDefaultSharedPreferences(this)
+                .getString(PREF_LAST_PUBLISHED_ARTWORK_PREFIX
+                        + source.componentName.flattenToShortString(), null);
+        try {
+            return lastPublishedArtwork != null
+                    && lastPublishedArtwork.equals(artwork.toJson().toString());
+        } catch (JSONException e) {
+            return false;
+        }
+    }
+
+    private void setLastPublishedArtwork(Source source,
+            com.google.android.apps.muzei.api.Artwork artwork) {
+        try {
+            PreferenceManager.getDefaultSharedPreferences(this).edit()
+                    .putString(PREF_LAST_PUBLISHED_ARTWORK_PREFIX
+                            + source.componentName.flattenToShortString(),
+                            artwork.toJson().toString())
+                    .apply();
+        } catch (JSONException e) {
+            Log.w(TAG, "Unable to serialize published artwork", e);
         }
     }
 }
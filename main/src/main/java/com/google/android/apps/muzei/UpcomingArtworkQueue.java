@@ -0,0 +1,183 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.preference.PreferenceManager;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.google.android.apps.muzei.api.MuzeiArtSource;
+import com.google.android.apps.muzei.api.internal.SourceState;
+import com.google.android.apps.muzei.room.MuzeiDatabase;
+import com.google.android.apps.muzei.room.UpcomingArtwork;
+import com.google.android.apps.muzei.room.UpcomingArtworkDao;
+import com.google.android.apps.muzei.sync.ArtworkPrefetcher;
+import com.google.android.apps.muzei.sync.DownloadQueue;
+
+import net.nurik.roman.muzei.BuildConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the queue of artwork sources publish with
+ * {@link MuzeiArtSource#addUpcomingArtwork(List)}, and advances through it locally when the user
+ * asks for the next artwork so that the source only needs to be woken up when the queue runs
+ * low.
+ */
+public class UpcomingArtworkQueue {
+    private static final String TAG = "UpcomingArtworkQueue";
+
+    /**
+     * The source is asked for more artwork once advancing leaves this many or fewer queued.
+     */
+    private static final int LOW_THRESHOLD = 2;
+
+    private static final String PREF_BATCH_ID_PREFIX = "upcoming_artwork_batch_id_";
+
+    /**
+     * Applies the latest batch of upcoming artwork in the given state if it hasn't been applied
+     * yet. This should be called on a background thread.
+     */
+    static void onSourceStateChanged(Context context, ComponentName source, SourceState state) {
+        UpcomingArtworkDao dao = MuzeiDatabase.getInstance(context).upcomingArtworkDao();
+        List<UpcomingArtwork> queue = dao.getUpcomingArtworkBlocking(source);
+
+        // Artwork the source published itself no longer needs to be queued
+        com.google.android.apps.muzei.api.Artwork currentArtwork = state.getCurrentArtwork();
+        if (currentArtwork != null) {
+            for (UpcomingArtwork upcomingArtwork : queue) {
+                if (isSameImage(upcomingArtwork, currentArtwork)) {
+                    dao.delete(upcomingArtwork);
+                    queue.remove(upcomingArtwork);
+                    break;
+                }
+            }
+        }
+
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        String batchIdKey = PREF_BATCH_ID_PREFIX + source.flattenToShortString();
+        long batchId = state.getUpcomingArtworkBatchId();
+        if (batchId == 0 || batchId == sp.getLong(batchIdKey, 0)) {
+            return;
+        }
+
+        MuzeiDatabase database = MuzeiDatabase.getInstance(context);
+        database.beginTransaction();
+        try {
+            if (state.getClearsUpcomingArtwork()) {
+                dao.delete(queue);
+                ArtworkPrefetcher.deletePrefetchedArtwork(context, queue);
+                queue.clear();
+            }
+            int position = queue.isEmpty() ? 0 : queue.get(queue.size() - 1).position + 1;
+            List<UpcomingArtwork> newArtwork = new ArrayList<>();
+            for (int i = 0; i < state.getNumUpcomingArtwork(); i++) {
+                com.google.android.apps.muzei.api.Artwork artwork = state.getUpcomingArtworkAt(i);
+                if (artwork.getImageUri() == null && TextUtils.isEmpty(artwork.getToken())) {
+                    continue;
+                }
+                if (isQueued(queue, artwork) || isQueued(newArtwork, artwork)) {
+                    continue;
+                }
+                UpcomingArtwork upcomingArtwork = new UpcomingArtwork();
+                upcomingArtwork.sourceComponentName = source;
+                upcomingArtwork.position = position++;
+                upcomingArtwork.imageUri = artwork.getImageUri();
+                upcomingArtwork.title = artwork.getTitle();
+                upcomingArtwork.byline = artwork.getByline();
+                upcomingArtwork.attribution = artwork.getAttribution();
+                upcomingArtwork.token = artwork.getToken();
+                if (artwork.getMetaFont() != null) {
+                    upcomingArtwork.metaFont = artwork.getMetaFont();
+                }
+                upcomingArtwork.viewIntent = SourceSubscriberService.getValidViewIntent(context,
+                        artwork.getViewIntent());
+                newArtwork.add(upcomingArtwork);
+            }
+            dao.insert(newArtwork);
+            database.setTransactionSuccessful();
+            sp.edit().putLong(batchIdKey, batchId).apply();
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "Queued " + newArtwork.size() + " upcoming artwork from " + source);
+            }
+        } finally {
+            database.endTransaction();
+        }
+        ArtworkPrefetcher.onUpcomingArtworkChanged(context);
+    }
+
+    /**
+     * Makes the first queued artwork of the given source the current artwork, asking the
+     * source for more if the queue is running low. This should be called on a background
+     * thread.
+     *
+     * @return false if the source had no artwork queued
+     */
+    static boolean advance(Context context, ComponentName source) {
+        MuzeiDatabase database = MuzeiDatabase.getInstance(context);
+        UpcomingArtworkDao dao = database.upcomingArtworkDao();
+        List<UpcomingArtwork> queue = dao.getUpcomingArtworkBlocking(source);
+        if (queue.isEmpty()) {
+            return false;
+        }
+        UpcomingArtwork nextArtwork = queue.get(0);
+        database.beginTransaction();
+        try {
+            dao.delete(nextArtwork);
+            database.artworkDao().insert(context, nextArtwork.toArtwork());
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        // This is instant if the artwork was already prefetched
+        DownloadQueue.enqueueCurrentArtwork(context);
+
+        int remaining = queue.size() - 1;
+        if (remaining <= LOW_THRESHOLD) {
+            SourceManager.sendCommand(context, source,
+                    MuzeiArtSource.BUILTIN_COMMAND_ID_UPCOMING_ARTWORK_LOW);
+        }
+        ArtworkPrefetcher.onUpcomingArtworkChanged(context);
+        return true;
+    }
+
+    private static boolean isQueued(List<UpcomingArtwork> queue,
+            com.google.android.apps.muzei.api.Artwork artwork) {
+        for (UpcomingArtwork upcomingArtwork : queue) {
+            if (isSameImage(upcomingArtwork, artwork)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSameImage(UpcomingArtwork upcomingArtwork,
+            com.google.android.apps.muzei.api.Artwork artwork) {
+        Uri imageUri = upcomingArtwork.imageUri;
+        return (imageUri != null ? imageUri.equals(artwork.getImageUri())
+                : artwork.getImageUri() == null)
+                && TextUtils.equals(upcomingArtwork.token, artwork.getToken());
+    }
+
+    private UpcomingArtworkQueue() {
+    }
+}
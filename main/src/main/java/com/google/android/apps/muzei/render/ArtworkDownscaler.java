@@ -0,0 +1,239 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.graphics.Point;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.view.Display;
+import android.view.WindowManager;
+
+import com.google.android.apps.muzei.settings.Prefs;
+
+import net.nurik.roman.muzei.BuildConfig;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Re-encodes newly downloaded artwork at a resolution suited to this device before it is moved
+ * into its cache file, so that everything that later reads the file (the renderer, widgets,
+ * notifications, wear, thumbnails and the direct boot copy) decodes a smaller image.
+ *
+ * <p>The renderer scales artwork to fit the screen's height, so images taller than the largest
+ * dimension of any of the display's modes, plus {@link #ZOOM_HEADROOM} to keep detail for
+ * zooming in, are scaled down to that height. Any EXIF orientation is applied to the pixels, as
+ * the re-encoded JPEG has no EXIF data, and the original upright size is recorded in
+ * {@link com.google.android.apps.muzei.provider.MuzeiProvider#getOriginalSizeFile}.
+ */
+public class ArtworkDownscaler {
+    private static final String TAG = "ArtworkDownscaler";
+
+    private static final float ZOOM_HEADROOM = 1.5f;
+    private static final int JPEG_QUALITY = 90;
+
+    private static final AtomicInteger sDownscaledCount = new AtomicInteger();
+    private static final AtomicLong sBytesSaved = new AtomicLong();
+
+    public static boolean isEnabled(Context context) {
+        return Prefs.getSharedPreferences(context)
+                .getBoolean(Prefs.PREF_DOWNSCALE_ARTWORK, false);
+    }
+
+    /**
+     * Returns the tallest that artwork needs to be on this device.
+     */
+    static int getMaxArtworkHeight(Context context) {
+        WindowManager windowManager = (WindowManager)
+                context.getSystemService(Context.WINDOW_SERVICE);
+        Display display = windowManager.getDefaultDisplay();
+        DisplayMetrics displayMetrics = new DisplayMetrics();
+        display.getRealMetrics(displayMetrics);
+        int maxDimension = Math.max(displayMetrics.widthPixels, displayMetrics.heightPixels);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            // The display may switch to a higher resolution mode later
+            for (Display.Mode mode : display.getSupportedModes()) {
+                maxDimension = Math.max(maxDimension,
+                        Math.max(mode.getPhysicalWidth(), mode.getPhysicalHeight()));
+            }
+        }
+        return (int) (maxDimension * ZOOM_HEADROOM);
+    }
+
+    /**
+     * Downscales the downloaded image in the given file in place if downscaling is enabled and
+     * the image is taller than this device needs, recording its original size in the given
+     * file. This should be called on a background thread.
+     */
+    public static void downscale(Context context, File file, File originalSizeFile) {
+        if (!isEnabled(context)) {
+            return;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return;
+        }
+        int rotation = ImageUtil.getRotation(context.getContentResolver(), Uri.fromFile(file));
+        boolean swapDimensions = rotation == 90 || rotation == 270;
+        int originalWidth = swapDimensions ? options.outHeight : options.outWidth;
+        int originalHeight = swapDimensions ? options.outWidth : options.outHeight;
+        int maxHeight = getMaxArtworkHeight(context);
+        if (originalHeight <= maxHeight) {
+            return;
+        }
+
+        long startTime = SystemClock.elapsedRealtime();
+        File tempFile = new File(file.getPath() + ".downscaled");
+        int width;
+        int height;
+        try {
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = ImageUtil.calculateSampleSize(originalHeight, maxHeight);
+            Bitmap sampledBitmap = BitmapFactory.decodeFile(file.getPath(), options);
+            if (sampledBitmap == null) {
+                return;
+            }
+            float scale = maxHeight / (float) (swapDimensions
+                    ? sampledBitmap.getWidth() : sampledBitmap.getHeight());
+            Matrix matrix = new Matrix();
+            matrix.setScale(scale, scale);
+            matrix.postRotate(rotation);
+            Bitmap bitmap = Bitmap.createBitmap(sampledBitmap, 0, 0,
+                    sampledBitmap.getWidth(), sampledBitmap.getHeight(), matrix, true);
+            if (bitmap != sampledBitmap) {
+                sampledBitmap.recycle();
+            }
+            width = bitmap.getWidth();
+            height = bitmap.getHeight();
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile))) {
+                if (!bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out)) {
+                    throw new IOException("Unable to encode downscaled artwork");
+                }
+            } finally {
+                bitmap.recycle();
+            }
+        } catch (IOException | OutOfMemoryError e) {
+            Log.w(TAG, "Error downscaling " + file.getName(), e);
+            deleteIfExists(tempFile);
+            return;
+        }
+        long decodeMillis = SystemClock.elapsedRealtime() - startTime;
+
+        long bytesSaved = file.length() - tempFile.length();
+        if (bytesSaved <= 0) {
+            // Re-encoding already compact images can make them larger
+            deleteIfExists(tempFile);
+            return;
+        }
+        try {
+            writeOriginalSize(originalSizeFile, originalWidth, originalHeight);
+        } catch (IOException e) {
+            Log.w(TAG, "Error recording original size of " + file.getName(), e);
+        }
+        if (!tempFile.renameTo(file)) {
+            Log.w(TAG, "Unable to rename " + tempFile + " to " + file);
+            deleteIfExists(tempFile);
+            deleteIfExists(originalSizeFile);
+            return;
+        }
+        sDownscaledCount.incrementAndGet();
+        sBytesSaved.addAndGet(bytesSaved);
+        if (BuildConfig.DEBUG) {
+            // Compare how long it takes to get a full resolution image from each file
+            long downscaledStartTime = SystemClock.elapsedRealtime();
+            Bitmap downscaledBitmap = BitmapFactory.decodeFile(file.getPath());
+            long downscaledDecodeMillis = SystemClock.elapsedRealtime() - downscaledStartTime;
+            if (downscaledBitmap != null) {
+                downscaledBitmap.recycle();
+            }
+            Log.d(TAG, "Downscaled " + file.getName() + " from " + originalWidth + "x"
+                    + originalHeight + " to " + width + "x" + height + ", saving " + bytesSaved
+                    + " bytes, decode " + decodeMillis + "ms -> " + downscaledDecodeMillis
+                    + "ms. Downscaled " + getDownscaledCount() + " images, saving "
+                    + getBytesSaved() + " bytes");
+        }
+    }
+
+    /**
+     * Returns the original upright size of the downscaled image whose size was recorded in the
+     * given file, or null if the image wasn't downscaled.
+     */
+    @Nullable
+    public static Point getOriginalSize(File originalSizeFile) {
+        if (!originalSizeFile.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(originalSizeFile)))) {
+            return new Point(in.readInt(), in.readInt());
+        } catch (IOException e) {
+            Log.w(TAG, "Error reading " + originalSizeFile, e);
+            return null;
+        }
+    }
+
+    private static void writeOriginalSize(File originalSizeFile, int width, int height)
+            throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(originalSizeFile)))) {
+            out.writeInt(width);
+            out.writeInt(height);
+        }
+    }
+
+    private static void deleteIfExists(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Unable to delete " + file);
+        }
+    }
+
+    /**
+     * Returns the number of images that have been downscaled.
+     */
+    public static int getDownscaledCount() {
+        return sDownscaledCount.get();
+    }
+
+    /**
+     * Returns the number of bytes of storage downscaling has saved.
+     */
+    public static long getBytesSaved() {
+        return sBytesSaved.get();
+    }
+
+    private ArtworkDownscaler() {
+    }
+}
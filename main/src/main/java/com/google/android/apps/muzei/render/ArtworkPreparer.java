@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Does the expensive work of loading artwork ahead of time, so that artwork downloaded before
+ * it is published can be swapped in without waiting on it: the tile pyramid, the compressed
+ * tiles if enabled, and the blurred keyframes, which are cached for the render settings the
+ * wallpaper last used.
+ */
+public class ArtworkPreparer {
+    private static final String TAG = "ArtworkPreparer";
+
+    /**
+     * Prepares the given artwork file. This must not be called on the main thread.
+     */
+    public static void prepare(Context context, File artworkFile) {
+        if (!artworkFile.exists()) {
+            return;
+        }
+        TilePyramidGenerator.generateAndWait(context, artworkFile);
+        Etc1TileCompressor.compressAndWait(context, artworkFile);
+        prepareKeyframes(context, artworkFile);
+    }
+
+    private static void prepareKeyframes(Context context, File artworkFile) {
+        PictureSetDecoder decoder = PictureSetDecoder.fromSavedSettings(context);
+        if (decoder == null) {
+            // The wallpaper hasn't loaded any artwork yet, so keyframe sizes aren't known
+            return;
+        }
+        String artworkKey = KeyframeCache.buildArtworkKey(artworkFile);
+        if (artworkKey == null) {
+            return;
+        }
+        BitmapRegionLoader bitmapRegionLoader = null;
+        try {
+            bitmapRegionLoader = BitmapRegionLoader.newInstance(
+                    new FileInputStream(artworkFile),
+                    ImageUtil.getRotation(context.getContentResolver(),
+                            Uri.fromFile(artworkFile)));
+            if (bitmapRegionLoader == null) {
+                return;
+            }
+            bitmapRegionLoader.setArtworkKey(artworkKey);
+            decoder.prepareKeyframes(bitmapRegionLoader);
+        } catch (IOException e) {
+            Log.w(TAG, "Error preparing keyframes of " + artworkFile.getName(), e);
+        } finally {
+            if (bitmapRegionLoader != null) {
+                bitmapRegionLoader.destroy();
+            }
+        }
+    }
+
+    private ArtworkPreparer() {
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import net.nurik.roman.muzei.BuildConfig;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens the current artwork on a background thread whenever a reload is requested, where only
+ * the latest request wins:
+ * <ul>
+ * <li>Requests made while a reload is still waiting to start are coalesced into it.</li>
+ * <li>Every request bumps a generation number, and a reload whose generation has been
+ * superseded by the time the artwork is opened is cancelled rather than delivered.</li>
+ * <li>Reloads that aren't forced are skipped if the artwork, as identified by its key, is the
+ * one that was last delivered. Forced reloads are used when render settings change.</li>
+ * </ul>
+ */
+class ArtworkReloadScheduler {
+    private static final String TAG = "ArtworkReloadScheduler";
+
+    private final Callbacks mCallbacks;
+    private final ExecutorService mExecutorService = Executors.newSingleThreadExecutor();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Guarded by this
+    private int mGeneration = 0;
+    private boolean mReloadQueued = false;
+    private boolean mPendingForceReload = false;
+    private String mLastDeliveredKey;
+
+    private final AtomicInteger mRequestedCount = new AtomicInteger();
+    private final AtomicInteger mCoalescedCount = new AtomicInteger();
+    private final AtomicInteger mCancelledCount = new AtomicInteger();
+    private final AtomicInteger mCompletedCount = new AtomicInteger();
+
+    private final Runnable mReloadRunnable = new Runnable() {
+        @Override
+        public void run() {
+            reload();
+        }
+    };
+
+    ArtworkReloadScheduler(Callbacks callbacks) {
+        mCallbacks = callbacks;
+    }
+
+    /**
+     * Requests a reload of the current artwork. May be called from any thread.
+     *
+     * @param forceReload true to reload even if the artwork hasn't changed
+     */
+    synchronized void requestReload(boolean forceReload) {
+        if (mExecutorService.isShutdown()) {
+            // Don't reload artwork for destroyed schedulers
+            return;
+        }
+        mRequestedCount.incrementAndGet();
+        mGeneration++;
+        mPendingForceReload |= forceReload;
+        if (mReloadQueued) {
+            // The queued reload hasn't started yet, so it will pick up this request
+            mCoalescedCount.incrementAndGet();
+            return;
+        }
+        mReloadQueued = true;
+        mExecutorService.execute(mReloadRunnable);
+    }
+
+    private void reload() {
+        int generation;
+        boolean forceReload;
+        synchronized (this) {
+            generation = mGeneration;
+            forceReload = mPendingForceReload;
+            mPendingForceReload = false;
+            mReloadQueued = false;
+        }
+
+        final String artworkKey = mCallbacks.getCurrentArtworkKey();
+        if (!forceReload && artworkKey != null && artworkKey.equals(getLastDeliveredKey())) {
+            // The same artwork was already loaded with the current settings
+            mCoalescedCount.incrementAndGet();
+            return;
+        }
+
+        final BitmapRegionLoader bitmapRegionLoader = mCallbacks.openCurrentArtwork(forceReload);
+        if (cancelIfSuperseded(generation, forceReload)) {
+            if (bitmapRegionLoader != null) {
+                bitmapRegionLoader.destroy();
+            }
+            mCancelledCount.incrementAndGet();
+            return;
+        }
+        if (bitmapRegionLoader == null) {
+            return;
+        } else if (bitmapRegionLoader.getWidth() == 0 || bitmapRegionLoader.getHeight() == 0) {
+            bitmapRegionLoader.destroy();
+            return;
+        }
+
+        bitmapRegionLoader.setArtworkKey(artworkKey);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mExecutorService.isShutdown()) {
+                    bitmapRegionLoader.destroy();
+                    return;
+                }
+                mCompletedCount.incrementAndGet();
+                mCallbacks.onArtworkLoaded(bitmapRegionLoader);
+                setLastDeliveredKey(artworkKey);
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "Reloads requested: " + getRequestedCount()
+                            + ", coalesced: " + getCoalescedCount()
+                            + ", cancelled: " + getCancelledCount()
+                            + ", completed: " + getCompletedCount());
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns whether a newer request has superseded the reload of the given generation. A
+     * cancelled forced reload hands its force flag on to the reload that superseded it, so
+     * that the newer reload isn't skipped as a no-op.
+     */
+    private synchronized boolean cancelIfSuperseded(int generation, boolean forceReload) {
+        if (generation == mGeneration) {
+            return false;
+        }
+        mPendingForceReload |= forceReload;
+        return true;
+    }
+
+    private synchronized String getLastDeliveredKey() {
+        return mLastDeliveredKey;
+    }
+
+    private synchronized void setLastDeliveredKey(String artworkKey) {
+        mLastDeliveredKey = artworkKey;
+    }
+
+    /**
+     * Cancels any queued reload. Artwork opened after this is destroyed instead of delivered.
+     */
+    synchronized void destroy() {
+        mExecutorService.shutdownNow();
+    }
+
+    /**
+     * Returns the number of reloads that have been requested.
+     */
+    int getRequestedCount() {
+        return mRequestedCount.get();
+    }
+
+    /**
+     * Returns the number of requests that were merged into another reload, or skipped because
+     * the artwork hadn't changed.
+     */
+    int getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+
+    /**
+     * Returns the number of reloads that were discarded because a newer request superseded
+     * them while the artwork was being opened.
+     */
+    int getCancelledCount() {
+        return mCancelledCount.get();
+    }
+
+    /**
+     * Returns the number of reloads whose artwork was delivered to the renderer.
+     */
+    int getCompletedCount() {
+        return mCompletedCount.get();
+    }
+
+    interface Callbacks {
+        /**
+         * Returns a key identifying the current artwork and its contents, or null if it can't
+         * be identified. Called on a background thread.
+         */
+        String getCurrentArtworkKey();
+
+        /**
+         * Opens the current artwork. Called on a background thread.
+         */
+        BitmapRegionLoader openCurrentArtwork(boolean forceReload);
+
+        /**
+         * Called on the main thread with newly opened artwork, which the callee then owns.
+         */
+        void onArtworkLoaded(BitmapRegionLoader bitmapRegionLoader);
+    }
+}
@@ -16,39 +16,113 @@
 
 package com.google.android.apps.muzei.render;
 
+import android.app.ActivityManager;
+import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.Log;
 
+import com.google.android.apps.muzei.util.TilePyramidFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import static android.graphics.BitmapFactory.Options;
 
 /**
  * Wrapper for {@link BitmapRegionDecoder} with some extra functionality.
+ *
+ * <p>A loader can optionally own a pool of independent decoders over the same image data, in
+ * which case {@link #decodeRegions(List, Options)} decodes regions in parallel. Since every
+ * decoder holds a copy of the encoded image, the pool should be released with
+ * {@link #releaseExtraDecoders()} once the initial parallel decode is done.
+ *
+ * <p>If the image has a {@link TilePyramidFile}, regions are assembled from the tiles of the
+ * pyramid level closest to the requested sample size instead of being decoded from the image.
  */
 public class BitmapRegionLoader {
+    private static final String TAG = "BitmapRegionLoader";
+
+    private static final int MAX_DECODER_COUNT = 4;
+
+    // Each decoder keeps its own native copy of the encoded image, so the pool is limited to
+    // this many bytes of encoded data across all of its decoders
+    private static final int MAX_POOLED_DATA_BYTES = 32 * 1024 * 1024;
+
     private boolean mValid = false;
     private int mRotation = 0;
     private int mOriginalWidth;
     private int mOriginalHeight;
-    private Rect mTempRect = new Rect();
     private InputStream mInputStream;
-    private volatile BitmapRegionDecoder mBitmapRegionDecoder;
+    private final ArrayDeque<BitmapRegionDecoder> mIdleDecoders = new ArrayDeque<>();
+    // Guarded by mIdleDecoders
+    private int mDecoderCount;
+    private int mMaxDecoderCount;
+    private boolean mDestroyed = false;
+    private ExecutorService mExecutorService;
     private Matrix mRotateMatrix;
+    private String mArtworkKey;
+    private File mCompressedTilesFile;
+    private volatile TilePyramidFile mTilePyramid;
+
+    /**
+     * Returns the number of decoders worth using for parallel decoding on this device.
+     */
+    public static int getRecommendedDecoderCount(Context context) {
+        ActivityManager activityManager = (ActivityManager)
+                context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (activityManager.isLowRamDevice()) {
+            return 1;
+        }
+        return Math.max(1, Math.min(MAX_DECODER_COUNT,
+                Runtime.getRuntime().availableProcessors()));
+    }
 
     public static BitmapRegionLoader newInstance(InputStream in) throws IOException {
         return newInstance(in, 0);
     }
 
     public static BitmapRegionLoader newInstance(InputStream in, int rotation) throws IOException {
+        return newInstance(in, rotation, 1);
+    }
+
+    /**
+     * Creates a loader with <code>decoderCount</code> independent decoders over the image in the
+     * given stream. With more than one decoder, the stream is read fully into memory so that
+     * each decoder can be created over the same data, and fewer decoders are created if the
+     * image is too large for that many copies of it.
+     */
+    public static BitmapRegionLoader newInstance(InputStream in, int rotation, int decoderCount)
+            throws IOException {
         if (in == null) {
             return null;
         }
 
-        BitmapRegionLoader loader = new BitmapRegionLoader(in);
+        BitmapRegionLoader loader = new BitmapRegionLoader(in, Math.max(1, decoderCount));
         if (loader.mValid) {
             loader.mRotation = rotation;
             if (loader.mRotation != 0) {
@@ -58,27 +132,278 @@ public class BitmapRegionLoader {
             return loader;
         }
 
+        loader.destroy();
         return null;
     }
 
-    private BitmapRegionLoader(InputStream in) throws IOException {
+    private BitmapRegionLoader(InputStream in, int decoderCount) throws IOException {
         mInputStream = in;
-        mBitmapRegionDecoder = BitmapRegionDecoder.newInstance(in, false);
-        if (mBitmapRegionDecoder != null) {
-            mOriginalWidth = mBitmapRegionDecoder.getWidth();
-            mOriginalHeight = mBitmapRegionDecoder.getHeight();
+        long size = getKnownSize(in);
+        if (size > 0) {
+            decoderCount = (int) Math.max(1, Math.min(decoderCount,
+                    MAX_POOLED_DATA_BYTES / size));
+        }
+        byte[] data = null;
+        if (decoderCount > 1) {
+            // Only buffer as much as two decoders' worth of the image, since an image any
+            // larger than that only gets one decoder anyways
+            data = readAtMost(in, MAX_POOLED_DATA_BYTES / 2 + 1);
+            if (data.length > MAX_POOLED_DATA_BYTES / 2) {
+                in = new SequenceInputStream(new ByteArrayInputStream(data), in);
+                data = null;
+            }
+        }
+        if (data == null) {
+            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(in, false);
+            if (decoder != null) {
+                mIdleDecoders.push(decoder);
+            }
+        } else {
+            decoderCount = Math.max(1, Math.min(decoderCount,
+                    MAX_POOLED_DATA_BYTES / Math.max(1, data.length)));
+            for (int i = 0; i < decoderCount; i++) {
+                BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(
+                        data, 0, data.length, false);
+                if (decoder == null) {
+                    break;
+                }
+                mIdleDecoders.push(decoder);
+            }
+        }
+        mDecoderCount = mIdleDecoders.size();
+        mMaxDecoderCount = mDecoderCount;
+        BitmapRegionDecoder decoder = mIdleDecoders.peek();
+        if (decoder != null) {
+            mOriginalWidth = decoder.getWidth();
+            mOriginalHeight = decoder.getHeight();
             if (mOriginalWidth > 0 && mOriginalHeight > 0) {
                 mValid = true;
             }
         }
     }
 
+    /**
+     * Returns the number of bytes left in the given stream if it reads a file, or -1 if that
+     * isn't known without reading it.
+     */
+    private static long getKnownSize(InputStream in) {
+        if (!(in instanceof FileInputStream)) {
+            return -1;
+        }
+        try {
+            FileChannel channel = ((FileInputStream) in).getChannel();
+            return channel.size() - channel.position();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads the given stream into memory until it ends or <code>limit</code> bytes have been
+     * read, whichever comes first.
+     */
+    private static byte[] readAtMost(InputStream in, int limit) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int bytes;
+        while (out.size() < limit
+                && (bytes = in.read(buffer, 0, Math.min(buffer.length, limit - out.size())))
+                != -1) {
+            out.write(buffer, 0, bytes);
+        }
+        return out.toByteArray();
+    }
+
     /**
      * Key difference, aside from support for rotation, from
      * {@link BitmapRegionDecoder#decodeRegion(Rect, Options)} in this implementation is that even
      * if <code>inBitmap</code> is given, a sub-bitmap might be returned.
+     *
+     * <p>This is safe to call from multiple threads; calls are spread across the decoders owned
+     * by this loader, waiting for one to become available if necessary.
+     */
+    public Bitmap decodeRegion(Rect rect, Options options) {
+        TilePyramidFile tilePyramid = mTilePyramid;
+        if (tilePyramid != null && (options == null || options.inBitmap == null)) {
+            try {
+                return decodeRegionFromPyramid(tilePyramid, rect, options);
+            } catch (IOException e) {
+                Log.w(TAG, "Error reading tile pyramid, decoding the image instead", e);
+            }
+        }
+
+        BitmapRegionDecoder decoder = acquireDecoder();
+        if (decoder == null) {
+            return null;
+        }
+        try {
+            return decodeRegion(decoder, rect, options);
+        } finally {
+            releaseDecoder(decoder);
+        }
+    }
+
+    /**
+     * Decodes each of the given regions, in parallel across this loader's decoders if it has
+     * more than one. Results are returned in the same order as the given regions, with null
+     * for any region that failed to decode. <code>inBitmap</code> is not supported.
+     */
+    public List<Bitmap> decodeRegions(List<Rect> rects, Options options) {
+        List<Bitmap> bitmaps = new ArrayList<>(rects.size());
+        ExecutorService executorService = getDecoderCount() > 1 ? getExecutorService() : null;
+        if (executorService == null) {
+            for (Rect rect : rects) {
+                bitmaps.add(decodeRegion(rect, copyOptions(options)));
+            }
+            return bitmaps;
+        }
+
+        List<Future<Bitmap>> futures = new ArrayList<>(rects.size());
+        try {
+            for (final Rect rect : rects) {
+                final Options taskOptions = copyOptions(options);
+                futures.add(executorService.submit(new Callable<Bitmap>() {
+                    @Override
+                    public Bitmap call() throws Exception {
+                        return decodeRegion(rect, taskOptions);
+                    }
+                }));
+            }
+        } catch (RejectedExecutionException e) {
+            // Destroyed while submitting; whatever was submitted is still collected below
+        }
+        for (int i = 0; i < rects.size(); i++) {
+            Bitmap bitmap = null;
+            if (i < futures.size()) {
+                try {
+                    bitmap = futures.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    futures.get(i).cancel(true);
+                } catch (ExecutionException|CancellationException e) {
+                    Log.w(TAG, "Error decoding region " + rects.get(i).toShortString(), e);
+                }
+            }
+            bitmaps.add(bitmap);
+        }
+        return bitmaps;
+    }
+
+    private ExecutorService getExecutorService() {
+        synchronized (mIdleDecoders) {
+            if (mExecutorService == null && !mDestroyed) {
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(mDecoderCount,
+                        mDecoderCount, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+                executor.allowCoreThreadTimeOut(true);
+                mExecutorService = executor;
+            }
+            return mExecutorService;
+        }
+    }
+
+    private static Options copyOptions(Options options) {
+        Options copy = new Options();
+        if (options != null) {
+            copy.inSampleSize = options.inSampleSize;
+            copy.inPreferredConfig = options.inPreferredConfig;
+        }
+        return copy;
+    }
+
+    private BitmapRegionDecoder acquireDecoder() {
+        synchronized (mIdleDecoders) {
+            while (!mDestroyed && mIdleDecoders.isEmpty()) {
+                try {
+                    mIdleDecoders.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            return mDestroyed ? null : mIdleDecoders.pop();
+        }
+    }
+
+    private void releaseDecoder(BitmapRegionDecoder decoder) {
+        synchronized (mIdleDecoders) {
+            if (mDestroyed) {
+                decoder.recycle();
+            } else if (mDecoderCount > mMaxDecoderCount) {
+                decoder.recycle();
+                mDecoderCount--;
+            } else {
+                mIdleDecoders.push(decoder);
+                mIdleDecoders.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Assembles the given region from the tiles of the pyramid level closest to the requested
+     * sample size, further sampling tiles as they are decoded if that level is still finer than
+     * requested. Pyramid tiles are already upright, so no rotation is needed.
      */
-    public synchronized Bitmap decodeRegion(Rect rect, Options options) {
+    private Bitmap decodeRegionFromPyramid(TilePyramidFile tilePyramid, Rect rect,
+            Options options) throws IOException {
+        int sampleSize = Math.max(1, options != null ? options.inSampleSize : 1);
+        int level = tilePyramid.getLevelForSampleSize(sampleSize);
+        int levelSampleSize = 1 << level;
+        int tileSampleSize = Math.max(1, sampleSize / levelSampleSize);
+        int tileSize = tilePyramid.getTileSize();
+
+        // The region within the level, and the size of the result after any further sampling
+        float levelLeft = rect.left * 1f / levelSampleSize;
+        float levelTop = rect.top * 1f / levelSampleSize;
+        float levelRight = rect.right * 1f / levelSampleSize;
+        float levelBottom = rect.bottom * 1f / levelSampleSize;
+        float scale = 1f / tileSampleSize;
+        int width = Math.max(1, rect.width() / sampleSize);
+        int height = Math.max(1, rect.height() / sampleSize);
+
+        Bitmap.Config config = options != null && options.inPreferredConfig != null
+                ? options.inPreferredConfig
+                : Bitmap.Config.ARGB_8888;
+        Bitmap bitmap = Bitmap.createBitmap(width, height, config);
+        Canvas canvas = new Canvas(bitmap);
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+        BitmapFactory.Options tileOptions = new BitmapFactory.Options();
+        tileOptions.inSampleSize = tileSampleSize;
+        tileOptions.inPreferredConfig = config;
+        RectF destination = new RectF();
+        int firstCol = (int) (levelLeft / tileSize);
+        int lastCol = Math.min(tilePyramid.getCols(level) - 1,
+                (int) Math.ceil(levelRight / tileSize) - 1);
+        int firstRow = (int) (levelTop / tileSize);
+        int lastRow = Math.min(tilePyramid.getRows(level) - 1,
+                (int) Math.ceil(levelBottom / tileSize) - 1);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                byte[] data = tilePyramid.readTile(level, col, row);
+                Bitmap tile = data != null
+                        ? BitmapFactory.decodeByteArray(data, 0, data.length, tileOptions)
+                        : null;
+                if (tile == null) {
+                    bitmap.recycle();
+                    throw new IOException("Unable to read tile " + col + "," + row
+                            + " of level " + level);
+                }
+                int tileLevelWidth = Math.min(tileSize,
+                        tilePyramid.getWidth(level) - col * tileSize);
+                int tileLevelHeight = Math.min(tileSize,
+                        tilePyramid.getHeight(level) - row * tileSize);
+                destination.set(
+                        (col * tileSize - levelLeft) * scale,
+                        (row * tileSize - levelTop) * scale,
+                        (col * tileSize + tileLevelWidth - levelLeft) * scale,
+                        (row * tileSize + tileLevelHeight - levelTop) * scale);
+                canvas.drawBitmap(tile, null, destination, paint);
+                tile.recycle();
+            }
+        }
+        return bitmap;
+    }
+
+    private Bitmap decodeRegion(BitmapRegionDecoder decoder, Rect rect, Options options) {
         int unsampledInBitmapWidth = -1;
         int unsampledInBitmapHeight = -1;
         int sampleSize = Math.max(1, options != null ? options.inSampleSize : 1);
@@ -88,42 +413,43 @@ public class BitmapRegionLoader {
         }
 
         // Decode with rotation
+        Rect tempRect = new Rect();
         switch (mRotation) {
             case 90:
-                mTempRect.set(
+                tempRect.set(
                         rect.top, mOriginalHeight - rect.right,
                         rect.bottom, mOriginalHeight - rect.left);
                 break;
 
             case 180:
-                mTempRect.set(
+                tempRect.set(
                         mOriginalWidth - rect.right, mOriginalHeight - rect.bottom,
                         mOriginalWidth - rect.left, mOriginalHeight - rect.top);
                 break;
 
             case 270:
-                mTempRect.set(
+                tempRect.set(
                         mOriginalWidth - rect.bottom, rect.left,
                         mOriginalWidth - rect.top, rect.right);
                 break;
 
             default:
-                mTempRect.set(rect);
+                tempRect.set(rect);
         }
 
-        Bitmap bitmap = mBitmapRegionDecoder.decodeRegion(mTempRect, options);
+        Bitmap bitmap = decoder.decodeRegion(tempRect, options);
         if (bitmap == null) {
             return null;
         }
 
         if (options != null && options.inBitmap != null &&
-                ((mTempRect.width() != unsampledInBitmapWidth
-                        || mTempRect.height() != unsampledInBitmapHeight))) {
+                ((tempRect.width() != unsampledInBitmapWidth
+                        || tempRect.height() != unsampledInBitmapHeight))) {
             // Need to extract the sub-bitmap
             Bitmap subBitmap = Bitmap.createBitmap(
                     bitmap, 0, 0,
-                    mTempRect.width() / sampleSize,
-                    mTempRect.height() / sampleSize);
+                    tempRect.width() / sampleSize,
+                    tempRect.height() / sampleSize);
             if (bitmap != options.inBitmap && bitmap != subBitmap) {
                 bitmap.recycle();
             }
@@ -145,20 +471,100 @@ public class BitmapRegionLoader {
         return bitmap;
     }
 
-    public synchronized int getWidth() {
+    /**
+     * Sets a key that uniquely identifies the image this loader decodes, including its contents.
+     * When set, work derived from the image, such as blurred keyframes, can be cached under it.
+     */
+    public void setArtworkKey(String artworkKey) {
+        mArtworkKey = artworkKey;
+    }
+
+    public String getArtworkKey() {
+        return mArtworkKey;
+    }
+
+    /**
+     * Sets the file that ETC1 compressed tiles of the image are stored in, if they have been
+     * generated by {@link Etc1TileCompressor}.
+     */
+    public void setCompressedTilesFile(File compressedTilesFile) {
+        mCompressedTilesFile = compressedTilesFile;
+    }
+
+    public File getCompressedTilesFile() {
+        return mCompressedTilesFile;
+    }
+
+    /**
+     * Sets the tile pyramid generated from the image by {@link TilePyramidGenerator} to read
+     * regions from. The loader takes ownership of the pyramid, which is ignored if it doesn't
+     * match the image.
+     */
+    public void setTilePyramid(TilePyramidFile tilePyramid) {
+        if (tilePyramid != null && (tilePyramid.getWidth() != getWidth()
+                || tilePyramid.getHeight() != getHeight())) {
+            closeTilePyramid(tilePyramid);
+            return;
+        }
+        mTilePyramid = tilePyramid;
+    }
+
+    private static void closeTilePyramid(TilePyramidFile tilePyramid) {
+        try {
+            tilePyramid.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public int getDecoderCount() {
+        synchronized (mIdleDecoders) {
+            return mDecoderCount;
+        }
+    }
+
+    /**
+     * Recycles all but one of this loader's decoders, freeing their copies of the image. Use
+     * this once the parallel decoding is done if the loader is kept around for further decodes.
+     * Decoders that are still in use are recycled as they are released.
+     */
+    public void releaseExtraDecoders() {
+        synchronized (mIdleDecoders) {
+            mMaxDecoderCount = 1;
+            while (mDecoderCount > mMaxDecoderCount && !mIdleDecoders.isEmpty()) {
+                mIdleDecoders.pop().recycle();
+                mDecoderCount--;
+            }
+        }
+    }
+
+    public int getWidth() {
         return (mRotation == 90 || mRotation == 270) ? mOriginalHeight : mOriginalWidth;
     }
 
-    public synchronized int getHeight() {
+    public int getHeight() {
         return (mRotation == 90 || mRotation == 270) ? mOriginalWidth : mOriginalHeight;
     }
 
-    public synchronized void destroy() {
-        mBitmapRegionDecoder.recycle();
-        mBitmapRegionDecoder = null;
+    public void destroy() {
+        synchronized (mIdleDecoders) {
+            mDestroyed = true;
+            if (mExecutorService != null) {
+                mExecutorService.shutdownNow();
+            }
+            // Decoders that are still in use are recycled as they are released
+            for (BitmapRegionDecoder decoder : mIdleDecoders) {
+                decoder.recycle();
+            }
+            mIdleDecoders.clear();
+            mIdleDecoders.notifyAll();
+        }
         try {
             mInputStream.close();
         } catch (IOException ignored) {
         }
+        if (mTilePyramid != null) {
+            closeTilePyramid(mTilePyramid);
+            mTilePyramid = null;
+        }
     }
 }
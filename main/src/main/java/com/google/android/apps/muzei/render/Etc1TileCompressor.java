@@ -0,0 +1,186 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.apps.muzei.provider.MuzeiProvider;
+import com.google.android.apps.muzei.settings.Prefs;
+
+import net.nurik.roman.muzei.BuildConfig;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compresses the sharp tiles of downloaded artwork to ETC1 once, on a background thread, and
+ * stores them in an {@link Etc1TileFile} beside the artwork file. Later loads of the artwork
+ * upload those tiles directly rather than decoding the image again, and the compressed
+ * textures use a quarter of the GPU memory of RGB565 tiles.
+ */
+public class Etc1TileCompressor {
+    private static final String TAG = "Etc1TileCompressor";
+
+    private static ExecutorService sExecutorService;
+
+    private static synchronized ExecutorService getExecutorService() {
+        if (sExecutorService == null) {
+            sExecutorService = Executors.newSingleThreadExecutor();
+        }
+        return sExecutorService;
+    }
+
+    public static boolean isEnabled(Context context) {
+        return Prefs.getSharedPreferences(context).getBoolean(Prefs.PREF_COMPRESS_TILES, false);
+    }
+
+    /**
+     * Compresses the tiles of the given artwork in the background if compression is enabled
+     * and they haven't already been compressed.
+     */
+    public static void compressInBackground(Context context, final long artworkId) {
+        if (!isEnabled(context)) {
+            return;
+        }
+        final Context applicationContext = context.getApplicationContext();
+        getExecutorService().execute(new Runnable() {
+            @Override
+            public void run() {
+                compress(applicationContext, artworkId);
+            }
+        });
+    }
+
+    private static void compress(Context context, long artworkId) {
+        File artworkFile = MuzeiProvider.getCacheFileForArtworkUri(context, artworkId);
+        if (artworkFile == null || !artworkFile.exists()) {
+            return;
+        }
+        compress(context, artworkFile);
+    }
+
+    /**
+     * Compresses the tiles of the given artwork file if compression is enabled and they haven't
+     * already been compressed, waiting until it is done. This must not be called on the main
+     * thread.
+     */
+    static void compressAndWait(Context context, final File artworkFile) {
+        if (!isEnabled(context)) {
+            return;
+        }
+        final Context applicationContext = context.getApplicationContext();
+        Future<?> future = getExecutorService().submit(new Runnable() {
+            @Override
+            public void run() {
+                compress(applicationContext, artworkFile);
+            }
+        });
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Error compressing tiles of " + artworkFile.getName(), e);
+        }
+    }
+
+    private static void compress(Context context, File artworkFile) {
+        File compressedTilesFile = MuzeiProvider.getCompressedTilesFile(artworkFile);
+        if (compressedTilesFile.exists()) {
+            return;
+        }
+
+        long startTime = SystemClock.elapsedRealtime();
+        BitmapRegionLoader bitmapRegionLoader = null;
+        File tempFile = new File(compressedTilesFile.getPath() + ".tmp");
+        try {
+            bitmapRegionLoader = BitmapRegionLoader.newInstance(
+                    new FileInputStream(artworkFile),
+                    ImageUtil.getRotation(context.getContentResolver(),
+                            Uri.fromFile(artworkFile)));
+            if (bitmapRegionLoader == null) {
+                return;
+            }
+
+            // Use the same tile layout the renderer will ask for on this screen
+            TileSet tileSet = TileSet.decode(bitmapRegionLoader,
+                    ImageUtil.getScreenHeight(context), GLPicture.MAX_TILE_SIZE,
+                    Bitmap.Config.ARGB_8888);
+            if (tileSet == null) {
+                return;
+            }
+            Etc1TileFile etc1TileFile = new Etc1TileFile(
+                    bitmapRegionLoader.getWidth(), bitmapRegionLoader.getHeight(),
+                    tileSet.getWidth(), tileSet.getHeight(), tileSet.getTileSize(),
+                    tileSet.getCols(), tileSet.getRows());
+            int[] pixels = null;
+            for (int i = 0; i < tileSet.getTileCount(); i++) {
+                Bitmap tile = tileSet.takeTile(i);
+                if (tile == null) {
+                    Log.w(TAG, "Unable to decode tile " + i + " of " + artworkFile.getName());
+                    tileSet.recycle();
+                    return;
+                }
+                int width = tile.getWidth();
+                int height = tile.getHeight();
+                if (pixels == null || pixels.length < width * height) {
+                    pixels = new int[width * height];
+                }
+                tile.getPixels(pixels, 0, width, 0, 0, width, height);
+                tile.recycle();
+                etc1TileFile.setTile(i, pixels, width, height);
+            }
+
+            // Write to a temporary file first so that a partially written file is never read
+            try (OutputStream out = new FileOutputStream(tempFile)) {
+                etc1TileFile.write(out);
+            }
+            if (!tempFile.renameTo(compressedTilesFile)) {
+                Log.w(TAG, "Unable to rename " + tempFile + " to " + compressedTilesFile);
+                return;
+            }
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "Compressed " + tileSet.getTileCount() + " tiles of "
+                        + artworkFile.getName() + " in "
+                        + (SystemClock.elapsedRealtime() - startTime) + "ms");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Error compressing tiles of " + artworkFile.getName(), e);
+        } finally {
+            if (bitmapRegionLoader != null) {
+                bitmapRegionLoader.destroy();
+            }
+            if (tempFile.exists() && !tempFile.delete()) {
+                Log.w(TAG, "Unable to delete " + tempFile);
+            }
+        }
+    }
+
+    private Etc1TileCompressor() {
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+import com.google.android.apps.muzei.util.Etc1Encoder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Container for the ETC1 compressed sharp tiles of an artwork, stored beside the artwork file
+ * so that they only need to be encoded once. This only uses plain Java I/O so that files can be
+ * written and read back off-device.
+ *
+ * <p>The format is a header of big endian ints (magic, version, original image width and
+ * height, picture width and height, tile size, columns and rows) followed by each tile's width,
+ * height, encoded data length and {@link Etc1Encoder} data, in {@link TileSet} order.
+ */
+class Etc1TileFile {
+    private static final int MAGIC = 0x4d455431; // MET1
+    private static final int VERSION = 1;
+
+    final int mOriginalWidth;
+    final int mOriginalHeight;
+    final int mWidth;
+    final int mHeight;
+    final int mTileSize;
+    final int mCols;
+    final int mRows;
+    final int[] mTileWidths;
+    final int[] mTileHeights;
+    final ByteBuffer[] mTileData;
+
+    Etc1TileFile(int originalWidth, int originalHeight, int width, int height, int tileSize,
+            int cols, int rows) {
+        mOriginalWidth = originalWidth;
+        mOriginalHeight = originalHeight;
+        mWidth = width;
+        mHeight = height;
+        mTileSize = tileSize;
+        mCols = cols;
+        mRows = rows;
+        mTileWidths = new int[cols * rows];
+        mTileHeights = new int[cols * rows];
+        mTileData = new ByteBuffer[cols * rows];
+    }
+
+    /**
+     * Encodes the given ARGB pixels as the tile at the given index.
+     */
+    void setTile(int index, int[] pixels, int width, int height) {
+        mTileWidths[index] = width;
+        mTileHeights[index] = height;
+        mTileData[index] = ByteBuffer.wrap(Etc1Encoder.encodeImage(pixels, width, height));
+    }
+
+    void write(OutputStream outputStream) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(mOriginalWidth);
+        out.writeInt(mOriginalHeight);
+        out.writeInt(mWidth);
+        out.writeInt(mHeight);
+        out.writeInt(mTileSize);
+        out.writeInt(mCols);
+        out.writeInt(mRows);
+        for (int i = 0; i < mTileData.length; i++) {
+            if (mTileData[i] == null) {
+                throw new IOException("Missing tile " + i);
+            }
+            byte[] data = mTileData[i].array();
+            out.writeInt(mTileWidths[i]);
+            out.writeInt(mTileHeights[i]);
+            out.writeInt(data.length);
+            out.write(data);
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads a tile file. Tile data is read into direct buffers so that it can be passed
+     * straight to <code>glCompressedTexImage2D</code>.
+     */
+    static Etc1TileFile read(InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Unknown tile file format");
+        }
+        Etc1TileFile file = new Etc1TileFile(in.readInt(), in.readInt(), in.readInt(),
+                in.readInt(), in.readInt(), in.readInt(), in.readInt());
+        byte[] data = null;
+        for (int i = 0; i < file.mTileData.length; i++) {
+            int width = in.readInt();
+            int height = in.readInt();
+            int length = in.readInt();
+            if (length != Etc1Encoder.getEncodedDataSize(width, height)) {
+                throw new IOException("Invalid length " + length + " for tile " + i);
+            }
+            if (data == null || data.length < length) {
+                data = new byte[length];
+            }
+            in.readFully(data, 0, length);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(length).order(ByteOrder.nativeOrder());
+            buffer.put(data, 0, length);
+            buffer.position(0);
+            file.mTileWidths[i] = width;
+            file.mTileHeights[i] = height;
+            file.mTileData[i] = buffer;
+        }
+        return file;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A tiny, already blurred copy of the most recently loaded artwork, persisted so that the
+ * renderer has something to draw on its very first frame after the process starts, rather than
+ * black until the artwork has been decoded and blurred again.
+ *
+ * <p>The snapshot is stored as raw {@link Bitmap.Config#RGB_565} pixels along with the
+ * artwork's aspect ratio and darkness, so that it is positioned and dimmed exactly like the
+ * picture set that replaces it.
+ */
+class FirstFrameSnapshot {
+    private static final String TAG = "FirstFrameSnapshot";
+
+    private static final String FILE_NAME = "first_frame_snapshot";
+    private static final int FORMAT_MAGIC = 0x4d465331; // MFS1
+
+    /**
+     * The snapshot's height as a fraction of the screen height.
+     */
+    static final int SCREEN_HEIGHT_DIVISOR = 8;
+
+    final Bitmap mBitmap;
+    final float mAspectRatio;
+    final float mDarkness;
+
+    FirstFrameSnapshot(Bitmap bitmap, float aspectRatio, float darkness) {
+        mBitmap = bitmap;
+        mAspectRatio = aspectRatio;
+        mDarkness = darkness;
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getCacheDir(), FILE_NAME);
+    }
+
+    /**
+     * Reads the persisted snapshot, or returns null if there isn't one.
+     */
+    @Nullable
+    static FirstFrameSnapshot read(Context context) {
+        File file = getFile(context);
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FORMAT_MAGIC) {
+                throw new IOException("Unknown snapshot format");
+            }
+            float aspectRatio = in.readFloat();
+            float darkness = in.readFloat();
+            int width = in.readInt();
+            int height = in.readInt();
+            byte[] pixels = new byte[width * height * 2];
+            in.readFully(pixels);
+            Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+            bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels));
+            return new FirstFrameSnapshot(bitmap, aspectRatio, darkness);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "Error reading snapshot " + file, e);
+            if (!file.delete()) {
+                Log.w(TAG, "Unable to delete " + file);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Persists this snapshot, replacing any previous one. The bitmap must be
+     * {@link Bitmap.Config#RGB_565}.
+     */
+    void write(Context context) {
+        File file = getFile(context);
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            ByteBuffer pixels = ByteBuffer.allocate(mBitmap.getByteCount());
+            mBitmap.copyPixelsToBuffer(pixels);
+            out.writeInt(FORMAT_MAGIC);
+            out.writeFloat(mAspectRatio);
+            out.writeFloat(mDarkness);
+            out.writeInt(mBitmap.getWidth());
+            out.writeInt(mBitmap.getHeight());
+            out.write(pixels.array(), 0, pixels.position());
+        } catch (IOException e) {
+            Log.w(TAG, "Error writing snapshot " + file, e);
+            if (!tempFile.delete()) {
+                Log.w(TAG, "Unable to delete " + tempFile);
+            }
+            return;
+        }
+        if (!tempFile.renameTo(file)) {
+            Log.w(TAG, "Unable to rename " + tempFile + " to " + file);
+        }
+    }
+}
@@ -17,12 +17,11 @@
 package com.google.android.apps.muzei.render;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Rect;
+import android.graphics.RectF;
+import android.opengl.ETC1Util;
 import android.opengl.GLES20;
 
-import com.google.android.apps.muzei.util.MathUtil;
-
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 
 class GLPicture {
@@ -42,20 +41,33 @@ class GLPicture {
             "precision mediump float;" +
             "uniform sampler2D uTexture;" +
             "uniform float uAlpha;" +
+            "uniform float uDim;" +
+            "uniform float uGrey;" +
             "varying vec2 vTexCoords;" +
             "void main(){" +
-            "  gl_FragColor = texture2D(uTexture, vTexCoords);" +
-            "  gl_FragColor.a = uAlpha;" +
+            "  vec3 color = texture2D(uTexture, vTexCoords).rgb;" +
+            // Desaturate using the same luminance weights as ImageBlurrer, then dim
+            "  float luminance = dot(color, vec3(0.299, 0.587, 0.114));" +
+            "  color = mix(color, vec3(luminance), uGrey) * (1.0 - uDim);" +
+            "  gl_FragColor = vec4(color, uAlpha);" +
             "}";
 
+    /**
+     * The largest tile size used, if supported by the device.
+     */
+    static final int MAX_TILE_SIZE = 512;
+
     // number of coordinates per vertex in this array
     private static final int COORDS_PER_VERTEX = 3;
-    private static final int VERTEX_STRIDE_BYTES = COORDS_PER_VERTEX * GLUtil.BYTES_PER_FLOAT;
-    private static final int VERTICES = 6; // TL, BL, BR, TL, BR, TR
+    private static final int VERTICES_PER_TILE = 6; // TL, BL, BR, TL, BR, TR
 
     // S, T (or X, Y)
     private static final int COORDS_PER_TEXTURE_VERTEX = 2;
-    private static final int TEXTURE_VERTEX_STRIDE_BYTES = COORDS_PER_TEXTURE_VERTEX
+
+    // Positions and texture coordinates are interleaved in a single vertex buffer
+    private static final int FLOATS_PER_VERTEX = COORDS_PER_VERTEX + COORDS_PER_TEXTURE_VERTEX;
+    private static final int VERTEX_STRIDE_BYTES = FLOATS_PER_VERTEX * GLUtil.BYTES_PER_FLOAT;
+    private static final int TEXTURE_COORDS_OFFSET_BYTES = COORDS_PER_VERTEX
             * GLUtil.BYTES_PER_FLOAT;
 
     private static final float[] SQUARE_TEXTURE_VERTICES = {
@@ -70,16 +82,17 @@ class GLPicture {
 
     private boolean mHasContent = false;
 
-    private float[] mVertices = new float[COORDS_PER_VERTEX * VERTICES];
-    private FloatBuffer mVertexBuffer;
-    private FloatBuffer mTextureCoordsBuffer;
+    private int mVertexBufferHandle = 0;
 
     private static int sMaxTextureSize;
+    private static volatile boolean sEtc1Supported;
 
     private static int sProgramHandle;
     private static int sAttribPositionHandle;
     private static int sAttribTextureCoordsHandle;
     private static int sUniformAlphaHandle;
+    private static int sUniformDimHandle;
+    private static int sUniformGreyHandle;
     private static int sUniformTextureHandle;
     private static int sUniformMVPMatrixHandle;
 
@@ -89,6 +102,9 @@ class GLPicture {
     private int mHeight = 0;
     private int mTileSize = sMaxTextureSize;
     private int[] mTextureHandles;
+    private TileSet mPendingTileSet;
+    private TexturePool mTexturePool;
+    private int mNextTileToUpload = 0;
 
     public static void initGl() {
         // Initialize shaders and create/link program
@@ -101,176 +117,255 @@ class GLPicture {
         sUniformMVPMatrixHandle = GLES20.glGetUniformLocation(sProgramHandle, "uMVPMatrix");
         sUniformTextureHandle = GLES20.glGetUniformLocation(sProgramHandle, "uTexture");
         sUniformAlphaHandle = GLES20.glGetUniformLocation(sProgramHandle, "uAlpha");
+        sUniformDimHandle = GLES20.glGetUniformLocation(sProgramHandle, "uDim");
+        sUniformGreyHandle = GLES20.glGetUniformLocation(sProgramHandle, "uGrey");
 
         // Compute max texture size
         int[] maxTextureSize = new int[1];
         GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, maxTextureSize, 0);
         sMaxTextureSize = maxTextureSize[0];
+
+        sEtc1Supported = ETC1Util.isETC1Supported();
     }
 
-    public GLPicture(BitmapRegionLoader bitmapRegionLoader, int maxHeight) {
-        if (bitmapRegionLoader == null || maxHeight == 0) {
+    /**
+     * Returns whether tile sets may hold ETC1 compressed tiles. Only valid after
+     * {@link #initGl()}.
+     */
+    public static boolean isEtc1Supported() {
+        return sEtc1Supported;
+    }
+
+    /**
+     * Creates a picture for the given tiles. No textures are created until the tiles are
+     * uploaded with {@link #uploadNextTile()}; the picture takes ownership of the tile set.
+     * Textures are acquired from and released back to the given pool.
+     */
+    public GLPicture(TileSet tileSet, TexturePool texturePool) {
+        mTexturePool = texturePool;
+        if (tileSet == null) {
             return;
         }
 
         mHasContent = true;
-        mVertexBuffer = GLUtil.newFloatBuffer(mVertices.length);
-        mTextureCoordsBuffer = GLUtil.asFloatBuffer(SQUARE_TEXTURE_VERTICES);
-
-        int originalWidth = bitmapRegionLoader.getWidth();
-        int originalHeight = bitmapRegionLoader.getHeight();
-        int sampleSize = 1;
-        while (originalHeight / (sampleSize << 1) > maxHeight) {
-            sampleSize <<= 1;
-        }
+        mWidth = tileSet.getWidth();
+        mHeight = tileSet.getHeight();
+        mTileSize = tileSet.getTileSize();
+        mCols = tileSet.getCols();
+        mRows = tileSet.getRows();
 
-        mWidth = originalWidth / sampleSize;
-        mHeight = originalHeight / sampleSize;
-
-        mTileSize = Math.min(512, sMaxTextureSize);
-        int unsampledTileSize = mTileSize * sampleSize;
-        int leftoverHeight = originalHeight % unsampledTileSize;
+        mTextureHandles = new int[mCols * mRows];
+        // Tiles of sets that were only laid out are streamed in with setTile()
+        mPendingTileSet = tileSet.isLayoutOnly() ? null : tileSet;
+    }
 
-        // Load m x n textures
-        mCols = MathUtil.intDivideRoundUp(mWidth, mTileSize);
-        mRows = MathUtil.intDivideRoundUp(mHeight, mTileSize);
+    /**
+     * Returns the tile size that should be used for tile sets passed to
+     * {@link #GLPicture(TileSet, TexturePool)}. Only valid after {@link #initGl()}.
+     */
+    public static int getTileSize() {
+        return Math.min(MAX_TILE_SIZE, sMaxTextureSize);
+    }
 
-        mTextureHandles = new int[mCols * mRows];
+    /**
+     * Uploads the next tile that has not yet been loaded into a texture. Must be called on the
+     * GL thread.
+     *
+     * @return true if there are still tiles waiting to be uploaded
+     */
+    public boolean uploadNextTile() {
+        if (mPendingTileSet == null) {
+            return false;
+        }
 
-        Bitmap tileBitmap = Bitmap.createBitmap(mTileSize, mTileSize, Bitmap.Config.ARGB_8888);
-        Rect rect = new Rect();
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inSampleSize = sampleSize;
-        options.inBitmap = tileBitmap;
-        for (int y = 0; y < mRows; y++) {
-            for (int x = 0; x < mCols; x++) {
-                rect.set(x * unsampledTileSize,
-                        (mRows - y - 1) * unsampledTileSize,
-                        (x + 1) * unsampledTileSize,
-                        (mRows - y) * unsampledTileSize);
-                // The bottom tiles must be full tiles for drawing, so only allow edge tiles
-                // at the top
-                if (leftoverHeight > 0) {
-                    rect.offset(0, -unsampledTileSize + leftoverHeight);
-                }
-                rect.intersect(0, 0, originalWidth, originalHeight);
-                Bitmap useBitmap = bitmapRegionLoader.decodeRegion(rect, options);
-                if (useBitmap != null) {
-                    mTextureHandles[y * mCols + x] = GLUtil.loadTexture(useBitmap);
-                    if (useBitmap != tileBitmap) {
-                        useBitmap.recycle();
-                    }
-                }
+        if (mPendingTileSet.isCompressed()) {
+            ByteBuffer tile = mPendingTileSet.takeCompressedTile(mNextTileToUpload);
+            if (tile != null) {
+                mTextureHandles[mNextTileToUpload] = mTexturePool.acquireCompressed(
+                        mPendingTileSet.getCompressedTileWidth(mNextTileToUpload),
+                        mPendingTileSet.getCompressedTileHeight(mNextTileToUpload),
+                        tile);
+            }
+        } else {
+            Bitmap tile = mPendingTileSet.takeTile(mNextTileToUpload);
+            if (tile != null) {
+                mTextureHandles[mNextTileToUpload] = mTexturePool.acquire(tile);
+                tile.recycle();
             }
         }
+        mNextTileToUpload++;
+        if (mNextTileToUpload >= mPendingTileSet.getTileCount()) {
+            mPendingTileSet = null;
+            return false;
+        }
+        return true;
     }
 
-    public GLPicture(Bitmap bitmap) {
-        if (bitmap == null) {
-            return;
-        }
+    /**
+     * Returns whether all tiles have been uploaded and the picture is ready to be drawn.
+     */
+    public boolean isResident() {
+        return mPendingTileSet == null;
+    }
 
-        mTileSize = Math.min(512, sMaxTextureSize);
-        mHasContent = true;
-        mVertexBuffer = GLUtil.newFloatBuffer(mVertices.length);
-        mTextureCoordsBuffer = GLUtil.asFloatBuffer(SQUARE_TEXTURE_VERTICES);
+    public int getTileCount() {
+        return mTextureHandles != null ? mTextureHandles.length : 0;
+    }
 
-        mWidth = bitmap.getWidth();
-        mHeight = bitmap.getHeight();
-        int leftoverHeight = mHeight % mTileSize;
+    /**
+     * Returns whether the tile at the given index currently has a texture.
+     */
+    public boolean isTileResident(int index) {
+        return mTextureHandles != null && mTextureHandles[index] != 0;
+    }
 
-        // Load m x n textures
-        mCols = MathUtil.intDivideRoundUp(mWidth, mTileSize);
-        mRows = MathUtil.intDivideRoundUp(mHeight, mTileSize);
+    /**
+     * Uploads the given bitmap as the tile at the given index, replacing any texture it already
+     * had. Used to stream in tiles that were left out of the picture's tile set. The caller
+     * keeps ownership of the bitmap.
+     */
+    public void setTile(int index, Bitmap tile) {
+        evictTile(index);
+        mTextureHandles[index] = mTexturePool.acquire(tile);
+    }
 
-        mTextureHandles = new int[mCols * mRows];
-        if (mCols == 1 && mRows == 1) {
-            mTextureHandles[0] = GLUtil.loadTexture(bitmap);
-        } else {
-            Rect rect = new Rect();
-            for (int y = 0; y < mRows; y++) {
-                for (int x = 0; x < mCols; x++) {
-                    rect.set(x * mTileSize,
-                            (mRows - y - 1) * mTileSize,
-                            (x + 1) * mTileSize,
-                            (mRows - y) * mTileSize);
-                    // The bottom tiles must be full tiles for drawing, so only allow edge tiles
-                    // at the top
-                    if (leftoverHeight > 0) {
-                        rect.offset(0, -mTileSize + leftoverHeight);
-                    }
-                    rect.intersect(0, 0, mWidth, mHeight);
-                    Bitmap subBitmap = Bitmap.createBitmap(bitmap,
-                            rect.left, rect.top, rect.width(), rect.height());
-                    mTextureHandles[y * mCols + x] = GLUtil.loadTexture(subBitmap);
-                    subBitmap.recycle();
-                }
-            }
+    /**
+     * Releases the texture of the tile at the given index. Tiles without a texture are not
+     * drawn.
+     */
+    public void evictTile(int index) {
+        if (mTextureHandles != null && mTextureHandles[index] != 0) {
+            mTexturePool.release(mTextureHandles[index]);
+            mTextureHandles[index] = 0;
         }
     }
 
-    public void draw(float[] mvpMatrix, float alpha) {
-        if (!mHasContent) {
+    /**
+     * Gets the bounds of the tile at the given index in the picture's [-1, 1] space, with
+     * <code>top</code> greater than <code>bottom</code>.
+     */
+    public void getTileBounds(int index, RectF bounds) {
+        int x = index % mCols;
+        int y = index / mCols;
+        bounds.left = Math.min(-1 + 2f * x * mTileSize / mWidth, 1);
+        bounds.top = Math.min(-1 + 2f * (y + 1) * mTileSize / mHeight, 1);
+        bounds.right = Math.min(-1 + 2f * (x + 1) * mTileSize / mWidth, 1);
+        bounds.bottom = Math.min(-1 + 2f * y * mTileSize / mHeight, 1);
+    }
+
+    /**
+     * Draws the picture with the given alpha, darkened by <code>dim</code> and desaturated by
+     * <code>grey</code>, both from 0 to 1.
+     */
+    public void draw(float[] mvpMatrix, float alpha, float dim, float grey) {
+        if (!mHasContent || !isResident()) {
             return;
         }
 
         // Add program to OpenGL ES environment
         GLES20.glUseProgram(sProgramHandle);
 
+        if (mVertexBufferHandle == 0) {
+            createVertexBuffer();
+        }
+
         // Apply the projection and view transformation
         GLES20.glUniformMatrix4fv(sUniformMVPMatrixHandle, 1, false, mvpMatrix, 0);
         GLUtil.checkGlError("glUniformMatrix4fv");
 
-        // Set up vertex buffer
+        // Set up the vertex buffer, which holds the geometry of every tile
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBufferHandle);
         GLES20.glEnableVertexAttribArray(sAttribPositionHandle);
         GLES20.glVertexAttribPointer(sAttribPositionHandle,
                 COORDS_PER_VERTEX, GLES20.GL_FLOAT, false,
-                VERTEX_STRIDE_BYTES, mVertexBuffer);
+                VERTEX_STRIDE_BYTES, 0);
+        GLES20.glEnableVertexAttribArray(sAttribTextureCoordsHandle);
+        GLES20.glVertexAttribPointer(sAttribTextureCoordsHandle,
+                COORDS_PER_TEXTURE_VERTEX, GLES20.GL_FLOAT, false,
+                VERTEX_STRIDE_BYTES, TEXTURE_COORDS_OFFSET_BYTES);
 
         // Set up texture stuff
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
         GLES20.glUniform1i(sUniformTextureHandle, 0);
-        GLES20.glVertexAttribPointer(sAttribTextureCoordsHandle,
-                COORDS_PER_TEXTURE_VERTEX, GLES20.GL_FLOAT, false,
-                TEXTURE_VERTEX_STRIDE_BYTES, mTextureCoordsBuffer);
-        GLES20.glEnableVertexAttribArray(sAttribTextureCoordsHandle);
 
-        // Set the alpha
+        // Set the alpha and color effects
         GLES20.glUniform1f(sUniformAlphaHandle, alpha);
-
-        // Draw tiles
-        for (int y = 0; y < mRows; y++) {
-            for (int x = 0; x < mCols; x++) {
-                // Pass in the vertex information
-                mVertices[0] = mVertices[3] = mVertices[9]
-                        = Math.min(-1 + 2f * x * mTileSize / mWidth, 1); // left
-                mVertices[1] = mVertices[10] = mVertices[16]
-                        = Math.min(-1 + 2f * (y + 1) * mTileSize / mHeight, 1); // top
-                mVertices[6] = mVertices[12] = mVertices[15]
-                        = Math.min(-1 + 2f * (x + 1) * mTileSize / mWidth, 1); // right
-                mVertices[4] = mVertices[7] = mVertices[13]
-                        = Math.min(-1 + 2f * y * mTileSize / mHeight, 1); // bottom
-                mVertexBuffer.put(mVertices);
-                mVertexBuffer.position(0);
-
-                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D,
-                        mTextureHandles[y * mCols + x]);
-                GLUtil.checkGlError("glBindTexture");
-
-                // Draw the two triangles
-                GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, mVertices.length / COORDS_PER_VERTEX);
+        GLES20.glUniform1f(sUniformDimHandle, dim);
+        GLES20.glUniform1f(sUniformGreyHandle, grey);
+
+        // Draw tiles, only switching the bound texture between them. Tiles that aren't
+        // resident are skipped.
+        for (int i = 0; i < mTextureHandles.length; i++) {
+            if (mTextureHandles[i] == 0) {
+                continue;
             }
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureHandles[i]);
+            GLUtil.checkGlError("glBindTexture");
+
+            // Draw the two triangles
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLES, i * VERTICES_PER_TILE, VERTICES_PER_TILE);
         }
 
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
         GLES20.glDisableVertexAttribArray(sAttribPositionHandle);
         GLES20.glDisableVertexAttribArray(sAttribTextureCoordsHandle);
     }
 
+    /**
+     * Builds the quads for every tile into a static vertex buffer. Tile positions are in the
+     * picture's own [-1, 1] space, so panning and zooming only change the MVP matrix.
+     */
+    private void createVertexBuffer() {
+        float[] vertices = new float[mCols * mRows * VERTICES_PER_TILE * FLOATS_PER_VERTEX];
+        float[] tileVertices = new float[VERTICES_PER_TILE * COORDS_PER_VERTEX];
+        RectF bounds = new RectF();
+        int index = 0;
+        for (int i = 0; i < mCols * mRows; i++) {
+            getTileBounds(i, bounds);
+            tileVertices[0] = tileVertices[3] = tileVertices[9] = bounds.left;
+            tileVertices[1] = tileVertices[10] = tileVertices[16] = bounds.top;
+            tileVertices[6] = tileVertices[12] = tileVertices[15] = bounds.right;
+            tileVertices[4] = tileVertices[7] = tileVertices[13] = bounds.bottom;
+            for (int v = 0; v < VERTICES_PER_TILE; v++) {
+                System.arraycopy(tileVertices, v * COORDS_PER_VERTEX,
+                        vertices, index, COORDS_PER_VERTEX);
+                index += COORDS_PER_VERTEX;
+                System.arraycopy(SQUARE_TEXTURE_VERTICES, v * COORDS_PER_TEXTURE_VERTEX,
+                        vertices, index, COORDS_PER_TEXTURE_VERTEX);
+                index += COORDS_PER_TEXTURE_VERTEX;
+            }
+        }
+
+        int[] bufferHandle = new int[1];
+        GLES20.glGenBuffers(1, bufferHandle, 0);
+        GLUtil.checkGlError("glGenBuffers");
+        mVertexBufferHandle = bufferHandle[0];
+        FloatBuffer vertexBuffer = GLUtil.asFloatBuffer(vertices);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBufferHandle);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vertices.length * GLUtil.BYTES_PER_FLOAT,
+                vertexBuffer, GLES20.GL_STATIC_DRAW);
+        GLUtil.checkGlError("glBufferData");
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
+
     public void destroy() {
+        if (mPendingTileSet != null) {
+            mPendingTileSet.recycle();
+            mPendingTileSet = null;
+        }
         if (mTextureHandles != null) {
-            GLES20.glDeleteTextures(mTextureHandles.length, mTextureHandles, 0);
-            GLUtil.checkGlError("Destroy picture");
+            // Keep the textures around to be reused by the next picture
+            for (int textureHandle : mTextureHandles) {
+                if (textureHandle != 0) {
+                    mTexturePool.release(textureHandle);
+                }
+            }
             mTextureHandles = null;
         }
+        if (mVertexBufferHandle != 0) {
+            GLES20.glDeleteBuffers(1, new int[]{mVertexBufferHandle}, 0);
+            GLUtil.checkGlError("glDeleteBuffers");
+            mVertexBufferHandle = 0;
+        }
     }
 }
@@ -17,12 +17,14 @@
 package com.google.android.apps.muzei.render;
 
 import android.graphics.Bitmap;
+import android.opengl.ETC1;
 import android.opengl.GLES20;
 import android.opengl.GLUtils;
 import android.util.Log;
 
 import net.nurik.roman.muzei.BuildConfig;
 
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
@@ -64,6 +66,30 @@ public class GLUtil {
     }
 
     public static int loadTexture(Bitmap bitmap) {
+        int textureHandle = createTexture();
+        if (textureHandle != 0) {
+            // Load the bitmap into the bound texture.
+            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+            GLUtil.checkGlError("texImage2D");
+        }
+        return textureHandle;
+    }
+
+    /**
+     * Loads ETC1 compressed data, as produced by
+     * {@link com.google.android.apps.muzei.util.Etc1Encoder}, into a new texture.
+     */
+    public static int loadCompressedTexture(int width, int height, Buffer data) {
+        int textureHandle = createTexture();
+        if (textureHandle != 0) {
+            GLES20.glCompressedTexImage2D(GLES20.GL_TEXTURE_2D, 0, ETC1.ETC1_RGB8_OES,
+                    width, height, 0, data.capacity(), data);
+            GLUtil.checkGlError("glCompressedTexImage2D");
+        }
+        return textureHandle;
+    }
+
+    private static int createTexture() {
         final int[] textureHandle = new int[1];
 
         GLES20.glGenTextures(1, textureHandle, 0);
@@ -82,10 +108,6 @@ public class GLUtil {
                     GLES20.GL_LINEAR);
             GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
                     GLES20.GL_LINEAR);
-
-            // Load the bitmap into the bound texture.
-            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
-            GLUtil.checkGlError("texImage2D");
         }
 
         if (textureHandle[0] == 0) {
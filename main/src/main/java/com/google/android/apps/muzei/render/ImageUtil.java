@@ -16,10 +16,22 @@
 
 package com.google.android.apps.muzei.render;
 
+import android.content.ContentResolver;
+import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Color;
+import android.net.Uri;
+import android.support.media.ExifInterface;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.view.WindowManager;
+
+import java.io.IOException;
+import java.io.InputStream;
 
 public class ImageUtil {
+    private static final String TAG = "ImageUtil";
+
     // Make sure input images are very small!
     public static float calculateDarkness(Bitmap bitmap) {
         if (bitmap == null || bitmap.getWidth() == 0 || bitmap.getHeight() == 0) {
@@ -45,6 +57,41 @@ public class ImageUtil {
         return (totalLum / n) / 256f;
     }
 
+    /**
+     * Returns the rotation in degrees given by the EXIF orientation of the image at the given
+     * URI, or 0 if it has none. This should be called on a background thread.
+     */
+    public static int getRotation(ContentResolver contentResolver, Uri uri) {
+        int rotation = 0;
+        try (InputStream in = contentResolver.openInputStream(uri)) {
+            if (in == null) {
+                return 0;
+            }
+            ExifInterface exifInterface = new ExifInterface(in);
+            int orientation = exifInterface.getAttributeInt(
+                    ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+            switch (orientation) {
+                case ExifInterface.ORIENTATION_ROTATE_90: rotation = 90; break;
+                case ExifInterface.ORIENTATION_ROTATE_180: rotation = 180; break;
+                case ExifInterface.ORIENTATION_ROTATE_270: rotation = 270; break;
+            }
+        } catch (IOException|NumberFormatException|StackOverflowError e) {
+            Log.w(TAG, "Couldn't open EXIF interface on artwork", e);
+        }
+        return rotation;
+    }
+
+    /**
+     * Returns the real height of the default display, which artwork is decoded to fit.
+     */
+    public static int getScreenHeight(Context context) {
+        WindowManager windowManager = (WindowManager)
+                context.getSystemService(Context.WINDOW_SERVICE);
+        DisplayMetrics displayMetrics = new DisplayMetrics();
+        windowManager.getDefaultDisplay().getRealMetrics(displayMetrics);
+        return displayMetrics.heightPixels;
+    }
+
     private ImageUtil() {
     }
 
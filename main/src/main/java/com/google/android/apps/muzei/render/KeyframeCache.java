@@ -0,0 +1,270 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Disk cache of blurred keyframes, so that reloading the same artwork with the same render
+ * settings doesn't need to decode and blur the image again.
+ *
+ * <p>Keyframes are opaque, so they are stored as raw {@link Bitmap.Config#RGB_565} pixels. The
+ * cache is bounded by a total byte size, evicting the least recently used keyframes first.
+ */
+class KeyframeCache {
+    private static final String TAG = "KeyframeCache";
+
+    private static final String DIRECTORY_NAME = "keyframes";
+    private static final long MAX_SIZE_BYTES = 8 * 1024 * 1024;
+    private static final int FORMAT_MAGIC = 0x4d4b4631; // MKF1
+    private static final int ARTWORK_KEY_HASH_BYTES = 64 * 1024;
+
+    private static KeyframeCache sInstance;
+
+    private final File mDirectory;
+    private final long mMaxSizeBytes;
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+
+    static synchronized KeyframeCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new KeyframeCache(
+                    new File(context.getApplicationContext().getCacheDir(), DIRECTORY_NAME),
+                    MAX_SIZE_BYTES);
+        }
+        return sInstance;
+    }
+
+    private KeyframeCache(File directory, long maxSizeBytes) {
+        mDirectory = directory;
+        mMaxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Builds a key that identifies the given artwork file and its contents, or returns null if
+     * the file can't be read. Keying on the file rather than the artwork's row means keyframes
+     * prepared for artwork that hasn't been published yet are found once it is.
+     */
+    @Nullable
+    static String buildArtworkKey(File artworkFile) {
+        // Hash the file's length, modification time and the start of its contents so that a
+        // different image stored in the same file doesn't reuse stale keyframes, even when the
+        // images only differ past the hashed prefix
+        try (InputStream in = new FileInputStream(artworkFile)) {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            md.update(ByteBuffer.allocate(16)
+                    .putLong(artworkFile.length())
+                    .putLong(artworkFile.lastModified())
+                    .array());
+            byte[] buffer = new byte[8192];
+            int total = 0;
+            int bytes;
+            while (total < ARTWORK_KEY_HASH_BYTES && (bytes = in.read(buffer)) != -1) {
+                md.update(buffer, 0, bytes);
+                total += bytes;
+            }
+            StringBuilder key = new StringBuilder().append(artworkFile.getName()).append("_");
+            for (byte b : md.digest()) {
+                if ((0xff & b) < 0x10) {
+                    key.append("0");
+                }
+                key.append(Integer.toHexString(0xFF & b));
+            }
+            return key.toString();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            Log.w(TAG, "Unable to compute artwork key of " + artworkFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * Builds the key for a single keyframe of the given artwork.
+     *
+     * @param artworkKey a key that uniquely identifies the artwork and its contents, as given by
+     *                   {@link BitmapRegionLoader#getArtworkKey()}
+     */
+    static String buildKey(String artworkKey, float blurRadius, int width, int height) {
+        return artworkKey + "_" + blurRadius + "_" + width + "x" + height;
+    }
+
+    /**
+     * Returns the cached keyframe for the given key, or null if it isn't cached.
+     */
+    @Nullable
+    synchronized Bitmap get(String key) {
+        File file = getFile(key);
+        if (file == null || !file.exists()) {
+            mMissCount.incrementAndGet();
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FORMAT_MAGIC) {
+                throw new IOException("Unknown keyframe format");
+            }
+            int width = in.readInt();
+            int height = in.readInt();
+            byte[] pixels = new byte[width * height * 2];
+            in.readFully(pixels);
+            Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+            bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels));
+            // Touch the file so that eviction is based on last use
+            if (!file.setLastModified(System.currentTimeMillis())) {
+                Log.w(TAG, "Unable to update last modified time of " + file);
+            }
+            mHitCount.incrementAndGet();
+            return bitmap;
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "Error reading cached keyframe " + file, e);
+            if (!file.delete()) {
+                Log.w(TAG, "Unable to delete " + file);
+            }
+            mMissCount.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Stores the given keyframe, evicting old keyframes if the cache is over its size limit.
+     */
+    synchronized void put(String key, Bitmap bitmap) {
+        File file = getFile(key);
+        if (file == null || bitmap == null) {
+            return;
+        }
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Unable to create " + mDirectory);
+            return;
+        }
+        Bitmap opaqueBitmap = bitmap.getConfig() == Bitmap.Config.RGB_565
+                ? bitmap
+                : bitmap.copy(Bitmap.Config.RGB_565, false);
+        if (opaqueBitmap == null) {
+            return;
+        }
+        File tempFile = new File(mDirectory, file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            ByteBuffer pixels = ByteBuffer.allocate(opaqueBitmap.getByteCount());
+            opaqueBitmap.copyPixelsToBuffer(pixels);
+            out.writeInt(FORMAT_MAGIC);
+            out.writeInt(opaqueBitmap.getWidth());
+            out.writeInt(opaqueBitmap.getHeight());
+            out.write(pixels.array(), 0, pixels.position());
+        } catch (IOException e) {
+            Log.w(TAG, "Error caching keyframe " + file, e);
+            if (!tempFile.delete()) {
+                Log.w(TAG, "Unable to delete " + tempFile);
+            }
+            return;
+        } finally {
+            if (opaqueBitmap != bitmap) {
+                opaqueBitmap.recycle();
+            }
+        }
+        if (!tempFile.renameTo(file)) {
+            Log.w(TAG, "Unable to rename " + tempFile + " to " + file);
+            return;
+        }
+        trimToSize();
+    }
+
+    private void trimToSize() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long totalSize = 0;
+        for (File file : files) {
+            totalSize += file.length();
+        }
+        if (totalSize <= mMaxSizeBytes) {
+            return;
+        }
+        // Evict least recently used first
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (totalSize <= mMaxSizeBytes) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                totalSize -= length;
+            }
+        }
+    }
+
+    @Nullable
+    private File getFile(String key) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            md.update(key.getBytes("UTF-8"));
+            StringBuilder filename = new StringBuilder();
+            for (byte b : md.digest()) {
+                if ((0xff & b) < 0x10) {
+                    filename.append("0");
+                }
+                filename.append(Integer.toHexString(0xFF & b));
+            }
+            return new File(mDirectory, filename.toString());
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            Log.w(TAG, "Unable to compute file name for " + key, e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the number of keyframes that have been loaded from the cache.
+     */
+    public int getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * Returns the number of keyframes that had to be blurred because they weren't cached.
+     */
+    public int getMissCount() {
+        return mMissCount.get();
+    }
+}
@@ -19,9 +19,6 @@ package com.google.android.apps.muzei.render;
 import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Color;
-import android.graphics.Rect;
 import android.graphics.RectF;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
@@ -39,6 +36,14 @@ import com.google.android.apps.muzei.util.ImageBlurrer;
 import com.google.android.apps.muzei.util.MathUtil;
 import com.google.android.apps.muzei.util.TickingFloatAnimator;
 
+import net.nurik.roman.muzei.BuildConfig;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
@@ -57,6 +62,13 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
     public static final int DEMO_GREY = 0;
     public static final int DEFAULT_MAX_DIM = 128; // technical max 255
     public static final float DIM_RANGE = 0.5f; // percent of max dim
+    public static final int DEFAULT_UPLOAD_BUDGET_MILLIS = 4;
+
+    // Streamed tiles are kept resident up to this fraction of a screen beyond either side
+    // of the viewport
+    private static final float PREFETCH_SCREEN_WIDTHS = 0.5f;
+
+    private static final int FRAME_TIME_LOG_INTERVAL = 300; // frames
 
     private boolean mDemoMode;
     private boolean mPreview;
@@ -77,12 +89,40 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
 
     private GLPictureSet mCurrentGLPictureSet;
     private GLPictureSet mNextGLPictureSet;
-    private GLColorOverlay mColorOverlay;
+    private TexturePool mTexturePool;
+    private int mMaxPooledTextureBytes = TexturePool.DEFAULT_MAX_POOLED_BYTES;
 
     private BitmapRegionLoader mQueuedNextBitmapRegionLoader;
 
+    // Decoding and blurring happens on a background thread; the GL thread only uploads the
+    // decoded tiles, a few at a time, and starts the crossfade once they're all resident.
+    // Starting a new load bumps the generation, which cancels any decode still in progress.
+    private final ExecutorService mDecodeExecutorService = Executors.newSingleThreadExecutor();
+    private final AtomicReference<PictureSetDecoder.Result> mDecodedResult
+            = new AtomicReference<>();
+    private final AtomicInteger mLoadGeneration = new AtomicInteger();
+    private boolean mLoading = false;
+    private int mUploadBudgetMillis = DEFAULT_UPLOAD_BUDGET_MILLIS;
+
+    // Sharp pictures too large to keep entirely resident have their tiles decoded on demand
+    // as they come into view, on a separate thread so that they aren't held up behind
+    // decoding the next artwork
+    private final ExecutorService mTileDecodeExecutorService
+            = Executors.newSingleThreadExecutor();
+    private int mMaxResidentTileBytes = TileResidencyManager.DEFAULT_MAX_RESIDENT_BYTES;
+    private final Runnable mRequestRenderRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mCallbacks.requestRender();
+        }
+    };
+
     private boolean mSurfaceCreated;
 
+    // Debug builds periodically log the CPU time spent drawing each frame
+    private long[] mFrameTimesNanos;
+    private int mFrameTimeCount = 0;
+
     private volatile float mNormalOffsetX;
     private volatile RectF mCurrentViewport = new RectF(); // [-1, -1] to [1, 1], flipped
 
@@ -157,10 +197,14 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
                 0, 0, -1,
                 0, 1, 0);
 
-        GLColorOverlay.initGl();
         GLPicture.initGl();
 
-        mColorOverlay = new GLColorOverlay();
+        // Any textures from a previous surface went away with its GL context
+        mTexturePool = new TexturePool(mMaxPooledTextureBytes);
+
+        if (!mDemoMode && !mLoading && !mCurrentGLPictureSet.mHasBitmap) {
+            loadFirstFrameSnapshot();
+        }
 
         mSurfaceCreated = true;
         if (mQueuedNextBitmapRegionLoader != null) {
@@ -170,6 +214,27 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
         }
     }
 
+    /**
+     * Shows the persisted snapshot of the last loaded artwork as the current picture set, so
+     * that there's something to draw from the very first frame. The real artwork then
+     * crossfades in like any other once it has been decoded.
+     */
+    private void loadFirstFrameSnapshot() {
+        FirstFrameSnapshot snapshot = FirstFrameSnapshot.read(mContext);
+        if (snapshot == null) {
+            return;
+        }
+        PictureSetDecoder.Result result = new PictureSetDecoder.Result(mLoadGeneration.get(),
+                mBlurKeyframes);
+        result.mHasBitmap = true;
+        result.mBitmapAspectRatio = snapshot.mAspectRatio;
+        result.mDarkness = snapshot.mDarkness;
+        Arrays.fill(result.mKeyframes, TileSet.split(snapshot.mBitmap, GLPicture.getTileSize()));
+        mCurrentGLPictureSet.load(result);
+        // A single tiny tile, so there's no need to spread the upload across frames
+        mCurrentGLPictureSet.uploadTiles(Long.MAX_VALUE);
+    }
+
     public void onSurfaceChanged(GL10 unused, int width, int height) {
         GLES20.glViewport(0, 0, width, height);
         hintViewportSize(width, height);
@@ -188,7 +253,47 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
         mAspectRatio = width * 1f / height;
     }
 
+    /**
+     * Sets the maximum amount of time each frame may spend uploading the tiles of newly
+     * decoded artwork. At least one tile is always uploaded per frame.
+     */
+    public void setUploadBudgetMillis(int uploadBudgetMillis) {
+        mUploadBudgetMillis = Math.max(0, uploadBudgetMillis);
+    }
+
+    /**
+     * Sets the maximum total size of tile textures kept around after a picture set is
+     * destroyed, to be reused when loading the next artwork.
+     */
+    public void setMaxPooledTextureBytes(int maxPooledTextureBytes) {
+        mMaxPooledTextureBytes = maxPooledTextureBytes;
+        if (mTexturePool != null) {
+            mTexturePool.setMaxPooledBytes(maxPooledTextureBytes);
+        }
+    }
+
+    /**
+     * Sets the size above which the sharp tiles of an artwork are streamed in and out as the
+     * wallpaper is panned rather than all being kept resident, and the cap on the size of
+     * streamed tiles kept resident. Takes effect from the next artwork loaded.
+     */
+    public void setMaxResidentTileBytes(int maxResidentTileBytes) {
+        mMaxResidentTileBytes = maxResidentTileBytes;
+    }
+
     public void onDrawFrame(GL10 unused) {
+        long frameStartNanos = System.nanoTime();
+        boolean stillUploading = uploadNextGLPictureSet();
+
+        // Stream tiles of very large artwork in and out as the viewport moves
+        long residencyDeadlineNanos = frameStartNanos + mUploadBudgetMillis * 1000000L;
+        mCurrentGLPictureSet.updateResidency(residencyDeadlineNanos);
+        stillUploading |= mCurrentGLPictureSet.hasTilesToUpload();
+        if (!mLoading) {
+            mNextGLPictureSet.updateResidency(residencyDeadlineNanos);
+            stillUploading |= mNextGLPictureSet.hasTilesToUpload();
+        }
+
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 
         Matrix.setIdentityM(mMMatrix, 0);
@@ -201,21 +306,97 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
             mNextGLPictureSet.recomputeTransformMatrices();
         }
 
-        float dimAmount = mCurrentGLPictureSet.mDimAmount;
-        mCurrentGLPictureSet.drawFrame(1);
+        // Dim and grey are applied by the picture shader as the tiles are drawn, rather than
+        // baked into the keyframes or drawn as a separate full screen overlay
+        float dimAmount = mCurrentGLPictureSet.getDimAmount();
         if (mCrossfadeAnimator.isRunning()) {
-            dimAmount = MathUtil.interpolate(dimAmount, mNextGLPictureSet.mDimAmount,
+            dimAmount = MathUtil.interpolate(dimAmount, mNextGLPictureSet.getDimAmount(),
                     mCrossfadeAnimator.currentValue());
-            mNextGLPictureSet.drawFrame(mCrossfadeAnimator.currentValue());
+        }
+        float blurAmount = mBlurAnimator.currentValue() / mBlurKeyframes;
+        float dim = dimAmount * blurAmount / 255f;
+        float grey = mMaxGrey / 500f * blurAmount;
+
+        // The crossfade itself is still drawn as two blended passes rather than mixed in the
+        // shader: the two picture sets have their own tile grids, aspect ratios and transforms,
+        // so a fragment doesn't correspond to a single tile of each. Mixing them in one pass
+        // would mean rendering one set to an offscreen framebuffer first, which costs as much
+        // fill as the extra pass, and the extra pass only lasts for the length of a crossfade.
+        mCurrentGLPictureSet.drawFrame(1, dim, grey);
+        if (mCrossfadeAnimator.isRunning()) {
+            mNextGLPictureSet.drawFrame(mCrossfadeAnimator.currentValue(), dim, grey);
         }
 
-        mColorOverlay.setColor(Color.argb((int) (dimAmount
-                * mBlurAnimator.currentValue() / mBlurKeyframes), 0, 0, 0));
-        mColorOverlay.draw(mMMatrix); // don't need any perspective or anything for color overlay
-
-        if (stillAnimating) {
+        if (stillAnimating || stillUploading) {
             mCallbacks.requestRender();
         }
+
+        if (BuildConfig.DEBUG) {
+            logFrameTime(System.nanoTime() - frameStartNanos);
+        }
+    }
+
+    private void logFrameTime(long frameTimeNanos) {
+        if (mFrameTimesNanos == null) {
+            mFrameTimesNanos = new long[FRAME_TIME_LOG_INTERVAL];
+        }
+        mFrameTimesNanos[mFrameTimeCount++] = frameTimeNanos;
+        if (mFrameTimeCount < FRAME_TIME_LOG_INTERVAL) {
+            return;
+        }
+
+        // The average alone hides the occasional frame that also uploads tiles, so log the
+        // distribution as well
+        long totalNanos = 0;
+        for (long nanos : mFrameTimesNanos) {
+            totalNanos += nanos;
+        }
+        Arrays.sort(mFrameTimesNanos);
+        Log.d(TAG, "Frame time over " + mFrameTimeCount + " frames:"
+                + " avg=" + (totalNanos / mFrameTimeCount / 1000) + "us"
+                + " p50=" + (mFrameTimesNanos[mFrameTimeCount / 2] / 1000) + "us"
+                + " p95=" + (mFrameTimesNanos[mFrameTimeCount * 95 / 100] / 1000) + "us"
+                + " max=" + (mFrameTimesNanos[mFrameTimeCount - 1] / 1000) + "us");
+        mFrameTimeCount = 0;
+    }
+
+    /**
+     * Uploads tiles of the next picture set once it has been decoded, spending at most the
+     * upload budget in this frame. Starts the crossfade once every tile is resident.
+     *
+     * @return true if there are still tiles waiting to be uploaded
+     */
+    private boolean uploadNextGLPictureSet() {
+        if (!mLoading) {
+            return false;
+        }
+
+        PictureSetDecoder.Result result = mDecodedResult.getAndSet(null);
+        if (result != null) {
+            if (result.mGeneration == mLoadGeneration.get()) {
+                mNextGLPictureSet.load(result);
+            } else {
+                result.recycle();
+            }
+        }
+
+        if (!mNextGLPictureSet.mUploading) {
+            // Still decoding
+            return false;
+        }
+
+        long deadlineNanos = System.nanoTime() + mUploadBudgetMillis * 1000000L;
+        if (!mNextGLPictureSet.uploadTiles(deadlineNanos)) {
+            // Streamed tiles that are still decoding request a render once they're ready
+            return mNextGLPictureSet.hasTilesToUpload();
+        }
+
+        mLoading = false;
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Uploaded picture set: " + mTexturePool);
+        }
+        startCrossfade();
+        return false;
     }
 
     public void setNormalOffsetX(float x) {
@@ -241,7 +422,9 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
             return;
         }
 
-        if (mCrossfadeAnimator.isRunning()) {
+        // Artwork that's still being decoded is abandoned in favor of the newer artwork, but
+        // once uploading has started, let it finish and crossfade in first
+        if ((mLoading && mNextGLPictureSet.mUploading) || mCrossfadeAnimator.isRunning()) {
             if (mQueuedNextBitmapRegionLoader != null) {
                 mQueuedNextBitmapRegionLoader.destroy();
             }
@@ -249,6 +432,11 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
             return;
         }
 
+        if (mDecodeExecutorService.isShutdown()) {
+            bitmapRegionLoader.destroy();
+            return;
+        }
+
         if (!mDemoMode && !mPreview) {
             EventBus.getDefault().postSticky(new SwitchingPhotosStateChangedEvent(
                     mNextGLPictureSet.mId, true));
@@ -259,8 +447,56 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
                     mAspectRatio);
         }
 
-        mNextGLPictureSet.load(bitmapRegionLoader);
+        float[] blurRadii = new float[mBlurKeyframes + 1];
+        for (int f = 1; f <= mBlurKeyframes; f++) {
+            blurRadii[f] = blurRadiusAtFrame(f);
+        }
+        if (mLoading && BuildConfig.DEBUG) {
+            Log.d(TAG, "Cancelling superseded load " + mLoadGeneration.get());
+        }
+        final PictureSetDecoder decoder = new PictureSetDecoder(mContext,
+                mLoadGeneration.incrementAndGet(), mLoadGeneration, mHeight,
+                GLPicture.getTileSize(), mBlurredSampleSize, mMaxPrescaledBlurPixels, blurRadii,
+                mMaxResidentTileBytes);
+        mLoading = true;
+        mDecodeExecutorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                PictureSetDecoder.Result result = decoder.decode(bitmapRegionLoader);
+                if (result.mBitmapRegionLoader != bitmapRegionLoader) {
+                    bitmapRegionLoader.destroy();
+                }
+                if (mDecodeExecutorService.isShutdown() || decoder.isCancelled()) {
+                    result.recycle();
+                    return;
+                }
+                Bitmap snapshot = result.mSnapshot;
+                result.mSnapshot = null;
+                PictureSetDecoder.Result previousResult = mDecodedResult.getAndSet(result);
+                if (previousResult != null) {
+                    previousResult.recycle();
+                }
+                mCallbacks.requestRender();
+
+                if (!mDemoMode && !mPreview) {
+                    // Let the next artwork's keyframes be prepared with the same settings
+                    decoder.saveSettings();
+                }
+
+                // Persist the snapshot after handing off the result so that it doesn't hold
+                // up the upload
+                if (snapshot != null) {
+                    if (!mDemoMode) {
+                        new FirstFrameSnapshot(snapshot, result.mBitmapAspectRatio,
+                                result.mDarkness).write(mContext);
+                    }
+                    snapshot.recycle();
+                }
+            }
+        });
+    }
 
+    private void startCrossfade() {
         mCrossfadeAnimator
                 .from(0).to(1)
                 .withDuration(CROSSFADE_ANIMATION_DURATION)
@@ -277,7 +513,6 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
                             EventBus.getDefault().postSticky(new SwitchingPhotosStateChangedEvent(
                                     mCurrentGLPictureSet.mId, false));
                         }
-                        System.gc();
                         if (mQueuedNextBitmapRegionLoader != null) {
                             BitmapRegionLoader queuedNextBitmapRegionLoader
                                     = mQueuedNextBitmapRegionLoader;
@@ -305,113 +540,115 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
         private GLPicture[] mPictures = new GLPicture[mBlurKeyframes + 1];
         private boolean mHasBitmap = false;
         private float mBitmapAspectRatio = 1f;
-        private int mDimAmount = 0;
+        private float mDarkness = 0f;
+        private boolean mUploading = false;
+        private TileResidencyManager mResidencyManager;
+        // Copies of the viewport and the region around it to keep resident, as the
+        // renderer's viewport is shared between picture sets
+        private volatile RectF mViewport;
+        private volatile RectF mPrefetchRegion;
 
         public GLPictureSet(int id) {
             mId = id;
         }
 
-        public void load(BitmapRegionLoader bitmapRegionLoader) {
-            mHasBitmap = bitmapRegionLoader != null
-                    && bitmapRegionLoader.getWidth() != 0 && bitmapRegionLoader.getHeight() != 0;
-            mBitmapAspectRatio = mHasBitmap
-                    ? bitmapRegionLoader.getWidth() * 1f / bitmapRegionLoader.getHeight()
-                    : 1f;
-
-            mDimAmount = DEFAULT_MAX_DIM;
-
+        public void load(PictureSetDecoder.Result result) {
             destroyPictures();
 
-            if (mHasBitmap) {
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                Rect rect = new Rect();
-                int originalWidth = bitmapRegionLoader.getWidth();
-                int originalHeight = bitmapRegionLoader.getHeight();
-
-                // Calculate image darkness to determine dim amount
-                rect.set(0, 0, originalWidth, originalHeight);
-                options.inSampleSize = ImageUtil.calculateSampleSize(originalHeight, 64);
-                Bitmap tempBitmap = bitmapRegionLoader.decodeRegion(rect, options);
-                float darkness = ImageUtil.calculateDarkness(tempBitmap);
-                mDimAmount = mDemoMode
-                        ? DEMO_DIM
-                        : (int) (mMaxDim * ((1 - DIM_RANGE) + DIM_RANGE * Math.sqrt(darkness)));
-                if (tempBitmap != null) {
-                    tempBitmap.recycle();
-                }
+            mHasBitmap = result.mHasBitmap;
+            mBitmapAspectRatio = result.mBitmapAspectRatio;
+            mDarkness = result.mDarkness;
 
-                // Create the GLPicture objects
-                mPictures[0] = new GLPicture(bitmapRegionLoader, mHeight);
-                if (mMaxPrescaledBlurPixels == 0 && mMaxGrey == 0) {
-                    for (int f = 1; f <= mBlurKeyframes; f++) {
-                        mPictures[f] = mPictures[0];
-                    }
+            // Create the GLPicture objects; their tiles are uploaded by uploadTiles()
+            for (int f = 0; f < mPictures.length; f++) {
+                TileSet tileSet = result.mKeyframes[f];
+                if (f > 0 && tileSet != null && tileSet == result.mKeyframes[0]) {
+                    mPictures[f] = mPictures[0];
                 } else {
-                    int sampleSizeTargetHeight, scaledHeight, scaledWidth;
-                    if (mMaxPrescaledBlurPixels > 0) {
-                        sampleSizeTargetHeight = mHeight / mBlurredSampleSize;
-                    } else {
-                        sampleSizeTargetHeight = mHeight;
-                    }
+                    mPictures[f] = tileSet != null ? new GLPicture(tileSet, mTexturePool) : null;
+                }
+            }
+            if (result.mBitmapRegionLoader != null && mPictures[0] != null) {
+                TileSet sharpTileSet = result.mKeyframes[0];
+                mResidencyManager = new TileResidencyManager(result.mBitmapRegionLoader,
+                        sharpTileSet.getHeight(), mTileDecodeExecutorService,
+                        mRequestRenderRunnable, mMaxResidentTileBytes);
+                if (sharpTileSet.isLayoutOnly()) {
+                    mResidencyManager.setBaseLevel(sharpTileSet, mPictures[0]);
+                }
+                for (TileSet detailLevel : result.mDetailLevels) {
+                    mResidencyManager.addDetailLevel(detailLevel,
+                            new GLPicture(detailLevel, mTexturePool));
+                }
+            } else if (result.mBitmapRegionLoader != null) {
+                result.mBitmapRegionLoader.destroy();
+            }
+            mUploading = true;
 
-                    // Note that image width should be a multiple of 4 to avoid
-                    // issues with RenderScript allocations.
-                    scaledHeight = Math.max(2, MathUtil.floorEven(
-                            sampleSizeTargetHeight));
-                    scaledWidth = Math.max(4, MathUtil.roundMult4(
-                            (int) (scaledHeight * mBitmapAspectRatio)));
-
-                    // To blur, first load the entire bitmap region, but at a very large
-                    // sample size that's appropriate for the final blurred image
-                    options.inSampleSize = ImageUtil.calculateSampleSize(
-                            originalHeight, sampleSizeTargetHeight);
-                    rect.set(0, 0, originalWidth, originalHeight);
-                    tempBitmap = bitmapRegionLoader.decodeRegion(rect, options);
-
-                    if (tempBitmap != null
-                            && tempBitmap.getWidth() != 0 && tempBitmap.getHeight() != 0) {
-                        // Next, create a scaled down version of the bitmap so that the blur radius
-                        // looks appropriate (tempBitmap will likely be bigger than the final
-                        // blurred bitmap, and thus the blur may look smaller if we just used
-                        // tempBitmap as the final blurred bitmap).
-
-                        // Note that image width should be a multiple of 4 to avoid
-                        // issues with RenderScript allocations.
-                        Bitmap scaledBitmap = Bitmap.createScaledBitmap(
-                                tempBitmap, scaledWidth, scaledHeight, true);
-                        if (tempBitmap != scaledBitmap) {
-                            tempBitmap.recycle();
-                        }
+            recomputeTransformMatrices();
+        }
 
-                        // And finally, create a blurred copy for each keyframe.
-                        ImageBlurrer blurrer = new ImageBlurrer(mContext, scaledBitmap);
-                        for (int f = 1; f <= mBlurKeyframes; f++) {
-                            float desaturateAmount = mMaxGrey / 500f * f / mBlurKeyframes;
-                            float blurRadius = 0f;
-                            if (mMaxPrescaledBlurPixels > 0) {
-                                blurRadius = blurRadiusAtFrame(f);
-                            }
-                            Bitmap blurredBitmap = blurrer.blurBitmap(blurRadius, desaturateAmount);
-                            mPictures[f] = new GLPicture(blurredBitmap);
-                            if (blurredBitmap != null) {
-                                blurredBitmap.recycle();
-                            }
-                        }
-                        blurrer.destroy();
-
-                        scaledBitmap.recycle();
-                    } else {
-                        Log.e(TAG, "BitmapRegionLoader failed to decode the region, rect="
-                                + rect.toShortString());
-                        for (int f = 1; f <= mBlurKeyframes; f++) {
-                            mPictures[f] = null;
-                        }
+        /**
+         * Uploads pending tiles until they are all resident or the deadline passes. Streamed
+         * pictures only need the tiles currently in view to be resident.
+         *
+         * @return true if every picture is now resident
+         */
+        public boolean uploadTiles(long deadlineNanos) {
+            for (GLPicture picture : mPictures) {
+                while (picture != null && picture.uploadNextTile()) {
+                    if (System.nanoTime() >= deadlineNanos) {
+                        return false;
                     }
                 }
             }
+            if (!updateResidency(deadlineNanos)) {
+                return false;
+            }
+            mUploading = false;
+            return true;
+        }
+
+        /**
+         * Uploads streamed tiles that have finished decoding, then updates which tiles are
+         * wanted for the current viewport, starting to decode any that are missing.
+         *
+         * @return true if every tile in view is resident
+         */
+        public boolean updateResidency(long deadlineNanos) {
+            RectF viewport = mViewport;
+            RectF prefetchRegion = mPrefetchRegion;
+            if (mResidencyManager == null || viewport == null) {
+                return true;
+            }
+            mResidencyManager.uploadTiles(deadlineNanos);
+            return mResidencyManager.update(viewport, prefetchRegion, mHeight);
+        }
+
+        /**
+         * Returns whether there are tiles ready to be uploaded right away, rather than still
+         * being decoded.
+         */
+        public boolean hasTilesToUpload() {
+            for (GLPicture picture : mPictures) {
+                if (picture != null && !picture.isResident()) {
+                    return true;
+                }
+            }
+            return mResidencyManager != null && mResidencyManager.hasDecodedTiles();
+        }
 
-            recomputeTransformMatrices();
-            mCallbacks.requestRender();
+        /**
+         * Returns how much to dim this picture set when fully blurred, from 0 to 255. This is
+         * computed on every frame so that changes to the dim setting don't require a reload.
+         */
+        private float getDimAmount() {
+            if (!mHasBitmap) {
+                return 0;
+            } else if (mDemoMode) {
+                return DEMO_DIM;
+            }
+            return (float) (mMaxDim * ((1 - DIM_RANGE) + DIM_RANGE * Math.sqrt(mDarkness)));
         }
 
         private void recomputeTransformMatrices() {
@@ -431,12 +668,13 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
             // TODO: if we know the number of home screen pages, use that number here
             float maxPanScreenWidths = Math.min(1.8f, scaledBitmapToScreenAspectRatio);
 
-            mCurrentViewport.left = MathUtil.interpolate(-1f, 1f,
-                    MathUtil.interpolate(
-                            (1 - maxPanScreenWidths / scaledBitmapToScreenAspectRatio) / 2,
-                            (1 + (maxPanScreenWidths - 2) / scaledBitmapToScreenAspectRatio) / 2,
-                            mNormalOffsetX));
+            float minPanLeft = MathUtil.interpolate(-1f, 1f,
+                    (1 - maxPanScreenWidths / scaledBitmapToScreenAspectRatio) / 2);
+            float maxPanLeft = MathUtil.interpolate(-1f, 1f,
+                    (1 + (maxPanScreenWidths - 2) / scaledBitmapToScreenAspectRatio) / 2);
+            mCurrentViewport.left = MathUtil.interpolate(minPanLeft, maxPanLeft, mNormalOffsetX);
             mCurrentViewport.right = mCurrentViewport.left + 2f / scaledBitmapToScreenAspectRatio;
+            float maxPanRight = maxPanLeft + 2f / scaledBitmapToScreenAspectRatio;
             mCurrentViewport.bottom = -1f / zoom;
             mCurrentViewport.top = 1f / zoom;
 
@@ -478,9 +716,20 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
                     mCurrentViewport.left, mCurrentViewport.right,
                     mCurrentViewport.bottom, mCurrentViewport.top,
                     1, 10);
+
+            // Prefetch around the viewport, but never beyond the range it can be panned across
+            float prefetchMargin = mCurrentViewport.width() * PREFETCH_SCREEN_WIDTHS;
+            mPrefetchRegion = new RectF(
+                    Math.min(mCurrentViewport.left,
+                            Math.max(minPanLeft, mCurrentViewport.left - prefetchMargin)),
+                    mCurrentViewport.top,
+                    Math.max(mCurrentViewport.right,
+                            Math.min(maxPanRight, mCurrentViewport.right + prefetchMargin)),
+                    mCurrentViewport.bottom);
+            mViewport = new RectF(mCurrentViewport);
         }
 
-        public void drawFrame(float globalAlpha) {
+        public void drawFrame(float globalAlpha, float dim, float grey) {
             if (!mHasBitmap) {
                 return;
             }
@@ -501,15 +750,21 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
                     return;
                 }
 
-                mPictures[lo].draw(mMVPMatrix, globalAlpha);
+                mPictures[lo].draw(mMVPMatrix, globalAlpha, dim, grey);
+                if (lo == 0 && globalAlpha == 1) {
+                    drawDetail(dim, grey);
+                }
             } else if (globalAlpha == 1) {
                 // Simple drawing
                 if (mPictures[lo] == null || mPictures[hi] == null) {
                     return;
                 }
 
-                mPictures[lo].draw(mMVPMatrix, 1);
-                mPictures[hi].draw(mMVPMatrix, localHiAlpha);
+                mPictures[lo].draw(mMVPMatrix, 1, dim, grey);
+                if (lo == 0) {
+                    drawDetail(dim, grey);
+                }
+                mPictures[hi].draw(mMVPMatrix, localHiAlpha, dim, grey);
             } else {
                 // If there's both a global and local alpha, re-compose alphas, to
                 // effectively compose hi and lo before composing the result
@@ -525,8 +780,24 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
                 float newLocalLoAlpha = globalAlpha * (localHiAlpha - 1)
                         / (globalAlpha * localHiAlpha - 1);
                 float newLocalHiAlpha = globalAlpha * localHiAlpha;
-                mPictures[lo].draw(mMVPMatrix, newLocalLoAlpha);
-                mPictures[hi].draw(mMVPMatrix, newLocalHiAlpha);
+                mPictures[lo].draw(mMVPMatrix, newLocalLoAlpha, dim, grey);
+                mPictures[hi].draw(mMVPMatrix, newLocalHiAlpha, dim, grey);
+            }
+        }
+
+        /**
+         * Draws any resident detail tiles over the sharp picture, coarsest first, so that finer
+         * tiles replace the sharp picture's as they arrive. Only valid when the sharp picture
+         * was just drawn opaque.
+         */
+        private void drawDetail(float dim, float grey) {
+            if (mResidencyManager == null) {
+                return;
+            }
+            for (int i = 0; i < mResidencyManager.getDetailLevelCount(); i++) {
+                if (mResidencyManager.hasResidentTiles(i)) {
+                    mResidencyManager.getDetailPicture(i).draw(mMVPMatrix, 1, dim, grey);
+                }
             }
         }
 
@@ -537,12 +808,34 @@ public class MuzeiBlurRenderer implements GLSurfaceView.Renderer {
                     mPictures[i] = null;
                 }
             }
+            if (mResidencyManager != null) {
+                for (int i = 0; i < mResidencyManager.getDetailLevelCount(); i++) {
+                    mResidencyManager.getDetailPicture(i).destroy();
+                }
+                mResidencyManager.destroy();
+                mResidencyManager = null;
+            }
+            mUploading = false;
         }
     }
 
     public void destroy() {
+        mDecodeExecutorService.shutdownNow();
+        mTileDecodeExecutorService.shutdownNow();
+        mLoading = false;
+        PictureSetDecoder.Result result = mDecodedResult.getAndSet(null);
+        if (result != null) {
+            result.recycle();
+        }
+        if (mQueuedNextBitmapRegionLoader != null) {
+            mQueuedNextBitmapRegionLoader.destroy();
+            mQueuedNextBitmapRegionLoader = null;
+        }
         mCurrentGLPictureSet.destroyPictures();
         mNextGLPictureSet.destroyPictures();
+        if (mTexturePool != null) {
+            mTexturePool.clear();
+        }
     }
 
     public boolean isBlurred() {
@@ -0,0 +1,492 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.google.android.apps.muzei.util.ImageBlurrer;
+import com.google.android.apps.muzei.util.MathUtil;
+
+import net.nurik.roman.muzei.BuildConfig;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes the sharp tiles and each blurred keyframe of an artwork. This does all of the
+ * decoding and blurring work needed by a picture set so that it can run on a background
+ * thread, leaving only texture uploads for the GL thread.
+ */
+class PictureSetDecoder {
+    private static final String TAG = "PictureSetDecoder";
+
+    // Detail levels for zooming in go down to at most 1/8 of the sharp picture's sample size
+    private static final int MAX_DETAIL_LEVELS = 3;
+
+    private static final String SETTINGS_PREFERENCES_NAME = "picture_set_decoder";
+    private static final String PREF_HEIGHT = "height";
+    private static final String PREF_TILE_SIZE = "tile_size";
+    private static final String PREF_BLURRED_SAMPLE_SIZE = "blurred_sample_size";
+    private static final String PREF_MAX_PRESCALED_BLUR_PIXELS = "max_prescaled_blur_pixels";
+    private static final String PREF_BLUR_RADII = "blur_radii";
+    private static final String PREF_MAX_RESIDENT_TILE_BYTES = "max_resident_tile_bytes";
+
+    private final Context mContext;
+    private final int mGeneration;
+    private final AtomicInteger mLatestGeneration;
+    private final int mHeight;
+    private final int mTileSize;
+    private final int mBlurredSampleSize;
+    private final int mMaxPrescaledBlurPixels;
+    private final float[] mBlurRadii;
+    private final int mMaxResidentTileBytes;
+    private final TextureFormatPolicy mTextureFormatPolicy;
+
+    /**
+     * @param generation      an opaque value returned as part of the {@link Result}, used to
+     *                        discard results for loads that have since been superseded
+     * @param latestGeneration the generation of the latest load. Decoding stops early once
+     *                        this no longer matches <code>generation</code>
+     * @param height          the height of the surface the artwork will be drawn on
+     * @param blurRadii       the blur radius of each keyframe, with index 0 being the sharp
+     *                        picture
+     * @param maxResidentTileBytes sharp pictures larger than this are not decoded up front,
+     *                        but streamed in by a {@link TileResidencyManager}
+     */
+    PictureSetDecoder(Context context, int generation, AtomicInteger latestGeneration,
+            int height, int tileSize,
+            int blurredSampleSize, int maxPrescaledBlurPixels, float[] blurRadii,
+            int maxResidentTileBytes) {
+        mContext = context.getApplicationContext();
+        mGeneration = generation;
+        mLatestGeneration = latestGeneration;
+        mHeight = height;
+        mTileSize = tileSize;
+        mBlurredSampleSize = blurredSampleSize;
+        mMaxPrescaledBlurPixels = maxPrescaledBlurPixels;
+        mBlurRadii = blurRadii;
+        mMaxResidentTileBytes = maxResidentTileBytes;
+        mTextureFormatPolicy = TextureFormatPolicy.forDevice(mContext);
+    }
+
+    /**
+     * Returns whether a newer load has superseded this one, so its result will be discarded.
+     */
+    boolean isCancelled() {
+        return mLatestGeneration.get() != mGeneration;
+    }
+
+    Result decode(BitmapRegionLoader bitmapRegionLoader) {
+        int blurKeyframes = mBlurRadii.length - 1;
+        Result result = new Result(mGeneration, blurKeyframes);
+        result.mHasBitmap = bitmapRegionLoader != null
+                && bitmapRegionLoader.getWidth() != 0 && bitmapRegionLoader.getHeight() != 0;
+        result.mBitmapAspectRatio = result.mHasBitmap
+                ? bitmapRegionLoader.getWidth() * 1f / bitmapRegionLoader.getHeight()
+                : 1f;
+        if (!result.mHasBitmap) {
+            return result;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        Rect rect = new Rect();
+        int originalWidth = bitmapRegionLoader.getWidth();
+        int originalHeight = bitmapRegionLoader.getHeight();
+
+        // Calculate image darkness to determine dim amount
+        rect.set(0, 0, originalWidth, originalHeight);
+        options.inSampleSize = ImageUtil.calculateSampleSize(originalHeight, 64);
+        Bitmap tempBitmap = bitmapRegionLoader.decodeRegion(rect, options);
+        result.mDarkness = ImageUtil.calculateDarkness(tempBitmap);
+        if (tempBitmap != null) {
+            tempBitmap.recycle();
+        }
+        if (isCancelled()) {
+            return result;
+        }
+
+        // Decode the sharp tiles
+        long decodeStartTime = SystemClock.elapsedRealtime();
+        int decoderCount = 1;
+        result.mKeyframes[0] = loadCompressedTiles(bitmapRegionLoader);
+        if (result.mKeyframes[0] == null) {
+            TileSet layout = TileSet.layout(bitmapRegionLoader, mHeight, mTileSize,
+                    mTextureFormatPolicy.getSharpTileConfig());
+            if (layout != null && layout.getDecodedByteCount() > mMaxResidentTileBytes) {
+                // Too large to keep entirely resident, so only decode tiles as they come into
+                // view. The loader is kept open for that.
+                result.mKeyframes[0] = layout;
+                result.mBitmapRegionLoader = bitmapRegionLoader;
+            } else {
+                result.mKeyframes[0] = TileSet.decode(bitmapRegionLoader, mHeight, mTileSize,
+                        mTextureFormatPolicy.getSharpTileConfig());
+                decoderCount = bitmapRegionLoader.getDecoderCount();
+                // Everything else is decoded a single region at a time
+                bitmapRegionLoader.releaseExtraDecoders();
+            }
+        }
+        if (BuildConfig.DEBUG && result.mKeyframes[0] != null) {
+            if (result.mKeyframes[0].isLayoutOnly()) {
+                Log.d(TAG, "Streaming " + result.mKeyframes[0].getTileCount() + " tiles of a "
+                        + originalWidth + "x" + originalHeight + " image");
+            } else {
+                Log.d(TAG, "Decoded " + result.mKeyframes[0].getTileCount() + " tiles of a "
+                        + originalWidth + "x" + originalHeight + " image with "
+                        + decoderCount + " decoder(s) in "
+                        + (SystemClock.elapsedRealtime() - decodeStartTime) + "ms");
+            }
+        }
+        layoutDetailLevels(bitmapRegionLoader, result);
+        if (result.mBitmapRegionLoader != null) {
+            // Streamed tiles are decoded one at a time, so a kept loader only needs one decoder
+            // rather than holding on to a copy of the image for each decoder in its pool
+            bitmapRegionLoader.releaseExtraDecoders();
+        }
+        if (isCancelled()) {
+            return result;
+        }
+        if (mMaxPrescaledBlurPixels == 0) {
+            // Desaturation is applied while drawing, so unblurred keyframes would be identical
+            for (int f = 1; f <= blurKeyframes; f++) {
+                result.mKeyframes[f] = result.mKeyframes[0];
+            }
+            rect.set(0, 0, originalWidth, originalHeight);
+            options.inSampleSize = ImageUtil.calculateSampleSize(originalHeight,
+                    mHeight / FirstFrameSnapshot.SCREEN_HEIGHT_DIVISOR);
+            tempBitmap = bitmapRegionLoader.decodeRegion(rect, options);
+            if (tempBitmap != null) {
+                result.mSnapshot = createSnapshot(tempBitmap, result.mBitmapAspectRatio);
+                tempBitmap.recycle();
+            }
+            return result;
+        }
+        decodeKeyframes(bitmapRegionLoader, result);
+        return result;
+    }
+
+    /**
+     * Blurs each keyframe of the given artwork, or loads them from the {@link KeyframeCache}
+     * if they were all cached, and stores them in the result.
+     */
+    private void decodeKeyframes(BitmapRegionLoader bitmapRegionLoader, Result result) {
+        int blurKeyframes = mBlurRadii.length - 1;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        Rect rect = new Rect();
+        int originalWidth = bitmapRegionLoader.getWidth();
+        int originalHeight = bitmapRegionLoader.getHeight();
+
+        int sampleSizeTargetHeight, scaledHeight, scaledWidth;
+        sampleSizeTargetHeight = mHeight / mBlurredSampleSize;
+
+        // Note that image width should be a multiple of 4 to avoid
+        // issues with RenderScript allocations.
+        scaledHeight = Math.max(2, MathUtil.floorEven(
+                sampleSizeTargetHeight));
+        scaledWidth = Math.max(4, MathUtil.roundMult4(
+                (int) (scaledHeight * result.mBitmapAspectRatio)));
+
+        // Use previously blurred keyframes if they're all cached
+        String artworkKey = bitmapRegionLoader.getArtworkKey();
+        KeyframeCache keyframeCache = artworkKey != null
+                ? KeyframeCache.getInstance(mContext)
+                : null;
+        String[] keyframeKeys = new String[blurKeyframes + 1];
+        if (keyframeCache != null) {
+            for (int f = 1; f <= blurKeyframes; f++) {
+                keyframeKeys[f] = KeyframeCache.buildKey(artworkKey, mBlurRadii[f],
+                        scaledWidth, scaledHeight);
+            }
+            for (int f = 1; f <= blurKeyframes; f++) {
+                Bitmap cachedBitmap = keyframeCache.get(keyframeKeys[f]);
+                if (cachedBitmap == null) {
+                    break;
+                }
+                if (f == blurKeyframes) {
+                    result.mSnapshot = createSnapshot(cachedBitmap, result.mBitmapAspectRatio);
+                }
+                result.mKeyframes[f] = TileSet.split(cachedBitmap, mTileSize);
+            }
+            if (result.mKeyframes[blurKeyframes] != null) {
+                return;
+            }
+            // Only some keyframes were cached, so blur them all again
+            if (result.mSnapshot != null) {
+                result.mSnapshot.recycle();
+                result.mSnapshot = null;
+            }
+            for (int f = 1; f <= blurKeyframes; f++) {
+                if (result.mKeyframes[f] != null) {
+                    result.mKeyframes[f].recycle();
+                    result.mKeyframes[f] = null;
+                }
+            }
+        }
+
+        // To blur, first load the entire bitmap region, but at a very large
+        // sample size that's appropriate for the final blurred image
+        options.inSampleSize = ImageUtil.calculateSampleSize(
+                originalHeight, sampleSizeTargetHeight);
+        rect.set(0, 0, originalWidth, originalHeight);
+        Bitmap tempBitmap = bitmapRegionLoader.decodeRegion(rect, options);
+
+        if (tempBitmap == null || tempBitmap.getWidth() == 0 || tempBitmap.getHeight() == 0) {
+            Log.e(TAG, "BitmapRegionLoader failed to decode the region, rect="
+                    + rect.toShortString());
+            return;
+        }
+
+        // Next, create a scaled down version of the bitmap so that the blur radius
+        // looks appropriate (tempBitmap will likely be bigger than the final
+        // blurred bitmap, and thus the blur may look smaller if we just used
+        // tempBitmap as the final blurred bitmap).
+
+        // Note that image width should be a multiple of 4 to avoid
+        // issues with RenderScript allocations.
+        Bitmap scaledBitmap = Bitmap.createScaledBitmap(
+                tempBitmap, scaledWidth, scaledHeight, true);
+        if (tempBitmap != scaledBitmap) {
+            tempBitmap.recycle();
+        }
+
+        // And finally, create a blurred copy for each keyframe. This already runs on a
+        // background thread, so use the Java engine rather than paying to set up RenderScript
+        ImageBlurrer blurrer = new ImageBlurrer(mContext, scaledBitmap, ImageBlurrer.ENGINE_JAVA);
+        for (int f = 1; f <= blurKeyframes && !isCancelled(); f++) {
+            Bitmap blurredBitmap = TextureFormatPolicy.convert(
+                    blurrer.blurBitmap(mBlurRadii[f], 0),
+                    mTextureFormatPolicy.getKeyframeConfig());
+            if (keyframeCache != null) {
+                keyframeCache.put(keyframeKeys[f], blurredBitmap);
+            }
+            if (f == blurKeyframes && blurredBitmap != null) {
+                result.mSnapshot = createSnapshot(blurredBitmap, result.mBitmapAspectRatio);
+            }
+            result.mKeyframes[f] = TileSet.split(blurredBitmap, mTileSize);
+        }
+        blurrer.destroy();
+
+        scaledBitmap.recycle();
+        if (BuildConfig.DEBUG && keyframeCache != null) {
+            Log.d(TAG, "Keyframe cache hits: " + keyframeCache.getHitCount()
+                    + ", misses: " + keyframeCache.getMissCount());
+        }
+    }
+
+    /**
+     * Blurs the keyframes of the given artwork into the {@link KeyframeCache} ahead of time,
+     * so that a later {@link #decode} of the same artwork with the same settings only has to
+     * decode its sharp tiles. This does nothing if the artwork has no key to cache them under.
+     */
+    void prepareKeyframes(BitmapRegionLoader bitmapRegionLoader) {
+        if (mMaxPrescaledBlurPixels == 0 || bitmapRegionLoader.getArtworkKey() == null
+                || bitmapRegionLoader.getWidth() == 0 || bitmapRegionLoader.getHeight() == 0) {
+            return;
+        }
+        Result result = new Result(mGeneration, mBlurRadii.length - 1);
+        result.mBitmapAspectRatio = bitmapRegionLoader.getWidth() * 1f
+                / bitmapRegionLoader.getHeight();
+        decodeKeyframes(bitmapRegionLoader, result);
+        result.recycle();
+    }
+
+    /**
+     * Saves the settings of this decoder so that {@link #fromSavedSettings} can prepare
+     * keyframes for artwork that hasn't been loaded by a renderer yet.
+     */
+    void saveSettings() {
+        StringBuilder blurRadii = new StringBuilder();
+        for (int f = 1; f < mBlurRadii.length; f++) {
+            if (f > 1) {
+                blurRadii.append(',');
+            }
+            blurRadii.append(mBlurRadii[f]);
+        }
+        getSettings(mContext).edit()
+                .putInt(PREF_HEIGHT, mHeight)
+                .putInt(PREF_TILE_SIZE, mTileSize)
+                .putInt(PREF_BLURRED_SAMPLE_SIZE, mBlurredSampleSize)
+                .putInt(PREF_MAX_PRESCALED_BLUR_PIXELS, mMaxPrescaledBlurPixels)
+                .putString(PREF_BLUR_RADII, blurRadii.toString())
+                .putInt(PREF_MAX_RESIDENT_TILE_BYTES, mMaxResidentTileBytes)
+                .apply();
+    }
+
+    /**
+     * Creates a decoder with the settings last saved by {@link #saveSettings}, or returns null
+     * if no settings have been saved yet.
+     */
+    @Nullable
+    static PictureSetDecoder fromSavedSettings(Context context) {
+        SharedPreferences settings = getSettings(context);
+        if (!settings.contains(PREF_HEIGHT)) {
+            return null;
+        }
+        String blurRadiiString = settings.getString(PREF_BLUR_RADII, "");
+        String[] blurRadiiStrings = TextUtils.isEmpty(blurRadiiString)
+                ? new String[0]
+                : blurRadiiString.split(",");
+        float[] blurRadii = new float[blurRadiiStrings.length + 1];
+        try {
+            for (int f = 1; f < blurRadii.length; f++) {
+                blurRadii[f] = Float.parseFloat(blurRadiiStrings[f - 1]);
+            }
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid saved blur radii " + blurRadiiString, e);
+            return null;
+        }
+        return new PictureSetDecoder(context, 0, new AtomicInteger(0),
+                settings.getInt(PREF_HEIGHT, 0),
+                settings.getInt(PREF_TILE_SIZE, 0),
+                settings.getInt(PREF_BLURRED_SAMPLE_SIZE, 1),
+                settings.getInt(PREF_MAX_PRESCALED_BLUR_PIXELS, 0),
+                blurRadii,
+                settings.getInt(PREF_MAX_RESIDENT_TILE_BYTES, 0));
+    }
+
+    private static SharedPreferences getSettings(Context context) {
+        return context.getSharedPreferences(SETTINGS_PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Creates a {@link FirstFrameSnapshot} sized copy of the given bitmap, leaving the bitmap
+     * itself untouched.
+     */
+    private Bitmap createSnapshot(Bitmap bitmap, float aspectRatio) {
+        int height = Math.max(1, mHeight / FirstFrameSnapshot.SCREEN_HEIGHT_DIVISOR);
+        int width = Math.max(1, (int) (height * aspectRatio));
+        Bitmap scaledBitmap = Bitmap.createScaledBitmap(bitmap, width, height, true);
+        if (scaledBitmap == bitmap) {
+            scaledBitmap = bitmap.copy(bitmap.getConfig(), false);
+        }
+        return TextureFormatPolicy.convert(scaledBitmap, Bitmap.Config.RGB_565);
+    }
+
+    /**
+     * Lays out detail levels at successively finer sample sizes than the sharp picture, down to
+     * the full resolution of the image, so that zooming in can stream in sharper tiles. The
+     * loader is kept open, with a single decoder, to decode them.
+     */
+    private void layoutDetailLevels(BitmapRegionLoader bitmapRegionLoader, Result result) {
+        int sampleSize = ImageUtil.calculateSampleSize(bitmapRegionLoader.getHeight(), mHeight);
+        List<TileSet> detailLevels = new ArrayList<>();
+        for (int s = sampleSize / 2; s >= 1 && detailLevels.size() < MAX_DETAIL_LEVELS; s /= 2) {
+            detailLevels.add(TileSet.layoutAtSampleSize(bitmapRegionLoader, s, mTileSize,
+                    mTextureFormatPolicy.getSharpTileConfig()));
+        }
+        result.mDetailLevels = detailLevels.toArray(new TileSet[detailLevels.size()]);
+        if (!detailLevels.isEmpty()) {
+            result.mBitmapRegionLoader = bitmapRegionLoader;
+        }
+    }
+
+    /**
+     * Loads the sharp tiles from previously compressed tiles, if there are any that match the
+     * tile layout that would otherwise be decoded.
+     */
+    private TileSet loadCompressedTiles(BitmapRegionLoader bitmapRegionLoader) {
+        File compressedTilesFile = bitmapRegionLoader.getCompressedTilesFile();
+        if (!mTextureFormatPolicy.useCompressedSharpTiles() || compressedTilesFile == null
+                || !compressedTilesFile.exists()) {
+            return null;
+        }
+        try (InputStream in = new FileInputStream(compressedTilesFile)) {
+            Etc1TileFile etc1TileFile = Etc1TileFile.read(in);
+            int originalWidth = bitmapRegionLoader.getWidth();
+            int originalHeight = bitmapRegionLoader.getHeight();
+            if (etc1TileFile.mOriginalWidth != originalWidth
+                    || etc1TileFile.mOriginalHeight != originalHeight) {
+                return null;
+            }
+            int sampleSize = ImageUtil.calculateSampleSize(originalHeight, mHeight);
+            return TileSet.fromCompressed(etc1TileFile, originalWidth / sampleSize,
+                    originalHeight / sampleSize, mTileSize);
+        } catch (IOException e) {
+            Log.w(TAG, "Error reading compressed tiles " + compressedTilesFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * The decoded contents of a picture set, ready to be uploaded on the GL thread.
+     */
+    static class Result {
+        final int mGeneration;
+        boolean mHasBitmap;
+        float mBitmapAspectRatio;
+        /**
+         * The average luminance of the artwork, from 0 to 1, used to compute how much to dim it.
+         */
+        float mDarkness;
+        /**
+         * Tile sets for each keyframe, with index 0 being the sharp picture. Keyframes that
+         * look identical to the sharp picture share its tile set.
+         */
+        final TileSet[] mKeyframes;
+        /**
+         * Layouts of finer detail levels of the sharp picture, coarsest first, whose tiles are
+         * only decoded when zoomed in.
+         */
+        TileSet[] mDetailLevels = new TileSet[0];
+        /**
+         * The loader to stream tiles from, if the sharp tile set was only laid out rather than
+         * decoded or there are detail levels. The result owns this loader until it is loaded
+         * into a picture set. Its extra decoders have already been released.
+         */
+        BitmapRegionLoader mBitmapRegionLoader;
+        /**
+         * A tiny copy of the most blurred keyframe to persist as the {@link FirstFrameSnapshot}.
+         */
+        Bitmap mSnapshot;
+
+        Result(int generation, int blurKeyframes) {
+            mGeneration = generation;
+            mKeyframes = new TileSet[blurKeyframes + 1];
+        }
+
+        /**
+         * Recycles the bitmaps of a result that will never be uploaded.
+         */
+        void recycle() {
+            for (TileSet tileSet : mKeyframes) {
+                if (tileSet != null) {
+                    tileSet.recycle();
+                }
+            }
+            if (mBitmapRegionLoader != null) {
+                mBitmapRegionLoader.destroy();
+                mBitmapRegionLoader = null;
+            }
+            if (mSnapshot != null) {
+                mSnapshot.recycle();
+                mSnapshot = null;
+            }
+        }
+    }
+}
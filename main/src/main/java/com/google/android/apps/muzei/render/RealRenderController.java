@@ -18,15 +18,19 @@ package com.google.android.apps.muzei.render;
 
 import android.content.Context;
 import android.database.ContentObserver;
+import android.database.Cursor;
 import android.net.Uri;
 import android.os.Handler;
-import android.support.media.ExifInterface;
+import android.provider.BaseColumns;
 import android.util.Log;
 
 import com.google.android.apps.muzei.api.MuzeiContract;
+import com.google.android.apps.muzei.api.internal.ProtocolConstants;
+import com.google.android.apps.muzei.provider.MuzeiProvider;
+import com.google.android.apps.muzei.util.TilePyramidFile;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 
 public class RealRenderController extends RenderController {
     private static final String TAG = "RealRenderController";
@@ -58,27 +62,101 @@ public class RealRenderController extends RenderController {
         // Load the stream
         try {
             // Check if there's rotation
-            int rotation = 0;
-            try (InputStream in = mContext.getContentResolver().openInputStream(MuzeiContract.Artwork.CONTENT_URI)) {
-                if (in == null) {
-                    return null;
-                }
-                ExifInterface exifInterface = new ExifInterface(in);
-                int orientation = exifInterface.getAttributeInt(
-                        ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
-                switch (orientation) {
-                    case ExifInterface.ORIENTATION_ROTATE_90: rotation = 90; break;
-                    case ExifInterface.ORIENTATION_ROTATE_180: rotation = 180; break;
-                    case ExifInterface.ORIENTATION_ROTATE_270: rotation = 270; break;
-                }
-            } catch (IOException|NumberFormatException|StackOverflowError e) {
-                Log.w(TAG, "Couldn't open EXIF interface on artwork", e);
+            int rotation = ImageUtil.getRotation(mContext.getContentResolver(),
+                    MuzeiContract.Artwork.CONTENT_URI);
+            BitmapRegionLoader bitmapRegionLoader = BitmapRegionLoader.newInstance(
+                    mContext.getContentResolver().openInputStream(MuzeiContract.Artwork.CONTENT_URI), rotation,
+                    BitmapRegionLoader.getRecommendedDecoderCount(mContext));
+            if (bitmapRegionLoader != null) {
+                long artworkId = getCurrentArtworkId();
+                bitmapRegionLoader.setCompressedTilesFile(getCompressedTilesFile(artworkId));
+                bitmapRegionLoader.setTilePyramid(openTilePyramid(artworkId));
             }
-            return BitmapRegionLoader.newInstance(
-                    mContext.getContentResolver().openInputStream(MuzeiContract.Artwork.CONTENT_URI), rotation);
+            return bitmapRegionLoader;
         } catch (IOException e) {
             Log.e(TAG, "Error loading image", e);
             return null;
         }
     }
+
+    /**
+     * Returns the id of the current artwork, or -1 if there is none.
+     */
+    private long getCurrentArtworkId() {
+        // Limiting the query to the current artwork lets it be served from memory
+        Uri currentArtworkUri = MuzeiContract.Artwork.CONTENT_URI.buildUpon()
+                .appendQueryParameter(ProtocolConstants.QUERY_PARAMETER_LIMIT, "1")
+                .build();
+        try (Cursor data = mContext.getContentResolver().query(currentArtworkUri,
+                new String[] {BaseColumns._ID}, null, null, null)) {
+            if (data == null || !data.moveToFirst()) {
+                return -1;
+            }
+            return data.getLong(0);
+        }
+    }
+
+    /**
+     * Returns the file holding the ETC1 compressed tiles of the given artwork, queueing them
+     * to be generated if they don't exist yet, or null if the artwork has no file.
+     */
+    private File getCompressedTilesFile(long artworkId) {
+        if (artworkId < 0) {
+            return null;
+        }
+        File artworkFile = MuzeiProvider.getCacheFileForArtworkUri(mContext, artworkId);
+        if (artworkFile == null) {
+            return null;
+        }
+        File compressedTilesFile = MuzeiProvider.getCompressedTilesFile(artworkFile);
+        if (!compressedTilesFile.exists()) {
+            Etc1TileCompressor.compressInBackground(mContext, artworkId);
+        }
+        return compressedTilesFile;
+    }
+
+    /**
+     * Opens the tile pyramid of the given artwork, queueing it to be generated if it doesn't
+     * exist yet, or returns null if there isn't one to read.
+     */
+    private TilePyramidFile openTilePyramid(long artworkId) {
+        if (artworkId < 0) {
+            return null;
+        }
+        File artworkFile = MuzeiProvider.getCacheFileForArtworkUri(mContext, artworkId);
+        if (artworkFile == null) {
+            return null;
+        }
+        File tilePyramidFile = MuzeiProvider.getTilePyramidFile(artworkFile);
+        if (!tilePyramidFile.exists()) {
+            TilePyramidGenerator.generateInBackground(mContext, artworkId);
+            return null;
+        }
+        try {
+            return TilePyramidFile.open(tilePyramidFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Error opening tile pyramid " + tilePyramidFile, e);
+            return null;
+        }
+    }
+
+    @Override
+    protected String getCurrentArtworkKey() {
+        return getCurrentArtworkKey(getCurrentArtworkId());
+    }
+
+    /**
+     * Returns a key identifying the given artwork and its contents, so that blurred keyframes
+     * can be reused across reloads, or null if the artwork can't be identified.
+     */
+    private String getCurrentArtworkKey(long artworkId) {
+        if (artworkId < 0) {
+            return null;
+        }
+        File artworkFile = MuzeiProvider.getCacheFileForArtworkUri(mContext, artworkId);
+        if (artworkFile == null || !artworkFile.exists()) {
+            return null;
+        }
+        return KeyframeCache.buildArtworkKey(artworkFile);
+    }
 }
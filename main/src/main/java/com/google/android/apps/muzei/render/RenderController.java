@@ -18,21 +18,45 @@ package com.google.android.apps.muzei.render;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Message;
 
 import com.google.android.apps.muzei.settings.Prefs;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
 public abstract class RenderController {
     protected Context mContext;
     protected MuzeiBlurRenderer mRenderer;
     protected Callbacks mCallbacks;
     protected boolean mVisible;
-    private ExecutorService mExecutorService = Executors.newSingleThreadExecutor();
+    private final ArtworkReloadScheduler mReloadScheduler = new ArtworkReloadScheduler(
+            new ArtworkReloadScheduler.Callbacks() {
+                @Override
+                public String getCurrentArtworkKey() {
+                    return RenderController.this.getCurrentArtworkKey();
+                }
+
+                @Override
+                public BitmapRegionLoader openCurrentArtwork(boolean forceReload) {
+                    return openDownloadedCurrentArtwork(forceReload);
+                }
+
+                @Override
+                public void onArtworkLoaded(final BitmapRegionLoader bitmapRegionLoader) {
+                    mCallbacks.queueEventOnGlThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mVisible) {
+                                mRenderer.setAndConsumeBitmapRegionLoader(bitmapRegionLoader);
+                            } else {
+                                if (mQueuedBitmapRegionLoader != null) {
+                                    mQueuedBitmapRegionLoader.destroy();
+                                }
+                                mQueuedBitmapRegionLoader = bitmapRegionLoader;
+                            }
+                        }
+                    });
+                }
+            });
     private BitmapRegionLoader mQueuedBitmapRegionLoader;
     private SharedPreferences.OnSharedPreferenceChangeListener mOnSharedPreferenceChangeListener =
             new SharedPreferences.OnSharedPreferenceChangeListener() {
@@ -42,11 +66,22 @@ public abstract class RenderController {
                         mRenderer.recomputeMaxPrescaledBlurPixels();
                         throttledForceReloadCurrentArtwork();
                     } else if (Prefs.PREF_DIM_AMOUNT.equals(key)) {
-                        mRenderer.recomputeMaxDimAmount();
-                        throttledForceReloadCurrentArtwork();
+                        // Dim and grey are applied while drawing, so just redraw
+                        mCallbacks.queueEventOnGlThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                mRenderer.recomputeMaxDimAmount();
+                            }
+                        });
+                        mCallbacks.requestRender();
                     } else if (Prefs.PREF_GREY_AMOUNT.equals(key)) {
-                        mRenderer.recomputeGreyAmount();
-                        throttledForceReloadCurrentArtwork();
+                        mCallbacks.queueEventOnGlThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                mRenderer.recomputeGreyAmount();
+                            }
+                        });
+                        mCallbacks.requestRender();
                     }
                 }
             };
@@ -65,7 +100,7 @@ public abstract class RenderController {
         }
         Prefs.getSharedPreferences(mContext)
                 .unregisterOnSharedPreferenceChangeListener(mOnSharedPreferenceChangeListener);
-        mExecutorService.shutdownNow();
+        mReloadScheduler.destroy();
     }
 
     private void throttledForceReloadCurrentArtwork() {
@@ -82,37 +117,25 @@ public abstract class RenderController {
 
     protected abstract BitmapRegionLoader openDownloadedCurrentArtwork(boolean forceReload);
 
-    public void reloadCurrentArtwork(final boolean forceReload) {
-        if (mExecutorService.isShutdown() || mExecutorService.isTerminated()) {
-            // Don't reload artwork for shutdown or destroyed RenderControllers
-            return;
-        }
-        new AsyncTask<Void, Void, BitmapRegionLoader>() {
-            @Override
-            protected BitmapRegionLoader doInBackground(Void... voids) {
-                // openDownloadedCurrentArtwork should be called on a background thread
-                return openDownloadedCurrentArtwork(forceReload);
-            }
-
-            @Override
-            protected void onPostExecute(final BitmapRegionLoader bitmapRegionLoader) {
-                if (bitmapRegionLoader == null || bitmapRegionLoader.getWidth() == 0 ||
-                        bitmapRegionLoader.getHeight() == 0) {
-                    return;
-                }
+    /**
+     * Returns a key identifying the current artwork and its contents, or null if it can't be
+     * identified. Reloads that aren't forced are skipped while this matches the key of the
+     * artwork last loaded, and the key is set on the loaded {@link BitmapRegionLoader}. Called
+     * on a background thread.
+     */
+    protected String getCurrentArtworkKey() {
+        return null;
+    }
 
-                mCallbacks.queueEventOnGlThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (mVisible) {
-                            mRenderer.setAndConsumeBitmapRegionLoader(bitmapRegionLoader);
-                        } else {
-                            mQueuedBitmapRegionLoader = bitmapRegionLoader;
-                        }
-                    }
-                });
-            }
-        }.executeOnExecutor(mExecutorService, (Void) null);
+    /**
+     * Reloads the current artwork in the background. Requests made before an earlier one has
+     * finished replace it rather than each doing a full load.
+     *
+     * @param forceReload true to reload even if the current artwork hasn't changed, such as
+     *                    when render settings change
+     */
+    public void reloadCurrentArtwork(boolean forceReload) {
+        mReloadScheduler.requestReload(forceReload);
     }
 
     public void setVisible(boolean visible) {
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+/**
+ * Decides which bitmap configs artwork tiles are decoded and uploaded in. Artwork is always
+ * drawn opaque, so tiles never need an alpha channel, and {@link Bitmap.Config#RGB_565}
+ * bitmaps are uploaded as 16-bit <code>GL_RGB</code> textures, halving both bitmap and texture
+ * memory.
+ *
+ * <p>Blurred keyframes are low frequency images where the reduced precision isn't visible, so
+ * they always use {@link Bitmap.Config#RGB_565}. Sharp tiles only do so on low RAM devices,
+ * unless ETC1 compressed tiles are enabled and available.
+ */
+class TextureFormatPolicy {
+    private final boolean mReducedSharpTiles;
+    private final boolean mCompressedSharpTiles;
+
+    static TextureFormatPolicy forDevice(Context context) {
+        ActivityManager activityManager = (ActivityManager)
+                context.getSystemService(Context.ACTIVITY_SERVICE);
+        return new TextureFormatPolicy(activityManager.isLowRamDevice(),
+                Etc1TileCompressor.isEnabled(context));
+    }
+
+    TextureFormatPolicy(boolean reducedSharpTiles, boolean compressedSharpTiles) {
+        mReducedSharpTiles = reducedSharpTiles;
+        mCompressedSharpTiles = compressedSharpTiles;
+    }
+
+    /**
+     * Returns whether sharp tiles should be loaded from ETC1 compressed tiles generated by
+     * {@link Etc1TileCompressor}, when they exist.
+     */
+    boolean useCompressedSharpTiles() {
+        return mCompressedSharpTiles && GLPicture.isEtc1Supported();
+    }
+
+    /**
+     * Returns the config to decode sharp tiles with, for use as
+     * {@link android.graphics.BitmapFactory.Options#inPreferredConfig}.
+     */
+    Bitmap.Config getSharpTileConfig() {
+        return mReducedSharpTiles ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * Returns the config blurred keyframes should be stored and uploaded in.
+     */
+    Bitmap.Config getKeyframeConfig() {
+        return Bitmap.Config.RGB_565;
+    }
+
+    /**
+     * Converts the given bitmap to the given config, dithering to avoid banding in smooth
+     * gradients. The original bitmap is recycled if a new one had to be created.
+     */
+    static Bitmap convert(Bitmap bitmap, Bitmap.Config config) {
+        if (bitmap == null || bitmap.getConfig() == config) {
+            return bitmap;
+        }
+
+        Bitmap converted = Bitmap.createBitmap(bitmap.getWidth(), bitmap.getHeight(), config);
+        Canvas canvas = new Canvas(converted);
+        canvas.drawBitmap(bitmap, 0, 0, new Paint(Paint.DITHER_FLAG));
+        bitmap.recycle();
+        return converted;
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+import android.graphics.Bitmap;
+import android.opengl.ETC1;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import android.util.SparseArray;
+
+import java.nio.Buffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A pool of tile textures, keyed by their size and format, so that the textures of a picture
+ * set that is no longer shown can be reused for the next artwork with
+ * <code>glTexSubImage2D</code> rather than being deleted and allocated again.
+ *
+ * <p>Released textures are only kept while their total size is within the pool's budget. All
+ * methods must be called on the GL thread, and the pool must be discarded along with its
+ * GL context.
+ */
+class TexturePool {
+    private static final String TAG = "TexturePool";
+
+    public static final int DEFAULT_MAX_POOLED_BYTES = 32 * 1024 * 1024;
+
+    private final Map<TextureKey, ArrayDeque<Integer>> mPooledTextures = new HashMap<>();
+    private final SparseArray<TextureKey> mTextureKeys = new SparseArray<>();
+    private final int[] mTempHandle = new int[1];
+    private int mMaxPooledBytes;
+    private long mPooledBytes = 0;
+    private long mAllocatedBytes = 0;
+    private int mHitCount = 0;
+    private int mMissCount = 0;
+
+    TexturePool(int maxPooledBytes) {
+        mMaxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * Returns a texture containing the given bitmap, reusing a pooled texture of the same size
+     * and format if there is one. The texture is left bound to <code>GL_TEXTURE_2D</code>.
+     */
+    int acquire(Bitmap bitmap) {
+        TextureKey key = new TextureKey(bitmap.getWidth(), bitmap.getHeight(),
+                GLUtils.getInternalFormat(bitmap), GLUtils.getType(bitmap),
+                bitmap.getRowBytes() * bitmap.getHeight());
+        int textureHandle = takePooledTexture(key);
+        if (textureHandle != 0) {
+            GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, bitmap);
+            GLUtil.checkGlError("texSubImage2D");
+            return textureHandle;
+        }
+
+        textureHandle = GLUtil.loadTexture(bitmap);
+        onTextureAllocated(textureHandle, key);
+        return textureHandle;
+    }
+
+    /**
+     * Returns a texture containing the given ETC1 data, reusing a pooled texture of the same
+     * size if there is one. ETC1 textures can't be partially updated, so reused textures are
+     * respecified, which still avoids generating a new texture name.
+     */
+    int acquireCompressed(int width, int height, Buffer data) {
+        TextureKey key = new TextureKey(width, height, ETC1.ETC1_RGB8_OES, 0, data.capacity());
+        int textureHandle = takePooledTexture(key);
+        if (textureHandle != 0) {
+            GLES20.glCompressedTexImage2D(GLES20.GL_TEXTURE_2D, 0, ETC1.ETC1_RGB8_OES,
+                    width, height, 0, data.capacity(), data);
+            GLUtil.checkGlError("glCompressedTexImage2D");
+            return textureHandle;
+        }
+
+        textureHandle = GLUtil.loadCompressedTexture(width, height, data);
+        onTextureAllocated(textureHandle, key);
+        return textureHandle;
+    }
+
+    /**
+     * Removes and binds a pooled texture matching the given key, returning 0 if there is none.
+     */
+    private int takePooledTexture(TextureKey key) {
+        ArrayDeque<Integer> pooled = mPooledTextures.get(key);
+        if (pooled == null || pooled.isEmpty()) {
+            mMissCount++;
+            return 0;
+        }
+        int textureHandle = pooled.pop();
+        mPooledBytes -= key.mByteCount;
+        mHitCount++;
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureHandle);
+        mTextureKeys.put(textureHandle, key);
+        return textureHandle;
+    }
+
+    private void onTextureAllocated(int textureHandle, TextureKey key) {
+        if (textureHandle != 0) {
+            mTextureKeys.put(textureHandle, key);
+            mAllocatedBytes += key.mByteCount;
+        }
+    }
+
+    /**
+     * Returns a texture obtained from this pool, deleting it if the pool is already at its
+     * budget.
+     */
+    void release(int textureHandle) {
+        TextureKey key = mTextureKeys.get(textureHandle);
+        if (key == null) {
+            return;
+        }
+        mTextureKeys.remove(textureHandle);
+
+        if (mPooledBytes + key.mByteCount > mMaxPooledBytes) {
+            deleteTexture(textureHandle, key);
+            return;
+        }
+
+        ArrayDeque<Integer> pooled = mPooledTextures.get(key);
+        if (pooled == null) {
+            pooled = new ArrayDeque<>();
+            mPooledTextures.put(key, pooled);
+        }
+        pooled.push(textureHandle);
+        mPooledBytes += key.mByteCount;
+    }
+
+    /**
+     * Sets the maximum total size of textures kept for reuse, deleting pooled textures as
+     * needed to fit.
+     */
+    void setMaxPooledBytes(int maxPooledBytes) {
+        mMaxPooledBytes = maxPooledBytes;
+        trimToSize();
+    }
+
+    /**
+     * Deletes all pooled textures. Textures that are still acquired are unaffected.
+     */
+    void clear() {
+        int maxPooledBytes = mMaxPooledBytes;
+        mMaxPooledBytes = 0;
+        trimToSize();
+        mMaxPooledBytes = maxPooledBytes;
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<TextureKey, ArrayDeque<Integer>>> iterator
+                = mPooledTextures.entrySet().iterator();
+        while (mPooledBytes > mMaxPooledBytes && iterator.hasNext()) {
+            Map.Entry<TextureKey, ArrayDeque<Integer>> entry = iterator.next();
+            ArrayDeque<Integer> pooled = entry.getValue();
+            while (mPooledBytes > mMaxPooledBytes && !pooled.isEmpty()) {
+                deleteTexture(pooled.pop(), entry.getKey());
+                mPooledBytes -= entry.getKey().mByteCount;
+            }
+            if (pooled.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void deleteTexture(int textureHandle, TextureKey key) {
+        mTempHandle[0] = textureHandle;
+        GLES20.glDeleteTextures(1, mTempHandle, 0);
+        GLUtil.checkGlError("glDeleteTextures");
+        mAllocatedBytes -= key.mByteCount;
+    }
+
+    /**
+     * Returns the number of textures that were reused from the pool.
+     */
+    public int getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Returns the number of textures that had to be newly allocated.
+     */
+    public int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Returns the total size of textures waiting in the pool to be reused.
+     */
+    public long getPooledBytes() {
+        return mPooledBytes;
+    }
+
+    /**
+     * Returns the total size of all textures allocated through this pool, whether pooled or
+     * in use.
+     */
+    public long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return TAG + "{hits=" + mHitCount + ", misses=" + mMissCount
+                + ", pooledBytes=" + mPooledBytes + ", allocatedBytes=" + mAllocatedBytes + "}";
+    }
+
+    private static class TextureKey {
+        final int mWidth;
+        final int mHeight;
+        final int mInternalFormat;
+        final int mType;
+        final int mByteCount;
+
+        TextureKey(int width, int height, int internalFormat, int type, int byteCount) {
+            mWidth = width;
+            mHeight = height;
+            mInternalFormat = internalFormat;
+            mType = type;
+            mByteCount = byteCount;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof TextureKey)) {
+                return false;
+            }
+            TextureKey other = (TextureKey) o;
+            return mWidth == other.mWidth && mHeight == other.mHeight
+                    && mInternalFormat == other.mInternalFormat && mType == other.mType;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mWidth;
+            result = 31 * result + mHeight;
+            result = 31 * result + mInternalFormat;
+            result = 31 * result + mType;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.apps.muzei.provider.MuzeiProvider;
+import com.google.android.apps.muzei.util.TilePyramidFile;
+
+import net.nurik.roman.muzei.BuildConfig;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Converts downloaded artwork into a {@link TilePyramidFile} once, on a background thread, and
+ * stores it beside the artwork file. Later loads read just the level and tiles they need
+ * through {@link BitmapRegionLoader#setTilePyramid}, rather than decoding across the full
+ * image at each sample size.
+ *
+ * <p>Tiles are stored upright, with any EXIF rotation already applied, as JPEGs.
+ */
+public class TilePyramidGenerator {
+    private static final String TAG = "TilePyramidGenerator";
+
+    static final int TILE_SIZE = 512;
+    private static final int JPEG_QUALITY = 90;
+
+    private static ExecutorService sExecutorService;
+
+    private static synchronized ExecutorService getExecutorService() {
+        if (sExecutorService == null) {
+            sExecutorService = Executors.newSingleThreadExecutor();
+        }
+        return sExecutorService;
+    }
+
+    /**
+     * Generates the tile pyramid of the given artwork in the background if it hasn't already
+     * been generated.
+     */
+    public static void generateInBackground(Context context, final long artworkId) {
+        final Context applicationContext = context.getApplicationContext();
+        getExecutorService().execute(new Runnable() {
+            @Override
+            public void run() {
+                generate(applicationContext, artworkId);
+            }
+        });
+    }
+
+    private static void generate(Context context, long artworkId) {
+        File artworkFile = MuzeiProvider.getCacheFileForArtworkUri(context, artworkId);
+        if (artworkFile == null || !artworkFile.exists()) {
+            return;
+        }
+        generate(context, artworkFile);
+    }
+
+    /**
+     * Generates the tile pyramid of the given artwork file if it hasn't already been generated,
+     * waiting until it is done. This must not be called on the main thread.
+     */
+    static void generateAndWait(Context context, final File artworkFile) {
+        final Context applicationContext = context.getApplicationContext();
+        Future<?> future = getExecutorService().submit(new Runnable() {
+            @Override
+            public void run() {
+                generate(applicationContext, artworkFile);
+            }
+        });
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Error generating tile pyramid of " + artworkFile.getName(), e);
+        }
+    }
+
+    private static void generate(Context context, File artworkFile) {
+        File tilePyramidFile = MuzeiProvider.getTilePyramidFile(artworkFile);
+        if (tilePyramidFile.exists()) {
+            return;
+        }
+
+        long startTime = SystemClock.elapsedRealtime();
+        BitmapRegionLoader bitmapRegionLoader = null;
+        File tempFile = new File(tilePyramidFile.getPath() + ".tmp");
+        try {
+            bitmapRegionLoader = BitmapRegionLoader.newInstance(
+                    new FileInputStream(artworkFile),
+                    ImageUtil.getRotation(context.getContentResolver(),
+                            Uri.fromFile(artworkFile)));
+            if (bitmapRegionLoader == null) {
+                return;
+            }
+            // Images that already fit the screen are cheap to decode whole, so gain nothing
+            if (ImageUtil.calculateSampleSize(bitmapRegionLoader.getHeight(),
+                    ImageUtil.getScreenHeight(context)) < 2) {
+                return;
+            }
+
+            // Write to a temporary file first so that a partially written file is never read
+            TilePyramidFile.Writer writer = new TilePyramidFile.Writer(tempFile,
+                    bitmapRegionLoader.getWidth(), bitmapRegionLoader.getHeight(), TILE_SIZE);
+            try {
+                writeLevels(bitmapRegionLoader, writer);
+            } finally {
+                writer.close();
+            }
+            if (!tempFile.renameTo(tilePyramidFile)) {
+                Log.w(TAG, "Unable to rename " + tempFile + " to " + tilePyramidFile);
+                return;
+            }
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "Generated " + writer.getPyramid().getLevelCount()
+                        + " level tile pyramid of " + artworkFile.getName() + " in "
+                        + (SystemClock.elapsedRealtime() - startTime) + "ms");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Error generating tile pyramid of " + artworkFile.getName(), e);
+        } finally {
+            if (bitmapRegionLoader != null) {
+                bitmapRegionLoader.destroy();
+            }
+            if (tempFile.exists() && !tempFile.delete()) {
+                Log.w(TAG, "Unable to delete " + tempFile);
+            }
+        }
+    }
+
+    private static void writeLevels(BitmapRegionLoader bitmapRegionLoader,
+            TilePyramidFile.Writer writer) throws IOException {
+        TilePyramidFile pyramid = writer.getPyramid();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        Rect rect = new Rect();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int level = 0; level < pyramid.getLevelCount(); level++) {
+            int sampleSize = 1 << level;
+            int unsampledTileSize = TILE_SIZE * sampleSize;
+            options.inSampleSize = sampleSize;
+            for (int row = 0; row < pyramid.getRows(level); row++) {
+                for (int col = 0; col < pyramid.getCols(level); col++) {
+                    rect.set(col * unsampledTileSize, row * unsampledTileSize,
+                            (col + 1) * unsampledTileSize, (row + 1) * unsampledTileSize);
+                    rect.intersect(0, 0, pyramid.getWidth(), pyramid.getHeight());
+                    Bitmap tile = bitmapRegionLoader.decodeRegion(rect, options);
+                    if (tile == null) {
+                        throw new IOException("Unable to decode tile " + col + "," + row
+                                + " of level " + level);
+                    }
+
+                    // Sampled decodes can round differently than the level's size, so make
+                    // sure tiles line up exactly
+                    int width = Math.min(TILE_SIZE, pyramid.getWidth(level) - col * TILE_SIZE);
+                    int height = Math.min(TILE_SIZE,
+                            pyramid.getHeight(level) - row * TILE_SIZE);
+                    if (tile.getWidth() != width || tile.getHeight() != height) {
+                        Bitmap scaledTile = Bitmap.createScaledBitmap(tile, width, height, true);
+                        if (scaledTile != tile) {
+                            tile.recycle();
+                        }
+                        tile = scaledTile;
+                    }
+
+                    out.reset();
+                    tile.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+                    tile.recycle();
+                    writer.writeTile(level, col, row, out.toByteArray());
+                }
+            }
+        }
+    }
+
+    private TilePyramidGenerator() {
+    }
+}
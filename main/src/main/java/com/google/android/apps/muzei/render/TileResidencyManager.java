@@ -0,0 +1,357 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+import android.util.Log;
+
+import net.nurik.roman.muzei.BuildConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Streams tiles of an artwork in and out of {@link GLPicture}s as the viewport moves, rather
+ * than keeping every tile resident. Tiles are decoded in the background and uploaded a few at a
+ * time on the GL thread; tiles that are no longer wanted are only evicted, least recently wanted
+ * first across every level, once the resident tiles exceed the memory cap.
+ *
+ * <p>There are two kinds of levels:
+ * <ul>
+ * <li>A streamed base level, used in place of fully decoding the sharp picture of very large
+ * artwork. Its tiles are wanted within the prefetch region around the viewport.</li>
+ * <li>Detail levels, at successively finer sample sizes than the sharp picture, for when the
+ * viewport is zoomed in past the sharp picture's resolution. Only the tiles of the single level
+ * matching the current zoom that are within the viewport itself are wanted. They are drawn over
+ * the sharp picture, which along with any coarser detail tiles still resident acts as a
+ * placeholder until they arrive.</li>
+ * </ul>
+ *
+ * <p>The manager owns the {@link BitmapRegionLoader} tiles are decoded from. All methods other
+ * than the background decodes must be called on the GL thread.
+ */
+class TileResidencyManager {
+    private static final String TAG = "TileResidencyManager";
+
+    public static final int DEFAULT_MAX_RESIDENT_BYTES = 24 * 1024 * 1024;
+
+    // Detail tiles are only used once the viewport needs this much more resolution than the
+    // sharp picture has
+    private static final float DETAIL_ZOOM_THRESHOLD = 1.25f;
+
+    private final BitmapRegionLoader mBitmapRegionLoader;
+    private final int mSharpHeight;
+    private final ExecutorService mExecutorService;
+    private final Runnable mOnTileDecoded;
+    private final int mMaxResidentBytes;
+
+    private Level mBaseLevel;
+    private final List<Level> mDetailLevels = new ArrayList<>();
+    private final ConcurrentLinkedQueue<DecodedTile> mDecodedTiles
+            = new ConcurrentLinkedQueue<>();
+    private final RectF mTileBounds = new RectF();
+    private long mFrame = 0;
+    private long mResidentBytes = 0;
+    // Guarded by mDecodedTiles
+    private boolean mDestroyed = false;
+
+    /**
+     * @param sharpHeight     the height of the sharp picture detail levels are finer than
+     * @param onTileDecoded   run on the decoding thread whenever a tile is ready to upload
+     */
+    TileResidencyManager(BitmapRegionLoader bitmapRegionLoader, int sharpHeight,
+            ExecutorService executorService, Runnable onTileDecoded, int maxResidentBytes) {
+        mBitmapRegionLoader = bitmapRegionLoader;
+        mSharpHeight = sharpHeight;
+        mExecutorService = executorService;
+        mOnTileDecoded = onTileDecoded;
+        mMaxResidentBytes = maxResidentBytes;
+    }
+
+    /**
+     * Streams the tiles of the sharp picture, which must have been created with a tile set from
+     * {@link TileSet#layout}.
+     */
+    void setBaseLevel(TileSet tileSet, GLPicture picture) {
+        mBaseLevel = new Level(tileSet, picture);
+    }
+
+    /**
+     * Adds a level of detail, which must be finer than any level already added.
+     */
+    void addDetailLevel(TileSet tileSet, GLPicture picture) {
+        mDetailLevels.add(new Level(tileSet, picture));
+    }
+
+    int getDetailLevelCount() {
+        return mDetailLevels.size();
+    }
+
+    GLPicture getDetailPicture(int level) {
+        return mDetailLevels.get(level).mPicture;
+    }
+
+    /**
+     * Returns whether any tiles of the given detail level are resident, and so worth drawing.
+     */
+    boolean hasResidentTiles(int level) {
+        return mDetailLevels.get(level).mResidentCount > 0;
+    }
+
+    /**
+     * Marks the tiles needed for the given viewport as wanted and starts decoding any that
+     * aren't resident yet.
+     *
+     * @param viewport       the region currently shown, in the picture's [-1, 1] space with
+     *                       <code>top</code> greater than <code>bottom</code>
+     * @param prefetchRegion the region to keep base tiles resident in, which should contain
+     *                       the viewport
+     * @param screenHeight   the height in pixels the viewport is drawn at
+     * @return true if every base tile within the viewport itself is resident
+     */
+    boolean update(RectF viewport, RectF prefetchRegion, int screenHeight) {
+        mFrame++;
+        boolean viewportResident = mBaseLevel == null
+                || updateLevel(mBaseLevel, viewport, prefetchRegion);
+        int detailLevel = chooseDetailLevel(viewport, screenHeight);
+        for (int i = 0; i < mDetailLevels.size(); i++) {
+            updateLevel(mDetailLevels.get(i), viewport, i == detailLevel ? viewport : null);
+        }
+        return viewportResident;
+    }
+
+    /**
+     * Returns the coarsest detail level with enough resolution to draw the viewport at screen
+     * resolution, the finest level if none do, or -1 if the sharp picture is enough.
+     */
+    private int chooseDetailLevel(RectF viewport, int screenHeight) {
+        float viewportHeight = viewport.top - viewport.bottom;
+        if (mDetailLevels.isEmpty() || viewportHeight <= 0) {
+            return -1;
+        }
+        // The picture's full height spans 2 in picture space
+        float neededHeight = screenHeight * 2 / viewportHeight;
+        if (neededHeight <= mSharpHeight * DETAIL_ZOOM_THRESHOLD) {
+            return -1;
+        }
+        for (int i = 0; i < mDetailLevels.size(); i++) {
+            if (mDetailLevels.get(i).mTileSet.getHeight() >= neededHeight) {
+                return i;
+            }
+        }
+        return mDetailLevels.size() - 1;
+    }
+
+    /**
+     * Marks the tiles of the given level within <code>wantedRegion</code> as wanted, or none
+     * if it is null.
+     *
+     * @return true if every tile of the level within the viewport is resident
+     */
+    private boolean updateLevel(Level level, RectF viewport, RectF wantedRegion) {
+        boolean viewportResident = true;
+        for (int i = 0; i < level.mWanted.length; i++) {
+            if (wantedRegion == null) {
+                level.mWanted[i] = false;
+                continue;
+            }
+            level.mPicture.getTileBounds(i, mTileBounds);
+            level.mWanted[i] = intersects(mTileBounds, wantedRegion);
+            if (!level.mWanted[i]) {
+                continue;
+            }
+            level.mLastWantedFrame[i] = mFrame;
+            if (level.mPicture.isTileResident(i) || level.mFailed[i]) {
+                continue;
+            }
+            if (intersects(mTileBounds, viewport)) {
+                viewportResident = false;
+            }
+            if (!level.mDecoding[i]) {
+                requestDecode(level, i);
+            }
+        }
+        return viewportResident;
+    }
+
+    private void requestDecode(final Level level, final int index) {
+        level.mDecoding[index] = true;
+        try {
+            mExecutorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (isDestroyed()) {
+                        return;
+                    }
+                    Bitmap tile = level.mTileSet.decodeTile(mBitmapRegionLoader, index);
+                    synchronized (mDecodedTiles) {
+                        if (mDestroyed) {
+                            // Nothing will ever upload or recycle this tile
+                            if (tile != null) {
+                                tile.recycle();
+                            }
+                            return;
+                        }
+                        mDecodedTiles.add(new DecodedTile(level, index, tile));
+                    }
+                    mOnTileDecoded.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The renderer is being destroyed
+            level.mDecoding[index] = false;
+        }
+    }
+
+    /**
+     * Uploads decoded tiles that are still wanted until the deadline passes, then evicts tiles
+     * that are no longer wanted while over the memory cap. At least one tile is uploaded if
+     * any are ready.
+     */
+    void uploadTiles(long deadlineNanos) {
+        DecodedTile decodedTile;
+        while ((decodedTile = mDecodedTiles.poll()) != null) {
+            Level level = decodedTile.mLevel;
+            int index = decodedTile.mIndex;
+            Bitmap tile = decodedTile.mTile;
+            level.mDecoding[index] = false;
+            if (tile == null) {
+                Log.w(TAG, "Unable to decode tile " + index);
+                level.mFailed[index] = true;
+            } else {
+                if (level.mWanted[index]) {
+                    if (!level.mPicture.isTileResident(index)) {
+                        level.mResidentCount++;
+                    }
+                    level.mPicture.setTile(index, tile);
+                    mResidentBytes += tile.getByteCount() - level.mTileBytes[index];
+                    level.mTileBytes[index] = tile.getByteCount();
+                }
+                tile.recycle();
+            }
+            if (System.nanoTime() >= deadlineNanos) {
+                break;
+            }
+        }
+
+        evictToSize();
+    }
+
+    /**
+     * Returns whether there are decoded tiles waiting to be uploaded.
+     */
+    boolean hasDecodedTiles() {
+        return !mDecodedTiles.isEmpty();
+    }
+
+    private void evictToSize() {
+        while (mResidentBytes > mMaxResidentBytes) {
+            Level evictLevel = null;
+            int evictIndex = -1;
+            int levelCount = mDetailLevels.size() + (mBaseLevel != null ? 1 : 0);
+            for (int l = 0; l < levelCount; l++) {
+                Level level = l < mDetailLevels.size() ? mDetailLevels.get(l) : mBaseLevel;
+                for (int i = 0; i < level.mWanted.length; i++) {
+                    if (!level.mWanted[i] && level.mPicture.isTileResident(i)
+                            && (evictLevel == null || level.mLastWantedFrame[i]
+                            < evictLevel.mLastWantedFrame[evictIndex])) {
+                        evictLevel = level;
+                        evictIndex = i;
+                    }
+                }
+            }
+            if (evictLevel == null) {
+                // Everything resident is wanted, so the cap can't be met
+                return;
+            }
+            evictLevel.mPicture.evictTile(evictIndex);
+            evictLevel.mResidentCount--;
+            mResidentBytes -= evictLevel.mTileBytes[evictIndex];
+            evictLevel.mTileBytes[evictIndex] = 0;
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "Evicted tile " + evictIndex + ", resident bytes: "
+                        + mResidentBytes);
+            }
+        }
+    }
+
+    private boolean isDestroyed() {
+        synchronized (mDecodedTiles) {
+            return mDestroyed;
+        }
+    }
+
+    private static boolean intersects(RectF tileBounds, RectF region) {
+        return tileBounds.left < region.right && tileBounds.right > region.left
+                && tileBounds.bottom < region.top && tileBounds.top > region.bottom;
+    }
+
+    /**
+     * Stops decoding and releases the loader and any decoded tiles that were never uploaded.
+     * The pictures' textures are released when the pictures themselves are destroyed.
+     */
+    void destroy() {
+        synchronized (mDecodedTiles) {
+            mDestroyed = true;
+            DecodedTile decodedTile;
+            while ((decodedTile = mDecodedTiles.poll()) != null) {
+                if (decodedTile.mTile != null) {
+                    decodedTile.mTile.recycle();
+                }
+            }
+        }
+        mBitmapRegionLoader.destroy();
+    }
+
+    private static class Level {
+        final TileSet mTileSet;
+        final GLPicture mPicture;
+        final boolean[] mWanted;
+        final boolean[] mDecoding;
+        final boolean[] mFailed;
+        final int[] mTileBytes;
+        final long[] mLastWantedFrame;
+        int mResidentCount = 0;
+
+        Level(TileSet tileSet, GLPicture picture) {
+            mTileSet = tileSet;
+            mPicture = picture;
+            int tileCount = tileSet.getTileCount();
+            mWanted = new boolean[tileCount];
+            mDecoding = new boolean[tileCount];
+            mFailed = new boolean[tileCount];
+            mTileBytes = new int[tileCount];
+            mLastWantedFrame = new long[tileCount];
+        }
+    }
+
+    private static class DecodedTile {
+        final Level mLevel;
+        final int mIndex;
+        final Bitmap mTile;
+
+        DecodedTile(Level level, int index, Bitmap tile) {
+            mLevel = level;
+            mIndex = index;
+            mTile = tile;
+        }
+    }
+}
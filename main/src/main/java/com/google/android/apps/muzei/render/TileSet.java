@@ -0,0 +1,291 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+
+import com.google.android.apps.muzei.util.MathUtil;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A picture that has been decoded and split into tile bitmaps, each small enough to fit into a
+ * single texture. Tile sets are built off of the GL thread and then handed to a
+ * {@link GLPicture}, which takes ownership of the bitmaps as it uploads them.
+ *
+ * <p>Tiles are ordered bottom row first, left to right, matching the order in which
+ * {@link GLPicture} draws them. Tile sets loaded from an {@link Etc1TileFile} hold compressed
+ * tile data rather than bitmaps.
+ */
+class TileSet {
+    private final int mWidth;
+    private final int mHeight;
+    private final int mTileSize;
+    private final int mCols;
+    private final int mRows;
+    private final Bitmap[] mTiles;
+    private Etc1TileFile mCompressedTiles;
+    private Rect[] mSourceRects;
+    private int mSampleSize = 1;
+    private Bitmap.Config mConfig;
+    private boolean mLayoutOnly;
+
+    private TileSet(int width, int height, int tileSize) {
+        mWidth = width;
+        mHeight = height;
+        mTileSize = tileSize;
+        mCols = MathUtil.intDivideRoundUp(mWidth, mTileSize);
+        mRows = MathUtil.intDivideRoundUp(mHeight, mTileSize);
+        mTiles = new Bitmap[mCols * mRows];
+    }
+
+    /**
+     * Decodes the full image from the given {@link BitmapRegionLoader} at the largest power of
+     * two sample size that keeps it at least <code>maxHeight</code> pixels tall.
+     *
+     * @param config the preferred config to decode tiles in
+     */
+    static TileSet decode(BitmapRegionLoader bitmapRegionLoader, int maxHeight, int tileSize,
+            Bitmap.Config config) {
+        TileSet tileSet = layout(bitmapRegionLoader, maxHeight, tileSize, config);
+        if (tileSet == null) {
+            return null;
+        }
+
+        tileSet.mLayoutOnly = false;
+
+        // Tiles are decoded in parallel if the loader has multiple decoders
+        List<Bitmap> tiles = bitmapRegionLoader.decodeRegions(
+                Arrays.asList(tileSet.mSourceRects), tileSet.createDecodeOptions());
+        for (int i = 0; i < tiles.size(); i++) {
+            tileSet.mTiles[i] = tiles.get(i);
+        }
+        return tileSet;
+    }
+
+    /**
+     * Computes the tile layout that {@link #decode(BitmapRegionLoader, int, int, Bitmap.Config)}
+     * would produce without decoding any tiles. Tiles of the returned set can later be decoded
+     * individually with {@link #decodeTile(BitmapRegionLoader, int)}.
+     */
+    static TileSet layout(BitmapRegionLoader bitmapRegionLoader, int maxHeight, int tileSize,
+            Bitmap.Config config) {
+        if (bitmapRegionLoader == null || maxHeight == 0) {
+            return null;
+        }
+
+        return layoutAtSampleSize(bitmapRegionLoader,
+                ImageUtil.calculateSampleSize(bitmapRegionLoader.getHeight(), maxHeight),
+                tileSize, config);
+    }
+
+    /**
+     * Computes the tile layout of the full image at the given sample size without decoding any
+     * tiles.
+     */
+    static TileSet layoutAtSampleSize(BitmapRegionLoader bitmapRegionLoader, int sampleSize,
+            int tileSize, Bitmap.Config config) {
+        int originalWidth = bitmapRegionLoader.getWidth();
+        int originalHeight = bitmapRegionLoader.getHeight();
+        TileSet tileSet = new TileSet(originalWidth / sampleSize, originalHeight / sampleSize,
+                tileSize);
+        tileSet.mSampleSize = sampleSize;
+        tileSet.mConfig = config;
+        tileSet.mLayoutOnly = true;
+        tileSet.mSourceRects = new Rect[tileSet.mTiles.length];
+        int unsampledTileSize = tileSize * sampleSize;
+        int leftoverHeight = originalHeight % unsampledTileSize;
+        for (int y = 0; y < tileSet.mRows; y++) {
+            for (int x = 0; x < tileSet.mCols; x++) {
+                Rect rect = new Rect(x * unsampledTileSize,
+                        (tileSet.mRows - y - 1) * unsampledTileSize,
+                        (x + 1) * unsampledTileSize,
+                        (tileSet.mRows - y) * unsampledTileSize);
+                // The bottom tiles must be full tiles for drawing, so only allow edge tiles
+                // at the top
+                if (leftoverHeight > 0) {
+                    rect.offset(0, -unsampledTileSize + leftoverHeight);
+                }
+                rect.intersect(0, 0, originalWidth, originalHeight);
+                tileSet.mSourceRects[y * tileSet.mCols + x] = rect;
+            }
+        }
+        return tileSet;
+    }
+
+    private BitmapFactory.Options createDecodeOptions() {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = mSampleSize;
+        options.inPreferredConfig = mConfig;
+        return options;
+    }
+
+    /**
+     * Splits the given bitmap into tiles. The tile set takes ownership of the bitmap, recycling
+     * it if it is not itself used as a tile.
+     */
+    static TileSet split(Bitmap bitmap, int tileSize) {
+        if (bitmap == null) {
+            return null;
+        }
+
+        TileSet tileSet = new TileSet(bitmap.getWidth(), bitmap.getHeight(), tileSize);
+        if (tileSet.mCols == 1 && tileSet.mRows == 1) {
+            tileSet.mTiles[0] = bitmap;
+            return tileSet;
+        }
+
+        int leftoverHeight = tileSet.mHeight % tileSize;
+        Rect rect = new Rect();
+        for (int y = 0; y < tileSet.mRows; y++) {
+            for (int x = 0; x < tileSet.mCols; x++) {
+                rect.set(x * tileSize,
+                        (tileSet.mRows - y - 1) * tileSize,
+                        (x + 1) * tileSize,
+                        (tileSet.mRows - y) * tileSize);
+                // The bottom tiles must be full tiles for drawing, so only allow edge tiles
+                // at the top
+                if (leftoverHeight > 0) {
+                    rect.offset(0, -tileSize + leftoverHeight);
+                }
+                rect.intersect(0, 0, tileSet.mWidth, tileSet.mHeight);
+                tileSet.mTiles[y * tileSet.mCols + x] = Bitmap.createBitmap(bitmap,
+                        rect.left, rect.top, rect.width(), rect.height());
+            }
+        }
+        bitmap.recycle();
+        return tileSet;
+    }
+
+    /**
+     * Creates a tile set from previously compressed tiles, or returns null if the file's tiles
+     * don't match the given layout.
+     */
+    static TileSet fromCompressed(Etc1TileFile file, int width, int height, int tileSize) {
+        if (file.mWidth != width || file.mHeight != height || file.mTileSize != tileSize) {
+            return null;
+        }
+        TileSet tileSet = new TileSet(width, height, tileSize);
+        if (tileSet.mCols != file.mCols || tileSet.mRows != file.mRows) {
+            return null;
+        }
+        tileSet.mCompressedTiles = file;
+        return tileSet;
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    int getTileSize() {
+        return mTileSize;
+    }
+
+    int getCols() {
+        return mCols;
+    }
+
+    int getRows() {
+        return mRows;
+    }
+
+    int getTileCount() {
+        return mTiles.length;
+    }
+
+    /**
+     * Returns whether this set was only laid out, so that all of its tiles must be decoded on
+     * demand.
+     */
+    boolean isLayoutOnly() {
+        return mLayoutOnly;
+    }
+
+    /**
+     * Decodes a single tile of a set created by {@link #layout}, returning null if it failed to
+     * decode. The caller owns the returned bitmap. Safe to call from any thread.
+     */
+    Bitmap decodeTile(BitmapRegionLoader bitmapRegionLoader, int index) {
+        return bitmapRegionLoader.decodeRegion(mSourceRects[index], createDecodeOptions());
+    }
+
+    /**
+     * Returns the approximate size in bytes of the bitmaps or textures for every tile of this
+     * set once decoded.
+     */
+    long getDecodedByteCount() {
+        int bytesPerPixel = mConfig == Bitmap.Config.RGB_565 ? 2 : 4;
+        return (long) mWidth * mHeight * bytesPerPixel;
+    }
+
+    boolean isCompressed() {
+        return mCompressedTiles != null;
+    }
+
+    int getCompressedTileWidth(int index) {
+        return mCompressedTiles.mTileWidths[index];
+    }
+
+    int getCompressedTileHeight(int index) {
+        return mCompressedTiles.mTileHeights[index];
+    }
+
+    /**
+     * Removes the ETC1 data of the tile at the given index from this compressed set. Returns
+     * null if the tile was already taken.
+     */
+    synchronized ByteBuffer takeCompressedTile(int index) {
+        ByteBuffer tile = mCompressedTiles.mTileData[index];
+        mCompressedTiles.mTileData[index] = null;
+        return tile;
+    }
+
+    /**
+     * Removes the tile at the given index from this set, transferring ownership of the bitmap
+     * to the caller. Returns null if the tile failed to decode or was already taken.
+     */
+    synchronized Bitmap takeTile(int index) {
+        Bitmap tile = mTiles[index];
+        mTiles[index] = null;
+        return tile;
+    }
+
+    /**
+     * Recycles any tiles that have not yet been taken.
+     */
+    synchronized void recycle() {
+        if (mCompressedTiles != null) {
+            for (int i = 0; i < mCompressedTiles.mTileData.length; i++) {
+                mCompressedTiles.mTileData[i] = null;
+            }
+        }
+        for (int i = 0; i < mTiles.length; i++) {
+            if (mTiles[i] != null) {
+                mTiles[i].recycle();
+                mTiles[i] = null;
+            }
+        }
+    }
+}
@@ -30,6 +30,8 @@ public class Prefs {
     public static final String PREF_DIM_AMOUNT = "dim_amount";
     public static final String PREF_BLUR_AMOUNT = "blur_amount";
     public static final String PREF_DISABLE_BLUR_WHEN_LOCKED = "disable_blur_when_screen_locked_enabled";
+    public static final String PREF_COMPRESS_TILES = "compress_tiles";
+    public static final String PREF_DOWNSCALE_ARTWORK = "downscale_artwork";
 
     private static final String WALLPAPER_PREFERENCES_NAME = "wallpaper_preferences";
     private static final String PREF_MIGRATED = "migrated_from_default";
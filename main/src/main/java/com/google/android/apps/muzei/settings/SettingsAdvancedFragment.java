@@ -82,7 +82,7 @@ public class SettingsAdvancedFragment extends Fragment
             public void onProgressChanged(SeekBar seekBar, int value, boolean fromUser) {
                 if (fromUser) {
                     mHandler.removeCallbacks(mUpdateDimRunnable);
-                    mHandler.postDelayed(mUpdateDimRunnable, 750);
+                    mHandler.postDelayed(mUpdateDimRunnable, 100);
                 }
             }
 
@@ -103,7 +103,7 @@ public class SettingsAdvancedFragment extends Fragment
             public void onProgressChanged(SeekBar seekBar, int value, boolean fromUser) {
                 if (fromUser) {
                     mHandler.removeCallbacks(mUpdateGreyRunnable);
-                    mHandler.postDelayed(mUpdateGreyRunnable, 750);
+                    mHandler.postDelayed(mUpdateGreyRunnable, 100);
                 }
             }
 
@@ -142,6 +142,34 @@ public class SettingsAdvancedFragment extends Fragment
         );
         mBlurOnLockScreenCheckBox.setChecked(!Prefs.getSharedPreferences(getContext())
                 .getBoolean(Prefs.PREF_DISABLE_BLUR_WHEN_LOCKED, false));
+        CheckBox mCompressTilesCheckBox = (CheckBox) rootView.findViewById(
+                R.id.compress_tiles_checkbox);
+        mCompressTilesCheckBox.setOnCheckedChangeListener(
+                new CompoundButton.OnCheckedChangeListener() {
+                    @Override
+                    public void onCheckedChanged(CompoundButton button, boolean checked) {
+                        Prefs.getSharedPreferences(getContext()).edit()
+                                .putBoolean(Prefs.PREF_COMPRESS_TILES, checked)
+                                .apply();
+                    }
+                }
+        );
+        mCompressTilesCheckBox.setChecked(Prefs.getSharedPreferences(getContext())
+                .getBoolean(Prefs.PREF_COMPRESS_TILES, false));
+        CheckBox mDownscaleArtworkCheckBox = (CheckBox) rootView.findViewById(
+                R.id.downscale_artwork_checkbox);
+        mDownscaleArtworkCheckBox.setOnCheckedChangeListener(
+                new CompoundButton.OnCheckedChangeListener() {
+                    @Override
+                    public void onCheckedChanged(CompoundButton button, boolean checked) {
+                        Prefs.getSharedPreferences(getContext()).edit()
+                                .putBoolean(Prefs.PREF_DOWNSCALE_ARTWORK, checked)
+                                .apply();
+                    }
+                }
+        );
+        mDownscaleArtworkCheckBox.setChecked(Prefs.getSharedPreferences(getContext())
+                .getBoolean(Prefs.PREF_DOWNSCALE_ARTWORK, false));
         return rootView;
     }
 
@@ -0,0 +1,356 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.sync;
+
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.google.android.apps.muzei.api.MuzeiArtSource;
+import com.google.android.apps.muzei.provider.MuzeiProvider;
+import com.google.android.apps.muzei.room.Artwork;
+import com.google.android.apps.muzei.room.ArtworkContent;
+import com.google.android.apps.muzei.room.ArtworkContentDao;
+import com.google.android.apps.muzei.room.MuzeiDatabase;
+import com.google.android.apps.muzei.room.PendingDownload;
+import com.google.android.apps.muzei.room.Source;
+import com.google.android.apps.muzei.room.UpcomingArtwork;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.android.apps.muzei.api.internal.ProtocolConstants.ACTION_HANDLE_COMMAND;
+import static com.google.android.apps.muzei.api.internal.ProtocolConstants.EXTRA_COMMAND_ID;
+
+/**
+ * Downloads and prepares the artwork a source will publish at its next scheduled update ahead
+ * of time, so that the switch is instant rather than waiting on the download and the first
+ * render of the new artwork.
+ *
+ * <p>Once the scheduled update is within {@link #PREFETCH_WINDOW_MILLIS}, and only while on an
+ * unmetered network and either charging or idle, the source is asked for its next artwork with
+ * {@link MuzeiArtSource#BUILTIN_COMMAND_ID_PREFETCH_NEXT_ARTWORK}. Once it has provided it, the
+ * image is queued on the {@link DownloadQueue}, which downloads it into the same file it would
+ * be downloaded to when published and then prepares it.
+ *
+ * <p>The first few artwork the source has queued as upcoming artwork are prefetched the same
+ * way, but as soon as conditions allow rather than waiting for a scheduled update.
+ *
+ * <p>This relies on {@link JobScheduler}, so it does nothing before Lollipop.
+ */
+public class ArtworkPrefetcher {
+    private static final String TAG = "ArtworkPrefetcher";
+
+    private static final int PREFETCH_WHILE_CHARGING_JOB_ID = 2;
+    private static final int PREFETCH_WHILE_IDLE_JOB_ID = 3;
+
+    private static final long PREFETCH_WINDOW_MILLIS = 2 * 60 * 60 * 1000;
+    private static final int MAX_PREFETCHED_UPCOMING_ARTWORK = 3;
+
+    private static final String PREF_SOURCE = "prefetch_source";
+    private static final String PREF_SCHEDULED_UPDATE_TIME_MILLIS =
+            "prefetch_scheduled_update_time_millis";
+    private static final String PREF_NEXT_ARTWORK = "prefetch_next_artwork";
+    private static final String PREF_NEXT_ARTWORK_REQUESTED = "prefetch_next_artwork_requested";
+
+    /**
+     * Updates the prefetch schedule from the latest state published by the selected source.
+     * This should be called on a background thread.
+     *
+     * @param source the source that published the state
+     * @param nextArtwork the artwork the source will publish next, if it has said
+     * @param scheduledUpdateTimeMillis when the source's next update is scheduled for, or 0 if it
+     *                                  has no scheduled update
+     */
+    public static void onSourceStateChanged(Context context, ComponentName source,
+            @Nullable com.google.android.apps.muzei.api.Artwork nextArtwork,
+            long scheduledUpdateTimeMillis) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        String sourceString = source.flattenToShortString();
+        String nextArtworkJson = null;
+        if (nextArtwork != null) {
+            try {
+                nextArtworkJson = nextArtwork.toJson().toString();
+            } catch (JSONException e) {
+                Log.w(TAG, "Unable to serialize next artwork", e);
+            }
+        }
+        boolean sameSchedule = sourceString.equals(sp.getString(PREF_SOURCE, null))
+                && scheduledUpdateTimeMillis == sp.getLong(PREF_SCHEDULED_UPDATE_TIME_MILLIS, 0);
+        String previousNextArtworkJson = sp.getString(PREF_NEXT_ARTWORK, null);
+        if (!TextUtils.equals(nextArtworkJson, previousNextArtworkJson)) {
+            deletePrefetchedArtwork(context, parseArtwork(previousNextArtworkJson));
+        }
+        sp.edit()
+                .putString(PREF_SOURCE, sourceString)
+                .putLong(PREF_SCHEDULED_UPDATE_TIME_MILLIS, scheduledUpdateTimeMillis)
+                .putString(PREF_NEXT_ARTWORK, nextArtworkJson)
+                // Only ask the source once for each scheduled update
+                .putBoolean(PREF_NEXT_ARTWORK_REQUESTED, sameSchedule
+                        && sp.getBoolean(PREF_NEXT_ARTWORK_REQUESTED, false))
+                .commit();
+        scheduleJobs(context);
+    }
+
+    /**
+     * Updates the prefetch schedule after the selected source's queue of upcoming artwork has
+     * changed. This should be called on a background thread.
+     */
+    public static void onUpcomingArtworkChanged(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        scheduleJobs(context);
+    }
+
+    private static void scheduleJobs(Context context) {
+        JobScheduler jobScheduler = (JobScheduler)
+                context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        boolean needsNextArtwork = needsNextArtwork(context);
+        boolean needsUpcomingArtwork = !getUpcomingArtworkToPrefetch(context).isEmpty();
+        if (!needsNextArtwork && !needsUpcomingArtwork) {
+            cancelJobs(jobScheduler);
+            return;
+        }
+        // Upcoming artwork can be shown at any time, so only the next artwork waits for its
+        // scheduled update to be near
+        long delayMillis = needsUpcomingArtwork ? 0 : PreferenceManager
+                .getDefaultSharedPreferences(context)
+                .getLong(PREF_SCHEDULED_UPDATE_TIME_MILLIS, 0)
+                - PREFETCH_WINDOW_MILLIS - System.currentTimeMillis();
+        ComponentName jobService = new ComponentName(context, PrefetchArtworkJobService.class);
+        jobScheduler.schedule(new JobInfo.Builder(PREFETCH_WHILE_CHARGING_JOB_ID, jobService)
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .setRequiresCharging(true)
+                .setMinimumLatency(Math.max(0, delayMillis))
+                .build());
+        jobScheduler.schedule(new JobInfo.Builder(PREFETCH_WHILE_IDLE_JOB_ID, jobService)
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .setRequiresDeviceIdle(true)
+                .setMinimumLatency(Math.max(0, delayMillis))
+                .build());
+    }
+
+    /**
+     * Asks the source for its next artwork if it hasn't provided it yet, otherwise queues it to
+     * be downloaded and prepared, along with the first few upcoming artwork the source has
+     * queued. This should be called on a background thread.
+     */
+    static void prefetch(Context context) {
+        if (needsNextArtwork(context)) {
+            prefetchNextArtwork(context);
+        }
+        for (Artwork artwork : getUpcomingArtworkToPrefetch(context)) {
+            prefetch(context, artwork);
+        }
+        DownloadQueue.schedule(context);
+        if (!needsNextArtwork(context) && getUpcomingArtworkToPrefetch(context).isEmpty()) {
+            cancelJobs((JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE));
+        }
+    }
+
+    private static boolean needsNextArtwork(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        if (sp.getLong(PREF_SCHEDULED_UPDATE_TIME_MILLIS, 0) <= System.currentTimeMillis()) {
+            // Too late, the source has already updated
+            return false;
+        }
+        String nextArtworkJson = sp.getString(PREF_NEXT_ARTWORK, null);
+        if (nextArtworkJson == null) {
+            // Sources that don't support prefetching are only asked once
+            return !sp.getBoolean(PREF_NEXT_ARTWORK_REQUESTED, false);
+        }
+        return !isPrefetched(context, nextArtworkJson);
+    }
+
+    private static void prefetchNextArtwork(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        String nextArtworkJson = sp.getString(PREF_NEXT_ARTWORK, null);
+        if (nextArtworkJson == null) {
+            sp.edit().putBoolean(PREF_NEXT_ARTWORK_REQUESTED, true).commit();
+            ComponentName source = ComponentName.unflattenFromString(
+                    sp.getString(PREF_SOURCE, ""));
+            if (source == null) {
+                return;
+            }
+            try {
+                // The source responds by publishing its state with the next artwork, which
+                // schedules the prefetch again
+                context.startService(new Intent(ACTION_HANDLE_COMMAND)
+                        .setComponent(source)
+                        .putExtra(EXTRA_COMMAND_ID,
+                                MuzeiArtSource.BUILTIN_COMMAND_ID_PREFETCH_NEXT_ARTWORK));
+            } catch (IllegalStateException | SecurityException e) {
+                Log.i(TAG, "Unable to ask " + source + " for its next artwork", e);
+            }
+            return;
+        }
+
+        Artwork artwork = parseArtwork(nextArtworkJson);
+        if (artwork != null) {
+            prefetch(context, artwork);
+        }
+    }
+
+    private static void prefetch(Context context, Artwork artwork) {
+        DownloadQueue.enqueue(context, artwork.imageUri, PendingDownload.PRIORITY_PREFETCH);
+    }
+
+    /**
+     * Returns the first few artwork queued by the selected source that have an image to
+     * download but haven't been downloaded yet.
+     */
+    private static List<Artwork> getUpcomingArtworkToPrefetch(Context context) {
+        List<Artwork> artworkToPrefetch = new ArrayList<>();
+        MuzeiDatabase database = MuzeiDatabase.getInstance(context);
+        Source source = database.sourceDao().getCurrentSourceBlocking();
+        if (source == null) {
+            return artworkToPrefetch;
+        }
+        List<UpcomingArtwork> queue = database.upcomingArtworkDao()
+                .getUpcomingArtworkBlocking(source.componentName);
+        for (int i = 0; i < queue.size() && i < MAX_PREFETCHED_UPCOMING_ARTWORK; i++) {
+            Artwork artwork = queue.get(i).toArtwork();
+            if (artwork.imageUri == null) {
+                continue;
+            }
+            File artworkFile = MuzeiProvider.getCacheFileForArtwork(context, artwork);
+            if (artworkFile != null && !artworkFile.exists()) {
+                artworkToPrefetch.add(artwork);
+            }
+        }
+        return artworkToPrefetch;
+    }
+
+    /**
+     * Parses the given artwork into the form it would be inserted as, or returns null if it
+     * has no image to prefetch.
+     */
+    @Nullable
+    private static Artwork parseArtwork(@Nullable String artworkJson) {
+        if (artworkJson == null) {
+            return null;
+        }
+        com.google.android.apps.muzei.api.Artwork apiArtwork;
+        try {
+            apiArtwork = com.google.android.apps.muzei.api.Artwork.fromJson(
+                    new JSONObject(artworkJson));
+        } catch (JSONException e) {
+            Log.w(TAG, "Unable to parse next artwork", e);
+            return null;
+        }
+        if (apiArtwork.getImageUri() == null) {
+            return null;
+        }
+        Artwork artwork = new Artwork();
+        artwork.sourceComponentName = apiArtwork.getComponentName();
+        artwork.imageUri = apiArtwork.getImageUri();
+        artwork.token = apiArtwork.getToken();
+        return artwork;
+    }
+
+    private static boolean isPrefetched(Context context, @Nullable String artworkJson) {
+        Artwork artwork = parseArtwork(artworkJson);
+        if (artwork == null) {
+            // There's no image to prefetch
+            return true;
+        }
+        File artworkFile = MuzeiProvider.getCacheFileForArtwork(context, artwork);
+        return artworkFile != null && artworkFile.exists();
+    }
+
+    /**
+     * Deletes the prefetched files of upcoming artwork that has been removed from the queue
+     * without being shown. This should be called on a background thread.
+     */
+    public static void deletePrefetchedArtwork(Context context,
+            List<UpcomingArtwork> upcomingArtwork) {
+        for (UpcomingArtwork artwork : upcomingArtwork) {
+            if (artwork.imageUri != null) {
+                deletePrefetchedArtwork(context, artwork.toArtwork());
+            }
+        }
+    }
+
+    /**
+     * Deletes the prefetched file of artwork that will no longer be published, unless it is
+     * also the file of artwork that has been.
+     */
+    private static void deletePrefetchedArtwork(Context context, @Nullable Artwork artwork) {
+        if (artwork == null) {
+            return;
+        }
+        List<Artwork> publishedArtwork = MuzeiDatabase.getInstance(context).artworkDao()
+                .getArtworkByImageUri(artwork.imageUri);
+        if (publishedArtwork != null && !publishedArtwork.isEmpty()) {
+            return;
+        }
+        MuzeiDatabase database = MuzeiDatabase.getInstance(context);
+        ArtworkContentDao artworkContentDao = database.artworkContentDao();
+        String contentId = artworkContentDao.getContentIdForImageUri(artwork.imageUri);
+        if (contentId != null) {
+            // The content may also be the image of other artwork, under another image URI
+            boolean unreferenced;
+            database.beginTransaction();
+            try {
+                ArtworkContent artworkContent = artworkContentDao.getContentBlocking(contentId);
+                unreferenced = artworkContent == null || artworkContent.refCount <= 0;
+                if (unreferenced) {
+                    artworkContentDao.deleteContent(contentId);
+                } else {
+                    artworkContentDao.deleteImageUriContent(artwork.imageUri);
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+            File contentFile = MuzeiProvider.getContentFile(context, contentId);
+            if (unreferenced && contentFile != null) {
+                MuzeiProvider.deleteArtworkFiles(contentFile);
+            }
+        }
+        // Also delete any unfinished download, or an image downloaded before content was stored
+        File uriCacheFile = MuzeiProvider.getUriCacheFileForArtwork(context, artwork);
+        if (uriCacheFile != null) {
+            MuzeiProvider.deleteArtworkFiles(uriCacheFile);
+        }
+        database.pendingDownloadDao().deleteByImageUri(artwork.imageUri);
+    }
+
+    private static void cancelJobs(JobScheduler jobScheduler) {
+        jobScheduler.cancel(PREFETCH_WHILE_CHARGING_JOB_ID);
+        jobScheduler.cancel(PREFETCH_WHILE_IDLE_JOB_ID);
+    }
+
+    private ArtworkPrefetcher() {
+    }
+}
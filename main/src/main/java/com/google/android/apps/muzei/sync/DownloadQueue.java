@@ -0,0 +1,608 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.sync;
+
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.net.ConnectivityManager;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+import android.support.v4.net.ConnectivityManagerCompat;
+import android.support.v4.os.UserManagerCompat;
+import android.util.Log;
+
+import com.google.android.apps.muzei.event.ArtworkLoadingStateChangedEvent;
+import com.google.android.apps.muzei.provider.MuzeiProvider;
+import com.google.android.apps.muzei.render.ArtworkDownscaler;
+import com.google.android.apps.muzei.render.ArtworkPreparer;
+import com.google.android.apps.muzei.render.Etc1TileCompressor;
+import com.google.android.apps.muzei.render.TilePyramidGenerator;
+import com.google.android.apps.muzei.room.Artwork;
+import com.google.android.apps.muzei.room.ArtworkContent;
+import com.google.android.apps.muzei.room.ArtworkContentDao;
+import com.google.android.apps.muzei.room.MuzeiDatabase;
+import com.google.android.apps.muzei.room.PendingDownload;
+import com.google.android.apps.muzei.room.PendingDownloadDao;
+
+import net.nurik.roman.muzei.BuildConfig;
+
+import org.greenrobot.eventbus.EventBus;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import okhttp3.CacheControl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.BufferedSink;
+import okio.Okio;
+
+/**
+ * A persistent queue of artwork images to download into their cache files, stored as
+ * {@link PendingDownload} rows.
+ *
+ * <p>Images are queued at one of three priorities: the current artwork, artwork expected to be
+ * shown soon, and previously shown artwork whose file is missing. Each image is only queued
+ * once, at the highest priority it was requested at, and images whose file is already in place
+ * aren't queued at all, since all artwork with the same image share one file.
+ *
+ * <p>The queue is drained in batches by a single job, {@link DownloadQueueJobService}, or by
+ * {@link TaskQueueService} before Lollipop, so that downloads requested close together share
+ * one wakeup of the radio. Up to {@link #MAX_CONCURRENT_DOWNLOADS} downloads run at once, with
+ * at most {@link #MAX_DOWNLOADS_PER_HOST} from the same host. Anything other than the current
+ * artwork waits for an unmetered network.
+ */
+public class DownloadQueue {
+    private static final String TAG = "DownloadQueue";
+
+    private static final int DOWNLOAD_QUEUE_JOB_ID = 1;
+
+    private static final int MAX_CONCURRENT_DOWNLOADS = 3;
+    private static final int MAX_DOWNLOADS_PER_HOST = 2;
+    /**
+     * Downloads other than the current artwork are dropped after this many failed attempts.
+     */
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_BACKOFF_MILLIS = 30 * 1000;
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+    // Guarded by DownloadQueue.class
+    private static boolean sDraining = false;
+    private static boolean sScheduledWhileDraining = false;
+    private static ExecutorService sExecutorService;
+
+    private static synchronized ExecutorService getExecutorService() {
+        if (sExecutorService == null) {
+            sExecutorService = Executors.newSingleThreadExecutor();
+        }
+        return sExecutorService;
+    }
+
+    /**
+     * Queues the image of the current artwork, along with any missing images of previous
+     * artwork, and schedules the queue to be drained.
+     */
+    public static void enqueueCurrentArtwork(Context context) {
+        final Context applicationContext = context.getApplicationContext();
+        getExecutorService().execute(new Runnable() {
+            @Override
+            public void run() {
+                Artwork artwork = MuzeiDatabase.getInstance(applicationContext).artworkDao()
+                        .getCurrentArtworkBlocking();
+                if (artwork == null || artwork.imageUri == null) {
+                    return;
+                }
+                enqueue(applicationContext, artwork.imageUri,
+                        PendingDownload.PRIORITY_CURRENT_ARTWORK);
+                // Queue these now so that they are downloaded in the same batch
+                enqueueMissingHistory(applicationContext);
+                schedule(applicationContext);
+            }
+        });
+    }
+
+    private static void enqueueMissingHistory(Context context) {
+        List<Artwork> artworkList = MuzeiDatabase.getInstance(context).artworkDao()
+                .getArtworkBlocking();
+        if (artworkList == null) {
+            return;
+        }
+        for (Artwork artwork : artworkList) {
+            if (artwork.imageUri != null) {
+                enqueue(context, artwork.imageUri, PendingDownload.PRIORITY_HISTORY);
+            }
+        }
+    }
+
+    /**
+     * Queues the given image unless it has already been downloaded. Call {@link #schedule}
+     * once done queueing images. This should be called on a background thread.
+     */
+    static void enqueue(Context context, Uri imageUri, int priority) {
+        File artworkFile = getCacheFile(context, imageUri);
+        if (artworkFile != null && artworkFile.exists()) {
+            return;
+        }
+        MuzeiDatabase.getInstance(context).pendingDownloadDao()
+                .enqueue(new PendingDownload(imageUri, priority));
+    }
+
+    /**
+     * Schedules the queue to be drained if it isn't empty. This should be called on a
+     * background thread.
+     */
+    static void schedule(Context context) {
+        if (deferToRunningDrain()) {
+            // The running drain picks up newly queued images before it finishes
+            return;
+        }
+        Integer highestPriority = MuzeiDatabase.getInstance(context).pendingDownloadDao()
+                .getHighestPriorityBlocking();
+        if (highestPriority == null) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            int networkType;
+            if (highestPriority < PendingDownload.PRIORITY_CURRENT_ARTWORK) {
+                networkType = JobInfo.NETWORK_TYPE_UNMETERED;
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                networkType = JobInfo.NETWORK_TYPE_NOT_ROAMING;
+            } else {
+                networkType = JobInfo.NETWORK_TYPE_ANY;
+            }
+            JobScheduler jobScheduler = (JobScheduler)
+                    context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+            jobScheduler.schedule(new JobInfo.Builder(DOWNLOAD_QUEUE_JOB_ID,
+                    new ComponentName(context, DownloadQueueJobService.class))
+                    .setRequiredNetworkType(networkType)
+                    .setBackoffCriteria(RETRY_BACKOFF_MILLIS, JobInfo.BACKOFF_POLICY_EXPONENTIAL)
+                    .build());
+        } else {
+            context.startService(TaskQueueService.getDrainDownloadQueueIntent(context));
+        }
+    }
+
+    /**
+     * Returns whether a drain is running, in which case it is told to look for newly queued
+     * images again before finishing.
+     */
+    private static synchronized boolean deferToRunningDrain() {
+        if (sDraining) {
+            sScheduledWhileDraining = true;
+        }
+        return sDraining;
+    }
+
+    private static synchronized boolean startDraining() {
+        if (sDraining) {
+            return false;
+        }
+        sDraining = true;
+        return true;
+    }
+
+    /**
+     * Stops draining unless images may have been queued since the drain last looked, in which
+     * case the drain should look again.
+     *
+     * @return whether draining has stopped
+     */
+    private static synchronized boolean finishDraining() {
+        if (sScheduledWhileDraining) {
+            sScheduledWhileDraining = false;
+            return false;
+        }
+        sDraining = false;
+        return true;
+    }
+
+    private static synchronized void stopDraining() {
+        sDraining = false;
+        sScheduledWhileDraining = false;
+    }
+
+    /**
+     * Downloads everything in the queue that can be downloaded on the current network, in
+     * batches, until the queue is empty or every remaining download has been attempted. This
+     * should be called on a background thread.
+     *
+     * @return whether any download failed and should be retried later
+     */
+    static boolean drain(Context context) {
+        if (!UserManagerCompat.isUserUnlocked(context)) {
+            // Artwork files can't be written until the user is unlocked
+            return true;
+        }
+        if (!startDraining()) {
+            // Another drain is already running, so try again once it has finished
+            return true;
+        }
+        PendingDownloadDao dao = MuzeiDatabase.getInstance(context).pendingDownloadDao();
+        ConnectivityManager connectivityManager = (ConnectivityManager)
+                context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        boolean unmetered = !ConnectivityManagerCompat.isActiveNetworkMetered(connectivityManager);
+        Set<Long> attemptedIds = new HashSet<>();
+        boolean needsRetry = false;
+        int downloadCount = 0;
+        ExecutorService executorService = Executors.newFixedThreadPool(MAX_CONCURRENT_DOWNLOADS);
+        try {
+            while (true) {
+                // Failed downloads stay in the queue, so look past the ones already attempted
+                List<PendingDownload> batch = selectBatch(dao.getNextPendingDownloadsBlocking(
+                        attemptedIds.size() + MAX_CONCURRENT_DOWNLOADS * MAX_DOWNLOADS_PER_HOST),
+                        attemptedIds, unmetered);
+                if (batch.isEmpty()) {
+                    if (finishDraining()) {
+                        break;
+                    }
+                    continue;
+                }
+                List<Future<Boolean>> futures = new ArrayList<>();
+                for (final PendingDownload pendingDownload : batch) {
+                    attemptedIds.add(pendingDownload.id);
+                    final Context applicationContext = context.getApplicationContext();
+                    futures.add(executorService.submit(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() {
+                            return download(applicationContext, pendingDownload);
+                        }
+                    }));
+                }
+                for (int i = 0; i < batch.size(); i++) {
+                    PendingDownload pendingDownload = batch.get(i);
+                    boolean success;
+                    try {
+                        success = futures.get(i).get();
+                    } catch (ExecutionException e) {
+                        Log.e(TAG, "Error downloading " + pendingDownload.imageUri, e);
+                        success = false;
+                    }
+                    if (success) {
+                        dao.delete(pendingDownload);
+                        downloadCount++;
+                    } else if (pendingDownload.priority < PendingDownload.PRIORITY_CURRENT_ARTWORK
+                            && pendingDownload.attempts + 1 >= MAX_ATTEMPTS) {
+                        Log.w(TAG, "Giving up on downloading " + pendingDownload.imageUri);
+                        dao.delete(pendingDownload);
+                    } else {
+                        dao.incrementAttempts(pendingDownload.id);
+                        needsRetry = true;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            needsRetry = true;
+        } finally {
+            executorService.shutdownNow();
+            stopDraining();
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Downloaded " + downloadCount + " of " + attemptedIds.size()
+                    + " queued images, HTTP " + HttpMetrics.getInstance());
+        }
+        return needsRetry;
+    }
+
+    /**
+     * Picks the downloads to run at the same time from the given candidates, in order, skipping
+     * those already attempted, limiting how many come from the same host, and only including
+     * the current artwork on metered networks.
+     */
+    private static List<PendingDownload> selectBatch(List<PendingDownload> candidates,
+            Set<Long> attemptedIds, boolean unmetered) {
+        List<PendingDownload> batch = new ArrayList<>();
+        Map<String, Integer> hostCounts = new HashMap<>();
+        for (PendingDownload candidate : candidates) {
+            if (batch.size() >= MAX_CONCURRENT_DOWNLOADS) {
+                break;
+            }
+            if (attemptedIds.contains(candidate.id)) {
+                continue;
+            }
+            if (!unmetered && candidate.priority < PendingDownload.PRIORITY_CURRENT_ARTWORK) {
+                continue;
+            }
+            if (candidate.host != null) {
+                Integer hostCount = hostCounts.get(candidate.host);
+                if (hostCount == null) {
+                    hostCount = 0;
+                }
+                if (hostCount >= MAX_DOWNLOADS_PER_HOST) {
+                    continue;
+                }
+                hostCounts.put(candidate.host, hostCount + 1);
+            }
+            batch.add(candidate);
+        }
+        return batch;
+    }
+
+    private static boolean download(Context context, PendingDownload pendingDownload) {
+        boolean isCurrentArtwork =
+                pendingDownload.priority >= PendingDownload.PRIORITY_CURRENT_ARTWORK;
+        File artworkFile = getCacheFile(context, pendingDownload.imageUri);
+        if (artworkFile == null) {
+            return false;
+        }
+        if (artworkFile.exists() && artworkFile.length() > 0) {
+            // We've already downloaded the file
+            if (isCurrentArtwork) {
+                postLoadingState(false, false);
+            }
+            return true;
+        }
+        // Only say we've started loading the current artwork if we actually need to download it
+        if (isCurrentArtwork) {
+            postLoadingState(true, false);
+        }
+        File partialFile = getPartialDownloadFile(context, pendingDownload.imageUri);
+        ArtworkContent artworkContent = partialFile != null
+                ? downloadToFile(context, pendingDownload.imageUri, partialFile)
+                : null;
+        File contentFile = artworkContent != null
+                ? MuzeiProvider.getContentFile(context, artworkContent.contentId)
+                : null;
+        if (contentFile == null) {
+            if (isCurrentArtwork) {
+                postLoadingState(false, true);
+            }
+            return false;
+        }
+        if (partialFile.exists() && !contentFile.exists()) {
+            // The content stays identified by the downloaded bytes even if they're downscaled
+            ArtworkDownscaler.downscale(context, partialFile,
+                    MuzeiProvider.getOriginalSizeFile(contentFile));
+        }
+        // Only the current artwork needs listeners told that its file is now available
+        if (!MuzeiProvider.commitArtworkContent(context, pendingDownload.imageUri, partialFile,
+                artworkContent, isCurrentArtwork)) {
+            // The partial file may have been downscaled, so it can't be resumed
+            ResumableDownload.delete(partialFile);
+            if (isCurrentArtwork) {
+                postLoadingState(false, true);
+            }
+            return false;
+        }
+        ResumableDownload.delete(partialFile);
+        if (isCurrentArtwork) {
+            postLoadingState(false, false);
+            // Compress the new artwork's tiles and build its tile pyramid ahead of time so
+            // that reloads are faster
+            Artwork artwork = MuzeiDatabase.getInstance(context).artworkDao()
+                    .getCurrentArtworkBlocking();
+            if (artwork != null && pendingDownload.imageUri.equals(artwork.imageUri)) {
+                Etc1TileCompressor.compressInBackground(context, artwork.id);
+                TilePyramidGenerator.generateInBackground(context, artwork.id);
+            }
+        } else if (pendingDownload.priority == PendingDownload.PRIORITY_PREFETCH) {
+            ArtworkPreparer.prepare(context, contentFile);
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "Prefetched artwork " + pendingDownload.imageUri);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Downloads the given image into the given file, hashing it as it is written. Images
+     * downloaded over HTTP resume from whatever an earlier failed attempt left in the file, and
+     * stop as soon as they are recognized as content that is already stored, in which case the
+     * file is deleted.
+     *
+     * @return the content the image was downloaded as, or null if it couldn't be downloaded
+     */
+    @Nullable
+    private static ArtworkContent downloadToFile(final Context context, Uri imageUri,
+            File file) {
+        final ArtworkContentDao artworkContentDao =
+                MuzeiDatabase.getInstance(context).artworkContentDao();
+        try {
+            ArtworkContent artworkContent = new ArtworkContent();
+            if (isHttpUri(imageUri)) {
+                ResumableDownload download = new ResumableDownload(
+                        OkHttpClientFactory.getSharedClient(context), file);
+                download.setDuplicateChecker(new ResumableDownload.DuplicateChecker() {
+                    @Override
+                    public String findDuplicate(String validator, long contentLength,
+                            String prefixHash) {
+                        String contentId = artworkContentDao.findDuplicate(prefixHash,
+                                validator, contentLength);
+                        File contentFile = contentId != null
+                                ? MuzeiProvider.getContentFile(context, contentId)
+                                : null;
+                        return contentFile != null && contentFile.exists() ? contentId : null;
+                    }
+                });
+                long resumedLength = download.download(imageUri.toString());
+                if (download.getDuplicateContentId() != null) {
+                    ArtworkContent duplicate = artworkContentDao.getContentBlocking(
+                            download.getDuplicateContentId());
+                    if (duplicate == null) {
+                        throw new IOException("Duplicate content of " + imageUri
+                                + " was deleted");
+                    }
+                    if (BuildConfig.DEBUG) {
+                        Log.d(TAG, "Stopped downloading " + imageUri + ", a duplicate of "
+                                + duplicate.contentId);
+                    }
+                    return duplicate;
+                }
+                if (BuildConfig.DEBUG && resumedLength > 0) {
+                    Log.d(TAG, "Resumed download of " + imageUri + " after " + resumedLength
+                            + " bytes");
+                }
+                artworkContent.contentId = download.getContentHash();
+                artworkContent.validator = download.getValidator();
+            } else {
+                MessageDigest digest = ContentHash.newDigest();
+                try (InputStream in = openUri(context, imageUri);
+                     OutputStream out = new DigestOutputStream(
+                             new FileOutputStream(file), digest)) {
+                    copy(in, out);
+                }
+                artworkContent.contentId = ContentHash.toHex(digest.digest());
+            }
+            artworkContent.length = file.length();
+            artworkContent.prefixHash = ContentHash.hashPrefix(file);
+            return artworkContent;
+        } catch (IOException|IllegalArgumentException e) {
+            Log.e(TAG, "Error downloading artwork " + imageUri, e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the file the given image is downloaded into until its content is known.
+     */
+    @Nullable
+    private static File getPartialDownloadFile(Context context, Uri imageUri) {
+        Artwork artwork = new Artwork();
+        artwork.imageUri = imageUri;
+        File uriCacheFile = MuzeiProvider.getUriCacheFileForArtwork(context, artwork);
+        return uriCacheFile != null ? MuzeiProvider.getPartialDownloadFile(uriCacheFile) : null;
+    }
+
+    /**
+     * Returns the file the given image is stored in once downloaded. Artwork is identified by
+     * its image, so this is the same file for every artwork with that image.
+     */
+    @Nullable
+    private static File getCacheFile(Context context, Uri imageUri) {
+        Artwork artwork = new Artwork();
+        artwork.imageUri = imageUri;
+        return MuzeiProvider.getCacheFileForArtwork(context, artwork);
+    }
+
+    private static void postLoadingState(final boolean loading, final boolean hadError) {
+        // Subscribers expect the event on the main thread
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                EventBus.getDefault().postSticky(
+                        new ArtworkLoadingStateChangedEvent(loading, hadError));
+            }
+        });
+    }
+
+    /**
+     * Streams all of the input to the output through Okio's pooled segments rather than
+     * through a small intermediate buffer, then flushes the output.
+     */
+    static long copy(InputStream in, OutputStream out) throws IOException {
+        BufferedSink sink = Okio.buffer(Okio.sink(out));
+        long bytesCopied = sink.writeAll(Okio.source(in));
+        sink.flush();
+        return bytesCopied;
+    }
+
+    static boolean isHttpUri(Uri uri) {
+        String scheme = uri.getScheme();
+        return "http".equals(scheme) || "https".equals(scheme);
+    }
+
+    static InputStream openUri(Context context, Uri uri)
+            throws IOException {
+
+        if (uri == null) {
+            throw new IllegalArgumentException("Uri cannot be empty");
+        }
+
+        String scheme = uri.getScheme();
+        if (scheme == null) {
+            throw new IOException("Uri had no scheme");
+        }
+
+        InputStream in = null;
+        if ("content".equals(scheme) || "android.resource".equals(scheme)) {
+            try {
+                in = context.getContentResolver().openInputStream(uri);
+            } catch (SecurityException e) {
+                throw new FileNotFoundException("No access to " + uri + ": " + e.toString());
+            }
+
+        } else if ("file".equals(scheme)) {
+            List<String> segments = uri.getPathSegments();
+            if (segments != null && segments.size() > 1
+                    && "android_asset".equals(segments.get(0))) {
+                AssetManager assetManager = context.getAssets();
+                StringBuilder assetPath = new StringBuilder();
+                for (int i = 1; i < segments.size(); i++) {
+                    if (i > 1) {
+                        assetPath.append("/");
+                    }
+                    assetPath.append(segments.get(i));
+                }
+                in = assetManager.open(assetPath.toString());
+            } else {
+                in = new FileInputStream(new File(uri.getPath()));
+            }
+
+        } else if ("http".equals(scheme) || "https".equals(scheme)) {
+            OkHttpClient client = OkHttpClientFactory.getSharedClient(context);
+            // The artwork is kept in its own cache file, so don't store a second copy in the
+            // HTTP cache
+            Request request;
+            request = new Request.Builder()
+                    .url(new URL(uri.toString()))
+                    .cacheControl(new CacheControl.Builder().noStore().build())
+                    .build();
+
+            Response response = client.newCall(request).execute();
+            int responseCode = response.code();
+            if (!(responseCode >= 200 && responseCode < 300)) {
+                throw new IOException("HTTP error response " + responseCode);
+            }
+            in = response.body().byteStream();
+        }
+
+        if (in == null) {
+            throw new FileNotFoundException("Null input stream for URI: " + uri);
+        }
+
+        return in;
+    }
+
+    private DownloadQueue() {
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.sync;
+
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.os.AsyncTask;
+
+/**
+ * JobService that drains the {@link DownloadQueue}
+ */
+public class DownloadQueueJobService extends JobService {
+    private AsyncTask<Void, Void, Boolean> mDrainTask = null;
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        mDrainTask = new AsyncTask<Void, Void, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... voids) {
+                return DownloadQueue.drain(DownloadQueueJobService.this);
+            }
+
+            @Override
+            protected void onPostExecute(Boolean needsRetry) {
+                jobFinished(params, needsRetry);
+                if (!needsRetry) {
+                    // Pick up anything queued as the drain finished, or that is waiting for
+                    // an unmetered network
+                    DownloadQueue.schedule(DownloadQueueJobService.this);
+                }
+            }
+        };
+        mDrainTask.execute();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(final JobParameters params) {
+        if (mDrainTask != null) {
+            mDrainTask.cancel(true);
+        }
+        return true;
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2014 Google Inc.
+ * Copyright 2017 Google Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -18,31 +18,38 @@ package com.google.android.apps.muzei.sync;
 
 import android.app.job.JobParameters;
 import android.app.job.JobService;
+import android.os.AsyncTask;
 
 /**
- * JobService that handles reloading artwork after any initial failure
+ * JobService that downloads and prepares the next artwork ahead of its scheduled update
  */
-public class DownloadArtworkJobService extends JobService {
-    private DownloadArtworkTask mDownloadArtworkTask = null;
+public class PrefetchArtworkJobService extends JobService {
+    private AsyncTask<Void, Void, Void> mPrefetchTask = null;
 
     @Override
     public boolean onStartJob(final JobParameters params) {
-        mDownloadArtworkTask = new DownloadArtworkTask(this) {
+        mPrefetchTask = new AsyncTask<Void, Void, Void>() {
             @Override
-            protected void onPostExecute(Boolean success) {
-                super.onPostExecute(success);
-                jobFinished(params, !success);
+            protected Void doInBackground(Void... voids) {
+                ArtworkPrefetcher.prefetch(PrefetchArtworkJobService.this);
+                return null;
+            }
+
+            @Override
+            protected void onPostExecute(Void result) {
+                jobFinished(params, false);
             }
         };
-        mDownloadArtworkTask.execute();
+        mPrefetchTask.execute();
         return true;
     }
 
     @Override
     public boolean onStopJob(final JobParameters params) {
-        if (mDownloadArtworkTask != null) {
-            mDownloadArtworkTask.cancel(true);
+        if (mPrefetchTask != null) {
+            mPrefetchTask.cancel(true);
         }
+        // The conditions no longer hold, so try again once they do
         return true;
     }
 }
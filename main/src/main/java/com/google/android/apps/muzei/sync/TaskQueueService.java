@@ -19,12 +19,10 @@ package com.google.android.apps.muzei.sync;
 import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.app.Service;
-import android.app.job.JobInfo;
-import android.app.job.JobScheduler;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.IBinder;
 import android.os.PowerManager;
@@ -33,19 +31,19 @@ import android.preference.PreferenceManager;
 import android.support.annotation.Nullable;
 import android.support.v4.content.WakefulBroadcastReceiver;
 
-import java.util.List;
-
+/**
+ * Drains the {@link DownloadQueue} before Lollipop, where {@link DownloadQueueJobService}
+ * can't be used, retrying failed downloads with an exponentially backed off alarm.
+ */
 public class TaskQueueService extends Service {
     private static final String TAG = "TaskQueueService";
 
-    static final String ACTION_DOWNLOAD_CURRENT_ARTWORK
-            = "com.google.android.apps.muzei.action.DOWNLOAD_CURRENT_ARTWORK";
-
-    private static final int LOAD_ARTWORK_JOB_ID = 1;
+    static final String ACTION_DRAIN_DOWNLOAD_QUEUE
+            = "com.google.android.apps.muzei.action.DRAIN_DOWNLOAD_QUEUE";
 
     private static final String PREF_ARTWORK_DOWNLOAD_ATTEMPT = "artwork_download_attempt";
 
-    private static final long DOWNLOAD_ARTWORK_WAKELOCK_TIMEOUT_MILLIS = 30 * 1000;
+    private static final long DRAIN_DOWNLOAD_QUEUE_WAKELOCK_TIMEOUT_MILLIS = 5 * 60 * 1000;
 
     @Nullable
     @Override
@@ -61,28 +59,31 @@ public class TaskQueueService extends Service {
         }
 
         String action = intent.getAction();
-        if (ACTION_DOWNLOAD_CURRENT_ARTWORK.equals(action)) {
-            // Handle internal download artwork request
-            new DownloadArtworkTask(this) {
+        if (ACTION_DRAIN_DOWNLOAD_QUEUE.equals(action)) {
+            // Hold a single wakelock while the whole queue is drained
+            new AsyncTask<Void, Void, Boolean>() {
                 PowerManager.WakeLock lock;
 
                 @Override
                 protected void onPreExecute() {
-                    super.onPreExecute();
                     // This is normally not started by a WakefulBroadcastReceiver so request a
                     // new wakelock.
                     PowerManager pwm = (PowerManager) getSystemService(POWER_SERVICE);
                     lock = pwm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
-                    lock.acquire(DOWNLOAD_ARTWORK_WAKELOCK_TIMEOUT_MILLIS);
+                    lock.acquire(DRAIN_DOWNLOAD_QUEUE_WAKELOCK_TIMEOUT_MILLIS);
                 }
 
                 @Override
-                protected void onPostExecute(Boolean success) {
-                    super.onPostExecute(success);
-                    if (success) {
-                        cancelArtworkDownloadRetries();
-                    } else {
+                protected Boolean doInBackground(Void... voids) {
+                    return DownloadQueue.drain(TaskQueueService.this);
+                }
+
+                @Override
+                protected void onPostExecute(Boolean needsRetry) {
+                    if (needsRetry) {
                         scheduleRetryArtworkDownload();
+                    } else {
+                        cancelArtworkDownloadRetries();
                     }
                     if (lock.isHeld()) {
                         lock.release();
@@ -98,61 +99,40 @@ public class TaskQueueService extends Service {
 
     private static PendingIntent getArtworkDownloadRetryPendingIntent(Context context) {
         return PendingIntent.getService(context, 0,
-                getDownloadCurrentArtworkIntent(context),
+                getDrainDownloadQueueIntent(context),
                 PendingIntent.FLAG_UPDATE_CURRENT);
     }
 
-    public static Intent getDownloadCurrentArtworkIntent(Context context) {
+    static Intent getDrainDownloadQueueIntent(Context context) {
         return new Intent(context, TaskQueueService.class)
-                .setAction(ACTION_DOWNLOAD_CURRENT_ARTWORK);
+                .setAction(ACTION_DRAIN_DOWNLOAD_QUEUE);
     }
 
     private void cancelArtworkDownloadRetries() {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            JobScheduler jobScheduler = (JobScheduler) getSystemService(Context.JOB_SCHEDULER_SERVICE);
-            jobScheduler.cancel(LOAD_ARTWORK_JOB_ID);
-        } else {
-            AlarmManager am = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
-            am.cancel(TaskQueueService.getArtworkDownloadRetryPendingIntent(this));
-            SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
-            sp.edit().putInt(PREF_ARTWORK_DOWNLOAD_ATTEMPT, 0).commit();
-        }
+        AlarmManager am = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        am.cancel(TaskQueueService.getArtworkDownloadRetryPendingIntent(this));
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
+        sp.edit().putInt(PREF_ARTWORK_DOWNLOAD_ATTEMPT, 0).commit();
     }
 
     private void scheduleRetryArtworkDownload() {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            JobScheduler jobScheduler = (JobScheduler) getSystemService(Context.JOB_SCHEDULER_SERVICE);
-            jobScheduler.schedule(new JobInfo.Builder(LOAD_ARTWORK_JOB_ID,
-                    new ComponentName(this, DownloadArtworkJobService.class))
-                    .setRequiredNetworkType(Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
-                            ? JobInfo.NETWORK_TYPE_NOT_ROAMING
-                            : JobInfo.NETWORK_TYPE_ANY)
-                    .build());
-        } else {
-            SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
-            int reloadAttempt = sp.getInt(PREF_ARTWORK_DOWNLOAD_ATTEMPT, 0);
-            sp.edit().putInt(PREF_ARTWORK_DOWNLOAD_ATTEMPT, reloadAttempt + 1).commit();
-            AlarmManager am = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
-            long retryTimeMillis = SystemClock.elapsedRealtime() + (1 << reloadAttempt) * 2000;
-            am.set(AlarmManager.ELAPSED_REALTIME, retryTimeMillis,
-                    TaskQueueService.getArtworkDownloadRetryPendingIntent(this));
-        }
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
+        int reloadAttempt = sp.getInt(PREF_ARTWORK_DOWNLOAD_ATTEMPT, 0);
+        sp.edit().putInt(PREF_ARTWORK_DOWNLOAD_ATTEMPT, reloadAttempt + 1).commit();
+        AlarmManager am = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        long retryTimeMillis = SystemClock.elapsedRealtime() + (1 << reloadAttempt) * 2000;
+        am.set(AlarmManager.ELAPSED_REALTIME, retryTimeMillis,
+                TaskQueueService.getArtworkDownloadRetryPendingIntent(this));
     }
 
     public static Intent maybeRetryDownloadDueToGainedConnectivity(Context context) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
-            List<JobInfo> pendingJobs = jobScheduler.getAllPendingJobs();
-            for (JobInfo pendingJob : pendingJobs) {
-                if (pendingJob.getId() == LOAD_ARTWORK_JOB_ID) {
-                    return TaskQueueService.getDownloadCurrentArtworkIntent(context);
-                }
-            }
+            // DownloadQueueJobService already waits for connectivity
             return null;
         }
         return (PreferenceManager.getDefaultSharedPreferences(context)
                 .getInt(PREF_ARTWORK_DOWNLOAD_ATTEMPT, 0) > 0)
-                ? TaskQueueService.getDownloadCurrentArtworkIntent(context)
+                ? TaskQueueService.getDrainDownloadQueueIntent(context)
                 : null;
     }
 }
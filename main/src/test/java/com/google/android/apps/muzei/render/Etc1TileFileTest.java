@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render;
+
+import com.google.android.apps.muzei.util.Etc1Encoder;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class Etc1TileFileTest {
+    @Test
+    public void roundTrip() throws IOException {
+        Etc1TileFile file = createFile();
+        Etc1TileFile read = Etc1TileFile.read(new ByteArrayInputStream(write(file)));
+
+        assertEquals(file.mOriginalWidth, read.mOriginalWidth);
+        assertEquals(file.mOriginalHeight, read.mOriginalHeight);
+        assertEquals(file.mWidth, read.mWidth);
+        assertEquals(file.mHeight, read.mHeight);
+        assertEquals(file.mTileSize, read.mTileSize);
+        assertEquals(file.mCols, read.mCols);
+        assertEquals(file.mRows, read.mRows);
+        assertArrayEquals(file.mTileWidths, read.mTileWidths);
+        assertArrayEquals(file.mTileHeights, read.mTileHeights);
+        for (int i = 0; i < file.mTileData.length; i++) {
+            ByteBuffer buffer = read.mTileData[i];
+            assertEquals(0, buffer.position());
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            assertArrayEquals("Tile " + i, file.mTileData[i].array(), data);
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedFile() throws IOException {
+        byte[] data = write(createFile());
+        // Cut off the middle of the header, the middle of a tile's header and the last byte of
+        // tile data
+        for (int length : new int[]{0, 10, 9 * 4 + 6, data.length - 1}) {
+            try {
+                Etc1TileFile.read(new ByteArrayInputStream(Arrays.copyOf(data, length)));
+                fail("Read a file truncated to " + length + " of " + data.length + " bytes");
+            } catch (EOFException expected) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void rejectsUnknownFormat() throws IOException {
+        byte[] data = write(createFile());
+        data[7]++; // Version
+        try {
+            Etc1TileFile.read(new ByteArrayInputStream(data));
+            fail("Read a file with an unknown version");
+        } catch (IOException expected) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void rejectsInvalidTileLength() throws IOException {
+        byte[] data = write(createFile());
+        data[9 * 4 + 11]--; // Encoded length of the first tile
+        try {
+            Etc1TileFile.read(new ByteArrayInputStream(data));
+            fail("Read a file with an invalid tile length");
+        } catch (IOException expected) {
+            // Expected
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void writeRejectsMissingTiles() throws IOException {
+        Etc1TileFile file = new Etc1TileFile(100, 60, 10, 6, 8, 2, 1);
+        file.setTile(0, new int[64], 8, 8);
+        write(file);
+    }
+
+    /**
+     * Creates a 2x2 tile file of a 12x10 picture with 8 pixel tiles, so the right and bottom
+     * tiles are partial.
+     */
+    private static Etc1TileFile createFile() {
+        Etc1TileFile file = new Etc1TileFile(1200, 1000, 12, 10, 8, 2, 2);
+        for (int row = 0; row < 2; row++) {
+            for (int col = 0; col < 2; col++) {
+                int width = col == 0 ? 8 : 4;
+                int height = row == 0 ? 8 : 2;
+                int[] pixels = new int[width * height];
+                for (int i = 0; i < pixels.length; i++) {
+                    pixels[i] = 0xff000000 | ((i * 37 + row * 91 + col * 53) * 0x010203);
+                }
+                file.setTile(row * 2 + col, pixels, width, height);
+            }
+        }
+        assertEquals(Etc1Encoder.getEncodedDataSize(4, 2), file.mTileData[3].array().length);
+        return file;
+    }
+
+    private static byte[] write(Etc1TileFile file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        file.write(out);
+        return out.toByteArray();
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.google.android.apps.muzei.featuredart;
 
+import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Handler;
@@ -35,6 +36,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
+import java.io.File;
 import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -45,6 +47,7 @@ import java.util.Locale;
 import java.util.Random;
 import java.util.TimeZone;
 
+import okhttp3.Cache;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 
@@ -61,8 +64,13 @@ public class FeaturedArtSource extends RemoteMuzeiArtSource {
 
     private static final int MAX_JITTER_MILLIS = 20 * 60 * 1000;
 
+    private static final String HTTP_CACHE_DIRECTORY = "featuredart_http";
+    private static final long HTTP_CACHE_SIZE_BYTES = 512 * 1024;
+
     private static final Random sRandom = new Random();
 
+    private static OkHttpClient sHttpClient;
+
     private static final SimpleDateFormat sDateFormatTZ
             = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ", Locale.US);
     private static final SimpleDateFormat sDateFormatLocal
@@ -249,8 +257,24 @@ public class FeaturedArtSource extends RemoteMuzeiArtSource {
         }
     }
 
+    /**
+     * Returns the client shared by every feed request, so that its connections are reused and
+     * the feed is kept in a small disk cache. Later checks are then revalidated with a
+     * conditional request instead of downloading the whole feed again.
+     */
+    private static synchronized OkHttpClient getHttpClient(Context context) {
+        if (sHttpClient == null) {
+            File cacheDirectory = new File(context.getApplicationContext().getCacheDir(),
+                    HTTP_CACHE_DIRECTORY);
+            sHttpClient = new OkHttpClient.Builder()
+                    .cache(new Cache(cacheDirectory, HTTP_CACHE_SIZE_BYTES))
+                    .build();
+        }
+        return sHttpClient;
+    }
+
     private JSONObject fetchJsonObject(final String url) throws IOException, JSONException {
-        OkHttpClient client = new OkHttpClient.Builder().build();
+        OkHttpClient client = getHttpClient(this);
 
         Request request = new Request.Builder()
                 .url(url)